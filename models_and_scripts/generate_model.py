@@ -0,0 +1,189 @@
+# Export a multilingual whisper model to TFLite with separate encoder and decoder signatures.
+#
+# The notebook model bakes language and task into the graph as forced decoder ids. This one
+# takes the decoder prompt as an input instead, so the app picks language and task at run time
+# and can decode the output of one encoder pass several times, e.g. to transcribe and translate
+# the same audio while paying for the encoder only once.
+#
+#   encode(input_features[1, 80, 3000] float32) -> encoder_hidden_states[1, 1500, d_model] float32
+#   decode(encoder_hidden_states, decoder_input_ids[1, 4] int32) -> sequences[1, n] int32
+#   decode_step(encoder_hidden_states, decoder_input_ids[1, n] int32) -> next_tokens[1, n] int32
+#
+# decoder_input_ids is <|startoftranscript|> <|language|> <|transcribe|> or <|translate|>
+# <|notimestamps|>, the sequences start with it like the ones of the notebook model.
+#
+# decode_step is one decoder pass over a prompt and the tokens so far, next_tokens[i] is the
+# greedy token after decoder_input_ids[0..i] with the same suppressed tokens as decode. The app
+# drives decoding with it, e.g. a tiny model drafts a few tokens and a larger one checks them all
+# in a single step (speculative decoding). Draft and target must share the vocab: export both
+# with this script, both multilingual.
+#
+# pip install tensorflow==2.14.0 transformers datasets
+# python generate_model.py --model whisper-base
+
+import argparse
+
+import numpy as np
+import tensorflow as tf
+from transformers import TFWhisperForConditionalGeneration, WhisperFeatureExtractor, WhisperTokenizer
+from transformers.modeling_tf_outputs import TFBaseModelOutput
+
+PROMPT_LENGTH = 4
+
+
+def build_prompt(tokenizer, language_code, task_code):
+    return [tokenizer.convert_tokens_to_ids(token)
+            for token in ("<|startoftranscript|>", language_code, task_code, "<|notimestamps|>")]
+
+
+class EncoderDecoderModel(tf.Module):
+    def __init__(self, model, max_new_tokens):
+        super(EncoderDecoderModel, self).__init__()
+        self.model = model
+        self.max_new_tokens = max_new_tokens
+        self.d_model = model.config.d_model
+        self.encoder_len = model.config.max_source_positions
+
+    @tf.function(
+        input_signature=[
+            tf.TensorSpec((1, 80, 3000), tf.float32, name="input_features"),
+        ],
+    )
+    def encode(self, input_features):
+        encoder = self.model.get_encoder()
+        outputs = encoder(input_features, return_dict=True)
+        return {"encoder_hidden_states": outputs.last_hidden_state}
+
+    def decode_fn(self):
+        @tf.function(
+            input_signature=[
+                tf.TensorSpec((1, self.encoder_len, self.d_model), tf.float32, name="encoder_hidden_states"),
+                tf.TensorSpec((1, PROMPT_LENGTH), tf.int32, name="decoder_input_ids"),
+            ],
+        )
+        def decode(encoder_hidden_states, decoder_input_ids):
+            # The prompt already holds language and task, nothing is forced inside the graph
+            outputs = self.model.generate(
+                encoder_outputs=TFBaseModelOutput(last_hidden_state=encoder_hidden_states),
+                decoder_input_ids=decoder_input_ids,
+                forced_decoder_ids=None,
+                max_new_tokens=self.max_new_tokens,
+                return_dict_in_generate=True,
+            )
+            return {"sequences": outputs["sequences"]}
+
+        return decode
+
+    def decode_step_fn(self):
+        vocab_size = self.model.config.vocab_size
+        generation_config = self.model.generation_config
+        suppress = np.zeros(vocab_size, dtype=np.float32)
+        suppress[list(generation_config.suppress_tokens or [])] = -np.inf
+        begin_suppress = np.zeros(vocab_size, dtype=np.float32)
+        begin_suppress[list(generation_config.begin_suppress_tokens or [])] = -np.inf
+        suppress = tf.constant(suppress)
+        begin_suppress = tf.constant(begin_suppress)
+
+        @tf.function(
+            input_signature=[
+                tf.TensorSpec((1, self.encoder_len, self.d_model), tf.float32, name="encoder_hidden_states"),
+                tf.TensorSpec((1, None), tf.int32, name="decoder_input_ids"),
+            ],
+        )
+        def decode_step(encoder_hidden_states, decoder_input_ids):
+            # No cache, the whole prefix runs every step so any number of new tokens is checked at once
+            outputs = self.model(
+                encoder_outputs=TFBaseModelOutput(last_hidden_state=encoder_hidden_states),
+                decoder_input_ids=decoder_input_ids,
+                return_dict=True,
+            )
+            logits = outputs.logits + suppress
+            # generate() also suppresses blank and end tokens as the first token after the prompt
+            positions = tf.range(tf.shape(decoder_input_ids)[1])
+            first = tf.cast(tf.equal(positions, PROMPT_LENGTH - 1), tf.float32)[None, :, None]
+            logits = logits + tf.where(first > 0, begin_suppress[None, None, :], 0.0)
+            return {"next_tokens": tf.argmax(logits, axis=-1, output_type=tf.int32)}
+
+        return decode_step
+
+
+def convert(saved_model_dir, signature_keys, tflite_model_path):
+    converter = tf.lite.TFLiteConverter.from_saved_model(saved_model_dir, signature_keys=signature_keys)
+    converter.target_spec.supported_ops = [
+        tf.lite.OpsSet.TFLITE_BUILTINS,  # enable TensorFlow Lite ops.
+        tf.lite.OpsSet.SELECT_TF_OPS,    # enable TensorFlow ops.
+    ]
+    converter.optimizations = [tf.lite.Optimize.DEFAULT]
+    tflite_model = converter.convert()
+    with open(tflite_model_path, "wb") as f:
+        f.write(tflite_model)
+    print(f"TFLite model saved to {tflite_model_path}, {len(tflite_model)} bytes")
+
+
+def check(tflite_model_path, input_features, prompts, tokenizer):
+    interpreter = tf.lite.Interpreter(tflite_model_path)
+    print(interpreter.get_signature_list())
+    encode = interpreter.get_signature_runner("encode")
+    decode = interpreter.get_signature_runner("decode")
+    decode_step = interpreter.get_signature_runner("decode_step")
+
+    # One encoder pass, one decoder pass per prompt
+    hidden_states = encode(input_features=input_features)["encoder_hidden_states"]
+    for prompt in prompts:
+        sequences = decode(encoder_hidden_states=hidden_states,
+                           decoder_input_ids=np.array([prompt], dtype=np.int32))["sequences"]
+        print(tokenizer.decode(sequences[0], skip_special_tokens=True))
+
+        # Greedy decoding one step at a time must give the same tokens
+        tokens = list(prompt)
+        while len(tokens) < sequences.shape[1] and tokens[-1] != tokenizer.eos_token_id:
+            next_tokens = decode_step(encoder_hidden_states=hidden_states,
+                                      decoder_input_ids=np.array([tokens], dtype=np.int32))["next_tokens"]
+            tokens.append(int(next_tokens[0, -1]))
+        if tokens != list(sequences[0][:len(tokens)]):
+            raise SystemExit("decode_step differs from decode: " + tokenizer.decode(tokens, skip_special_tokens=True))
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--model", default="whisper-base", help="whisper-tiny, whisper-base, whisper-small, ...")
+    parser.add_argument("--language", default="<|en|>", help="language of the check audio, e.g. <|en|>, <|fr|>, <|hi|>")
+    parser.add_argument("--max_new_tokens", type=int, default=None,
+                        help="tokens after the prompt, by default as many as the decoder positions leave")
+    args = parser.parse_args()
+
+    if args.model.endswith(".en"):
+        raise SystemExit("English only models have no task tokens, export a multilingual model")
+
+    pretrained_model = f"openai/{args.model}"
+    tflite_model_path = f"{args.model}-tasks.tflite"
+    saved_model_dir = f"tf_{args.model}_tasks_saved"
+
+    feature_extractor = WhisperFeatureExtractor.from_pretrained(pretrained_model)
+    tokenizer = WhisperTokenizer.from_pretrained(pretrained_model)
+    model = TFWhisperForConditionalGeneration.from_pretrained(pretrained_model)
+
+    # The prompt and every generated token take a decoder position, 448 for every whisper model
+    max_positions = model.config.max_target_positions
+    if args.max_new_tokens is None:
+        args.max_new_tokens = max_positions - PROMPT_LENGTH
+    if PROMPT_LENGTH + args.max_new_tokens > max_positions:
+        raise SystemExit(f"--max_new_tokens {args.max_new_tokens} and the {PROMPT_LENGTH} prompt tokens "
+                         f"do not fit the {max_positions} decoder positions")
+
+    module = EncoderDecoderModel(model, args.max_new_tokens)
+    signatures = {"encode": module.encode, "decode": module.decode_fn(), "decode_step": module.decode_step_fn()}
+    tf.saved_model.save(module, saved_model_dir, signatures=signatures)
+    convert(saved_model_dir, list(signatures.keys()), tflite_model_path)
+
+    from datasets import load_dataset
+    ds = load_dataset("hf-internal-testing/librispeech_asr_dummy", "clean", split="validation")
+    input_features = feature_extractor(ds[0]["audio"]["array"], sampling_rate=ds[0]["audio"]["sampling_rate"],
+                                       return_tensors="np").input_features.astype(np.float32)
+    check(tflite_model_path, input_features,
+          [build_prompt(tokenizer, args.language, "<|transcribe|>"),
+           build_prompt(tokenizer, args.language, "<|translate|>")], tokenizer)
+
+
+if __name__ == "__main__":
+    main()
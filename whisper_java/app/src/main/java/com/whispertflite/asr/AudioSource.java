@@ -0,0 +1,30 @@
+package com.whispertflite.asr;
+
+import java.io.IOException;
+
+// Audio input behind Recorder, delivering 16 kHz mono PCM_16 little endian. read() blocks like
+// AudioRecord.read and each source reports when the audio it returned was captured, on the
+// System.nanoTime() clock, so live latency can be measured from capture to text.
+//
+// Only AudioRecordSource needs Android; the paced sources are plain Java, files are read with
+// WaveReader, so they also run on a desktop JVM. Recorder, Whisper and the engines are Android
+// code though, so end to end latency is measured on a device or an emulator without talking into
+// it, e.g. with replayTesting in MainActivity, rather than on a Linux host.
+public interface AudioSource {
+    int SAMPLE_RATE = 16000;
+    int CHANNELS = 1;
+    int BYTES_PER_SAMPLE = 2;
+
+    void start() throws IOException;
+
+    // Returns the number of bytes read, 0 or negative once the source is exhausted or failed
+    int read(byte[] buffer, int offset, int length);
+
+    // Capture time of the first sample returned by the last read()
+    long getCaptureTimeNanos();
+
+    // Preferred read size in bytes
+    int getBufferSize();
+
+    void stop();
+}
@@ -0,0 +1,213 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Live transcription over a rolling audio window. Audio is appended as it arrives and the whole
+// window is transcribed again every hop, so words are not cut at buffer boundaries. Words two
+// consecutive hypotheses agree on are committed and never change afterwards, the rest is reported
+// as partial text. The window is bounded: once the hypothesis is fully stable and the audio ends
+// in a pause it is cleared, and when it fills up it is cut at its quietest point, so every
+// inference costs at most one window whatever the length of the session.
+public class LiveSession {
+    private static final String TAG = "LiveSession";
+
+    private static final int SAMPLE_RATE = WhisperUtil.WHISPER_SAMPLE_RATE;
+    private static final int FRAME_SAMPLES = 512;             // 32 ms
+    private static final double SILENCE_DB = -35.0;
+    private static final int PAUSE_SAMPLES = SAMPLE_RATE / 2;  // silent tail that ends an utterance
+    private static final int MIN_KEEP_SAMPLES = SAMPLE_RATE;   // forced cuts keep at least this much audio
+
+    // Runs inference on a window of 16 kHz samples, null if no engine is available
+    public interface Transcriber {
+        String transcribe(float[] samples);
+    }
+
+    public interface Listener {
+        // Text that will not change anymore, starting with a space when it follows earlier text
+        void onCommitted(String text);
+        // Current guess for the audio after the committed text, replaces the previous partial text
+        void onPartial(String text);
+    }
+
+    private final Transcriber mTranscriber;
+    private final Listener mListener;
+    private final int mHopSamples;
+    private final float[] mWindow;
+    private int mLength = 0;
+    private int mSinceUpdate = 0;
+    private List<String> mPrevious = new ArrayList<>(); // last hypothesis of the current window
+    private int mCommitted = 0;                         // words of the current window already committed,
+                                                        // counting the ones carried over a cut
+    private boolean mAnyCommitted = false;
+    private long mInferences = 0;
+    private long mInferenceSamples = 0;
+
+    // windowSeconds is capped to the 30 seconds the model sees, hopSeconds is the update interval
+    public LiveSession(float windowSeconds, float hopSeconds, Transcriber transcriber, Listener listener) {
+        int maxWindow = SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        mWindow = new float[(int) Math.max(2 * MIN_KEEP_SAMPLES, Math.min(maxWindow, windowSeconds * SAMPLE_RATE))];
+        mHopSamples = Math.max(FRAME_SAMPLES, (int) (hopSeconds * SAMPLE_RATE));
+        mTranscriber = transcriber;
+        mListener = listener;
+    }
+
+    // Add audio to the window, making room first if it would overflow
+    public synchronized void append(float[] samples) {
+        int offset = 0;
+        while (offset < samples.length) {
+            if (mLength == mWindow.length)
+                cutWindow();
+            int n = Math.min(samples.length - offset, mWindow.length - mLength);
+            System.arraycopy(samples, offset, mWindow, mLength, n);
+            mLength += n;
+            mSinceUpdate += n;
+            offset += n;
+        }
+    }
+
+    // True once a hop of audio arrived since the last update
+    public synchronized boolean isUpdateDue() {
+        return mSinceUpdate >= mHopSamples;
+    }
+
+    // Transcribe the window, commit the agreed words and report the rest as partial
+    public synchronized void update() {
+        mSinceUpdate = 0;
+        if (mLength == 0)
+            return;
+        List<String> hypothesis = transcribeWindow(mLength);
+        if (hypothesis == null)
+            return;
+
+        int agreed = agreedLength(mPrevious, hypothesis);
+        if (agreed > mCommitted)
+            commit(hypothesis, agreed);
+        mPrevious = hypothesis;
+        mListener.onPartial(join(hypothesis, Math.min(mCommitted, hypothesis.size()), hypothesis.size()));
+
+        // A stable hypothesis over audio that ended in a pause is a finished utterance
+        if (mCommitted >= hypothesis.size() && endsInPause())
+            resetWindow(mLength);
+    }
+
+    // End of audio, everything still in the window is committed
+    public synchronized void finish() {
+        if (mLength > 0) {
+            List<String> hypothesis = transcribeWindow(mLength);
+            if (hypothesis != null && hypothesis.size() > mCommitted)
+                commit(hypothesis, hypothesis.size());
+        }
+        mListener.onPartial("");
+        resetWindow(mLength);
+        Log.d(TAG, String.format(Locale.US, "Session done, inferences: %d, audio per inference: %.1f s",
+                mInferences, (mInferences == 0) ? 0.0 : mInferenceSamples / (double) mInferences / SAMPLE_RATE));
+    }
+
+    // Full window: finalize the audio before its quietest point and keep the rest. Words committed
+    // beyond what the head transcribes to were spoken in the kept audio, they stay committed at the
+    // start of the new window so they are not reported again. Without a head transcript all of
+    // them are kept, skipping a word is better than repeating text already delivered.
+    private void cutWindow() {
+        int cut = quietestFrameEnd(mLength - MIN_KEEP_SAMPLES);
+        List<String> head = transcribeWindow(cut);
+        int carried = mCommitted;
+        if (head != null) {
+            if (head.size() > mCommitted)
+                commit(head, head.size());
+            carried = Math.max(0, mCommitted - head.size());
+        }
+        Log.d(TAG, "Window is full, cut at " + cut * 1000L / SAMPLE_RATE + " ms, committed words carried: " + carried);
+        resetWindow(cut, carried);
+    }
+
+    private void commit(List<String> hypothesis, int end) {
+        String text = join(hypothesis, mCommitted, end);
+        mListener.onCommitted(mAnyCommitted ? " " + text : text);
+        mAnyCommitted = true;
+        mCommitted = end;
+    }
+
+    private void resetWindow(int drop) {
+        resetWindow(drop, 0);
+    }
+
+    // The last carried committed words become the previous hypothesis of the new window, the
+    // next hypothesis is compared against them and only the words after them are reported
+    private void resetWindow(int drop, int carried) {
+        System.arraycopy(mWindow, drop, mWindow, 0, mLength - drop);
+        mLength -= drop;
+        mPrevious = (carried == 0) ? new ArrayList<>()
+                : new ArrayList<>(mPrevious.subList(mCommitted - carried, mCommitted));
+        mCommitted = carried;
+    }
+
+    private List<String> transcribeWindow(int length) {
+        String text = mTranscriber.transcribe(Arrays.copyOf(mWindow, length));
+        if (text == null)
+            return null;
+        mInferences++;
+        mInferenceSamples += length;
+        List<String> words = new ArrayList<>();
+        for (String word : text.trim().split("\\s+")) {
+            if (!word.isEmpty())
+                words.add(word);
+        }
+        return words;
+    }
+
+    // Words equal in both hypotheses from the start, ignoring case and punctuation
+    private static int agreedLength(List<String> previous, List<String> current) {
+        int n = Math.min(previous.size(), current.size());
+        for (int i = 0; i < n; i++) {
+            if (!normalize(previous.get(i)).equals(normalize(current.get(i))))
+                return i;
+        }
+        return n;
+    }
+
+    private static String normalize(String word) {
+        return word.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]", "");
+    }
+
+    private static String join(List<String> words, int start, int end) {
+        return String.join(" ", words.subList(start, end));
+    }
+
+    private boolean endsInPause() {
+        if (mLength < PAUSE_SAMPLES)
+            return false;
+        for (int start = mLength - PAUSE_SAMPLES; start + FRAME_SAMPLES <= mLength; start += FRAME_SAMPLES) {
+            if (frameDb(start) > SILENCE_DB)
+                return false;
+        }
+        return true;
+    }
+
+    // End of the quietest frame in the window before limit, searching its second half
+    private int quietestFrameEnd(int limit) {
+        int cut = limit;
+        double quietest = Double.MAX_VALUE;
+        for (int start = limit / 2; start + FRAME_SAMPLES <= limit; start += FRAME_SAMPLES) {
+            double db = frameDb(start);
+            if (db < quietest) {
+                quietest = db;
+                cut = start + FRAME_SAMPLES;
+            }
+        }
+        return cut;
+    }
+
+    private double frameDb(int start) {
+        double energy = 0;
+        for (int i = start; i < start + FRAME_SAMPLES; i++)
+            energy += mWindow[i] * mWindow[i];
+        return 10 * Math.log10(energy / FRAME_SAMPLES + 1e-10);
+    }
+}
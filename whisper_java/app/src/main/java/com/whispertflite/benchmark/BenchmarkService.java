@@ -0,0 +1,158 @@
+package com.whispertflite.benchmark;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.engine.WhisperEngineJava;
+import com.whispertflite.server.Json;
+import com.whispertflite.utils.AssetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// Runs the EngineBenchmark without any UI and writes a JSON report. Like the transcription server
+// it needs the signature permission com.whispertflite.permission.CONTROL_SERVICES, e.g. from adb
+// as root:
+//   adb root
+//   adb shell am start-service -n com.whispertflite/.benchmark.BenchmarkService \
+//       --es model whisper-tiny.en.tflite --es engines java,native --ei warmup 1 --ei repetitions 5
+// then pull the report named in the log. The corpus is a directory of WAV files or a text file
+// listing them, by default the WAV files bundled with the app. The service stops when done.
+public class BenchmarkService extends Service {
+    private static final String TAG = "BenchmarkService";
+    public static final String EXTRA_MODEL = "model";
+    public static final String EXTRA_ENGINES = "engines";
+    public static final String EXTRA_CORPUS = "corpus";
+    public static final String EXTRA_WARMUP = "warmup";
+    public static final String EXTRA_REPETITIONS = "repetitions";
+    public static final String EXTRA_OUTPUT = "output";
+    private static final String ENGLISH_ONLY_MODEL_EXTENSION = ".en.tflite";
+    private static final String ENGLISH_ONLY_VOCAB_FILE = "filters_vocab_en.bin";
+    private static final String MULTILINGUAL_VOCAB_FILE = "filters_vocab_multilingual.bin";
+    // Only the whisper_native app ships this engine, it is looked up by name so the service builds in both
+    private static final String NATIVE_ENGINE_CLASS = "com.whispertflite.engine.WhisperEngineNative";
+
+    private boolean mRunning = false;
+
+    @Override
+    public synchronized int onStartCommand(Intent intent, int flags, int startId) {
+        if (mRunning || intent == null) {
+            Log.d(TAG, "Benchmark is already running");
+            return START_NOT_STICKY;
+        }
+        mRunning = true;
+        String model = intent.getStringExtra(EXTRA_MODEL);
+        String engines = intent.getStringExtra(EXTRA_ENGINES);
+        String corpus = intent.getStringExtra(EXTRA_CORPUS);
+        String output = intent.getStringExtra(EXTRA_OUTPUT);
+        int warmup = intent.getIntExtra(EXTRA_WARMUP, 1);
+        int repetitions = intent.getIntExtra(EXTRA_REPETITIONS, 3);
+
+        new Thread(() -> {
+            runBenchmark(model, (engines != null) ? engines : "java,native", corpus, output, warmup, repetitions);
+            stopSelf();
+        }, "Benchmark").start();
+        return START_NOT_STICKY;
+    }
+
+    private void runBenchmark(String model, String engines, String corpus, String output, int warmup, int repetitions) {
+        if (model == null) {
+            for (String assetName : AssetUtil.listAssets(this, ".tflite")) {
+                model = assetName;
+                break;
+            }
+        }
+        if (model == null) {
+            Log.e(TAG, "No model given and none bundled");
+            return;
+        }
+
+        File dataFolder = getExternalFilesDir(null);
+        AssetUtil.copyAssets(this, dataFolder, new String[]{"bin", "wav"});
+        boolean isMultilingual = !model.endsWith(ENGLISH_ONLY_MODEL_EXTENSION);
+        File vocabFile = new File(dataFolder, isMultilingual ? MULTILINGUAL_VOCAB_FILE : ENGLISH_ONLY_VOCAB_FILE);
+
+        List<File> files = EngineBenchmark.listCorpus((corpus != null) ? new File(corpus) : dataFolder);
+        if (files.isEmpty()) {
+            Log.e(TAG, "Corpus is empty");
+            return;
+        }
+
+        EngineBenchmark benchmark = new EngineBenchmark(warmup, repetitions);
+        String modelName = model;
+        for (String name : engines.split(",")) {
+            String engineName = name.trim();
+            benchmark.addEngine(engineName, () -> createEngine(engineName, modelName, vocabFile, isMultilingual));
+        }
+        Log.d(TAG, "Benchmarking " + engines + " on " + files.size() + " files with " + model);
+
+        Json report = benchmark.run(files)
+                .put("model", new File(model).getName())
+                .put("device", new Json()
+                        .put("manufacturer", Build.MANUFACTURER)
+                        .put("model", Build.MODEL)
+                        .put("hardware", Build.HARDWARE)
+                        .put("abi", Build.SUPPORTED_ABIS[0])
+                        .put("sdk", Build.VERSION.SDK_INT)
+                        .put("cores", Runtime.getRuntime().availableProcessors()))
+                .put("timestamp", System.currentTimeMillis());
+
+        File reportFile = (output != null) ? new File(output)
+                : new File(dataFolder, "benchmark-" + System.currentTimeMillis() + ".json");
+        try {
+            EngineBenchmark.writeReport(report, reportFile);
+            Log.d(TAG, "Report written to " + reportFile.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write report " + reportFile, e);
+        }
+    }
+
+    // Initialized engine of the given kind, null if it is unknown or cannot load the model
+    private WhisperEngine createEngine(String name, String model, File vocabFile, boolean isMultilingual) {
+        WhisperEngine engine;
+        if (name.equals("java")) {
+            engine = new WhisperEngineJava(this);
+        } else if (name.equals("native")) {
+            try {
+                engine = (WhisperEngine) Class.forName(NATIVE_ENGINE_CLASS).getConstructor(Context.class).newInstance(this);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                Log.e(TAG, "Native engine is not available in this build", e);
+                return null;
+            }
+        } else {
+            Log.e(TAG, "Unknown engine: " + name);
+            return null;
+        }
+
+        File modelFile = new File(model);
+        try {
+            boolean initialized;
+            if (modelFile.isAbsolute()) {
+                initialized = engine.initialize(model, vocabFile.getAbsolutePath(), isMultilingual);
+            } else {
+                try (AssetFileDescriptor modelFd = getAssets().openFd(model)) {
+                    initialized = engine.initialize(modelFd.getFileDescriptor(), modelFd.getStartOffset(),
+                            modelFd.getLength(), vocabFile.getAbsolutePath(), isMultilingual);
+                }
+            }
+            if (initialized)
+                return engine;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load " + model + " into the " + name + " engine", e);
+        }
+        engine.deinitialize();
+        return null;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,202 @@
+package com.whispertflite.cache;
+
+import android.util.Half;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// On-disk store of 80x3000 log-mel chunks, keyed by audio hash and chunk index. All models take
+// the same input features, so reruns and model comparisons skip the mel stage, and the features
+// may also be produced by another tool or device writing the same little endian layout.
+//
+// File layout, one file per audio: [magic, n_mel, n_frames, format] then per chunk a record of
+// [present flag (int)][n_mel * n_frames values, fp32 or fp16]. The files of the least recently
+// used audio are deleted once the folder goes past its byte limit, the file modification time
+// is the use time.
+public class MelFeatureStore {
+    private static final String TAG = "MelFeatureStore";
+    private static final int MAGIC = 0x574D454C; // "WMEL"
+    private static final int HEADER_SIZE = 16;
+    private static final int FORMAT_FP32 = 0;
+    private static final int FORMAT_FP16 = 1;
+
+    public static final int N_MEL = 80;
+    public static final int N_FRAMES = 3000;
+    public static final int CHUNK_VALUES = N_MEL * N_FRAMES;
+
+    private final File mDir;
+    private final boolean mFp16;
+    private final int mValueBytes;
+    private final long mMaxBytes;
+    private long mSizeBytes = 0;
+
+    public MelFeatureStore(File dir, boolean fp16, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create feature folder " + dir);
+        mDir = dir;
+        mFp16 = fp16;
+        mValueBytes = fp16 ? 2 : Float.BYTES;
+        mMaxBytes = maxBytes;
+        for (File file : featureFiles())
+            mSizeBytes += file.length();
+        trim(null);
+    }
+
+    // Features depend on the audio only, not on the model
+    public static TranscriptCache.Key keyOf(float[] samples) {
+        return TranscriptCache.keyOf(samples, "", "log-mel");
+    }
+
+    // Float32 native order buffer of a chunk, the layout the input tensor expects
+    public static ByteBuffer toInputBuffer(float[] mel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(mel.length * Float.BYTES).order(ByteOrder.nativeOrder());
+        buffer.asFloatBuffer().put(mel);
+        return buffer;
+    }
+
+    // Returns the chunk as a float32 native order buffer ready for the input tensor, or null if
+    // it was never stored. Full precision features on a little endian device are handed out as
+    // a view of the mapping without copying.
+    public synchronized ByteBuffer get(TranscriptCache.Key key, int chunk) {
+        File file = featureFile(key);
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long offset = recordOffset(chunk);
+            if (raf.length() < offset + recordSize() || !validHeader(raf))
+                return null;
+
+            MappedByteBuffer record = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, recordSize());
+            record.order(ByteOrder.LITTLE_ENDIAN);
+            if (record.getInt(0) == 0)
+                return null;
+
+            record.position(Integer.BYTES);
+            ByteBuffer values = record.slice().order(ByteOrder.LITTLE_ENDIAN);
+            file.setLastModified(System.currentTimeMillis());
+            if (!mFp16 && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+                return values;
+
+            ByteBuffer input = ByteBuffer.allocateDirect(CHUNK_VALUES * Float.BYTES).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < CHUNK_VALUES; i++)
+                input.putFloat(mFp16 ? Half.toFloat(values.getShort()) : values.getFloat());
+            input.rewind();
+            return input;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read features of " + key + " chunk " + chunk, e);
+            return null;
+        }
+    }
+
+    public void put(TranscriptCache.Key key, int chunk, float[] mel) {
+        put(key, chunk, FloatBuffer.wrap(mel));
+    }
+
+    // Same from a float32 native order buffer, e.g. one the native engine computed the features into
+    public void put(TranscriptCache.Key key, int chunk, ByteBuffer mel) {
+        ByteBuffer values = mel.duplicate().order(ByteOrder.nativeOrder());
+        values.rewind();
+        put(key, chunk, values.asFloatBuffer());
+    }
+
+    private synchronized void put(TranscriptCache.Key key, int chunk, FloatBuffer mel) {
+        if (mel.remaining() != CHUNK_VALUES) {
+            Log.e(TAG, "Unexpected feature size: " + mel.remaining());
+            return;
+        }
+
+        File file = featureFile(key);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long before = raf.length();
+            if (before < HEADER_SIZE) {
+                MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(N_MEL).putInt(N_FRAMES).putInt(mFp16 ? FORMAT_FP16 : FORMAT_FP32);
+            } else if (!validHeader(raf)) {
+                Log.e(TAG, "Feature file has a different layout: " + featureFile(key));
+                return;
+            }
+
+            MappedByteBuffer record = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, recordOffset(chunk), recordSize());
+            record.order(ByteOrder.LITTLE_ENDIAN);
+            record.position(Integer.BYTES);
+            while (mel.hasRemaining()) {
+                float value = mel.get();
+                if (mFp16)
+                    record.putShort(Half.toHalf(value));
+                else
+                    record.putFloat(value);
+            }
+            // Mark the chunk present only once its values are in place
+            record.putInt(0, 1);
+            mSizeBytes += raf.length() - before;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store features of " + key + " chunk " + chunk, e);
+            return;
+        }
+        trim(file);
+    }
+
+    public synchronized void clear() {
+        for (File file : featureFiles())
+            file.delete();
+        mSizeBytes = 0;
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    // Delete least recently used files until the folder fits the limit again, keeping the one
+    // just written
+    private void trim(File keep) {
+        if (mSizeBytes <= mMaxBytes)
+            return;
+        File[] files = featureFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (mSizeBytes <= mMaxBytes)
+                break;
+            if (file.equals(keep))
+                continue;
+            long length = file.length();
+            if (file.delete())
+                mSizeBytes -= length;
+        }
+        Log.d(TAG, "Features trimmed to " + mSizeBytes + " bytes");
+    }
+
+    private File[] featureFiles() {
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(".mel"));
+        return (files != null) ? files : new File[0];
+    }
+
+    private boolean validHeader(RandomAccessFile raf) throws IOException {
+        ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        return header.getInt(0) == MAGIC && header.getInt(4) == N_MEL && header.getInt(8) == N_FRAMES
+                && header.getInt(12) == (mFp16 ? FORMAT_FP16 : FORMAT_FP32);
+    }
+
+    private long recordSize() {
+        return Integer.BYTES + (long) CHUNK_VALUES * mValueBytes;
+    }
+
+    private long recordOffset(int chunk) {
+        return HEADER_SIZE + chunk * recordSize();
+    }
+
+    private File featureFile(TranscriptCache.Key key) {
+        return new File(mDir, key + (mFp16 ? ".f16.mel" : ".f32.mel"));
+    }
+}
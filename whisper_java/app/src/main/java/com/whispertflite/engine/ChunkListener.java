@@ -0,0 +1,8 @@
+package com.whispertflite.engine;
+
+// Receives each 30 seconds chunk of a long transcription as soon as it is decoded
+public interface ChunkListener {
+    // Chunk index covering startMs to endMs of the audio, its segment times are from startMs.
+    // Return false to stop before the next chunk.
+    boolean onChunk(int index, long startMs, long endMs, TranscriptionResult chunk);
+}
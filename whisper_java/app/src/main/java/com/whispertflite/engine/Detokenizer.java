@@ -0,0 +1,10 @@
+package com.whispertflite.engine;
+
+// Turns the token ids of a transcription back into text
+public interface Detokenizer {
+    int getTokenEOT();
+    // First timestamp token, each one after it is 20 ms later
+    int getTokenBEG();
+    // Text of the plain tokens in tokens[from, to), special and timestamp tokens are left out
+    String decode(int[] tokens, int from, int to);
+}
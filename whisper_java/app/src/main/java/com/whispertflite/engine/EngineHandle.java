@@ -0,0 +1,60 @@
+package com.whispertflite.engine;
+
+import android.util.Log;
+
+// Reference counted wrapper around an initialized engine, so a model can be swapped
+// while requests are still running on the previous one. The holder owns one reference
+// until retire(); the engine is deinitialized when the last in-flight request releases it.
+public class EngineHandle {
+    private static final String TAG = "EngineHandle";
+
+    private final WhisperEngine mEngine;
+    private final String mName;
+    private int mRefCount = 1;
+    private boolean mRetired = false;
+
+    public EngineHandle(WhisperEngine engine, String name) {
+        mEngine = engine;
+        mName = name;
+    }
+
+    public WhisperEngine getEngine() {
+        return mEngine;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // Returns false once the handle is retired, the caller should fetch the current one again
+    public synchronized boolean acquire() {
+        if (mRetired)
+            return false;
+        mRefCount++;
+        return true;
+    }
+
+    public void release() {
+        boolean last;
+        synchronized (this) {
+            last = (--mRefCount == 0);
+        }
+        if (last) {
+            // Wait for a request still holding the engine lock to leave it
+            synchronized (mEngine) {
+                mEngine.deinitialize();
+            }
+            Log.d(TAG, "Engine is closed..." + mName);
+        }
+    }
+
+    // Stop handing out the engine, it is closed once all in-flight requests are done
+    public void retire() {
+        synchronized (this) {
+            if (mRetired)
+                return;
+            mRetired = true;
+        }
+        release();
+    }
+}
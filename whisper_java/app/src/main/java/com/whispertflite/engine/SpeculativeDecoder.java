@@ -0,0 +1,187 @@
+package com.whispertflite.engine;
+
+import android.util.Log;
+
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BooleanSupplier;
+
+// Greedy decoding of a larger model with a fraction of its decoder invocations. For each chunk a
+// small draft model, e.g. whisper-tiny, proposes the next few tokens one step at a time, and the
+// target model checks all of them in a single step: next[i] of that step is its own greedy token
+// after the first i tokens. The longest matching prefix of the draft is kept along with the target
+// token after it, so every target step adds at least one token and the output is exactly what
+// greedy decoding on the target alone gives.
+//
+// Both models need encode and decode_step signatures and the same vocab, see generate_model.py.
+// Each engine and each decoder serve one request at a time.
+public class SpeculativeDecoder {
+    private static final String TAG = "SpeculativeDecoder";
+    private static final int MAX_TOKENS = 448;  // decoder context of every whisper model
+    public static final int DEFAULT_DRAFT_TOKENS = 4;
+
+    private final WhisperEngine mTarget;
+    private final WhisperEngine mDraft;
+    private final int mDraftTokens;
+    private long mTargetSteps = 0;
+    private long mDraftSteps = 0;
+    private long mDrafted = 0;
+    private long mAccepted = 0;
+    private long mTokens = 0;
+
+    public SpeculativeDecoder(WhisperEngine target, WhisperEngine draft) {
+        this(target, draft, DEFAULT_DRAFT_TOKENS);
+    }
+
+    // draftTokens is how far the draft model runs ahead of each target step
+    public SpeculativeDecoder(WhisperEngine target, WhisperEngine draft, int draftTokens) {
+        mTarget = target;
+        mDraft = draft;
+        mDraftTokens = Math.max(1, draftTokens);
+    }
+
+    // True if both engines decode step-wise over the same vocab
+    public static boolean isSupported(WhisperEngine target, WhisperEngine draft) {
+        if (!target.supportsStepDecoding() || !draft.supportsStepDecoding())
+            return false;
+        Detokenizer targetVocab = target.getDetokenizer();
+        Detokenizer draftVocab = draft.getDetokenizer();
+        return targetVocab != null && draftVocab != null
+                && targetVocab.getTokenEOT() == draftVocab.getTokenEOT()
+                && targetVocab.getTokenBEG() == draftVocab.getTokenBEG();
+    }
+
+    // All chunks as one result, the chunks done so far if stopped
+    public TranscriptionResult transcribe(float[] samples, WhisperEngine.Task task, long deadlineNanos, BooleanSupplier isStopped) {
+        List<TranscriptionResult> chunks = new ArrayList<>();
+        StageTimings timings = new StageTimings();
+        transcribe(samples, task, deadlineNanos, isStopped, (index, startMs, endMs, chunk) -> {
+            chunks.add(chunk);
+            timings.add(chunk.getTimings());
+            return true;
+        });
+        long audioMs = samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+        return TranscriptionResult.concat(chunks, audioMs, timings);
+    }
+
+    // Each 30 seconds chunk goes to the listener once decoded. deadlineNanos applies to the whole
+    // request, 0 for none; isStopped is polled between steps. False if stopped, by the listener or
+    // otherwise, before the last chunk.
+    public boolean transcribe(float[] samples, WhisperEngine.Task task, long deadlineNanos, BooleanSupplier isStopped,
+                              ChunkListener listener) {
+        if (!isSupported(mTarget, mDraft)) {
+            Log.d(TAG, "Models do not support speculative decoding together");
+            return false;
+        }
+        BooleanSupplier stopped = () -> isStopped.getAsBoolean()
+                || (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0);
+        int[] prompt = mTarget.getPrompt(task);
+        Detokenizer detokenizer = mTarget.getDetokenizer();
+
+        int chunkSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        int totalChunks = Math.max(1, (samples.length + chunkSize - 1) / chunkSize);
+        for (int chunkIndex = 0; chunkIndex < totalChunks; chunkIndex++) {
+            if (stopped.getAsBoolean())
+                return false;
+
+            // Each model encodes the chunk for its own decoder
+            int offset = chunkIndex * chunkSize;
+            StageTimings encoded = new StageTimings();
+            mTarget.setDeadline(deadlineNanos);
+            if (!mTarget.encodeChunk(samples, offset))
+                return false;
+            encoded.add(mTarget.getLastTimings());
+            mDraft.setDeadline(deadlineNanos);
+            if (!mDraft.encodeChunk(samples, offset))
+                return false;
+            encoded.add(mDraft.getLastTimings());
+
+            long decodeStart = System.nanoTime();
+            int[] tokens = decodeChunk(prompt, detokenizer.getTokenEOT(), deadlineNanos, stopped);
+            if (tokens == null)
+                return false;
+            mTokens += tokens.length - prompt.length;
+            // Both encoders and every decoder step count as the invoke stage of one chunk
+            StageTimings timings = new StageTimings(encoded.getMelNanos(),
+                    encoded.getInvokeNanos() + System.nanoTime() - decodeStart, 0, 1);
+
+            long startMs = (long) chunkIndex * WhisperUtil.WHISPER_CHUNK_SIZE * 1000;
+            long endMs = Math.min(startMs + WhisperUtil.WHISPER_CHUNK_SIZE * 1000L,
+                    samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE);
+            if (!listener.onChunk(chunkIndex, startMs, endMs, new TranscriptionResult(tokens, endMs - startMs, detokenizer, timings)))
+                return false;
+        }
+        Log.d(TAG, toString());
+        return true;
+    }
+
+    // Prompt and tokens up to the end token like the decode signature gives them, null if stopped.
+    // Every step gets the deadline, so a step running past it is aborted.
+    private int[] decodeChunk(int[] prompt, int tokenEOT, long deadlineNanos, BooleanSupplier stopped) {
+        int[] tokens = Arrays.copyOf(prompt, MAX_TOKENS);
+        int length = prompt.length;
+        while (length < MAX_TOKENS) {
+            if (stopped.getAsBoolean())
+                return null;
+
+            // The draft runs ahead, leaving room for the target token after its last one
+            int drafted = length;
+            int limit = Math.min(length + mDraftTokens, MAX_TOKENS - 1);
+            while (drafted < limit) {
+                mDraft.setDeadline(deadlineNanos);
+                int[] next = mDraft.decodeStep(tokens, drafted);
+                if (next == null)
+                    return null;
+                mDraftSteps++;
+                tokens[drafted] = next[drafted - 1];
+                if (tokens[drafted++] == tokenEOT)
+                    break;
+            }
+
+            // One target step checks every drafted token
+            mTarget.setDeadline(deadlineNanos);
+            int[] next = mTarget.decodeStep(tokens, drafted);
+            if (next == null)
+                return null;
+            mTargetSteps++;
+            mDrafted += drafted - length;
+
+            int position = length;
+            while (position < drafted && tokens[position] == next[position - 1]) {
+                if (tokens[position] == tokenEOT) {
+                    mAccepted += position - length + 1;
+                    return Arrays.copyOf(tokens, position);
+                }
+                position++;
+            }
+            mAccepted += position - length;
+
+            // The target token replaces the first wrong draft token, or follows the draft
+            int token = next[position - 1];
+            if (token == tokenEOT)
+                return Arrays.copyOf(tokens, position);
+            tokens[position] = token;
+            length = position + 1;
+        }
+        return tokens;
+    }
+
+    // Share of the drafted tokens the target kept
+    public double getAcceptanceRate() {
+        return (mDrafted > 0) ? (double) mAccepted / mDrafted : 0;
+    }
+
+    public long getTargetSteps() {
+        return mTargetSteps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "Tokens %d, target steps %d, draft steps %d, accepted %.0f%% of %d drafted",
+                mTokens, mTargetSteps, mDraftSteps, getAcceptanceRate() * 100, mDrafted);
+    }
+}
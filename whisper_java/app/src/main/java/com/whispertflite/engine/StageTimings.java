@@ -0,0 +1,65 @@
+package com.whispertflite.engine;
+
+import java.util.Locale;
+
+// Time a transcription spent per stage: log-mel features, interpreter invoke and token decode
+public class StageTimings {
+    private long mMelNanos;
+    private long mInvokeNanos;
+    private long mDecodeNanos;
+    private int mChunks;
+
+    public StageTimings() {
+    }
+
+    public StageTimings(long melNanos, long invokeNanos, long decodeNanos, int chunks) {
+        mMelNanos = melNanos;
+        mInvokeNanos = invokeNanos;
+        mDecodeNanos = decodeNanos;
+        mChunks = chunks;
+    }
+
+    public void addMel(long nanos) {
+        mMelNanos += nanos;
+    }
+
+    // One chunk through the model
+    public void addInference(long invokeNanos, long decodeNanos) {
+        mInvokeNanos += invokeNanos;
+        mDecodeNanos += decodeNanos;
+        mChunks++;
+    }
+
+    public void add(StageTimings other) {
+        mMelNanos += other.mMelNanos;
+        mInvokeNanos += other.mInvokeNanos;
+        mDecodeNanos += other.mDecodeNanos;
+        mChunks += other.mChunks;
+    }
+
+    public long getMelNanos() {
+        return mMelNanos;
+    }
+
+    public long getInvokeNanos() {
+        return mInvokeNanos;
+    }
+
+    public long getDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    public long getTotalNanos() {
+        return mMelNanos + mInvokeNanos + mDecodeNanos;
+    }
+
+    public int getChunks() {
+        return mChunks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "chunks: %d, mel: %.1f ms, invoke: %.1f ms, decode: %.1f ms",
+                mChunks, mMelNanos / 1e6, mInvokeNanos / 1e6, mDecodeNanos / 1e6);
+    }
+}
@@ -0,0 +1,311 @@
+package com.whispertflite.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// One HTTP/1.1 request and its response on a socket, the small part of HTTP the server needs:
+// Content-Length and chunked request bodies, Expect: 100-continue, and fixed or chunked
+// responses. Every exchange closes the connection, there is no keep-alive.
+public class HttpExchange implements Closeable {
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private final Socket mSocket;
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+    private final String mMethod;
+    private final String mPath;
+    private final Map<String, String> mQuery = new HashMap<>();
+    private final Map<String, String> mHeaders = new HashMap<>();
+    private boolean mContinueSent = false;
+    private boolean mResponseStarted = false;
+
+    private HttpExchange(Socket socket) throws IOException {
+        mSocket = socket;
+        mInput = new BufferedInputStream(socket.getInputStream());
+        mOutput = new BufferedOutputStream(socket.getOutputStream());
+
+        String[] requestLine = readLine(mInput).split(" ");
+        if (requestLine.length != 3)
+            throw new IOException("Malformed request line");
+        mMethod = requestLine[0].toUpperCase(Locale.ROOT);
+        String target = requestLine[1];
+        int queryStart = target.indexOf('?');
+        mPath = (queryStart < 0) ? target : target.substring(0, queryStart);
+        if (queryStart >= 0) {
+            for (String pair : target.substring(queryStart + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0)
+                    mQuery.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+                else if (!pair.isEmpty())
+                    mQuery.put(decode(pair), "");
+            }
+        }
+
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine(mInput)).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES)
+                throw new IOException("Request headers too large");
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+    }
+
+    // Parse the request head from a freshly accepted socket
+    public static HttpExchange read(Socket socket) throws IOException {
+        return new HttpExchange(socket);
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public String getQueryParameter(String name, String defaultValue) {
+        String value = mQuery.get(name);
+        return (value != null) ? value : defaultValue;
+    }
+
+    // Header value by case insensitive name, null if absent
+    public String getHeader(String name) {
+        return mHeaders.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    // Declared body length, -1 for chunked or unknown
+    public long getContentLength() {
+        String length = getHeader("Content-Length");
+        try {
+            return (length != null) ? Long.parseLong(length) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Request body, decoded if chunked. Clients waiting for 100-continue are told to go ahead.
+    public InputStream getRequestBody() throws IOException {
+        String expect = getHeader("Expect");
+        if (!mContinueSent && expect != null && expect.equalsIgnoreCase("100-continue")) {
+            mOutput.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            mOutput.flush();
+            mContinueSent = true;
+        }
+        String encoding = getHeader("Transfer-Encoding");
+        if (encoding != null && encoding.toLowerCase(Locale.ROOT).contains("chunked"))
+            return new ChunkedInputStream(mInput);
+        return new LimitedInputStream(mInput, Math.max(0, getContentLength()));
+    }
+
+    public void sendResponse(int status, String contentType, byte[] body) throws IOException {
+        writeHead(status, contentType, "Content-Length: " + body.length);
+        mOutput.write(body);
+        mOutput.flush();
+    }
+
+    public void sendJson(int status, Json json) throws IOException {
+        sendResponse(status, "application/json", (json.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Start a chunked response, every flush() of the returned stream sends what was written
+    public OutputStream startChunkedResponse(int status, String contentType) throws IOException {
+        writeHead(status, contentType, "Transfer-Encoding: chunked");
+        mOutput.flush();
+        return new ChunkedOutputStream(mOutput);
+    }
+
+    public boolean isResponseStarted() {
+        return mResponseStarted;
+    }
+
+    public String getRemoteAddress() {
+        return String.valueOf(mSocket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mOutput.flush();
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    private void writeHead(int status, String contentType, String lengthHeader) throws IOException {
+        if (mResponseStarted)
+            throw new IllegalStateException("Response already started");
+        mResponseStarted = true;
+        String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + lengthHeader + "\r\n"
+                + "Connection: close\r\n\r\n";
+        mOutput.write(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 408: return "Request Timeout";
+            case 413: return "Payload Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (Exception e) {
+            return value;
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c < 0)
+                throw new EOFException("Connection closed");
+            if (line.size() >= MAX_HEADER_BYTES)
+                throw new IOException("Line too long");
+            if (c != '\r')
+                line.write(c);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static class LimitedInputStream extends InputStream {
+        private final InputStream mInput;
+        private long mRemaining;
+
+        LimitedInputStream(InputStream input, long length) {
+            mInput = input;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int n = mInput.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (n < 0)
+                throw new EOFException("Request body shorter than Content-Length");
+            mRemaining -= n;
+            return n;
+        }
+    }
+
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream mInput;
+        private long mChunkRemaining = 0;
+        private boolean mEnd = false;
+
+        ChunkedInputStream(InputStream input) {
+            mInput = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mEnd)
+                return -1;
+            if (mChunkRemaining == 0) {
+                String sizeLine = readLine(mInput);
+                int extension = sizeLine.indexOf(';');
+                try {
+                    mChunkRemaining = Long.parseLong((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + sizeLine);
+                }
+                if (mChunkRemaining < 0)
+                    throw new IOException("Negative chunk size: " + sizeLine);
+                if (mChunkRemaining == 0) {
+                    // Skip trailers up to the blank line
+                    while (!readLine(mInput).isEmpty()) {
+                    }
+                    mEnd = true;
+                    return -1;
+                }
+            }
+            int n = mInput.read(buffer, offset, (int) Math.min(length, mChunkRemaining));
+            if (n < 0)
+                throw new EOFException("Truncated chunk");
+            mChunkRemaining -= n;
+            if (mChunkRemaining == 0)
+                readLine(mInput); // CRLF after the chunk data
+            return n;
+        }
+    }
+
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream mOutput;
+        private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+        private boolean mClosed = false;
+
+        ChunkedOutputStream(OutputStream output) {
+            mOutput = output;
+        }
+
+        @Override
+        public void write(int b) {
+            mPending.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            mPending.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mPending.size() == 0)
+                return;
+            mOutput.write((Integer.toHexString(mPending.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            mPending.writeTo(mOutput);
+            mOutput.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            mOutput.flush();
+            mPending.reset();
+        }
+
+        // Sends the last chunk, the exchange still has to be closed
+        @Override
+        public void close() throws IOException {
+            if (mClosed)
+                return;
+            flush();
+            mOutput.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            mOutput.flush();
+            mClosed = true;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.whispertflite.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal JSON object writer for the server responses. Values are strings, numbers, booleans,
+// null, nested Json objects or lists of those.
+public class Json {
+    private final Map<String, Object> mFields = new LinkedHashMap<>();
+
+    public Json put(String name, Object value) {
+        mFields.put(name, value);
+        return this;
+    }
+
+    public static List<Object> array() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        write(out, this);
+        return out.toString();
+    }
+
+    private static void write(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Json) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> field : ((Json) value).mFields.entrySet()) {
+                if (!first)
+                    out.append(',');
+                first = false;
+                quote(out, field.getKey());
+                out.append(':');
+                write(out, field.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0)
+                    out.append(',');
+                write(out, list.get(i));
+            }
+            out.append(']');
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else {
+            quote(out, value.toString());
+        }
+    }
+
+    private static void quote(StringBuilder out, String text) {
+        out.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        out.append(String.format("\\u%04x", (int) c));
+                    else
+                        out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
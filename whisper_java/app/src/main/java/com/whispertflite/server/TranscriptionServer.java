@@ -0,0 +1,615 @@
+package com.whispertflite.server;
+
+import android.util.Log;
+
+import com.whispertflite.asr.LiveSession;
+import com.whispertflite.asr.SpeechPacker;
+import com.whispertflite.asr.StreamScheduler;
+import com.whispertflite.asr.Whisper;
+import com.whispertflite.engine.EngineFactory;
+import com.whispertflite.engine.TranscriptionResult;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.utils.CpuBudget;
+import com.whispertflite.utils.LatencyStats;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless HTTP front end of the engine, plain sockets as com.sun.net.httpserver is not part
+// of Android. Endpoints, all answering JSON:
+//
+//   POST /transcribe?format=wav|f32|s16&pack=0|1&stream=0|1
+//        Whole recording in the body: a WAV file (default), raw float32 or raw 16 bit PCM at
+//        16 kHz mono. Runs on the batch engine pool; with stream=1 every 30 seconds window is
+//        sent as an NDJSON line as soon as it is done, then a final line with the whole text.
+//   POST /stream?format=s16|f32&hop=1.0&latencyMs=0
+//        Live audio as a chunked body, answered with NDJSON lines {"type":"partial"|"committed"}
+//        while it is sent and a "done" line with the whole text after the body ends.
+//   GET  /health, GET /metrics
+//
+// Batch requests beyond the pool wait in a bounded queue and get 503 when it is full, before
+// their body is read; streams are admitted by the StreamScheduler. Connections idle for
+// READ_TIMEOUT_MS are closed. Example requests, jfk.wav is one of the app's assets:
+//   adb forward tcp:8080 tcp:8080
+//   curl --data-binary @jfk.wav http://localhost:8080/transcribe
+//   curl --data-binary @- -H "Transfer-Encoding: chunked" http://localhost:8080/stream < audio.s16
+public class TranscriptionServer {
+    private static final String TAG = "TranscriptionServer";
+    private static final long MAX_UPLOAD_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final float STREAM_WINDOW_SECONDS = 15.0f;
+    private static final long STREAM_INFERENCE_ESTIMATE_MS = 1000;
+    private static final long STREAM_CLOSE_TIMEOUT_MS = 60_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    private final Whisper mWhisper;
+    private final File mTempDir;
+    private final int mPort;
+    private final int mBatchPoolSize;
+    private final int mBatchQueueCapacity;
+    private final int mStreamPoolSize;
+
+    private final BlockingQueue<WhisperEngine> mBatchEngines = new ArrayBlockingQueue<>(64);
+    private final List<WhisperEngine> mAllBatchEngines = new ArrayList<>();
+    private final LatencyStats mBatchLatency = new LatencyStats(1024);
+    private final AtomicLong mBatchCompleted = new AtomicLong();
+    private final AtomicLong mBatchRejected = new AtomicLong();
+    private final AtomicLong mStreamsRejected = new AtomicLong();
+    private final AtomicLong mFileCounter = new AtomicLong();
+    private Semaphore mBatchSlots;  // running and queued batch requests, taken before the body is read
+    private ThreadPoolExecutor mBatchExecutor;
+    private ThreadPoolExecutor mConnections;
+    private StreamScheduler mScheduler;
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private long mStartTime;
+
+    // whisper must have a model loaded; the server runs batchPoolSize engines for whole files
+    // with up to batchQueueCapacity waiting requests, and streamPoolSize engines for live streams
+    public TranscriptionServer(Whisper whisper, File tempDir, int port, int batchPoolSize,
+                               int batchQueueCapacity, int streamPoolSize) {
+        mWhisper = whisper;
+        mTempDir = tempDir;
+        mPort = port;
+        mBatchPoolSize = Math.min(batchPoolSize, 64);
+        mBatchQueueCapacity = batchQueueCapacity;
+        mStreamPoolSize = streamPoolSize;
+    }
+
+    // Create the engine pools and listen on the loopback interface, use adb forward to reach it
+    public synchronized void start() throws IOException {
+        EngineFactory factory = mWhisper.getEngineFactory();
+        if (factory == null)
+            throw new IOException("No model loaded");
+        // Batch and stream engines run side by side and split the inference cores between them
+        int pooled = mBatchPoolSize + mStreamPoolSize;
+        for (int i = 0; i < mBatchPoolSize; i++) {
+            WhisperEngine engine = CpuBudget.buildPooled(pooled, factory::create);
+            if (engine == null)
+                break;
+            mAllBatchEngines.add(engine);
+            mBatchEngines.add(engine);
+            // Engines that cannot run side by side would only queue behind the first
+            if (!engine.supportsConcurrentInstances())
+                break;
+        }
+        if (mAllBatchEngines.isEmpty())
+            throw new IOException("Failed to create batch engines");
+        int batchThreads = mAllBatchEngines.size();
+        mBatchExecutor = new ThreadPoolExecutor(batchThreads, batchThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, mBatchQueueCapacity)));
+        mBatchSlots = new Semaphore(batchThreads + Math.max(1, mBatchQueueCapacity));
+        mScheduler = (mStreamPoolSize > 0) ? CpuBudget.buildPooled(pooled,
+                () -> mWhisper.createStreamScheduler(mStreamPoolSize, STREAM_WINDOW_SECONDS, STREAM_INFERENCE_ESTIMATE_MS)) : null;
+        mConnections = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 30, TimeUnit.SECONDS, new SynchronousQueue<>());
+
+        mServerSocket = new ServerSocket(mPort, 50, InetAddress.getLoopbackAddress());
+        mStartTime = System.currentTimeMillis();
+        mAcceptThread = new Thread(this::acceptLoop, "ServerAccept");
+        mAcceptThread.start();
+        Log.d(TAG, "Listening on port " + mServerSocket.getLocalPort() + ", batch engines: " + batchThreads
+                + ", stream engines: " + ((mScheduler != null) ? mScheduler.getPoolSize() : 0));
+    }
+
+    public synchronized int getPort() {
+        return (mServerSocket != null) ? mServerSocket.getLocalPort() : -1;
+    }
+
+    public synchronized void stop() {
+        try {
+            if (mServerSocket != null)
+                mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing server socket", e);
+        }
+        if (mConnections != null)
+            mConnections.shutdownNow();
+        if (mBatchExecutor != null)
+            mBatchExecutor.shutdownNow();
+        if (mScheduler != null)
+            mScheduler.shutdown();
+        for (WhisperEngine engine : mAllBatchEngines) {
+            engine.cancel();
+            synchronized (engine) {
+                engine.deinitialize();
+            }
+        }
+        mAllBatchEngines.clear();
+        mBatchEngines.clear();
+        Log.d(TAG, "Server stopped");
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed())
+                    Log.e(TAG, "Accept failed", e);
+                break;
+            }
+            try {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                mConnections.execute(() -> handleConnection(socket));
+            } catch (SocketException e) {
+                Log.d(TAG, "Failed to set up " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "Too many connections, closing " + socket.getRemoteSocketAddress());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        HttpExchange exchange = null;
+        try {
+            exchange = HttpExchange.read(socket);
+            route(exchange);
+        } catch (SocketException e) {
+            Log.d(TAG, "Client went away: " + e.getMessage());
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "Client sent nothing for " + READ_TIMEOUT_MS + " ms, closing " + socket.getRemoteSocketAddress());
+            if (exchange != null && !exchange.isResponseStarted())
+                sendError(exchange, 408, "No data for " + READ_TIMEOUT_MS + " ms");
+        } catch (Exception e) {
+            Log.e(TAG, "Request failed", e);
+            if (exchange != null && !exchange.isResponseStarted())
+                sendError(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            try {
+                if (exchange != null)
+                    exchange.close();
+                else
+                    socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String path = exchange.getPath();
+        String method = exchange.getMethod();
+        if (path.equals("/health")) {
+            exchange.sendJson(200, new Json()
+                    .put("status", "ok")
+                    .put("modelLoaded", mWhisper.isModelLoaded())
+                    .put("uptimeMs", System.currentTimeMillis() - mStartTime));
+        } else if (path.equals("/metrics")) {
+            exchange.sendJson(200, metrics());
+        } else if (path.equals("/transcribe")) {
+            if (method.equals("POST"))
+                handleTranscribe(exchange);
+            else
+                sendError(exchange, 405, "POST audio to /transcribe");
+        } else if (path.equals("/stream")) {
+            if (method.equals("POST"))
+                handleStream(exchange);
+            else
+                sendError(exchange, 405, "POST audio to /stream");
+        } else {
+            sendError(exchange, 404, "Unknown path " + path);
+        }
+    }
+
+    private void handleTranscribe(HttpExchange exchange) throws IOException {
+        String format = exchange.getQueryParameter("format", "wav");
+        boolean pack = exchange.getQueryParameter("pack", "0").equals("1");
+        boolean stream = exchange.getQueryParameter("stream", "0").equals("1");
+        if (exchange.getContentLength() > MAX_UPLOAD_BYTES) {
+            sendError(exchange, 413, "Upload larger than " + MAX_UPLOAD_BYTES + " bytes");
+            return;
+        }
+
+        // Admission comes first, a rejected upload is never read and a client waiting for
+        // 100-continue does not send it at all
+        if (!mBatchSlots.tryAcquire()) {
+            mBatchRejected.incrementAndGet();
+            sendError(exchange, 503, "Batch queue is full");
+            return;
+        }
+        try {
+            float[] samples;
+            try {
+                samples = readSamples(exchange, format);
+            } catch (UploadTooLargeException e) {
+                sendError(exchange, 413, e.getMessage());
+                return;
+            }
+            if (samples == null) {
+                sendError(exchange, 400, "Unreadable audio, format: " + format);
+                return;
+            }
+
+            long queuedAt = System.nanoTime();
+            Future<?> job;
+            try {
+                job = mBatchExecutor.submit(() -> {
+                    runBatch(exchange, samples, pack, stream, queuedAt);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                mBatchRejected.incrementAndGet();
+                sendError(exchange, 503, "Batch queue is full");
+                return;
+            }
+
+            try {
+                job.get();
+            } catch (InterruptedException e) {
+                job.cancel(true);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException(cause);
+            }
+        } finally {
+            mBatchSlots.release();
+        }
+    }
+
+    // Runs on a batch thread with an engine taken from the pool for the whole request
+    private void runBatch(HttpExchange exchange, float[] samples, boolean pack, boolean stream,
+                          long queuedAt) throws IOException, InterruptedException {
+        WhisperEngine engine = mBatchEngines.take();
+        long startedAt = System.nanoTime();
+        try {
+            OutputStream output = stream ? exchange.startChunkedResponse(200, "application/x-ndjson") : null;
+            List<SpeechPacker.Window> windows = pack ? new SpeechPacker().pack(samples) : SpeechPacker.chunk(samples);
+            StringBuilder text = new StringBuilder();
+            List<Object> segments = Json.array();
+            for (SpeechPacker.Window window : windows) {
+                TranscriptionResult windowResult;
+                synchronized (engine) {
+                    windowResult = engine.transcribeBuffer(window.samples);
+                }
+                // Segment times are relative to the window, the pieces put them back on the source timeline
+                for (TranscriptionResult.Segment windowSegment : windowResult.getSegments()) {
+                    String segmentText = windowSegment.text.trim();
+                    if (segmentText.isEmpty())
+                        continue;
+                    Json segment = new Json()
+                            .put("startMs", window.toSourceMs(windowSegment.startMs))
+                            .put("endMs", window.toSourceMs(windowSegment.endMs))
+                            .put("text", segmentText);
+                    segments.add(segment);
+                    if (text.length() > 0)
+                        text.append(' ');
+                    text.append(segmentText);
+                    if (output != null) {
+                        output.write((segment.put("type", "segment").toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                        output.flush();
+                    }
+                }
+            }
+
+            long doneAt = System.nanoTime();
+            Json result = new Json()
+                    .put("text", text.toString())
+                    .put("audioMs", samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE)
+                    .put("windows", windows.size())
+                    .put("queueMs", (startedAt - queuedAt) / 1_000_000L)
+                    .put("processingMs", (doneAt - startedAt) / 1_000_000L);
+            if (output != null) {
+                output.write((result.put("type", "done").toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                output.close();
+            } else {
+                exchange.sendJson(200, result.put("segments", segments));
+            }
+            mBatchLatency.record(doneAt - queuedAt);
+            mBatchCompleted.incrementAndGet();
+        } finally {
+            mBatchEngines.add(engine);
+        }
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        String format = exchange.getQueryParameter("format", "s16");
+        float hopSeconds;
+        long latencyMs;
+        try {
+            hopSeconds = Float.parseFloat(exchange.getQueryParameter("hop", "1.0"));
+            latencyMs = Long.parseLong(exchange.getQueryParameter("latencyMs", "0"));
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid hop or latencyMs");
+            return;
+        }
+        int bytesPerSample = format.equals("f32") ? 4 : 2;
+        if (mScheduler == null) {
+            sendError(exchange, 503, "Streaming is not available with this engine");
+            return;
+        }
+
+        // The response starts once the stream is admitted, so a rejected one gets a plain 503
+        StreamLines lines = new StreamLines();
+        StreamScheduler.Stream stream = mScheduler.openStream(exchange.getRemoteAddress(), hopSeconds, latencyMs, lines);
+        if (stream == null) {
+            mStreamsRejected.incrementAndGet();
+            sendError(exchange, 503, "Server is at capacity");
+            return;
+        }
+        OutputStream output;
+        try {
+            output = exchange.startChunkedResponse(200, "application/x-ndjson");
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        lines.setOutput(output);
+
+        // Forward the body in 100 ms blocks as it arrives
+        try (InputStream body = exchange.getRequestBody()) {
+            int frameBytes = WhisperUtil.WHISPER_SAMPLE_RATE / 10 * bytesPerSample;
+            byte[] block = new byte[frameBytes];
+            int filled = 0;
+            int n;
+            while ((n = body.read(block, filled, block.length - filled)) > 0) {
+                filled += n;
+                if (filled == block.length) {
+                    stream.write(toSamples(block, filled, bytesPerSample), 0);
+                    filled = 0;
+                }
+            }
+            if (filled >= bytesPerSample)
+                stream.write(toSamples(block, filled, bytesPerSample), 0);
+        } finally {
+            stream.close();
+        }
+
+        try {
+            if (!stream.awaitClosed(STREAM_CLOSE_TIMEOUT_MS))
+                Log.d(TAG, "Stream did not finish in time: " + stream);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (output) {
+            writeLine(output, new Json().put("type", "done").put("text", lines.getCommitted()));
+            output.close();
+        }
+    }
+
+    // NDJSON updates of one stream, written once the response has started
+    private static class StreamLines implements LiveSession.Listener {
+        private final StringBuilder mCommitted = new StringBuilder();
+        private volatile OutputStream mOutput;
+
+        void setOutput(OutputStream output) {
+            mOutput = output;
+        }
+
+        synchronized String getCommitted() {
+            return mCommitted.toString();
+        }
+
+        @Override
+        public void onCommitted(String text) {
+            synchronized (this) {
+                mCommitted.append(text);
+            }
+            if (mOutput != null)
+                writeLine(mOutput, new Json().put("type", "committed").put("text", text));
+        }
+
+        @Override
+        public void onPartial(String text) {
+            if (mOutput != null)
+                writeLine(mOutput, new Json().put("type", "partial").put("text", text));
+        }
+    }
+
+    // The body went past MAX_UPLOAD_BYTES without a Content-Length saying so up front
+    private static class UploadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UploadTooLargeException() {
+            super("Upload larger than " + MAX_UPLOAD_BYTES + " bytes");
+        }
+    }
+
+    private static void writeLine(OutputStream output, Json line) {
+        synchronized (output) {
+            try {
+                output.write((line.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                output.flush();
+            } catch (IOException e) {
+                Log.d(TAG, "Dropping update, client went away: " + e.getMessage());
+            }
+        }
+    }
+
+    // Body as 16 kHz mono samples: WAV files go through a temporary file and WaveUtil, so any
+    // rate and channel count is converted; raw formats must be 16 kHz mono already and are
+    // converted block by block as they arrive. Null if the audio cannot be read.
+    private float[] readSamples(HttpExchange exchange, String format) throws IOException {
+        if (format.equals("wav")) {
+            File file = new File(mTempDir, "upload_" + mFileCounter.incrementAndGet() + ".wav");
+            try {
+                try (InputStream body = exchange.getRequestBody();
+                     OutputStream out = new FileOutputStream(file)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    long total = 0;
+                    int n;
+                    while ((n = body.read(buffer)) > 0) {
+                        total += n;
+                        if (total > MAX_UPLOAD_BYTES)
+                            throw new UploadTooLargeException();
+                        out.write(buffer, 0, n);
+                    }
+                }
+                float[] samples = WaveUtil.getSamples(file.getAbsolutePath());
+                return (samples.length > 0) ? samples : null;
+            } finally {
+                if (!file.delete())
+                    Log.d(TAG, "Failed to delete " + file);
+            }
+        }
+
+        int bytesPerSample;
+        if (format.equals("f32"))
+            bytesPerSample = 4;
+        else if (format.equals("s16"))
+            bytesPerSample = 2;
+        else
+            return null;
+        // Sized from Content-Length when there is one, otherwise grown up to the upload limit
+        long length = exchange.getContentLength();
+        float[] samples = new float[(int) ((length >= 0) ? length / bytesPerSample : 64 * 1024)];
+        int count = 0;
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] buffer = new byte[64 * 1024];
+            int filled = 0;
+            long total = 0;
+            int n;
+            while ((n = body.read(buffer, filled, buffer.length - filled)) > 0) {
+                total += n;
+                if (total > MAX_UPLOAD_BYTES)
+                    throw new UploadTooLargeException();
+                filled += n;
+                int whole = filled / bytesPerSample;
+                if (count + whole > samples.length)
+                    samples = Arrays.copyOf(samples, (int) Math.min(MAX_UPLOAD_BYTES / bytesPerSample,
+                            Math.max(count + whole, 2L * samples.length)));
+                toSamples(buffer, whole * bytesPerSample, bytesPerSample, samples, count);
+                count += whole;
+                // A sample split across reads waits for its other bytes
+                filled -= whole * bytesPerSample;
+                System.arraycopy(buffer, whole * bytesPerSample, buffer, 0, filled);
+            }
+        }
+        return (count == samples.length) ? samples : Arrays.copyOf(samples, count);
+    }
+
+    private static float[] toSamples(byte[] data, int length, int bytesPerSample) {
+        float[] samples = new float[length / bytesPerSample];
+        toSamples(data, length, bytesPerSample, samples, 0);
+        return samples;
+    }
+
+    private static void toSamples(byte[] data, int length, int bytesPerSample, float[] samples, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < length / bytesPerSample; i++)
+            samples[offset + i] = (bytesPerSample == 4) ? buffer.getFloat() : buffer.getShort() / 32768.0f;
+    }
+
+    private Json metrics() {
+        Json batch = new Json()
+                .put("poolSize", mAllBatchEngines.size())
+                .put("active", mBatchExecutor.getActiveCount())
+                .put("queued", mBatchExecutor.getQueue().size())
+                .put("queueCapacity", mBatchQueueCapacity)
+                .put("completed", mBatchCompleted.get())
+                .put("rejected", mBatchRejected.get())
+                .put("latency", latencyJson(mBatchLatency));
+
+        Json streams = new Json().put("rejected", mStreamsRejected.get());
+        if (mScheduler != null) {
+            List<Object> sessions = Json.array();
+            for (StreamScheduler.Stream stream : mScheduler.getStreams()) {
+                sessions.add(new Json()
+                        .put("id", stream.getId())
+                        .put("queueDepth", stream.getQueueDepth())
+                        .put("queuedMs", stream.getQueuedMs())
+                        .put("lagMs", stream.getLagMs())
+                        .put("latency", latencyJson(stream.getLatencyStats())));
+            }
+            streams.put("poolSize", mScheduler.getPoolSize())
+                    .put("load", mScheduler.getLoad())
+                    .put("capacity", mScheduler.getCapacity())
+                    .put("sessions", sessions);
+        }
+        return new Json()
+                .put("uptimeMs", System.currentTimeMillis() - mStartTime)
+                .put("connections", mConnections.getActiveCount())
+                .put("batch", batch)
+                .put("streams", streams)
+                .put("cpuBudget", cpuBudgetJson(CpuBudget.get()));
+    }
+
+    // Cores each stage has now and how many of them are taken
+    private static Json cpuBudgetJson(CpuBudget budget) {
+        Json stages = new Json();
+        for (CpuBudget.Stage stage : CpuBudget.Stage.values()) {
+            stages.put(stage.name().toLowerCase(Locale.ROOT), new Json()
+                    .put("share", budget.getShare(stage))
+                    .put("inUse", budget.getThreadsInUse(stage))
+                    .put("jobs", budget.getJobs(stage))
+                    .put("waiting", budget.getWaiting(stage)));
+        }
+        return new Json()
+                .put("cores", budget.getCores())
+                .put("rebalances", budget.getRebalances())
+                .put("stages", stages);
+    }
+
+    private static Json latencyJson(LatencyStats stats) {
+        return new Json()
+                .put("count", stats.getCount())
+                .put("p50Ms", stats.percentileNanos(50) / 1_000_000L)
+                .put("p90Ms", stats.percentileNanos(90) / 1_000_000L)
+                .put("p99Ms", stats.percentileNanos(99) / 1_000_000L);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try {
+            exchange.sendJson(status, new Json().put("error", message));
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to send error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.whispertflite.server;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.whispertflite.asr.Whisper;
+import com.whispertflite.utils.AssetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// Runs the TranscriptionServer without any UI. The service needs the signature permission
+// com.whispertflite.permission.CONTROL_SERVICES, so only apps signed with the same key, or adb as
+// root, can start it while the app is in the foreground, e.g.
+//   adb root
+//   adb shell am start-service -n com.whispertflite/.server.TranscriptionService \
+//       --es model whisper-tiny.en.tflite --ei port 8080
+// and stop it with am stopservice. The model is the name of a bundled asset, the server listens
+// on loopback only.
+public class TranscriptionService extends Service {
+    private static final String TAG = "TranscriptionService";
+    public static final String EXTRA_MODEL = "model";
+    public static final String EXTRA_PORT = "port";
+    public static final String EXTRA_BATCH_ENGINES = "batchEngines";
+    public static final String EXTRA_BATCH_QUEUE = "batchQueue";
+    public static final String EXTRA_STREAM_ENGINES = "streamEngines";
+    private static final String ENGLISH_ONLY_MODEL_EXTENSION = ".en.tflite";
+    private static final String ENGLISH_ONLY_VOCAB_FILE = "filters_vocab_en.bin";
+    private static final String MULTILINGUAL_VOCAB_FILE = "filters_vocab_multilingual.bin";
+
+    private Whisper mWhisper;
+    private TranscriptionServer mServer;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (mServer != null || intent == null) {
+            Log.d(TAG, "Server is already running");
+            return START_NOT_STICKY;
+        }
+        String model = intent.getStringExtra(EXTRA_MODEL);
+        int port = intent.getIntExtra(EXTRA_PORT, 8080);
+        int batchEngines = intent.getIntExtra(EXTRA_BATCH_ENGINES, 2);
+        int batchQueue = intent.getIntExtra(EXTRA_BATCH_QUEUE, 16);
+        int streamEngines = intent.getIntExtra(EXTRA_STREAM_ENGINES, 2);
+
+        // Loading takes a while, keep it off the main thread
+        new Thread(() -> startServer(model, port, batchEngines, batchQueue, streamEngines), "ServerStart").start();
+        return START_NOT_STICKY;
+    }
+
+    private synchronized void startServer(String model, int port, int batchEngines, int batchQueue, int streamEngines) {
+        List<String> bundledModels = AssetUtil.listAssets(this, ".tflite");
+        if (model == null && !bundledModels.isEmpty())
+            model = bundledModels.get(0);
+        if (model == null) {
+            Log.e(TAG, "No model given and none bundled");
+            stopSelf();
+            return;
+        }
+        if (!bundledModels.contains(model)) {
+            Log.e(TAG, "Not a bundled model: " + model);
+            stopSelf();
+            return;
+        }
+
+        File dataFolder = getExternalFilesDir(null);
+        AssetUtil.copyAssets(this, dataFolder, new String[]{"bin"});
+        boolean isMultilingual = !model.endsWith(ENGLISH_ONLY_MODEL_EXTENSION);
+        File vocabFile = new File(dataFolder, isMultilingual ? MULTILINGUAL_VOCAB_FILE : ENGLISH_ONLY_VOCAB_FILE);
+
+        mWhisper = new Whisper(this);
+        mWhisper.loadModelAsset(model, vocabFile, isMultilingual);
+
+        TranscriptionServer server = new TranscriptionServer(mWhisper, getCacheDir(), port, batchEngines, batchQueue, streamEngines);
+        try {
+            server.start();
+            mServer = server;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start server", e);
+            mWhisper.shutdown();
+            mWhisper = null;
+            stopSelf();
+        }
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        if (mServer != null) {
+            mServer.stop();
+            mServer = null;
+        }
+        if (mWhisper != null) {
+            mWhisper.shutdown();
+            mWhisper = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+package com.whispertflite.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Streaming polyphase resampler for a fixed rate pair. The ratio is reduced to L/M and a
+// Kaiser windowed sinc is split into L phases of TAPS coefficients each, so every output sample
+// costs TAPS multiply-adds. process() works on caller buffers and never allocates.
+public class Resampler {
+    private static final int TAPS = 32;           // coefficients per phase
+    private static final double ROLLOFF = 0.92;   // cutoff relative to the lower Nyquist frequency
+    private static final double KAISER_BETA = 8.0;
+
+    // Filter banks for the common input rates to 16 kHz are built once up front
+    private static final int[] COMMON_RATES = {8000, 11025, 22050, 24000, 32000, 44100, 48000};
+    private static final Map<Long, float[][]> sBanks = new ConcurrentHashMap<>();
+    private static final float[] FLUSH_ZEROS = new float[TAPS / 2];
+
+    static {
+        for (int rate : COMMON_RATES)
+            bankFor(rate, WhisperUtil.WHISPER_SAMPLE_RATE);
+    }
+
+    private final int mUp;      // L
+    private final int mDown;    // M
+    private final float[][] mBank;
+    private final float[] mHistory = new float[2 * TAPS]; // mirrored ring, reads are contiguous
+    private int mWrite = 0;
+    private int mPhase = 0;
+    private int mSkip;          // outputs still to drop to cancel the filter delay
+
+    public Resampler(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        mBank = (mUp == mDown) ? null : bankFor(inputRate, outputRate);
+        mSkip = (int) ((long) (TAPS / 2) * mUp / mDown);
+    }
+
+    public boolean isPassThrough() {
+        return mBank == null;
+    }
+
+    // Upper bound of the outputs produced for count inputs
+    public int maxOutput(int count) {
+        return (int) (((long) count * mUp + mDown - 1) / mDown) + 1;
+    }
+
+    // Resample count inputs into out, which must hold maxOutput(count), returns the output count
+    public int process(float[] in, int count, float[] out) {
+        if (mBank == null) {
+            System.arraycopy(in, 0, out, 0, count);
+            return count;
+        }
+
+        int produced = 0;
+        for (int i = 0; i < count; i++) {
+            mHistory[mWrite] = in[i];
+            mHistory[mWrite + TAPS] = in[i];
+            mWrite = (mWrite + 1) % TAPS;
+
+            // Newest sample is at mWrite + TAPS - 1, k samples back at mWrite + TAPS - 1 - k
+            int newest = mWrite + TAPS - 1;
+            while (mPhase < mUp) {
+                float[] coefficients = mBank[mPhase];
+                float sum = 0;
+                for (int k = 0; k < TAPS; k++)
+                    sum += coefficients[k] * mHistory[newest - k];
+
+                if (mSkip > 0)
+                    mSkip--;
+                else
+                    out[produced++] = sum;
+                mPhase += mDown;
+            }
+            mPhase -= mUp;
+        }
+        return produced;
+    }
+
+    // Push the samples still held back by the filter delay, out must hold maxOutput(TAPS / 2)
+    public int flush(float[] out) {
+        if (mBank == null)
+            return 0;
+        return process(FLUSH_ZEROS, FLUSH_ZEROS.length, out);
+    }
+
+    private static float[][] bankFor(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        int up = outputRate / gcd;
+        int down = inputRate / gcd;
+        return sBanks.computeIfAbsent(((long) inputRate << 32) | outputRate, key -> designBank(up, down));
+    }
+
+    // bank[phase][k] weights the input k samples before the output, which lies phase / up
+    // input samples after that newest input. The filter is centered TAPS / 2 inputs back.
+    private static float[][] designBank(int up, int down) {
+        double cutoff = Math.min(1.0, (double) up / down) * ROLLOFF;
+        double center = TAPS / 2.0;
+        double i0Beta = besselI0(KAISER_BETA);
+
+        float[][] bank = new float[up][TAPS];
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            for (int k = 0; k < TAPS; k++) {
+                double t = k + (double) phase / up - center;
+                double x = t / center;
+                double window = (Math.abs(x) < 1) ? besselI0(KAISER_BETA * Math.sqrt(1 - x * x)) / i0Beta : 0;
+                double value = cutoff * sinc(cutoff * t) * window;
+                bank[phase][k] = (float) value;
+                sum += value;
+            }
+            // Unity gain at DC for every phase
+            for (int k = 0; k < TAPS; k++)
+                bank[phase][k] /= (float) sum;
+        }
+        return bank;
+    }
+
+    private static double sinc(double x) {
+        return (x == 0) ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1, term = 1;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        return (b == 0) ? a : gcd(b, a % b);
+    }
+}
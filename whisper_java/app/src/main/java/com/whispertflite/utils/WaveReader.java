@@ -0,0 +1,244 @@
+package com.whispertflite.utils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Streaming WAV decoder producing 16 kHz float samples whatever the file's rate and channel
+// count, either downmixed to mono or deinterleaved with one output per channel. Frames are
+// decoded block by block and resampled into fixed buffers, so memory does not depend on the
+// file length and nothing is allocated after open.
+public class WaveReader implements Closeable {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final int BLOCK_FRAMES = 4096;
+
+    private final InputStream mInput;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mBitsPerSample;
+    private final int mFormat;
+    private final long mDataSize;
+    private final boolean mSplitChannels;
+    private final Resampler[] mResamplers;
+
+    private final byte[] mRaw;
+    private final ByteBuffer mRawBuffer;
+    private final float[][] mBlock;
+    private final float[][] mResampled;
+    private final float[][] mMonoOut = new float[1][];
+    private int mResampledPos = 0;
+    private int mResampledCount = 0;
+    private long mDataRemaining;
+    private boolean mFlushed = false;
+
+    public WaveReader(String filePath) throws IOException {
+        this(filePath, false);
+    }
+
+    // With splitChannels every channel is kept apart, read with read(float[][], ...)
+    public WaveReader(String filePath, boolean splitChannels) throws IOException {
+        mInput = new BufferedInputStream(new FileInputStream(filePath));
+        try {
+            ByteBuffer header = readBytes(12);
+            if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) // "RIFF", "WAVE"
+                throw new IOException("Not a valid WAV file: " + filePath);
+
+            // Walk the chunks up to "data", picking up "fmt " on the way
+            int format = 0, channels = 0, sampleRate = 0, bitsPerSample = 0;
+            long dataSize;
+            while (true) {
+                ByteBuffer chunk = readBytes(8);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (id == 0x20746D66) { // "fmt "
+                    ByteBuffer fmt = readBytes((int) size);
+                    format = fmt.getShort(0) & 0xFFFF;
+                    channels = fmt.getShort(2);
+                    sampleRate = fmt.getInt(4);
+                    bitsPerSample = fmt.getShort(14);
+                    if (format == FORMAT_EXTENSIBLE && size >= 26)
+                        format = fmt.getShort(24) & 0xFFFF; // sub format GUID starts with the format tag
+                    skip(size & 1);
+                } else if (id == 0x61746164) { // "data"
+                    dataSize = size;
+                    break;
+                } else {
+                    skip(size + (size & 1));
+                }
+            }
+
+            boolean supported = (format == FORMAT_PCM && (bitsPerSample == 16 || bitsPerSample == 24 || bitsPerSample == 32))
+                    || (format == FORMAT_FLOAT && bitsPerSample == 32);
+            if (!supported || channels < 1 || sampleRate <= 0)
+                throw new IOException("Unsupported WAV format " + format + ", " + bitsPerSample + " bits, " + channels + " channels");
+
+            mFormat = format;
+            mChannels = channels;
+            mSampleRate = sampleRate;
+            mBitsPerSample = bitsPerSample;
+            // Streamed recordings may carry a zero or stale size, read to the end of file then
+            mDataSize = (dataSize == 0 || dataSize == 0xFFFFFFFFL) ? Long.MAX_VALUE : dataSize;
+            mDataRemaining = mDataSize;
+        } catch (IOException e) {
+            mInput.close();
+            throw e;
+        }
+
+        mSplitChannels = splitChannels;
+        int outputs = splitChannels ? mChannels : 1;
+        mRaw = new byte[BLOCK_FRAMES * mChannels * (mBitsPerSample / 8)];
+        mRawBuffer = ByteBuffer.wrap(mRaw).order(ByteOrder.LITTLE_ENDIAN);
+        mBlock = new float[outputs][BLOCK_FRAMES];
+        mResamplers = new Resampler[outputs];
+        mResampled = new float[outputs][];
+        for (int i = 0; i < outputs; i++) {
+            mResamplers[i] = new Resampler(mSampleRate, WhisperUtil.WHISPER_SAMPLE_RATE);
+            mResampled[i] = new float[mResamplers[i].maxOutput(BLOCK_FRAMES)];
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    // Samples read() returns in total, approximate, or -1 if the header gives no size
+    public long estimateOutputLength() {
+        if (mDataSize == Long.MAX_VALUE)
+            return -1;
+        long frames = mDataSize / ((long) mChannels * (mBitsPerSample / 8));
+        return frames * WhisperUtil.WHISPER_SAMPLE_RATE / mSampleRate;
+    }
+
+    // Read up to length 16 kHz mono samples, returns the count or -1 at the end
+    public int read(float[] out, int offset, int length) throws IOException {
+        if (mSplitChannels)
+            throw new IllegalStateException("Reader splits channels, use read(float[][], ...)");
+        mMonoOut[0] = out;
+        return readInto(mMonoOut, offset, length);
+    }
+
+    // Read up to length 16 kHz samples into out[channel] for every channel, returns the count
+    // per channel or -1 at the end
+    public int read(float[][] out, int offset, int length) throws IOException {
+        if (!mSplitChannels || out.length != mChannels)
+            throw new IllegalStateException("Reader needs split channels and one output per channel");
+        return readInto(out, offset, length);
+    }
+
+    private int readInto(float[][] out, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            if (mResampledPos == mResampledCount && !refill())
+                break;
+            int n = Math.min(length - total, mResampledCount - mResampledPos);
+            for (int c = 0; c < out.length; c++)
+                System.arraycopy(mResampled[c], mResampledPos, out[c], offset + total, n);
+            mResampledPos += n;
+            total += n;
+        }
+        return (total == 0 && length > 0) ? -1 : total;
+    }
+
+    private boolean refill() throws IOException {
+        mResampledPos = 0;
+        mResampledCount = 0;
+        while (mResampledCount == 0) {
+            // Every output runs the same ratio from the same state, so the counts match
+            int frames = readFrames();
+            if (frames > 0) {
+                for (int c = 0; c < mResamplers.length; c++)
+                    mResampledCount = mResamplers[c].process(mBlock[c], frames, mResampled[c]);
+            } else if (!mFlushed) {
+                mFlushed = true;
+                for (int c = 0; c < mResamplers.length; c++)
+                    mResampledCount = mResamplers[c].flush(mResampled[c]);
+                return mResampledCount > 0;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Decode one block into mBlock, deinterleaved or downmixed by averaging the channels
+    private int readFrames() throws IOException {
+        int frameBytes = mChannels * (mBitsPerSample / 8);
+        int wanted = (int) Math.min(mRaw.length, mDataRemaining - mDataRemaining % frameBytes);
+        int got = 0;
+        while (got < wanted) {
+            int n = mInput.read(mRaw, got, wanted - got);
+            if (n < 0)
+                break;
+            got += n;
+        }
+        int frames = got / frameBytes;
+        mDataRemaining -= got;
+
+        float scale = 1.0f / mChannels;
+        mRawBuffer.clear();
+        for (int i = 0; i < frames; i++) {
+            if (mSplitChannels) {
+                for (int c = 0; c < mChannels; c++)
+                    mBlock[c][i] = readSample();
+            } else {
+                float sum = 0;
+                for (int c = 0; c < mChannels; c++)
+                    sum += readSample();
+                mBlock[0][i] = sum * scale;
+            }
+        }
+        return frames;
+    }
+
+    private float readSample() {
+        if (mFormat == FORMAT_FLOAT)
+            return mRawBuffer.getFloat();
+        switch (mBitsPerSample) {
+            case 16:
+                return mRawBuffer.getShort() / 32768.0f;
+            case 24: {
+                int value = (mRawBuffer.get() & 0xFF) | ((mRawBuffer.get() & 0xFF) << 8) | (mRawBuffer.get() << 16);
+                return value / 8388608.0f;
+            }
+            default:
+                return mRawBuffer.getInt() / 2147483648.0f;
+        }
+    }
+
+    private ByteBuffer readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int got = 0;
+        while (got < length) {
+            int n = mInput.read(bytes, got, length - got);
+            if (n < 0)
+                throw new EOFException("Truncated WAV header");
+            got += n;
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            long n = mInput.skip(length);
+            if (n <= 0)
+                throw new EOFException("Truncated WAV file");
+            length -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+}
@@ -1,8 +1,15 @@
 #include <iostream>
 #include <fstream>
+#include <chrono>
 #include <cstring>
+#include <functional>
+#include <map>
+#include <mutex>
 #include <vector>
+#include <sys/mman.h>
+#include <sys/stat.h>
 #include <sys/time.h>
+#include <unistd.h>
 #include "tensorflow/lite/core/interpreter.h"
 #include "tensorflow/lite/kernels/register.h"
 #include "tensorflow/lite/model.h"
@@ -24,253 +31,722 @@
     exit(1);                                                 \
   }
 
-int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
-    std::cout << "Entering " << __func__ << "()" << std::endl;
+// Models and vocabularies never change once loaded, so engines loading the same one share it
+// and only the interpreters are per engine. Whatever is shared goes with its last engine.
+static std::mutex g_shared_mutex;
+static std::map<std::string, std::weak_ptr<const whisper_model>> g_models;
+static std::weak_ptr<const whisper_vocab_data> g_vocabs[2];
 
-    timeval start_time{}, end_time{};
-    if (!g_whisper_tflite.is_whisper_tflite_initialized) {
+// Kernels are looked up while interpreters are built and referenced while they run
+static tflite::ops::builtin::BuiltinOpResolver &opResolver() {
+    static tflite::ops::builtin::BuiltinOpResolver resolver;
+    return resolver;
+}
 
-        gettimeofday(&start_time, NULL);
-        std::cout << "Initializing TFLite..." << std::endl;
+static void freeModelData(whisper_model *model) {
+    model->model.reset();
+    if (model->mapped) {
+        std::cout << __func__ << ": unmap buffer " << model->mapped << " memory" << std::endl;
+        munmap(model->mapped, model->mapped_size);
+    } else if (model->buffer) {
+        std::cout << __func__ << ": free buffer " << static_cast<void *>(model->buffer) << " memory" << std::endl;
+        delete[] model->buffer;
+    }
+    delete model;
+}
 
-        /////////////// Load filters and vocab data ///////////////
+// The model registered under key, loaded with load() if no engine holds it at the moment
+static std::shared_ptr<const whisper_model> sharedModel(const std::string &key, const std::function<whisper_model *()> &load) {
+    std::lock_guard<std::mutex> lock(g_shared_mutex);
+    std::shared_ptr<const whisper_model> model = g_models[key].lock();
+    if (model) {
+        std::cout << "Sharing loaded model " << key << std::endl;
+        return model;
+    }
+
+    whisper_model *loaded = load();
+    if (loaded == nullptr)
+        return nullptr;
+    if (!loaded->model)
+        loaded->model = tflite::FlatBufferModel::BuildFromBuffer(loaded->buffer, loaded->size);
+    if (!loaded->model) {
+        std::cerr << "Invalid model: " << key << std::endl;
+        freeModelData(loaded);
+        return nullptr;
+    }
+    model = std::shared_ptr<const whisper_model>(loaded, freeModelData);
+    g_models[key] = model;
 
-       const char* vocabData = nullptr;
-        if (isMultilingual)
-            vocabData = reinterpret_cast<const char*>(filters_vocab_multilingual);
+    for (auto it = g_models.begin(); it != g_models.end();) {
+        if (it->second.expired())
+            it = g_models.erase(it);
         else
-            vocabData = reinterpret_cast<const char*>(filters_vocab_en);
+            ++it;
+    }
+    return model;
+}
 
-        // Read the magic number
-        int magic = 0;
-        std::memcpy(&magic, vocabData, sizeof(magic));
-        vocabData += sizeof(magic);
+// TFLite maps the file itself, pages are read on first use and stay in the page cache
+static whisper_model *mapModelFile(const char *modelPath) {
+    whisper_model *model = new whisper_model();
+    model->model = tflite::FlatBufferModel::BuildFromFile(modelPath);
+    if (!model->model) {
+        std::cerr << "Unable to open model file: " << modelPath << std::endl;
+        delete model;
+        return nullptr;
+    }
+    model->size = model->model->allocation()->bytes();
+    return model;
+}
 
-        // Check the magic number
-        if (magic != 0x57535052) { // 'WSPR'
-            std::cerr << "Invalid vocab data (bad magic)" << std::endl;
-            return -1;
-        }
+static whisper_model *mapModelFd(int modelFd, long offset, long length) {
+    // mmap offsets must be page aligned, asset offsets inside the APK are not
+    const long pageSize = sysconf(_SC_PAGESIZE);
+    const long alignedOffset = offset & ~(pageSize - 1);
+    const size_t delta = offset - alignedOffset;
 
-        // Load mel filters
-        std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
-        vocabData += sizeof(filters.n_mel);
+    void *mapped = mmap(nullptr, length + delta, PROT_READ, MAP_PRIVATE, modelFd, alignedOffset);
+    if (mapped == MAP_FAILED) {
+        std::cerr << "Unable to map model fd: " << modelFd << std::endl;
+        return nullptr;
+    }
 
-        std::memcpy(&filters.n_fft, vocabData, sizeof(filters.n_fft));
-        vocabData += sizeof(filters.n_fft);
+    whisper_model *model = new whisper_model();
+    model->mapped = mapped;
+    model->mapped_size = length + delta;
+    model->size = length;
+    model->buffer = static_cast<char *>(mapped) + delta;
+    return model;
+}
 
-        std::cout << "n_mel:" << filters.n_mel << " n_fft:" << filters.n_fft << std::endl;
+static whisper_vocab_data *loadFiltersAndVocab(const bool isMultilingual) {
+    /////////////// Load filters and vocab data ///////////////
 
-        filters.data.resize(filters.n_mel * filters.n_fft);
-        std::memcpy(filters.data.data(), vocabData, filters.data.size() * sizeof(float));
-        vocabData += filters.data.size() * sizeof(float);
+    const char* vocabData = nullptr;
+    if (isMultilingual)
+        vocabData = reinterpret_cast<const char*>(filters_vocab_multilingual);
+    else
+        vocabData = reinterpret_cast<const char*>(filters_vocab_en);
 
-        // Load vocab
-        int n_vocab = 0;
-        std::memcpy(&n_vocab, vocabData, sizeof(n_vocab));
-        vocabData += sizeof(n_vocab);
+    // Read the magic number
+    int magic = 0;
+    std::memcpy(&magic, vocabData, sizeof(magic));
+    vocabData += sizeof(magic);
 
-        std::cout << "n_vocab:" << n_vocab << std::endl;
+    // Check the magic number
+    if (magic != 0x57535052) { // 'WSPR'
+        std::cerr << "Invalid vocab data (bad magic)" << std::endl;
+        return nullptr;
+    }
 
-        for (int i = 0; i < n_vocab; i++) {
-            int len = 0;
-            std::memcpy(&len, vocabData, sizeof(len));
-            vocabData += sizeof(len);
+    whisper_vocab_data *data = new whisper_vocab_data();
+    whisper_filters &filters = data->filters;
+    whisper_vocab &vocab = data->vocab;
 
-            std::string word(vocabData, len);
-            vocabData += len;
+    // Load mel filters
+    std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
+    vocabData += sizeof(filters.n_mel);
 
-            g_vocab.id_to_token[i] = word;
-        }
+    std::memcpy(&filters.n_fft, vocabData, sizeof(filters.n_fft));
+    vocabData += sizeof(filters.n_fft);
 
-        // add additional vocab ids
-        int n_vocab_additional = 51864;
-        if (isMultilingual) {
-            n_vocab_additional = 51865;
-            g_vocab.token_eot++;
-            g_vocab.token_sot++;
-            g_vocab.token_prev++;
-            g_vocab.token_solm++;
-            g_vocab.token_not++;
-            g_vocab.token_beg++;
-        }
+    std::cout << "n_mel:" << filters.n_mel << " n_fft:" << filters.n_fft << std::endl;
 
-        for (int i = n_vocab; i < n_vocab_additional; i++) {
-            std::string word;
-            if (i > g_vocab.token_beg) {
-                word = "[_TT_" + std::to_string(i - g_vocab.token_beg) + "]";
-            } else if (i == g_vocab.token_eot) {
-                word = "[_EOT_]";
-            } else if (i == g_vocab.token_sot) {
-                word = "[_SOT_]";
-            } else if (i == g_vocab.token_prev) {
-                word = "[_PREV_]";
-            } else if (i == g_vocab.token_not) {
-                word = "[_NOT_]";
-            } else if (i == g_vocab.token_beg) {
-                word = "[_BEG_]";
-            } else {
-                word = "[_extra_token_" + std::to_string(i) + "]";
-            }
-            g_vocab.id_to_token[i] = word;
-            // printf("%s: g_vocab[%d] = '%s'", __func__, i, word.c_str());
-        }
+    filters.data.resize(filters.n_mel * filters.n_fft);
+    std::memcpy(filters.data.data(), vocabData, filters.data.size() * sizeof(float));
+    vocabData += filters.data.size() * sizeof(float);
+    data->fft_plan.init(WHISPER_N_FFT);
 
+    // Load vocab
+    int n_vocab = 0;
+    std::memcpy(&n_vocab, vocabData, sizeof(n_vocab));
+    vocabData += sizeof(n_vocab);
 
-        /////////////// Load tflite model buffer ///////////////
+    std::cout << "n_vocab:" << n_vocab << std::endl;
 
-        // Open the TFLite model file for reading
-        std::ifstream modelFile(modelPath, std::ios::binary | std::ios::ate);
-        if (!modelFile.is_open()) {
-            std::cerr << "Unable to open model file: " << modelPath << std::endl;
-            return -1;
-        }
+    // Token ids are dense, the texts go in one table in id order
+    vocab.token_offsets.reserve(51865);
+    vocab.token_text.reserve(n_vocab * 8);
+    for (int i = 0; i < n_vocab; i++) {
+        int len = 0;
+        std::memcpy(&len, vocabData, sizeof(len));
+        vocabData += sizeof(len);
 
-        // Get the size of the model file
-        std::streamsize size = modelFile.tellg();
-        modelFile.seekg(0, std::ios::beg);
+        vocab.add_token(vocabData, len);
+        vocabData += len;
+    }
 
-        // Allocate memory for the model buffer
-        char *buffer = new char[size];
+    // add additional vocab ids
+    int n_vocab_additional = 51864;
+    if (isMultilingual) {
+        n_vocab_additional = 51865;
+        vocab.token_eot++;
+        vocab.token_sot++;
+        vocab.token_prev++;
+        vocab.token_solm++;
+        vocab.token_not++;
+        vocab.token_beg++;
+    }
 
-        // Read the model data into the buffer
-        if (modelFile.read(buffer, size)) {
-            modelFile.close();
+    for (int i = n_vocab; i < n_vocab_additional; i++) {
+        std::string word;
+        if (i > vocab.token_beg) {
+            word = "[_TT_" + std::to_string(i - vocab.token_beg) + "]";
+        } else if (i == vocab.token_eot) {
+            word = "[_EOT_]";
+        } else if (i == vocab.token_sot) {
+            word = "[_SOT_]";
+        } else if (i == vocab.token_prev) {
+            word = "[_PREV_]";
+        } else if (i == vocab.token_not) {
+            word = "[_NOT_]";
+        } else if (i == vocab.token_beg) {
+            word = "[_BEG_]";
         } else {
-            std::cerr << "Error reading model data from file." << std::endl;
+            word = "[_extra_token_" + std::to_string(i) + "]";
         }
+        vocab.add_token(word.data(), word.size());
+        // printf("%s: vocab[%d] = '%s'", __func__, i, word.c_str());
+    }
 
-        g_whisper_tflite.size = size;
-        g_whisper_tflite.buffer = buffer;
+    return data;
+}
 
-        g_whisper_tflite.model = tflite::FlatBufferModel::BuildFromBuffer(g_whisper_tflite.buffer, g_whisper_tflite.size);
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.model != nullptr);
+static std::shared_ptr<const whisper_vocab_data> sharedVocab(const bool isMultilingual) {
+    std::lock_guard<std::mutex> lock(g_shared_mutex);
+    std::shared_ptr<const whisper_vocab_data> vocab = g_vocabs[isMultilingual].lock();
+    if (!vocab) {
+        vocab.reset(loadFiltersAndVocab(isMultilingual));
+        g_vocabs[isMultilingual] = vocab;
+    }
+    return vocab;
+}
 
-        // Build the interpreter with the InterpreterBuilder.
-        tflite::InterpreterBuilder builder(*(g_whisper_tflite.model), g_whisper_tflite.resolver);
+TFLiteEngine::TFLiteEngine() = default;
 
-        builder(&(g_whisper_tflite.interpreter));
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter != nullptr);
+TFLiteEngine::~TFLiteEngine() = default;
 
-        // Allocate tensor buffers.
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter->AllocateTensors() == kTfLiteOk);
+int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
+    std::cout << "Entering " << __func__ << "()" << std::endl;
 
-        g_whisper_tflite.input = g_whisper_tflite.interpreter->typed_input_tensor<float>(0);
-        g_whisper_tflite.is_whisper_tflite_initialized = true;
+    timeval start_time{}, end_time{};
+    gettimeofday(&start_time, NULL);
+    std::cout << "Initializing TFLite..." << std::endl;
 
-        gettimeofday(&end_time, NULL);
-        std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
-    }
+    std::shared_ptr<const whisper_model> model = sharedModel(std::string("path:") + modelPath,
+                                                             [&]() { return mapModelFile(modelPath); });
+    if (!model || buildInterpreter(model, isMultilingual) != 0)
+        return -1;
 
+    gettimeofday(&end_time, NULL);
+    std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
     std::cout << "Exiting " << __func__ << "()" << std::endl;
     return 0;
 }
 
-std::string TFLiteEngine::transcribeBuffer(std::vector<float> samples) {
+int TFLiteEngine::loadModel(int modelFd, long offset, long length, const bool isMultilingual) {
+    std::cout << "Entering " << __func__ << "()" << std::endl;
+
     timeval start_time{}, end_time{};
     gettimeofday(&start_time, NULL);
+    std::cout << "Initializing TFLite from fd..." << std::endl;
 
-    // Hack if the audio file size is less than 30ms append with 0's
-    samples.resize((WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE), 0);
-    const auto processor_count = std::thread::hardware_concurrency();
-
-    if (!log_mel_spectrogram(samples.data(), samples.size(), WHISPER_SAMPLE_RATE, WHISPER_N_FFT,
-                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, processor_count, filters, mel)) {
-        std::cerr << "Failed to compute mel spectrogram" << std::endl;
-        return "";
+    // Descriptors differ between engines, the file and region identify the model
+    struct stat info{};
+    if (fstat(modelFd, &info) != 0) {
+        std::cerr << "Unable to stat model fd: " << modelFd << std::endl;
+        return -1;
     }
+    std::string key = "file:" + std::to_string(info.st_dev) + ":" + std::to_string(info.st_ino) + ":" +
+                      std::to_string(offset) + ":" + std::to_string(length);
+    std::shared_ptr<const whisper_model> model = sharedModel(key, [&]() { return mapModelFd(modelFd, offset, length); });
+    if (!model || buildInterpreter(model, isMultilingual) != 0)
+        return -1;
 
     gettimeofday(&end_time, NULL);
-    std::cout << "Time taken for Spectrogram: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+    std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+    std::cout << "Exiting " << __func__ << "()" << std::endl;
+    return 0;
+}
+
+static TFLiteEngine::CpuBudget g_cpu_budget;
+
+void TFLiteEngine::setCpuBudget(const CpuBudget &budget) {
+    g_cpu_budget = budget;
+}
+
+// How often a stage waiting for cores checks whether its request was cancelled
+static const int64_t CPU_WAIT_POLL_NS = 20000000;
+
+// Threads of one stage for as long as it is in scope. Waiting for them ends early if the
+// request of the engine is cancelled or past its deadline, the stage must not run then.
+class TFLiteEngine::CpuGrant {
+public:
+    CpuGrant(Stage stage, int minThreads, int maxThreads, const TFLiteEngine &engine) : threads(maxThreads) {
+        if (g_cpu_budget.acquire == nullptr)
+            return;
+        while (true) {
+            int granted = -1;
+            grant = g_cpu_budget.acquire(stage, minThreads, maxThreads, CPU_WAIT_POLL_NS, &granted);
+            if (grant != nullptr)
+                threads = granted;
+            // No budget on this thread, run with the threads asked for
+            if (grant != nullptr || granted != 0)
+                return;
+            if (engine.isCancelled()) {
+                cancelled = true;
+                return;
+            }
+        }
+    }
+
+    ~CpuGrant() {
+        if (grant != nullptr)
+            g_cpu_budget.release(grant);
+    }
+
+    CpuGrant(const CpuGrant &) = delete;
+    CpuGrant &operator=(const CpuGrant &) = delete;
+
+    int threads;
+    bool cancelled = false;
+
+private:
+    void *grant = nullptr;
+};
+
+// Interpreter threads from the budget when the interpreter is built, all cores without a budget
+static int inferenceThreads() {
+    int threads = (g_cpu_budget.interpreterThreads != nullptr) ? g_cpu_budget.interpreterThreads() : 0;
+    return (threads > 0) ? threads : std::max(1, (int) std::thread::hardware_concurrency());
+}
 
-    if (INFERENCE_ON_AUDIO_FILE) {
-        memcpy(g_whisper_tflite.input, mel.data.data(), mel.n_mel * mel.n_len * sizeof(float));
+// Builds this engine's interpreter over the shared model, then swaps it in once the running
+// request is done
+int TFLiteEngine::buildInterpreter(std::shared_ptr<const whisper_model> model, const bool isMultilingual) {
+    std::unique_ptr<whisper_tflite> built(new whisper_tflite());
+    built->vocab = sharedVocab(isMultilingual);
+    if (!built->vocab)
+        return -1;
+    built->model = std::move(model);
+
+    // Build the interpreter with the InterpreterBuilder. The default XNNPACK delegate sizes its
+    // thread pool from the builder, Interpreter::SetNumThreads() later would not reach it, so
+    // every invoke takes exactly this many threads from the budget.
+    tflite::InterpreterBuilder builder(*(built->model->model), opResolver());
+    built->num_threads = inferenceThreads();
+    TFLITE_MINIMAL_CHECK(builder.SetNumThreads(built->num_threads) == kTfLiteOk);
+
+    builder(&(built->interpreter));
+    TFLITE_MINIMAL_CHECK(built->interpreter != nullptr);
+
+    // Models from generate_model.py run encoder and decoder separately, the mel features go to
+    // the encoder input
+    built->encoder = built->interpreter->GetSignatureRunner("encode");
+    built->decoder = built->interpreter->GetSignatureRunner("decode");
+    if (built->encoder != nullptr && built->decoder != nullptr) {
+        TFLITE_MINIMAL_CHECK(built->encoder->AllocateTensors() == kTfLiteOk);
+        TFLITE_MINIMAL_CHECK(built->decoder->AllocateTensors() == kTfLiteOk);
+        built->input = built->encoder->input_tensor("input_features")->data.f;
+        std::cout << "Model has encode and decode signatures" << std::endl;
+
+        // Sized on the first step, the prefix grows with every one
+        built->decoder_step = built->interpreter->GetSignatureRunner("decode_step");
+        if (built->decoder_step != nullptr)
+            std::cout << "Model has a decode_step signature" << std::endl;
     } else {
-        memcpy(g_whisper_tflite.input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
-    } // end of audio file processing
+        built->encoder = nullptr;
+        built->decoder = nullptr;
 
-    gettimeofday(&start_time, NULL);
+        // Allocate tensor buffers.
+        TFLITE_MINIMAL_CHECK(built->interpreter->AllocateTensors() == kTfLiteOk);
+        built->input = built->interpreter->typed_input_tensor<float>(0);
+    }
 
-    // Run inference
-    g_whisper_tflite.interpreter->SetNumThreads(processor_count);
-    if (g_whisper_tflite.interpreter->Invoke() != kTfLiteOk) {
-        return "";
+    // Let cancel() and deadlines abort a running Invoke() between ops
+    built->interpreter->SetCancellationFunction(this, [](void *data) {
+        return static_cast<TFLiteEngine *>(data)->isCancelled();
+    });
+
+    built->is_whisper_tflite_initialized = true;
+
+    std::lock_guard<std::mutex> lock(mutex);
+    state = std::move(built);
+    return 0;
+}
+
+static int64_t monotonicNowNs() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+            std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+void TFLiteEngine::cancel() {
+    cancelledRequest = request.load();
+}
+
+void TFLiteEngine::setDeadline(int64_t deadline) {
+    deadlineNs = deadline;
+}
+
+bool TFLiteEngine::isCancelled() const {
+    int64_t deadline = deadlineNs;
+    return cancelledRequest.load() == request.load() || (deadline != 0 && monotonicNowNs() >= deadline);
+}
+
+void TFLiteEngine::beginRequest() {
+    timings = StageTimings();
+}
+
+// Later cancels go to the next request
+void TFLiteEngine::endRequest() {
+    if (isCancelled())
+        std::cout << "Transcription is cancelled" << std::endl;
+    deadlineNs = 0;
+    ++request;
+}
+
+std::string TFLiteEngine::transcribeBuffer(const std::vector<float> &samples) {
+    return transcribeSamples(samples.data(), samples.size());
+}
+
+std::string TFLiteEngine::transcribeSamples(const float *samples, size_t count) {
+    std::string text;
+    transcribeSamples(samples, count, [&](size_t, size_t, size_t, const Chunk &chunk) {
+        text += chunk.text;
+        return true;
+    });
+    return text;
+}
+
+bool TFLiteEngine::transcribeSamples(const float *samples, size_t count, const ChunkCallback &onChunk) {
+    return runChunks(samples, count, {TASK_TRANSCRIBE}, [&](size_t chunkIndex, size_t startSample, size_t endSample,
+                                                            const std::vector<Chunk> &chunks) {
+        return onChunk(chunkIndex, startSample, endSample, chunks[0]);
+    });
+}
+
+bool TFLiteEngine::transcribeTasks(const float *samples, size_t count, const std::vector<Task> &tasks, const TasksCallback &onChunk) {
+    if (!supportsTasks()) {
+        std::cerr << "Model has no encode and decode signatures" << std::endl;
+        return false;
     }
+    return runChunks(samples, count, tasks, onChunk);
+}
 
-    gettimeofday(&end_time, NULL);
-    std::cout << "Time taken for Interpreter: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+bool TFLiteEngine::supportsTasks() {
+    std::lock_guard<std::mutex> lock(mutex);
+    return state && state->encoder != nullptr;
+}
 
-    int output = g_whisper_tflite.interpreter->outputs()[0];
-    TfLiteTensor *output_tensor = g_whisper_tflite.interpreter->tensor(output);
-    TfLiteIntArray *output_dims = output_tensor->dims;
-    // assume output dims to be something like (1, 1, ... ,size)
-    auto output_size = output_dims->data[output_dims->size - 1];
+bool TFLiteEngine::setLanguage(const char *code) {
+    int id = whisper_lang_id(code);
+    if (id < 0)
+        return false;
+    language = id;
+    return true;
+}
 
-    int *output_int = g_whisper_tflite.interpreter->typed_output_tensor<int>(0);
-    std::string text = "";
+bool TFLiteEngine::supportsStepDecoding() {
+    std::lock_guard<std::mutex> lock(mutex);
+    return state && state->decoder_step != nullptr;
+}
 
-    for (int i = 0; i < output_size; i++) {
-        if (output_int[i] == g_vocab.token_eot) {
+std::vector<int> TFLiteEngine::prompt(Task task) {
+    std::lock_guard<std::mutex> lock(mutex);
+    if (!state)
+        return {};
+    const whisper_vocab &vocab = state->vocab->vocab;
+    return {vocab.token_sot, vocab.token_sot + 1 + language,
+            (task == TASK_TRANSLATE) ? whisper_vocab::token_translate : whisper_vocab::token_transcribe,
+            vocab.token_not};
+}
+
+bool TFLiteEngine::encodeChunk(const float *samples, size_t count) {
+    beginRequest();
+    bool ok = false;
+    {
+        std::lock_guard<std::mutex> lock(mutex);
+        if (state && state->decoder_step != nullptr &&
+            computeMelLocked(samples, std::min<size_t>(count, CHUNK_SAMPLES), state->input)) {
+            CpuGrant grant(STAGE_INFERENCE, state->num_threads, state->num_threads, *this);
+            int64_t start = monotonicNowNs();
+            if (!grant.cancelled && state->encoder->Invoke() == kTfLiteOk) {
+                const TfLiteTensor *hidden_states = state->encoder->output_tensor("encoder_hidden_states");
+                state->hidden_states.assign(hidden_states->data.f, hidden_states->data.f + hidden_states->bytes / sizeof(float));
+                // The step input may still hold the states of the previous chunk
+                TfLiteTensor *step_states = state->decoder_step->input_tensor("encoder_hidden_states");
+                if (step_states->data.raw != nullptr)
+                    memcpy(step_states->data.raw, hidden_states->data.raw, std::min(hidden_states->bytes, step_states->bytes));
+                timings.invokeNs += monotonicNowNs() - start;
+                ok = true;
+            }
+        }
+    }
+    endRequest();
+    return ok;
+}
+
+// Each step is a request of its own on the states encodeChunk() left, so a cancel or deadline
+// between steps stops the next one
+bool TFLiteEngine::decodeStep(const int *tokens, size_t length, std::vector<int> &next) {
+    beginRequest();
+    bool ok = false;
+    {
+        std::lock_guard<std::mutex> lock(mutex);
+        ok = decodeStepLocked(tokens, length, next);
+    }
+    endRequest();
+    return ok;
+}
+
+// mutex must be held
+bool TFLiteEngine::decodeStepLocked(const int *tokens, size_t length, std::vector<int> &next) {
+    if (!state || state->decoder_step == nullptr || state->hidden_states.empty() || isCancelled())
+        return false;
+
+    tflite::SignatureRunner *step = state->decoder_step;
+    const TfLiteTensor *ids = step->input_tensor("decoder_input_ids");
+    if (ids->data.raw == nullptr || ids->dims->size != 2 || ids->dims->data[1] != (int) length) {
+        // Reallocating may move every tensor of the step, the encoder output is copied in again
+        if (step->ResizeInputTensor("decoder_input_ids", {1, (int) length}) != kTfLiteOk ||
+            step->AllocateTensors() != kTfLiteOk) {
+            std::cerr << "Failed to resize decode_step to " << length << " tokens" << std::endl;
+            return false;
+        }
+        TfLiteTensor *step_states = step->input_tensor("encoder_hidden_states");
+        memcpy(step_states->data.raw, state->hidden_states.data(),
+               std::min(step_states->bytes, state->hidden_states.size() * sizeof(float)));
+    }
+    memcpy(step->input_tensor("decoder_input_ids")->data.i32, tokens, length * sizeof(int32_t));
+
+    CpuGrant grant(STAGE_INFERENCE, state->num_threads, state->num_threads, *this);
+    int64_t start = monotonicNowNs();
+    if (grant.cancelled || step->Invoke() != kTfLiteOk)
+        return false;
+    timings.invokeNs += monotonicNowNs() - start;
+
+    const int32_t *output = step->output_tensor("next_tokens")->data.i32;
+    next.assign(output, output + length);
+    return true;
+}
+
+// Chunk loop shared by all requests on samples, models without signatures only transcribe
+bool TFLiteEngine::runChunks(const float *samples, size_t count, const std::vector<Task> &tasks, const TasksCallback &onChunk) {
+    beginRequest();
+    size_t totalChunks = std::max<size_t>(1, (count + CHUNK_SAMPLES - 1) / CHUNK_SAMPLES);
+    size_t chunksDone = 0;
+    for (size_t chunkIndex = 0; chunkIndex < totalChunks && !isCancelled(); ++chunkIndex) {
+        size_t start = chunkIndex * CHUNK_SAMPLES;
+        size_t length = std::min<size_t>(CHUNK_SAMPLES, count - start);
+
+        std::vector<Chunk> chunks;
+        StageTimings before = timings;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            if (!state) {
+                std::cerr << "No model is loaded" << std::endl;
+                break;
+            }
+            if (INFERENCE_ON_AUDIO_FILE) {
+                // The features are computed straight into the input tensor
+                if (!computeMelLocked(samples + start, length, state->input))
+                    break;
+            } else {
+                memcpy(state->input, _content_input_features_bin, MEL_VALUES * sizeof(float)); // to load pre-generated input_features
+            } // end of audio file processing
+            invokeAndDecode(tasks, chunks);
+        }
+        if (isCancelled() || chunks.size() != tasks.size())
             break;
+        for (Chunk &chunk : chunks) {
+            chunk.timings.melNs = timings.melNs - before.melNs;
+            chunk.timings.invokeNs = timings.invokeNs - before.invokeNs;
+            chunk.timings.decodeNs = timings.decodeNs - before.decodeNs;
+            chunk.timings.chunks = 1;
         }
 
-        if (output_int[i] < g_vocab.token_eot) {
-            text += whisper_token_to_str(output_int[i]);
+        // Called without the lock, the callback may take its time
+        chunksDone++;
+        if (!onChunk(chunkIndex, start, start + length, chunks))
+            break;
+    }
+    endRequest();
+    return chunksDone == totalChunks;
+}
+
+TFLiteEngine::Chunk TFLiteEngine::transcribeMel(const float *melData) {
+    beginRequest();
+    Chunk chunk;
+    {
+        std::lock_guard<std::mutex> lock(mutex);
+        if (state) {
+            runInference(melData, chunk);
+        } else {
+            std::cerr << "No model is loaded" << std::endl;
         }
     }
+    chunk.cancelled = isCancelled();
+    endRequest();
+    chunk.timings = timings;
+    return chunk;
+}
 
-    return text;
+bool TFLiteEngine::vocabTable(std::vector<char> &text, std::vector<uint32_t> &offsets, int &tokenEot, int &tokenBeg) {
+    std::lock_guard<std::mutex> lock(mutex);
+    if (!state)
+        return false;
+    const whisper_vocab &vocab = state->vocab->vocab;
+    text = vocab.token_text;
+    offsets = vocab.token_offsets;
+    offsets.push_back(text.size());
+    tokenEot = vocab.token_eot;
+    tokenBeg = vocab.token_beg;
+    return true;
 }
 
-std::string TFLiteEngine::transcribeFile(const char *waveFile) {
-    std::vector<float> pcmf32 = readWAVFile(waveFile);
-    size_t originalSize = pcmf32.size();
+bool TFLiteEngine::computeMel(const float *samples, size_t count, float *melData) {
+    beginRequest();
+    bool ok = false;
+    {
+        std::lock_guard<std::mutex> lock(mutex);
+        ok = state && computeMelLocked(samples, std::min<size_t>(count, CHUNK_SAMPLES), melData);
+    }
+    endRequest();
+    return ok;
+}
+
+// Features of up to one chunk of samples into MEL_VALUES floats at melData, the missing part
+// of a short chunk counts as silence. mutex must be held with a model loaded.
+bool TFLiteEngine::computeMelLocked(const float *samples, size_t count, float *melData) {
+    int64_t start = monotonicNowNs();
+    // As many slices as the mel share has free cores, at least one
+    CpuGrant grant(STAGE_MEL, 1, whisper_mel_pool().size(), *this);
+    if (grant.cancelled)
+        return false;
+    const int slices = grant.threads;
+
+    auto is_cancelled = [](void *data) { return static_cast<TFLiteEngine *>(data)->isCancelled(); };
+    if (!log_mel_spectrogram(samples, count, WHISPER_SAMPLE_RATE, state->vocab->fft_plan,
+                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, WHISPER_MEL_LEN, slices, state->vocab->filters, melData,
+                             is_cancelled, this)) {
+        std::cerr << "Failed to compute mel spectrogram" << std::endl;
+        return false;
+    }
 
-    // Determine the number of chunks required to process the entire file
-    size_t totalChunks = (originalSize + (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE) - 1) /
-                         (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE);
+    timings.melNs += monotonicNowNs() - start;
+    return true;
+}
 
-    std::string text;
-    for (size_t chunkIndex = 0; chunkIndex < totalChunks; ++chunkIndex) {
-        // Extract a chunk of audio data
-        size_t startSample = chunkIndex * WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
-        size_t endSample = std::min(startSample + (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE),
-                                    originalSize);
-        std::vector<float> chunk(pcmf32.begin() + startSample, pcmf32.begin() + endSample);
-
-        // Pad the chunk if it's smaller than the expected size
-        if (chunk.size() < WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE) {
-            chunk.resize(WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE, 0);
+// Tokens and text of an output sequence up to the end token
+static void decodeOutput(const TfLiteTensor *output_tensor, const whisper_vocab &vocab, TFLiteEngine::Chunk &chunk) {
+    TfLiteIntArray *output_dims = output_tensor->dims;
+    // assume output dims to be something like (1, 1, ... ,size)
+    auto output_size = output_dims->data[output_dims->size - 1];
+
+    const int *output_int = output_tensor->data.i32;
+    chunk.tokens.reserve(output_size);
+
+    for (int i = 0; i < output_size; i++) {
+        if (output_int[i] == vocab.token_eot) {
+            break;
         }
 
-        // Transcribe the chunk and append the result to the text
-        std::string chunkText = transcribeBuffer(chunk);
-        text += chunkText;
+        chunk.tokens.push_back(output_int[i]);
+        if (output_int[i] < vocab.token_eot) {
+            chunk.text += whisper_token_to_str(vocab, output_int[i]);
+        }
     }
-    return text;
 }
 
-void TFLiteEngine::freeModel() {
-    std::cout << "Entering " << __func__ << "()" << std::endl;
+// Copies the features into the input tensor and decodes, mutex must be held with a model loaded
+void TFLiteEngine::runInference(const float *melData, Chunk &chunk) {
+    memcpy(state->input, melData, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float));
+    std::vector<Chunk> chunks;
+    invokeAndDecode({TASK_TRANSCRIBE}, chunks);
+    if (!chunks.empty())
+        chunk = std::move(chunks[0]);
+}
+
+// Runs the model on the features already in the input tensor, one chunk per task, none if the
+// interpreter failed or was cancelled. mutex must be held with a model loaded.
+void TFLiteEngine::invokeAndDecode(const std::vector<Task> &tasks, std::vector<Chunk> &chunks) {
+    tflite::Interpreter *interpreter = state->interpreter.get();
+    // The interpreter runs the threads it was built with, the budget counts all of them
+    CpuGrant grant(STAGE_INFERENCE, state->num_threads, state->num_threads, *this);
+    if (grant.cancelled)
+        return;
+    if (state->encoder != nullptr) {
+        invokeTasks(tasks, chunks);
+        return;
+    }
+
+    // Run inference
+    int64_t start = monotonicNowNs();
+    if (interpreter->Invoke() != kTfLiteOk) {
+        return;
+    }
+
+    int64_t invoked = monotonicNowNs();
+    timings.invokeNs += invoked - start;
 
-    if (g_whisper_tflite.interpreter)
-        g_whisper_tflite.interpreter.reset();  // Reset interpreter to release resources
+    chunks.resize(1);
+    decodeOutput(interpreter->tensor(interpreter->outputs()[0]), state->vocab->vocab, chunks[0]);
 
-    if (g_whisper_tflite.model)
-        g_whisper_tflite.model.reset();        // Reset model to free memory
+    timings.decodeNs += monotonicNowNs() - invoked;
+    timings.chunks++;
+}
 
-    if (g_whisper_tflite.buffer) {
-        std::cout << __func__ << ": free buffer " << g_whisper_tflite.buffer << " memory" << std::endl;
-        delete[] g_whisper_tflite.buffer;
+// The encoder runs once and its output is copied to the decoder input a single time, each task
+// then only changes the prompt: start token, language, task and no timestamps
+void TFLiteEngine::invokeTasks(const std::vector<Task> &tasks, std::vector<Chunk> &chunks) {
+    const whisper_vocab &vocab = state->vocab->vocab;
+    int64_t start = monotonicNowNs();
+    if (state->encoder->Invoke() != kTfLiteOk) {
+        return;
     }
+    const TfLiteTensor *hidden_states = state->encoder->output_tensor("encoder_hidden_states");
+    TfLiteTensor *decoder_states = state->decoder->input_tensor("encoder_hidden_states");
+    memcpy(decoder_states->data.raw, hidden_states->data.raw, std::min(hidden_states->bytes, decoder_states->bytes));
+    timings.invokeNs += monotonicNowNs() - start;
+
+    int32_t *prompt = state->decoder->input_tensor("decoder_input_ids")->data.i32;
+    prompt[0] = vocab.token_sot;
+    prompt[1] = vocab.token_sot + 1 + language;
+    prompt[3] = vocab.token_not;
+    std::vector<Chunk> decoded(tasks.size());
+    for (size_t i = 0; i < tasks.size(); i++) {
+        prompt[2] = (tasks[i] == TASK_TRANSLATE) ? whisper_vocab::token_translate : whisper_vocab::token_transcribe;
+
+        int64_t decoderStart = monotonicNowNs();
+        if (state->decoder->Invoke() != kTfLiteOk) {
+            return;
+        }
+        int64_t invoked = monotonicNowNs();
+        timings.invokeNs += invoked - decoderStart;
 
-    // Set the flag to false to avoid issues in the re-initialization of the model
-    if (g_whisper_tflite.is_whisper_tflite_initialized) {
-        g_whisper_tflite.is_whisper_tflite_initialized = false;
+        decodeOutput(state->decoder->output_tensor("sequences"), vocab, decoded[i]);
+        timings.decodeNs += monotonicNowNs() - invoked;
     }
+    timings.chunks++;
+    chunks = std::move(decoded);
+}
+
+std::string TFLiteEngine::transcribeFile(const char *waveFile) {
+    std::vector<float> pcmf32 = readWAVFile(waveFile);
+    return transcribeSamples(pcmf32.data(), pcmf32.size());
+}
+
+bool TFLiteEngine::transcribeFile(const char *waveFile, const ChunkCallback &onChunk) {
+    std::vector<float> pcmf32 = readWAVFile(waveFile);
+    return transcribeSamples(pcmf32.data(), pcmf32.size(), onChunk);
+}
+
+void TFLiteEngine::freeModel() {
+    std::cout << "Entering " << __func__ << "()" << std::endl;
 
-    // Reset the whisper_vocab structure to clear the vocab data
-    g_vocab.reset();
+    // The model buffer and vocab are released with the last engine using them
+    std::lock_guard<std::mutex> lock(mutex);
+    state.reset();
 
     std::cout << "Exiting " << __func__ << "()" << std::endl;
 }
@@ -1,22 +1,151 @@
 #ifndef _TFLITEENGINE_H_
 #define _TFLITEENGINE_H_
 
+#include <atomic>
+#include <cstdint>
+#include <functional>
+#include <memory>
+#include <mutex>
 #include <string>
 #include <vector>
 
+struct whisper_model;
+struct whisper_tflite;
+
+// One interpreter over a model; engines loading the same model share its buffer and vocab, so
+// separate instances transcribe concurrently while each instance serves one request at a time
 class TFLiteEngine {
 public:
-    TFLiteEngine() {};
-    ~TFLiteEngine() {};
+    // Nanoseconds spent per stage: log-mel features, interpreter invoke and token decode
+    struct StageTimings {
+        int64_t melNs = 0;
+        int64_t invokeNs = 0;
+        int64_t decodeNs = 0;
+        int chunks = 0;
+    };
+
+    // Output of one chunk: its text, every token the model produced before the end token,
+    // special and timestamp tokens included, and the time it took
+    struct Chunk {
+        std::string text;
+        std::vector<int> tokens;
+        StageTimings timings;
+        bool cancelled = false;  // stopped by cancel() or the deadline, tokens are incomplete
+    };
+
+    // Receives each decoded chunk with its index, first and end sample. Returning false stops
+    // before the next chunk.
+    using ChunkCallback = std::function<bool(size_t chunkIndex, size_t startSample, size_t endSample,
+                                             const Chunk &chunk)>;
+    // Same with the chunk of every task, in the order of the tasks
+    using TasksCallback = std::function<bool(size_t chunkIndex, size_t startSample, size_t endSample,
+                                             const std::vector<Chunk> &chunks)>;
+
+    // What the decoder makes of the speech, for models with encode and decode signatures
+    enum Task {
+        TASK_TRANSCRIBE = 0,
+        TASK_TRANSLATE = 1,
+    };
+
+    // Pipeline stages drawing threads from the CPU budget, the ordinals of CpuBudget.Stage
+    enum Stage {
+        STAGE_MEL = 0,
+        STAGE_INFERENCE = 1,
+    };
+
+    // Process-wide CPU budget shared with the Java side, see CpuBudget. acquire() waits up to
+    // timeoutNs for the stage to have at least minThreads free, sets the threads granted and
+    // returns a handle for release(); on timeout it returns null with threads set to 0, and null
+    // with threads untouched if the budget cannot be reached. interpreterThreads() sizes an
+    // interpreter built now, 0 if unknown. Without one every stage takes all cores, e.g. in the
+    // command line tool.
+    struct CpuBudget {
+        void *(*acquire)(int stage, int minThreads, int maxThreads, int64_t timeoutNs, int *threads) = nullptr;
+        void (*release)(void *grant) = nullptr;
+        int (*interpreterThreads)() = nullptr;
+    };
+    static void setCpuBudget(const CpuBudget &budget);
+
+    // Samples in a 30 seconds chunk and log-mel values computed from it
+    static constexpr int SAMPLE_RATE = 16000;
+    static constexpr int CHUNK_SAMPLES = SAMPLE_RATE * 30;
+    static constexpr int MEL_VALUES = 80 * 3000;
+
+    TFLiteEngine();
+    ~TFLiteEngine();
 
     int loadModel(const char *modelPath, const bool isMultilingual);
+    int loadModel(int modelFd, long offset, long length, const bool isMultilingual);
     void freeModel();
 
-    std::string transcribeBuffer(std::vector<float> samples);
+    std::string transcribeBuffer(const std::vector<float>& samples);
+    // Transcribe count samples read in place, in 30 seconds chunks
+    std::string transcribeSamples(const float* samples, size_t count);
+    // Same, handing each chunk to onChunk instead of collecting the text. False if onChunk, a
+    // cancel or the deadline stopped it before the last chunk.
+    bool transcribeSamples(const float* samples, size_t count, const ChunkCallback& onChunk);
     std::string transcribeFile(const char* waveFile);
+    bool transcribeFile(const char* waveFile, const ChunkCallback& onChunk);
+    // Encoder once per chunk, then the decoder once per task on its output. False if stopped
+    // early like transcribeSamples(), or if the model has no encode and decode signatures.
+    bool transcribeTasks(const float* samples, size_t count, const std::vector<Task>& tasks, const TasksCallback& onChunk);
+    // True if the loaded model has encode and decode signatures, see generate_model.py
+    bool supportsTasks();
+    // Spoken language of later requests on models that support tasks, e.g. "en" (default).
+    // False if the code is unknown.
+    bool setLanguage(const char* code);
+    // True if the model also has a decode_step signature, so callers drive greedy decoding
+    bool supportsStepDecoding();
+    // Decoder prompt of the current language for the task: start, language, task, no timestamps
+    std::vector<int> prompt(Task task);
+    // Encoder on up to one chunk of samples for the decodeStep() calls that follow, a request of
+    // its own. False if cancelled or the model has no decode_step signature.
+    bool encodeChunk(const float* samples, size_t count);
+    // One decoder invocation over length tokens on the last encoded chunk, next[i] is the greedy
+    // token after tokens[0..i], a request of its own. False if cancelled or failed.
+    bool decodeStep(const int* tokens, size_t length, std::vector<int>& next);
+    // Transcribe one chunk of precomputed WHISPER_N_MEL x WHISPER_MEL_LEN log-mel features
+    Chunk transcribeMel(const float* melData);
+    // Log-mel features of up to one chunk of samples into MEL_VALUES floats at melData, false if
+    // cancelled or no model is loaded
+    bool computeMel(const float* samples, size_t count, float* melData);
+    // Copy of the token table for decoding elsewhere: token texts back to back, each ending with
+    // '\0' and starting at offsets[token], offsets ends with the table size. False if no model is loaded.
+    bool vocabTable(std::vector<char>& text, std::vector<uint32_t>& offsets, int& tokenEot, int& tokenBeg);
+
+    // Whether engines can run side by side, each instance has an interpreter of its own
+    static bool supportsConcurrentInstances() { return true; }
+
+    // Abort the running request, or the next one when called between requests, safe to call
+    // from any thread
+    void cancel();
+    // Cancel the next request once CLOCK_MONOTONIC passes deadlineNs, 0 for none
+    void setDeadline(int64_t deadlineNs);
+    bool isCancelled() const;
+    // Stages of the last request, read from the thread that made it
+    StageTimings lastTimings() const { return timings; }
 
 private:
-    // Add any private members or helper functions as needed
+    class CpuGrant;
+    int buildInterpreter(std::shared_ptr<const whisper_model> model, const bool isMultilingual);
+    bool computeMelLocked(const float* samples, size_t count, float* melData);
+    bool decodeStepLocked(const int* tokens, size_t length, std::vector<int>& next);
+    bool runChunks(const float* samples, size_t count, const std::vector<Task>& tasks, const TasksCallback& onChunk);
+    void runInference(const float* melData, Chunk& chunk);
+    void invokeAndDecode(const std::vector<Task>& tasks, std::vector<Chunk>& chunks);
+    void invokeTasks(const std::vector<Task>& tasks, std::vector<Chunk>& chunks);
+    void beginRequest();
+    void endRequest();
+
+    std::unique_ptr<whisper_tflite> state;  // null until a model is loaded
+    std::mutex mutex;                       // held by the running request and by model changes
+    // Requests are numbered, cancel() marks the running one or the next one while idle. A
+    // cancel that arrives before a request starts is kept, one for a finished request is void.
+    std::atomic<uint64_t> request{0};
+    std::atomic<uint64_t> cancelledRequest{UINT64_MAX};
+    std::atomic<int64_t> deadlineNs{0};
+    std::atomic<int> language{0};           // index in WHISPER_LANGUAGES
+    StageTimings timings;
 };
 
 #endif // _TFLITEENGINE_H_
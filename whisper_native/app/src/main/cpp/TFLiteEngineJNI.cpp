@@ -1,8 +1,90 @@
 #include <jni.h>
+#include <algorithm>
 #include "TFLiteEngine.h"
 
+// CpuBudget on the Java side, the one budget of the process, looked up once the library is loaded
+static JavaVM *g_vm = nullptr;
+static jclass g_budgetClass = nullptr;
+static jmethodID g_acquireNative = nullptr;
+static jmethodID g_interpreterThreadsNative = nullptr;
+static jmethodID g_grantThreads = nullptr;
+static jmethodID g_grantClose = nullptr;
+
+// Stages run on the Java thread of the request, which is attached already. Anywhere else the
+// stage runs without a grant and keeps the threads it asked for.
+static void *acquireCpuGrant(int stage, int minThreads, int maxThreads, int64_t timeoutNs, int *threads) {
+    JNIEnv *env = nullptr;
+    if (g_vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK)
+        return nullptr;
+    jobject grant = env->CallStaticObjectMethod(g_budgetClass, g_acquireNative, stage, minThreads, maxThreads,
+                                                (jlong) timeoutNs);
+    if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+        return nullptr;
+    }
+    if (grant == nullptr) {
+        *threads = 0;
+        return nullptr;
+    }
+    *threads = env->CallIntMethod(grant, g_grantThreads);
+    jobject global = env->NewGlobalRef(grant);
+    env->DeleteLocalRef(grant);
+    return global;
+}
+
+// Called while the Java thread building the engine waits in initialize(), so pools are seen
+static int interpreterThreads() {
+    JNIEnv *env = nullptr;
+    if (g_vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK)
+        return 0;
+    jint threads = env->CallStaticIntMethod(g_budgetClass, g_interpreterThreadsNative);
+    if (env->ExceptionCheck()) {
+        env->ExceptionClear();
+        return 0;
+    }
+    return threads;
+}
+
+static void releaseCpuGrant(void *grant) {
+    JNIEnv *env = nullptr;
+    if (g_vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK)
+        return;
+    jobject global = static_cast<jobject>(grant);
+    env->CallVoidMethod(global, g_grantClose);
+    env->ExceptionClear();
+    env->DeleteGlobalRef(global);
+}
+
 extern "C" {
 
+// Hooks the native stages up to the CPU budget of the app
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env = nullptr;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK)
+        return JNI_ERR;
+    g_vm = vm;
+
+    jclass budgetClass = env->FindClass("com/whispertflite/utils/CpuBudget");
+    jclass grantClass = env->FindClass("com/whispertflite/utils/CpuBudget$Grant");
+    if (budgetClass != nullptr && grantClass != nullptr) {
+        g_acquireNative = env->GetStaticMethodID(budgetClass, "acquireNative", "(IIIJ)Lcom/whispertflite/utils/CpuBudget$Grant;");
+        g_interpreterThreadsNative = env->GetStaticMethodID(budgetClass, "interpreterThreadsNative", "()I");
+        g_grantThreads = env->GetMethodID(grantClass, "getThreads", "()I");
+        g_grantClose = env->GetMethodID(grantClass, "close", "()V");
+        if (g_acquireNative != nullptr && g_interpreterThreadsNative != nullptr && g_grantThreads != nullptr && g_grantClose != nullptr) {
+            g_budgetClass = static_cast<jclass>(env->NewGlobalRef(budgetClass));
+            TFLiteEngine::CpuBudget budget;
+            budget.acquire = acquireCpuGrant;
+            budget.release = releaseCpuGrant;
+            budget.interpreterThreads = interpreterThreads;
+            TFLiteEngine::setCpuBudget(budget);
+        }
+    }
+    env->ExceptionClear();
+    return JNI_VERSION_1_6;
+}
+
 // JNI method to create an instance of TFLiteEngine
 JNIEXPORT jlong JNICALL
 Java_com_whispertflite_engine_WhisperEngineNative_createTFLiteEngine(JNIEnv *env, jobject thiz) {
@@ -21,6 +103,15 @@ Java_com_whispertflite_engine_WhisperEngineNative_loadModel(JNIEnv *env, jobject
     return static_cast<jint>(result);
 }
 
+// JNI method to load the model from a file descriptor region (e.g. an uncompressed APK asset).
+// The region is mapped, the caller may close the descriptor afterwards.
+JNIEXPORT jint JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_loadModelFd(JNIEnv *env, jobject thiz, jlong nativePtr, jint fd, jlong offset, jlong length, jboolean isMultilingual) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    int result = engine->loadModel(fd, offset, length, isMultilingual);
+    return static_cast<jint>(result);
+}
+
 // JNI method to free the model
 JNIEXPORT void JNICALL
 Java_com_whispertflite_engine_WhisperEngineNative_freeModel(JNIEnv *env, jobject thiz, jlong nativePtr) {
@@ -29,29 +120,268 @@ Java_com_whispertflite_engine_WhisperEngineNative_freeModel(JNIEnv *env, jobject
     delete engine;
 }
 
-// JNI method to transcribe audio buffer
-JNIEXPORT jstring JNICALL
-Java_com_whispertflite_engine_WhisperEngineNative_transcribeBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples) {
+// Wraps the Java NativeChunkListener for the engine: each chunk goes to listener.onChunk() as token
+// ids with its times and stage timings. A false return or an exception thrown by the listener
+// stops before the next chunk.
+static TFLiteEngine::ChunkCallback chunkCallback(JNIEnv *env, jobject listener, jmethodID onChunk) {
+    return [env, listener, onChunk](size_t chunkIndex, size_t startSample, size_t endSample,
+                                    const TFLiteEngine::Chunk &chunk) {
+        jintArray tokens = env->NewIntArray(chunk.tokens.size());
+        env->SetIntArrayRegion(tokens, 0, chunk.tokens.size(), chunk.tokens.data());
+        jboolean proceed = env->CallBooleanMethod(listener, onChunk, (jint) chunkIndex,
+                                                  (jlong) (startSample * 1000 / TFLiteEngine::SAMPLE_RATE),
+                                                  (jlong) (endSample * 1000 / TFLiteEngine::SAMPLE_RATE), tokens,
+                                                  (jlong) chunk.timings.melNs, (jlong) chunk.timings.invokeNs,
+                                                  (jlong) chunk.timings.decodeNs);
+        env->DeleteLocalRef(tokens);
+        return !env->ExceptionCheck() && proceed;
+    };
+}
+
+static jmethodID onChunkMethod(JNIEnv *env, jobject listener) {
+    jclass listenerClass = env->GetObjectClass(listener);
+    jmethodID onChunk = env->GetMethodID(listenerClass, "onChunk", "(IJJ[IJJJ)Z");
+    env->DeleteLocalRef(listenerClass);
+    return onChunk;
+}
+
+// JNI method to transcribe length float samples from offset of a direct ByteBuffer, read in place
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeDirectChunks(JNIEnv *env, jobject thiz, jlong nativePtr, jobject pcm, jint offset, jint length, jobject listener) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    jmethodID onChunk = onChunkMethod(env, listener);
+
+    const float *data = static_cast<const float *>(env->GetDirectBufferAddress(pcm));
+    jlong capacity = env->GetDirectBufferCapacity(pcm) / (jlong) sizeof(float);
+    if (onChunk == nullptr || data == nullptr || offset < 0 || length < 0 || offset + (jlong) length > capacity) {
+        return JNI_FALSE;
+    }
+
+    bool complete = engine->transcribeSamples(data + offset, length, chunkCallback(env, listener, onChunk));
+    return complete ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to check whether the model has encode and decode signatures
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_supportsTasks(JNIEnv *env, jobject thiz, jlong nativePtr) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return engine->supportsTasks() ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to set the spoken language of later requests by its code
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_setLanguage(JNIEnv *env, jobject thiz, jlong nativePtr, jstring language) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const char *cLanguage = env->GetStringUTFChars(language, NULL);
+    bool known = engine->setLanguage(cLanguage);
+    env->ReleaseStringUTFChars(language, cLanguage);
+    return known ? JNI_TRUE : JNI_FALSE;
+}
 
-    // Convert jfloatArray to std::vector<float>
+// JNI method to check whether the model has a decode_step signature
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_supportsStepDecoding(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return engine->supportsStepDecoding() ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to get the decoder prompt of a task (TFLiteEngine::Task value), null if no model is loaded
+JNIEXPORT jintArray JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_getPrompt(JNIEnv *env, jobject thiz, jlong nativePtr, jint task) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    std::vector<int> prompt = engine->prompt(task == TFLiteEngine::TASK_TRANSLATE ? TFLiteEngine::TASK_TRANSLATE : TFLiteEngine::TASK_TRANSCRIBE);
+    if (prompt.empty())
+        return nullptr;
+    jintArray result = env->NewIntArray(prompt.size());
+    env->SetIntArrayRegion(result, 0, prompt.size(), prompt.data());
+    return result;
+}
+
+// JNI method to run the encoder on up to one chunk of samples from offset for the steps that follow
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_encodeChunk(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples, jint offset) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
     jsize len = env->GetArrayLength(samples);
-    jfloat *data = env->GetFloatArrayElements(samples, 0);
-    std::vector<float> sampleVector(data, data + len);
-    env->ReleaseFloatArrayElements(samples, data, 0);
+    jsize count = std::max<jsize>(0, std::min<jsize>(len - offset, TFLiteEngine::CHUNK_SAMPLES));
+    std::vector<float> chunk(count);
+    env->GetFloatArrayRegion(samples, offset, count, chunk.data());
+    return engine->encodeChunk(chunk.data(), chunk.size()) ? JNI_TRUE : JNI_FALSE;
+}
 
-    std::string result = engine->transcribeBuffer(sampleVector);
-    return env->NewStringUTF(result.c_str());
+// JNI method to run one decoder step over the first length tokens, null if cancelled or failed
+JNIEXPORT jintArray JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_decodeStep(JNIEnv *env, jobject thiz, jlong nativePtr, jintArray tokens, jint length) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    std::vector<int> input(length);
+    env->GetIntArrayRegion(tokens, 0, length, input.data());
+    std::vector<int> next;
+    if (!engine->decodeStep(input.data(), input.size(), next))
+        return nullptr;
+    jintArray result = env->NewIntArray(next.size());
+    env->SetIntArrayRegion(result, 0, next.size(), next.data());
+    return result;
 }
 
-// JNI method to transcribe audio file
-JNIEXPORT jstring JNICALL
-Java_com_whispertflite_engine_WhisperEngineNative_transcribeFile(JNIEnv *env, jobject thiz, jlong nativePtr, jstring waveFile) {
+// JNI method to decode each chunk for every task (TFLiteEngine::Task values) from one encoder pass.
+// listener.onChunk() gets the token ids of every task in the same order.
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeTasksChunks(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples, jintArray tasks, jobject listener) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    jclass listenerClass = env->GetObjectClass(listener);
+    jmethodID onChunk = env->GetMethodID(listenerClass, "onChunk", "(IJJ[[IJJJ)Z");
+    env->DeleteLocalRef(listenerClass);
+    jclass intArrayClass = env->FindClass("[I");
+    if (onChunk == nullptr || intArrayClass == nullptr) {
+        return JNI_FALSE;
+    }
+
+    jsize taskCount = env->GetArrayLength(tasks);
+    if (taskCount == 0) {
+        env->DeleteLocalRef(intArrayClass);
+        return JNI_FALSE;
+    }
+    std::vector<jint> taskIds(taskCount);
+    env->GetIntArrayRegion(tasks, 0, taskCount, taskIds.data());
+    std::vector<TFLiteEngine::Task> taskList;
+    for (jint task : taskIds)
+        taskList.push_back(task == TFLiteEngine::TASK_TRANSLATE ? TFLiteEngine::TASK_TRANSLATE : TFLiteEngine::TASK_TRANSCRIBE);
+
+    jsize len = env->GetArrayLength(samples);
+    std::vector<float> sampleVector(len);
+    env->GetFloatArrayRegion(samples, 0, len, sampleVector.data());
+
+    bool complete = engine->transcribeTasks(sampleVector.data(), sampleVector.size(), taskList,
+                                            [&](size_t chunkIndex, size_t startSample, size_t endSample,
+                                                const std::vector<TFLiteEngine::Chunk> &chunks) {
+        jobjectArray tokens = env->NewObjectArray(chunks.size(), intArrayClass, nullptr);
+        for (size_t i = 0; i < chunks.size(); i++) {
+            jintArray taskTokens = env->NewIntArray(chunks[i].tokens.size());
+            env->SetIntArrayRegion(taskTokens, 0, chunks[i].tokens.size(), chunks[i].tokens.data());
+            env->SetObjectArrayElement(tokens, i, taskTokens);
+            env->DeleteLocalRef(taskTokens);
+        }
+        const TFLiteEngine::StageTimings &timings = chunks[0].timings;
+        jboolean proceed = env->CallBooleanMethod(listener, onChunk, (jint) chunkIndex,
+                                                  (jlong) (startSample * 1000 / TFLiteEngine::SAMPLE_RATE),
+                                                  (jlong) (endSample * 1000 / TFLiteEngine::SAMPLE_RATE), tokens,
+                                                  (jlong) timings.melNs, (jlong) timings.invokeNs, (jlong) timings.decodeNs);
+        env->DeleteLocalRef(tokens);
+        return !env->ExceptionCheck() && proceed;
+    });
+    env->DeleteLocalRef(intArrayClass);
+    return complete ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to transcribe audio file chunk by chunk, nothing of the transcript stays here
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeFileChunks(JNIEnv *env, jobject thiz, jlong nativePtr, jstring waveFile, jobject listener) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    jmethodID onChunk = onChunkMethod(env, listener);
+    if (onChunk == nullptr) {
+        return JNI_FALSE;
+    }
+
     const char *cWaveFile = env->GetStringUTFChars(waveFile, NULL);
-    std::string result = engine->transcribeFile(cWaveFile);
+    bool complete = engine->transcribeFile(cWaveFile, chunkCallback(env, listener, onChunk));
     env->ReleaseStringUTFChars(waveFile, cWaveFile);
-    return env->NewStringUTF(result.c_str());
+    return complete ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to transcribe one chunk of log-mel features held in a direct ByteBuffer, returns
+// its token ids or null
+JNIEXPORT jintArray JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_transcribeMel(JNIEnv *env, jobject thiz, jlong nativePtr, jobject melFeatures) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+
+    const float *melData = static_cast<const float *>(env->GetDirectBufferAddress(melFeatures));
+    if (melData == nullptr || env->GetDirectBufferCapacity(melFeatures) < (jlong) (TFLiteEngine::MEL_VALUES * sizeof(float))) {
+        return nullptr;
+    }
+
+    TFLiteEngine::Chunk chunk = engine->transcribeMel(melData);
+    if (chunk.cancelled) {
+        return nullptr;
+    }
+    jintArray tokens = env->NewIntArray(chunk.tokens.size());
+    env->SetIntArrayRegion(tokens, 0, chunk.tokens.size(), chunk.tokens.data());
+    return tokens;
+}
+
+// JNI method to copy the token table: token texts as UTF-8 bytes, each followed by a 0 byte
+JNIEXPORT jbyteArray JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_getVocabText(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    std::vector<char> text;
+    std::vector<uint32_t> offsets;
+    int tokenEot = 0, tokenBeg = 0;
+    if (!engine->vocabTable(text, offsets, tokenEot, tokenBeg)) {
+        return nullptr;
+    }
+
+    jbyteArray result = env->NewByteArray(text.size());
+    env->SetByteArrayRegion(result, 0, text.size(), reinterpret_cast<const jbyte *>(text.data()));
+    return result;
+}
+
+// JNI method to get where each token starts in the token table, then the table size, EOT and BEG
+JNIEXPORT jintArray JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_getVocabIndex(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    std::vector<char> text;
+    std::vector<uint32_t> offsets;
+    int tokenEot = 0, tokenBeg = 0;
+    if (!engine->vocabTable(text, offsets, tokenEot, tokenBeg)) {
+        return nullptr;
+    }
+
+    std::vector<jint> index(offsets.begin(), offsets.end());
+    index.push_back(tokenEot);
+    index.push_back(tokenBeg);
+    jintArray result = env->NewIntArray(index.size());
+    env->SetIntArrayRegion(result, 0, index.size(), index.data());
+    return result;
+}
+
+// JNI method to compute the log-mel features of up to 30 seconds of samples from offset of a
+// direct ByteBuffer into another one, both read and written in place
+JNIEXPORT jboolean JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_computeMel(JNIEnv *env, jobject thiz, jlong nativePtr, jobject pcm, jint offset, jint length, jobject melFeatures) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+
+    const float *data = static_cast<const float *>(env->GetDirectBufferAddress(pcm));
+    jlong capacity = env->GetDirectBufferCapacity(pcm) / (jlong) sizeof(float);
+    float *melData = static_cast<float *>(env->GetDirectBufferAddress(melFeatures));
+    if (data == nullptr || melData == nullptr || offset < 0 || length < 0 || offset + (jlong) length > capacity ||
+        env->GetDirectBufferCapacity(melFeatures) < (jlong) (TFLiteEngine::MEL_VALUES * sizeof(float))) {
+        return JNI_FALSE;
+    }
+
+    return engine->computeMel(data + offset, length, melData) ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to abort the running transcription
+JNIEXPORT void JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_cancel(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->cancel();
+}
+
+// JNI method to set the deadline (System.nanoTime() based) of the next transcription
+JNIEXPORT void JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_setDeadline(JNIEnv *env, jobject thiz, jlong nativePtr, jlong deadlineNanos) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->setDeadline(deadlineNanos);
+}
+
+// JNI method to get the stage timings of the last request: mel, invoke and decode nanoseconds, chunks
+JNIEXPORT jlongArray JNICALL
+Java_com_whispertflite_engine_WhisperEngineNative_getLastTimings(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::StageTimings timings = engine->lastTimings();
+    jlong values[] = {timings.melNs, timings.invokeNs, timings.decodeNs, timings.chunks};
+    jlongArray result = env->NewLongArray(4);
+    env->SetLongArrayRegion(result, 0, 4, values);
+    return result;
 }
 
 } // extern "C"
@@ -4,9 +4,16 @@
 #include <iostream>
 #include <fstream>
 #include <vector>
+#include <algorithm>
 #include <thread>
 #include <cmath>
-#include <map>
+#include <cstdint>
+#include <cstring>
+#include <atomic>
+#include <condition_variable>
+#include <deque>
+#include <functional>
+#include <mutex>
 #include <string>
 #include <memory>
 
@@ -21,16 +28,20 @@
 // Forward declarations
 struct whisper_vocab;
 struct whisper_filters;
-struct whisper_mel;
-const char* whisper_token_to_str(int token);
+struct whisper_fft_plan;
+const char* whisper_token_to_str(const whisper_vocab& vocab, int token);
+int whisper_lang_id(const char* code);
 bool log_mel_spectrogram(const float* samples, const int n_samples, const int sample_rate,
-                        const int fft_size, const int fft_step, const int n_mel,
-                        const int n_threads, const whisper_filters& filters, whisper_mel& mel);
+                        const whisper_fft_plan& plan, const int fft_step, const int n_mel, const int n_len,
+                        const int n_threads, const whisper_filters& filters, float* mel,
+                        bool (*is_cancelled)(void*) = nullptr, void* cancel_data = nullptr);
 
 // whisper_vocab structure
 struct whisper_vocab {
 
-    std::map<int, std::string> id_to_token;
+    // Token texts back to back, each ending with '\0'; token i starts at token_offsets[i]
+    std::vector<char> token_text;
+    std::vector<uint32_t> token_offsets;
 
     int n_vocab_additional = 51864; 
 
@@ -41,12 +52,24 @@ struct whisper_vocab {
     int token_not = 50362; // no timestamps
     int token_beg = 50363;
 
-    static const int token_translwordate = 50358;
+    static const int token_translate = 50358;
     static const int token_transcribe = 50359;
 
+    // Append the text of the next token id
+    void add_token(const char* word, size_t len) {
+        token_offsets.push_back(token_text.size());
+        token_text.insert(token_text.end(), word, word + len);
+        token_text.push_back('\0');
+    }
+
+    int n_tokens() const {
+        return token_offsets.size();
+    }
+
     // Reset the whisper_vocab structure
     void reset() {
-        id_to_token.clear();
+        token_text.clear();
+        token_offsets.clear();
         n_vocab_additional = 51864;
         token_eot = 50256;
         token_sot = 50257;
@@ -57,23 +80,16 @@ struct whisper_vocab {
     }
 };
 
-// Global whisper_vocab instance
-whisper_vocab g_vocab;
-
-// whisper_tflite structure
-struct whisper_tflite {
+// whisper_model structure: the model, read only once loaded and shared by every engine that
+// loads the same model. Models built from a path map the file themselves and have no buffer.
+struct whisper_model {
     char* buffer = nullptr;
     long size = 0;
+    void* mapped = nullptr;    // set when buffer points into an mmap'ed region
+    size_t mapped_size = 0;
     std::unique_ptr<tflite::FlatBufferModel> model;
-    tflite::ops::builtin::BuiltinOpResolver resolver;
-    std::unique_ptr<tflite::Interpreter> interpreter;
-    float* input;
-
-    bool is_whisper_tflite_initialized = false;
 };
 
-whisper_tflite g_whisper_tflite;
-
 // whisper_filters structure
 struct whisper_filters {
     int n_mel;
@@ -82,17 +98,146 @@ struct whisper_filters {
     std::vector<float> data;
 };
 
-whisper_filters filters;
+// Twiddle factors and Hann window of one FFT size, computed once instead of for every frame
+struct whisper_fft_plan {
+    int n = 0;
+    std::vector<float> cos_table;  // cos(2 pi k / n)
+    std::vector<float> sin_table;  // sin(2 pi k / n)
+    std::vector<float> hann;
 
-// whisper_mel structure
-struct whisper_mel {
-    int n_len;
-    int n_mel;
+    void init(int size) {
+        n = size;
+        cos_table.resize(size);
+        sin_table.resize(size);
+        hann.resize(size);
+        for (int i = 0; i < size; i++) {
+            double angle = (2.0 * M_PI * i) / size;
+            cos_table[i] = cos(angle);
+            sin_table[i] = sin(angle);
+            hann[i] = 0.5 * (1.0 - cos(angle));
+        }
+    }
+};
 
-    std::vector<float> data;
+// Mel filters, FFT plan and vocab of one model kind, read only and shared like the model
+struct whisper_vocab_data {
+    whisper_filters filters;
+    whisper_fft_plan fft_plan;
+    whisper_vocab vocab;
 };
 
-whisper_mel mel;
+// Persistent workers for the mel spectrogram, started once and shared by every engine. Callers
+// work on their own job too, so a job still finishes while the workers serve another engine.
+class whisper_thread_pool {
+public:
+    explicit whisper_thread_pool(int n_workers) {
+        for (int i = 0; i < n_workers; i++) {
+            workers.emplace_back([this]() { work(); });
+        }
+    }
+
+    ~whisper_thread_pool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stopping = true;
+        }
+        wake.notify_all();
+        for (std::thread& worker : workers) {
+            worker.join();
+        }
+    }
+
+    int size() const {
+        return static_cast<int>(workers.size()) + 1;
+    }
+
+    // Run fn(0) .. fn(n_tasks - 1) on the workers and the calling thread, returns once all are done
+    void parallel_for(int n_tasks, const std::function<void(int)>& fn) {
+        std::shared_ptr<job> shared = std::make_shared<job>();
+        shared->fn = &fn;
+        shared->n_tasks = n_tasks;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            for (int i = 1; i < n_tasks; i++) {
+                queue.push_back(shared);
+            }
+        }
+        wake.notify_all();
+
+        run(*shared);
+        std::unique_lock<std::mutex> lock(shared->mutex);
+        shared->finished.wait(lock, [&]() { return shared->done == n_tasks; });
+    }
+
+private:
+    struct job {
+        const std::function<void(int)>* fn = nullptr;  // valid while tasks are left to claim
+        int n_tasks = 0;
+        std::atomic<int> next{0};
+        int done = 0;
+        std::mutex mutex;
+        std::condition_variable finished;
+    };
+
+    static void run(job& j) {
+        for (int i = j.next++; i < j.n_tasks; i = j.next++) {
+            (*j.fn)(i);
+            std::lock_guard<std::mutex> lock(j.mutex);
+            if (++j.done == j.n_tasks) {
+                j.finished.notify_all();
+            }
+        }
+    }
+
+    void work() {
+        while (true) {
+            std::shared_ptr<job> next;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                wake.wait(lock, [this]() { return stopping || !queue.empty(); });
+                if (queue.empty()) {
+                    return;
+                }
+                next = std::move(queue.front());
+                queue.pop_front();
+            }
+            run(*next);
+        }
+    }
+
+    std::vector<std::thread> workers;
+    std::deque<std::shared_ptr<job>> queue;
+    std::mutex mutex;
+    std::condition_variable wake;
+    bool stopping = false;
+};
+
+// The mel workers, one per core next to the calling thread
+whisper_thread_pool& whisper_mel_pool() {
+    static whisper_thread_pool pool(std::max(1u, std::thread::hardware_concurrency()) - 1);
+    return pool;
+}
+
+// whisper_tflite structure: the interpreter of one engine over the shared model
+struct whisper_tflite {
+    std::shared_ptr<const whisper_model> model;
+    std::shared_ptr<const whisper_vocab_data> vocab;
+    std::unique_ptr<tflite::Interpreter> interpreter;
+    float* input = nullptr;
+
+    // Set for models with encode and decode signatures, owned by the interpreter
+    tflite::SignatureRunner* encoder = nullptr;
+    tflite::SignatureRunner* decoder = nullptr;
+    // Set for models that also have decode_step, with the encoder output of the last
+    // encodeChunk(). It is copied into the step input again whenever a resize moves that.
+    tflite::SignatureRunner* decoder_step = nullptr;
+    std::vector<float> hidden_states;
+
+    // Threads of the interpreter and its default XNNPACK delegate, fixed when it is built
+    int num_threads = 1;
+
+    bool is_whisper_tflite_initialized = false;
+};
 
 // Print a vector of float values
 void print(const std::vector<float>& a) {
@@ -102,70 +247,73 @@ void print(const std::vector<float>& a) {
         std::cout << a.at(i) << ' ';
 }
 
-// Convert a token to a string
-const char* whisper_token_to_str(int token) {
-    return g_vocab.id_to_token.at(token).c_str();
+// Convert a token to a string, empty for ids outside the vocab
+const char* whisper_token_to_str(const whisper_vocab& vocab, int token) {
+    if (token < 0 || token >= vocab.n_tokens()) {
+        return "";
+    }
+    return vocab.token_text.data() + vocab.token_offsets[token];
 }
 
-// Naive Discrete Fourier Transform
-void dft(const std::vector<float>& in, std::vector<float>& out) {
-    int N = in.size();
-    out.resize(N * 2);
-
-    for (int k = 0; k < N; k++) {
-        float re = 0;
-        float im = 0;
+// Language codes of multilingual models, the language tokens follow token_sot in this order
+static const char* const WHISPER_LANGUAGES[] = {
+    "en", "zh", "de", "es", "ru", "ko", "fr", "ja", "pt", "tr", "pl", "ca", "nl", "ar", "sv", "it",
+    "id", "hi", "fi", "vi", "he", "uk", "el", "ms", "cs", "ro", "da", "hu", "ta", "no", "th", "ur",
+    "hr", "bg", "lt", "la", "mi", "ml", "cy", "sk", "te", "fa", "lv", "bn", "sr", "az", "sl", "kn",
+    "et", "mk", "br", "eu", "is", "hy", "ne", "mn", "bs", "kk", "sq", "sw", "gl", "mr", "pa", "si",
+    "km", "sn", "yo", "so", "af", "oc", "ka", "be", "tg", "sd", "gu", "am", "yi", "lo", "uz", "fo",
+    "ht", "ps", "tk", "nn", "mt", "sa", "lb", "my", "bo", "tl", "mg", "as", "tt", "haw", "ln", "ha",
+    "ba", "jw", "su",
+};
 
-        for (int n = 0; n < N; n++) {
-            float angle = 2 * M_PI * k * n / N;
-            re += in[n] * cos(angle);
-            im -= in[n] * sin(angle);
+// Index of the language code in WHISPER_LANGUAGES, -1 if unknown
+int whisper_lang_id(const char* code) {
+    for (size_t i = 0; i < sizeof(WHISPER_LANGUAGES) / sizeof(WHISPER_LANGUAGES[0]); i++) {
+        if (strcmp(WHISPER_LANGUAGES[i], code) == 0) {
+            return i;
         }
-
-        out[k * 2 + 0] = re;
-        out[k * 2 + 1] = im;
     }
+    return -1;
 }
 
-// Cooley-Tukey FFT
-void fft(const std::vector<float>& in, std::vector<float>& out) {
-    out.resize(in.size() * 2);
-
-    int N = in.size();
-
-    if (N == 1) {
+// Cooley-Tukey FFT of the n values at in[0], in[stride], ... into n complex values at out,
+// using 2 * n floats of scratch. Odd sizes fall back to a DFT over the plan's twiddle factors.
+void fft(const whisper_fft_plan& plan, const float* in, int n, int stride, float* out, float* scratch) {
+    if (n == 1) {
         out[0] = in[0];
         out[1] = 0;
         return;
     }
 
-    if (N % 2 == 1) {
-        dft(in, out);
-        return;
-    }
+    const int step = plan.n / n;
 
-    std::vector<float> even;
-    std::vector<float> odd;
+    if (n % 2 == 1) {
+        for (int k = 0; k < n; k++) {
+            float re = 0;
+            float im = 0;
+
+            for (int j = 0; j < n; j++) {
+                const int index = (k * j % n) * step;
+                re += in[j * stride] * plan.cos_table[index];
+                im -= in[j * stride] * plan.sin_table[index];
+            }
 
-    for (int i = 0; i < N; i++) {
-        if (i % 2 == 0) {
-            even.push_back(in[i]);
-        } else {
-            odd.push_back(in[i]);
+            out[k * 2 + 0] = re;
+            out[k * 2 + 1] = im;
         }
+        return;
     }
 
-    std::vector<float> even_fft;
-    std::vector<float> odd_fft;
-
-    fft(even, even_fft);
-    fft(odd, odd_fft);
-
-    for (int k = 0; k < N / 2; k++) {
-        float theta = 2 * M_PI * k / N;
+    // Even and odd halves into the scratch, each using its part of out as scratch in turn
+    const int half = n / 2;
+    fft(plan, in, half, stride * 2, scratch, out);
+    fft(plan, in + stride, half, stride * 2, scratch + n, out + n);
 
-        float re = cos(theta);
-        float im = -sin(theta);
+    const float* even_fft = scratch;
+    const float* odd_fft = scratch + n;
+    for (int k = 0; k < half; k++) {
+        float re = plan.cos_table[k * step];
+        float im = -plan.sin_table[k * step];
 
         float re_odd = odd_fft[2 * k + 0];
         float im_odd = odd_fft[2 * k + 1];
@@ -173,107 +321,94 @@ void fft(const std::vector<float>& in, std::vector<float>& out) {
         out[2 * k + 0] = even_fft[2 * k + 0] + re * re_odd - im * im_odd;
         out[2 * k + 1] = even_fft[2 * k + 1] + re * im_odd + im * re_odd;
 
-        out[2 * (k + N / 2) + 0] = even_fft[2 * k + 0] - re * re_odd + im * im_odd;
-        out[2 * (k + N / 2) + 1] = even_fft[2 * k + 1] - re * im_odd - im * re_odd;
+        out[2 * (k + half) + 0] = even_fft[2 * k + 0] - re * re_odd + im * im_odd;
+        out[2 * (k + half) + 1] = even_fft[2 * k + 1] - re * im_odd - im * re_odd;
     }
 }
 
-// Log mel spectrogram computation
+// Log mel spectrogram computation into n_mel x n_len values at mel, e.g. straight into the input
+// tensor. Frames past n_samples see zeros, so a short chunk needs no padded copy.
+// Returns false if is_cancelled reports true meanwhile.
+// Frames are split in n_threads interleaved slices run on the mel workers.
 bool log_mel_spectrogram(const float* samples, const int n_samples, const int sample_rate,
-                        const int fft_size, const int fft_step, const int n_mel,
-                        const int n_threads, const whisper_filters& filters, whisper_mel& mel) {
-    std::vector<float> hann;
-    hann.resize(fft_size);
-
-    for (int i = 0; i < fft_size; i++) {
-        hann[i] = 0.5 * (1.0 - cos((2.0 * M_PI * i) / fft_size));
-    }
+                        const whisper_fft_plan& plan, const int fft_step, const int n_mel, const int n_len,
+                        const int n_threads, const whisper_filters& filters, float* mel,
+                        bool (*is_cancelled)(void*), void* cancel_data) {
+    const int fft_size = plan.n;
+    const std::vector<float>& hann = plan.hann;
+    const int n_fft = 1 + fft_size / 2;
 
-    mel.n_mel = n_mel;
-    mel.n_len = (n_samples) / fft_step;
-    mel.data.resize(mel.n_mel * mel.n_len);
+    whisper_mel_pool().parallel_for(n_threads, [&](int ith) {
+        std::vector<float> fft_in(fft_size, 0.0f);
+        std::vector<float> fft_out(2 * fft_size);
+        std::vector<float> fft_scratch(2 * fft_size);
 
-    // std::cout << "n_mel: " << mel.n_mel << std::endl;
-    // std::cout << "n_len: " << mel.n_len << std::endl;
+        for (int i = ith; i < n_len; i += n_threads) {
+            if (is_cancelled && is_cancelled(cancel_data)) {
+                break;
+            }
 
-    const int n_fft = 1 + fft_size / 2;
+            const int offset = i * fft_step;
 
-    std::vector<std::thread> workers(n_threads);
-    for (int iw = 0; iw < n_threads; ++iw) {
-        workers[iw] = std::thread([&](int ith) {
-            std::vector<float> fft_in;
-            fft_in.resize(fft_size);
-            for (int i = 0; i < fft_size; i++) {
-                fft_in[i] = 0.0;
+            // apply Hanning window
+            for (int j = 0; j < fft_size; j++) {
+                if (offset + j < n_samples) {
+                    fft_in[j] = hann[j] * samples[offset + j];
+                } else {
+                    fft_in[j] = 0.0;
+                }
             }
 
-            std::vector<float> fft_out;
-            fft_out.resize(2 * fft_size);
+            // FFT -> mag^2
+            fft(plan, fft_in.data(), fft_size, 1, fft_out.data(), fft_scratch.data());
 
-            for (int i = ith; i < mel.n_len; i += n_threads) {
-                const int offset = i * fft_step;
+            for (int j = 0; j < fft_size; j++) {
+                fft_out[j] = (fft_out[2 * j + 0] * fft_out[2 * j + 0] + fft_out[2 * j + 1] * fft_out[2 * j + 1]);
+            }
 
-                // apply Hanning window
-                for (int j = 0; j < fft_size; j++) {
-                    if (offset + j < n_samples) {
-                        fft_in[j] = hann[j] * samples[offset + j];
-                    } else {
-                        fft_in[j] = 0.0;
-                    }
-                }
+            for (int j = 1; j < fft_size / 2; j++) {
+                fft_out[j] += fft_out[fft_size - j];
+            }
 
-                // FFT -> mag^2
-                fft(fft_in, fft_out);
+            // mel spectrogram
+            for (int j = 0; j < n_mel; j++) {
+                double sum = 0.0;
 
-                for (int j = 0; j < fft_size; j++) {
-                    fft_out[j] = (fft_out[2 * j + 0] * fft_out[2 * j + 0] + fft_out[2 * j + 1] * fft_out[2 * j + 1]);
+                for (int k = 0; k < n_fft; k++) {
+                    sum += fft_out[k] * filters.data[j * n_fft + k];
                 }
 
-                for (int j = 1; j < fft_size / 2; j++) {
-                    fft_out[j] += fft_out[fft_size - j];
+                if (sum < 1e-10) {
+                    sum = 1e-10;
                 }
 
-                // mel spectrogram
-                for (int j = 0; j < mel.n_mel; j++) {
-                    double sum = 0.0;
-
-                    for (int k = 0; k < n_fft; k++) {
-                        sum += fft_out[k] * filters.data[j * n_fft + k];
-                    }
-
-                    if (sum < 1e-10) {
-                        sum = 1e-10;
-                    }
+                sum = log10(sum);
 
-                    sum = log10(sum);
-
-                    mel.data[j * mel.n_len + i] = sum;
-                }
+                mel[j * n_len + i] = sum;
             }
-        }, iw);
-    }
+        }
+    });
 
-    // Wait for all threads to finish
-    for (int iw = 0; iw < n_threads; ++iw) {
-        workers[iw].join();
+    if (is_cancelled && is_cancelled(cancel_data)) {
+        return false;
     }
 
     // clamping and normalization
     double mmax = -1e20;
-    for (int i = 0; i < mel.n_mel * mel.n_len; i++) {
-        if (mel.data[i] > mmax) {
-            mmax = mel.data[i];
+    for (int i = 0; i < n_mel * n_len; i++) {
+        if (mel[i] > mmax) {
+            mmax = mel[i];
         }
     }
 
     mmax -= 8.0;
 
-    for (int i = 0; i < mel.n_mel * mel.n_len; i++) {
-        if (mel.data[i] < mmax) {
-            mel.data[i] = mmax;
+    for (int i = 0; i < n_mel * n_len; i++) {
+        if (mel[i] < mmax) {
+            mel[i] = mmax;
         }
 
-        mel.data[i] = (mel.data[i] + 4.0) / 4.0;
+        mel[i] = (mel[i] + 4.0) / 4.0;
     }
 
     return true;
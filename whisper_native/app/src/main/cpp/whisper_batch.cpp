@@ -0,0 +1,567 @@
+// Batch transcription from the command line.
+//
+// Every 16 kHz mono WAV file of the given directories and file lists is transcribed in 30 second
+// chunks by a pool of worker threads. Results are written as they complete: one JSON line per file
+// to results.jsonl and optionally one SRT file per input. Each finished chunk is appended to
+// progress.jsonl, so running the same command again after a crash or Ctrl-C skips finished files
+// and continues partly done ones at their next chunk. A file whose size or modification time
+// changed since is transcribed again.
+//
+//   whisper_batch -m whisper-tiny-en.tflite -j 4 -o transcripts --srt recordings/ @more.txt
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <csignal>
+#include <cstdio>
+#include <filesystem>
+#include <iostream>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <set>
+#include <sstream>
+#include <string>
+#include <thread>
+#include <vector>
+#include <sys/stat.h>
+#include <unistd.h>
+#include "TFLiteEngine.h"
+#include "wav_util.h"
+
+namespace fs = std::filesystem;
+
+static constexpr int SAMPLE_RATE = 16000;
+static constexpr int64_t CHUNK_MS = TFLiteEngine::CHUNK_SAMPLES * 1000LL / SAMPLE_RATE;
+
+static std::atomic<bool> g_stop{false};
+static int g_engine_threads = 1;  // interpreter threads of each engine, the cores split between them
+
+struct InputFile {
+    std::string path;
+    int64_t size = 0;
+    int64_t mtime = 0;
+    std::string srtName;
+};
+
+// Chunk texts already transcribed in an earlier run, in chunk order
+struct FileProgress {
+    int64_t size = 0;
+    int64_t mtime = 0;
+    std::vector<std::string> chunks;
+};
+
+static void usage() {
+    std::cerr << "usage: whisper_batch -m MODEL [options] INPUT...\n"
+                 "  INPUT            WAV file, directory (searched recursively) or @LIST with one path per line\n"
+                 "  -m MODEL         TFLite model file\n"
+                 "  --multilingual   the model is multilingual\n"
+                 "  -j N             files transcribed in parallel, default 1\n"
+                 "  -o DIR           output directory, default transcripts\n"
+                 "  --srt            also write DIR/srt/<name>.srt for every input\n"
+                 "  --restart        discard the progress of earlier runs\n";
+}
+
+/////////////// JSON lines ///////////////
+
+static std::string jsonString(const std::string &value) {
+    std::string out = "\"";
+    for (unsigned char c : value) {
+        switch (c) {
+            case '"': out += "\\\""; break;
+            case '\\': out += "\\\\"; break;
+            case '\n': out += "\\n"; break;
+            case '\r': out += "\\r"; break;
+            case '\t': out += "\\t"; break;
+            default:
+                if (c < 0x20) {
+                    char escape[8];
+                    snprintf(escape, sizeof(escape), "\\u%04x", c);
+                    out += escape;
+                } else {
+                    out += static_cast<char>(c);
+                }
+        }
+    }
+    return out + "\"";
+}
+
+static bool parseJsonString(const std::string &line, size_t &pos, std::string &out) {
+    if (pos >= line.size() || line[pos] != '"')
+        return false;
+    out.clear();
+    for (pos++; pos < line.size(); pos++) {
+        char c = line[pos];
+        if (c == '"') {
+            pos++;
+            return true;
+        }
+        if (c != '\\') {
+            out += c;
+            continue;
+        }
+        if (++pos >= line.size())
+            return false;
+        switch (line[pos]) {
+            case 'n': out += '\n'; break;
+            case 'r': out += '\r'; break;
+            case 't': out += '\t'; break;
+            case 'b': out += '\b'; break;
+            case 'f': out += '\f'; break;
+            case 'u': {
+                if (pos + 4 >= line.size())
+                    return false;
+                unsigned code = std::stoul(line.substr(pos + 1, 4), nullptr, 16);
+                pos += 4;
+                if (code < 0x80) {
+                    out += static_cast<char>(code);
+                } else if (code < 0x800) {
+                    out += static_cast<char>(0xC0 | (code >> 6));
+                    out += static_cast<char>(0x80 | (code & 0x3F));
+                } else {
+                    out += static_cast<char>(0xE0 | (code >> 12));
+                    out += static_cast<char>(0x80 | ((code >> 6) & 0x3F));
+                    out += static_cast<char>(0x80 | (code & 0x3F));
+                }
+                break;
+            }
+            default: out += line[pos]; break;
+        }
+    }
+    return false;
+}
+
+// Top level fields of one JSON object line: strings unescaped, anything else as raw text
+static bool parseJsonFields(const std::string &line, std::map<std::string, std::string> &fields) {
+    size_t pos = line.find('{');
+    if (pos == std::string::npos)
+        return false;
+    pos++;
+    while (pos < line.size()) {
+        while (pos < line.size() && (line[pos] == ' ' || line[pos] == ','))
+            pos++;
+        if (pos < line.size() && line[pos] == '}')
+            return true;
+        std::string key, value;
+        if (!parseJsonString(line, pos, key) || pos >= line.size() || line[pos] != ':')
+            return false;
+        pos++;
+        if (pos < line.size() && line[pos] == '"') {
+            if (!parseJsonString(line, pos, value))
+                return false;
+        } else {
+            // Numbers, literals, arrays and objects up to the next top level separator
+            size_t start = pos;
+            int depth = 0;
+            for (; pos < line.size(); pos++) {
+                char c = line[pos];
+                if (c == '"') {
+                    std::string skipped;
+                    if (!parseJsonString(line, pos, skipped))
+                        return false;
+                    pos--;
+                } else if (c == '[' || c == '{') {
+                    depth++;
+                } else if ((c == ']' || c == '}') && depth > 0) {
+                    depth--;
+                } else if ((c == ',' || c == '}') && depth == 0) {
+                    break;
+                }
+            }
+            value = line.substr(start, pos - start);
+        }
+        fields[key] = value;
+    }
+    return false;
+}
+
+static int64_t toInt(const std::map<std::string, std::string> &fields, const char *key) {
+    auto it = fields.find(key);
+    return (it == fields.end()) ? -1 : std::atoll(it->second.c_str());
+}
+
+// Append only JSON lines file, every line is on disk before append() returns
+class JsonLines {
+public:
+    ~JsonLines() {
+        if (file != nullptr)
+            fclose(file);
+    }
+
+    // Read the existing lines, dropping a last line cut off by a crash
+    bool open(const std::string &path, std::vector<std::string> &lines) {
+        std::ifstream in(path, std::ios::binary);
+        std::string content((std::istreambuf_iterator<char>(in)), std::istreambuf_iterator<char>());
+        size_t complete = content.rfind('\n');
+        complete = (complete == std::string::npos) ? 0 : complete + 1;
+        if (complete < content.size() && truncate(path.c_str(), complete) != 0)
+            return false;
+        std::istringstream stream(content.substr(0, complete));
+        for (std::string line; std::getline(stream, line);) {
+            if (!line.empty())
+                lines.push_back(line);
+        }
+        file = fopen(path.c_str(), "a");
+        return file != nullptr;
+    }
+
+    void append(const std::string &line) {
+        std::lock_guard<std::mutex> lock(mutex);
+        fputs(line.c_str(), file);
+        fputc('\n', file);
+        fflush(file);
+        fsync(fileno(file));
+    }
+
+private:
+    FILE *file = nullptr;
+    std::mutex mutex;
+};
+
+/////////////// Inputs ///////////////
+
+static bool isWaveFile(const fs::path &path) {
+    std::string extension = path.extension().string();
+    std::transform(extension.begin(), extension.end(), extension.begin(), ::tolower);
+    return extension == ".wav";
+}
+
+static void addInput(const std::string &path, std::vector<std::string> &paths) {
+    std::error_code error;
+    if (fs::is_directory(path, error)) {
+        for (auto &entry : fs::recursive_directory_iterator(path, error)) {
+            if (entry.is_regular_file() && isWaveFile(entry.path()))
+                paths.push_back(entry.path().string());
+        }
+    } else {
+        paths.push_back(path);
+    }
+}
+
+static std::vector<InputFile> collectInputs(const std::vector<std::string> &args) {
+    std::vector<std::string> paths;
+    for (const std::string &arg : args) {
+        if (arg.size() > 1 && arg[0] == '@') {
+            std::ifstream list(arg.substr(1));
+            if (!list.is_open()) {
+                std::cerr << "Unable to open file list: " << arg.substr(1) << std::endl;
+                continue;
+            }
+            for (std::string line; std::getline(list, line);) {
+                if (!line.empty() && line.back() == '\r')
+                    line.pop_back();
+                if (!line.empty() && line[0] != '#')
+                    addInput(line, paths);
+            }
+        } else {
+            addInput(arg, paths);
+        }
+    }
+    std::sort(paths.begin(), paths.end());
+    paths.erase(std::unique(paths.begin(), paths.end()), paths.end());
+
+    // SRT names come from the file name, numbered when two inputs share one
+    std::vector<InputFile> inputs;
+    std::set<std::string> names;
+    for (const std::string &path : paths) {
+        struct stat info{};
+        if (stat(path.c_str(), &info) != 0) {
+            std::cerr << "Skipping missing file: " << path << std::endl;
+            continue;
+        }
+        InputFile input;
+        input.path = path;
+        input.size = info.st_size;
+        input.mtime = info.st_mtime;
+        std::string stem = fs::path(path).stem().string();
+        input.srtName = stem;
+        for (int n = 2; !names.insert(input.srtName).second; n++)
+            input.srtName = stem + "_" + std::to_string(n);
+        inputs.push_back(input);
+    }
+    return inputs;
+}
+
+/////////////// Output ///////////////
+
+static std::string trim(const std::string &text) {
+    size_t start = text.find_first_not_of(" \t\r\n");
+    size_t end = text.find_last_not_of(" \t\r\n");
+    return (start == std::string::npos) ? "" : text.substr(start, end - start + 1);
+}
+
+static std::string srtTime(int64_t ms) {
+    char time[32];
+    snprintf(time, sizeof(time), "%02lld:%02lld:%02lld,%03lld",
+             (long long) (ms / 3600000), (long long) (ms / 60000 % 60),
+             (long long) (ms / 1000 % 60), (long long) (ms % 1000));
+    return time;
+}
+
+// Written to a temporary file first, an interrupted run never leaves half an SRT behind
+static bool writeSrt(const std::string &path, const std::vector<std::string> &chunks, int64_t durationMs) {
+    std::string temp = path + ".tmp";
+    {
+        std::ofstream out(temp, std::ios::binary | std::ios::trunc);
+        int index = 1;
+        for (size_t i = 0; i < chunks.size(); i++) {
+            std::string text = trim(chunks[i]);
+            if (text.empty())
+                continue;
+            int64_t start = i * CHUNK_MS;
+            out << index++ << "\n" << srtTime(start) << " --> "
+                << srtTime(std::min(start + CHUNK_MS, durationMs)) << "\n" << text << "\n\n";
+        }
+        if (!out.good())
+            return false;
+    }
+    return rename(temp.c_str(), path.c_str()) == 0;
+}
+
+static std::string resultLine(const InputFile &input, const std::vector<std::string> &chunks, int64_t durationMs) {
+    std::string text, segments;
+    for (size_t i = 0; i < chunks.size(); i++) {
+        text += chunks[i];
+        int64_t start = i * CHUNK_MS;
+        if (i > 0)
+            segments += ",";
+        segments += "{\"startMs\":" + std::to_string(start)
+                    + ",\"endMs\":" + std::to_string(std::min(start + CHUNK_MS, durationMs))
+                    + ",\"text\":" + jsonString(trim(chunks[i])) + "}";
+    }
+    return "{\"file\":" + jsonString(input.path)
+           + ",\"size\":" + std::to_string(input.size)
+           + ",\"mtime\":" + std::to_string(input.mtime)
+           + ",\"durationMs\":" + std::to_string(durationMs)
+           + ",\"text\":" + jsonString(trim(text))
+           + ",\"segments\":[" + segments + "]}";
+}
+
+static std::string progressLine(const InputFile &input, size_t chunk, const std::string &text) {
+    return "{\"file\":" + jsonString(input.path)
+           + ",\"size\":" + std::to_string(input.size)
+           + ",\"mtime\":" + std::to_string(input.mtime)
+           + ",\"chunk\":" + std::to_string(chunk)
+           + ",\"text\":" + jsonString(text) + "}";
+}
+
+/////////////// Transcription ///////////////
+
+struct Batch {
+    std::vector<InputFile> inputs;
+    std::map<std::string, FileProgress> progress;
+    JsonLines results;
+    JsonLines progressLog;
+    std::string srtDir;
+    std::atomic<size_t> next{0};
+    std::atomic<int> done{0};
+    std::atomic<int> failed{0};
+};
+
+// Returns false if the file could not be transcribed or the run was interrupted
+static bool transcribeInput(TFLiteEngine &engine, std::mutex &engineMutex, Batch &batch, const InputFile &input) {
+    WAVHeader header{};
+    if (!readWAVHeader(input.path.c_str(), header)) {
+        std::cerr << "Not a valid WAV file: " << input.path << std::endl;
+        return false;
+    }
+    bool pcm16 = header.audio_format == 1 && header.bits_per_sample == 16;
+    bool float32 = header.audio_format == 3 && header.bits_per_sample == 32;
+    if (header.sample_rate != SAMPLE_RATE || header.num_channels != 1 || (!pcm16 && !float32)) {
+        std::cerr << "Skipping " << input.path << ": only 16 kHz mono 16 bit PCM or float WAV is supported" << std::endl;
+        return false;
+    }
+
+    std::vector<float> samples = readWAVFile(input.path.c_str());
+    size_t totalChunks = (samples.size() + TFLiteEngine::CHUNK_SAMPLES - 1) / TFLiteEngine::CHUNK_SAMPLES;
+    int64_t durationMs = samples.size() * 1000LL / SAMPLE_RATE;
+
+    std::vector<std::string> chunks;
+    auto earlier = batch.progress.find(input.path);
+    if (earlier != batch.progress.end() && earlier->second.chunks.size() <= totalChunks)
+        chunks = earlier->second.chunks;
+    if (!chunks.empty())
+        std::cerr << "Resuming " << input.path << " at chunk " << chunks.size() + 1 << "/" << totalChunks << std::endl;
+
+    auto start = std::chrono::steady_clock::now();
+    for (size_t i = chunks.size(); i < totalChunks; i++) {
+        if (g_stop)
+            return false;
+        size_t begin = i * TFLiteEngine::CHUNK_SAMPLES;
+        size_t length = std::min<size_t>(TFLiteEngine::CHUNK_SAMPLES, samples.size() - begin);
+
+        std::string text;
+        {
+            std::lock_guard<std::mutex> lock(engineMutex);
+            text = engine.transcribeSamples(samples.data() + begin, length);
+            if (engine.isCancelled())
+                return false;
+        }
+        batch.progressLog.append(progressLine(input, i, text));
+        chunks.push_back(text);
+    }
+
+    if (!batch.srtDir.empty() &&
+        !writeSrt(batch.srtDir + "/" + input.srtName + ".srt", chunks, durationMs))
+        std::cerr << "Unable to write SRT for " << input.path << std::endl;
+    batch.results.append(resultLine(input, chunks, durationMs));
+
+    double seconds = std::chrono::duration<double>(std::chrono::steady_clock::now() - start).count();
+    fprintf(stderr, "[%d/%zu] %s: %.1f s of audio in %.1f s\n", ++batch.done, batch.inputs.size(),
+            input.path.c_str(), durationMs / 1000.0, seconds);
+    return true;
+}
+
+static void workLoop(TFLiteEngine &engine, std::mutex &engineMutex, Batch &batch) {
+    while (!g_stop) {
+        size_t index = batch.next++;
+        if (index >= batch.inputs.size())
+            return;
+        if (!transcribeInput(engine, engineMutex, batch, batch.inputs[index]) && !g_stop)
+            batch.failed++;
+    }
+}
+
+static void onSignal(int) {
+    g_stop = true;
+}
+
+int main(int argc, char **argv) {
+    std::string modelPath, outDir = "transcripts";
+    bool isMultilingual = false, srt = false, restart = false;
+    int jobs = 1;
+    std::vector<std::string> args;
+    for (int i = 1; i < argc; i++) {
+        std::string arg = argv[i];
+        if (arg == "-m" && i + 1 < argc) {
+            modelPath = argv[++i];
+        } else if (arg == "-j" && i + 1 < argc) {
+            jobs = std::max(1, std::atoi(argv[++i]));
+        } else if (arg == "-o" && i + 1 < argc) {
+            outDir = argv[++i];
+        } else if (arg == "--multilingual") {
+            isMultilingual = true;
+        } else if (arg == "--srt") {
+            srt = true;
+        } else if (arg == "--restart") {
+            restart = true;
+        } else if (arg == "-h" || arg == "--help" || arg[0] == '-') {
+            usage();
+            return 1;
+        } else {
+            args.push_back(arg);
+        }
+    }
+    if (modelPath.empty() || args.empty()) {
+        usage();
+        return 1;
+    }
+
+    Batch batch;
+    batch.inputs = collectInputs(args);
+    std::error_code error;
+    fs::create_directories(outDir, error);
+    if (srt) {
+        batch.srtDir = outDir + "/srt";
+        fs::create_directories(batch.srtDir, error);
+    }
+    std::string resultsPath = outDir + "/results.jsonl";
+    std::string progressPath = outDir + "/progress.jsonl";
+    if (restart) {
+        fs::remove(resultsPath, error);
+        fs::remove(progressPath, error);
+    }
+
+    // Files with a result for their current size and modification time are done, chunks of the
+    // others are carried over as long as they continue each other
+    std::vector<std::string> resultLines, progressLines;
+    if (!batch.results.open(resultsPath, resultLines) || !batch.progressLog.open(progressPath, progressLines)) {
+        std::cerr << "Unable to open the output files in " << outDir << std::endl;
+        return 1;
+    }
+    std::map<std::string, InputFile> byPath;
+    for (const InputFile &input : batch.inputs)
+        byPath[input.path] = input;
+    std::set<std::string> finished;
+    for (const std::string &line : resultLines) {
+        std::map<std::string, std::string> fields;
+        if (!parseJsonFields(line, fields))
+            continue;
+        auto input = byPath.find(fields["file"]);
+        if (input != byPath.end() && toInt(fields, "size") == input->second.size &&
+            toInt(fields, "mtime") == input->second.mtime)
+            finished.insert(input->first);
+    }
+    for (const std::string &line : progressLines) {
+        std::map<std::string, std::string> fields;
+        if (!parseJsonFields(line, fields))
+            continue;
+        auto input = byPath.find(fields["file"]);
+        if (input == byPath.end() || finished.count(input->first) > 0)
+            continue;
+        FileProgress &progress = batch.progress[input->first];
+        int64_t size = toInt(fields, "size"), mtime = toInt(fields, "mtime");
+        if (size != progress.size || mtime != progress.mtime) {
+            progress = FileProgress();
+            progress.size = size;
+            progress.mtime = mtime;
+        }
+        if (toInt(fields, "chunk") == (int64_t) progress.chunks.size())
+            progress.chunks.push_back(fields["text"]);
+    }
+    for (auto it = batch.progress.begin(); it != batch.progress.end();) {
+        const InputFile &input = byPath[it->first];
+        if (it->second.size != input.size || it->second.mtime != input.mtime)
+            it = batch.progress.erase(it);
+        else
+            ++it;
+    }
+    size_t total = batch.inputs.size();
+    batch.inputs.erase(std::remove_if(batch.inputs.begin(), batch.inputs.end(),
+                                      [&](const InputFile &input) { return finished.count(input.path) > 0; }),
+                       batch.inputs.end());
+    std::cerr << total << " files, " << total - batch.inputs.size() << " already done, "
+              << batch.inputs.size() << " to transcribe" << std::endl;
+    if (batch.inputs.empty())
+        return 0;
+
+    // One engine per worker when engines can run side by side. Otherwise the workers share one
+    // and take turns on inference, reading the next file while another one is transcribed.
+    jobs = std::min<int>(jobs, batch.inputs.size());
+    int engineCount = TFLiteEngine::supportsConcurrentInstances() ? jobs : 1;
+    if (engineCount < jobs)
+        std::cerr << "Engines cannot run side by side, " << jobs << " workers take turns on a single engine" << std::endl;
+    // Engines running side by side split the cores, instead of each interpreter taking all of them
+    g_engine_threads = std::max(1, (int) std::thread::hardware_concurrency() / engineCount);
+    TFLiteEngine::CpuBudget budget;
+    budget.interpreterThreads = []() { return g_engine_threads; };
+    TFLiteEngine::setCpuBudget(budget);
+    std::vector<std::unique_ptr<TFLiteEngine>> engines;
+    std::vector<std::unique_ptr<std::mutex>> engineMutexes;
+    for (int i = 0; i < engineCount; i++) {
+        engines.push_back(std::make_unique<TFLiteEngine>());
+        engineMutexes.push_back(std::make_unique<std::mutex>());
+        if (engines.back()->loadModel(modelPath.c_str(), isMultilingual) != 0) {
+            std::cerr << "Error loading the TFLite model or vocabulary." << std::endl;
+            return 1;
+        }
+    }
+
+    std::signal(SIGINT, onSignal);
+    std::signal(SIGTERM, onSignal);
+    std::vector<std::thread> workers;
+    for (int i = 0; i < jobs; i++)
+        workers.emplace_back(workLoop, std::ref(*engines[i % engineCount]),
+                             std::ref(*engineMutexes[i % engineCount]), std::ref(batch));
+    for (std::thread &worker : workers)
+        worker.join();
+    for (auto &engine : engines)
+        engine->freeModel();
+
+    if (g_stop) {
+        std::cerr << "Interrupted, run the same command again to resume" << std::endl;
+        return 130;
+    }
+    std::cerr << batch.done << " files transcribed, " << batch.failed << " failed" << std::endl;
+    return batch.failed > 0 ? 2 : 0;
+}
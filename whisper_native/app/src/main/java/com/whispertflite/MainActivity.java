@@ -5,7 +5,6 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -23,16 +22,19 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.whispertflite.asr.FileReplaySource;
+import com.whispertflite.asr.ModelRouter;
 import com.whispertflite.asr.Player;
+import com.whispertflite.cache.MelFeatureStore;
+import com.whispertflite.cache.TranscriptCache;
+import com.whispertflite.engine.EngineFactory;
+import com.whispertflite.utils.AssetUtil;
 import com.whispertflite.utils.WaveUtil;
 import com.whispertflite.asr.Recorder;
 import com.whispertflite.asr.Whisper;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 
 public class MainActivity extends AppCompatActivity {
@@ -44,7 +46,21 @@ public class MainActivity extends AppCompatActivity {
     private static final String ENGLISH_ONLY_MODEL_EXTENSION = ".en.tflite";
     private static final String ENGLISH_ONLY_VOCAB_FILE = "filters_vocab_en.bin";
     private static final String MULTILINGUAL_VOCAB_FILE = "filters_vocab_multilingual.bin";
-    private static final String[] EXTENSIONS_TO_COPY = {"tflite", "bin", "wav", "pcm"};
+    // Models are mapped straight from the APK (noCompress), only the remaining assets are copied
+    private static final String[] EXTENSIONS_TO_COPY = {"bin", "wav", "pcm"};
+    private static final String TRANSCRIPT_CACHE_FOLDER = "transcripts";
+    private static final long TRANSCRIPT_CACHE_SIZE = 16 * 1024 * 1024;
+    // Keep transcripts of files already seen, and their log-mel features for other models
+    private static final boolean TRANSCRIPT_CACHE = false;
+    private static final boolean FEATURE_STORE = false;
+    private static final String FEATURE_STORE_FOLDER = "features";
+    private static final long FEATURE_STORE_SIZE = 256 * 1024 * 1024;
+    // Half precision features, half the disk space for slightly different transcripts
+    private static final boolean FEATURE_STORE_FP16 = false;
+    // Transcribe the channels of stereo recordings (e.g. calls) separately instead of downmixing
+    private static final boolean SPLIT_CHANNELS = false;
+    // Skip the pauses of file recordings, packing their speech into as few 30 seconds windows as possible
+    private static final boolean SPEECH_PACKING = false;
 
     private TextView tvStatus;
     private TextView tvResult;
@@ -56,6 +72,7 @@ public class MainActivity extends AppCompatActivity {
     private Player mPlayer = null;
     private Recorder mRecorder = null;
     private Whisper mWhisper = null;
+    private ModelRouter mModelRouter = null;
 
     private File sdcardDataFolder = null;
     private File selectedWaveFile = null;
@@ -63,6 +80,26 @@ public class MainActivity extends AppCompatActivity {
 
     private long startTime = 0;
     private final boolean loopTesting = false;
+    // Feed the selected wave file to the live transcription as if it was spoken, to measure latency
+    private final boolean replayTesting = false;
+    private static final float REPLAY_SPEED = 1.0f;
+    // Live transcription over a rolling window instead of independent 3 seconds buffers
+    private final boolean liveSession = true;
+    private static final float LIVE_WINDOW_SECONDS = 15.0f;
+    private static final float LIVE_HOP_SECONDS = 1.0f;
+    // Route each request to one of these models by its latency target instead of the selected
+    // model, smallest first, with a first guess of one 30 seconds chunk inference on this device
+    private final boolean modelRouting = false;
+    private static final String[] ROUTED_MODELS = {"whisper-tiny.tflite", "whisper-base.tflite"};
+    private static final long[] ROUTED_MODEL_CHUNK_MS = {1000, 3000};
+    private static final long LIVE_LATENCY_TARGET_MS = 1500;
+    private static final long FILE_LATENCY_TARGET_MS = 20000;
+    // Transcribe files with the selected model and re-run the chunks that look wrong on this one
+    private final boolean cascadeDecoding = false;
+    private static final String CASCADE_MODEL = "whisper-base.tflite";
+    // Decode files speculatively with this draft model, both exported by generate_model.py
+    private final boolean speculativeDecoding = false;
+    private static final String DRAFT_MODEL = "whisper-tiny-tasks.tflite";
     private final SharedResource transcriptionSync = new SharedResource();
     private final Handler handler = new Handler(Looper.getMainLooper());
 
@@ -71,53 +108,17 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Call the method to copy specific file types from assets to data folder
+        // Copy specific file types from assets to data folder off the UI thread,
+        // the file spinners are populated once the copy is done
         sdcardDataFolder = this.getExternalFilesDir(null);
-        copyAssetsToSdcard(this, sdcardDataFolder, EXTENSIONS_TO_COPY);
-
-        ArrayList<File> tfliteFiles = getFilesWithExtension(sdcardDataFolder, ".tflite");
-        ArrayList<File> waveFiles = getFilesWithExtension(sdcardDataFolder, ".wav");
+        new Thread(() -> {
+            AssetUtil.copyAssets(this, sdcardDataFolder, EXTENSIONS_TO_COPY);
+            handler.post(this::initFileSpinners);
+        }).start();
 
         // Initialize default model to use
         selectedTfliteFile = new File(sdcardDataFolder, DEFAULT_MODEL_TO_USE);
 
-        Spinner spinnerTflite = findViewById(R.id.spnrTfliteFiles);
-        spinnerTflite.setAdapter(getFileArrayAdapter(tfliteFiles));
-        spinnerTflite.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
-            @Override
-            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                deinitModel();
-                selectedTfliteFile = (File) parent.getItemAtPosition(position);
-            }
-
-            @Override
-            public void onNothingSelected(AdapterView<?> parent) {
-                // Handle case when nothing is selected, if needed
-            }
-        });
-
-        Spinner spinnerWave = findViewById(R.id.spnrWaveFiles);
-        spinnerWave.setAdapter(getFileArrayAdapter(waveFiles));
-        spinnerWave.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
-            @Override
-            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                // Cast item to File and get the file name
-                selectedWaveFile = (File) parent.getItemAtPosition(position);
-
-                // Check if the selected file is the recording file
-                if (selectedWaveFile.getName().equals(WaveUtil.RECORDING_FILE)) {
-                    btnRecord.setVisibility(View.VISIBLE);
-                } else {
-                    btnRecord.setVisibility(View.GONE);
-                }
-            }
-
-            @Override
-            public void onNothingSelected(AdapterView<?> parent) {
-                // Handle case when nothing is selected, if needed
-            }
-        });
-
         // Implementation of record button functionality
         btnRecord = findViewById(R.id.btnRecord);
         btnRecord.setOnClickListener(v -> {
@@ -141,8 +142,9 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        // Implementation of transcribe button functionality
+        // Implementation of transcribe button functionality, enabled once assets are in place
         btnTranscribe = findViewById(R.id.btnTranscb);
+        btnTranscribe.setEnabled(false);
         btnTranscribe.setOnClickListener(v -> {
             if (mRecorder != null && mRecorder.isInProgress()) {
                 Log.d(TAG, "Recording is in progress... stopping...");
@@ -202,6 +204,11 @@ public class MainActivity extends AppCompatActivity {
                     handler.post(() -> btnRecord.setText(R.string.stop));
                 } else if (message.equals(Recorder.MSG_RECORDING_DONE)) {
                     handler.post(() -> btnRecord.setText(R.string.record));
+                    if (replayTesting && mWhisper != null) {
+                        if (liveSession)
+                            mWhisper.endLiveSession();
+                        Log.d(TAG, "Live latency: " + mWhisper.getLiveLatencyStats());
+                    }
                 }
             }
 
@@ -209,6 +216,14 @@ public class MainActivity extends AppCompatActivity {
             public void onDataReceived(float[] samples) {
 //                mWhisper.writeBuffer(samples);
             }
+
+            @Override
+            public void onDataReceived(float[] samples, long captureTimeNanos) {
+                if (replayTesting && mWhisper != null)
+                    mWhisper.writeBuffer(samples, captureTimeNanos);
+                else
+                    onDataReceived(samples);
+            }
         });
 
         // Audio playback functionality
@@ -232,14 +247,73 @@ public class MainActivity extends AppCompatActivity {
 //        testParallelProcessing();
     }
 
+    @Override
+    protected void onDestroy() {
+        deinitModel();
+        super.onDestroy();
+    }
+
+    private void initFileSpinners() {
+        // Bundled models are listed by asset name, sideloaded ones from the data folder
+        ArrayList<File> tfliteFiles = getFilesWithExtension(sdcardDataFolder, ".tflite");
+        for (String assetName : AssetUtil.listAssets(this, ".tflite")) {
+            File modelFile = new File(sdcardDataFolder, assetName);
+            if (!tfliteFiles.contains(modelFile))
+                tfliteFiles.add(modelFile);
+        }
+        ArrayList<File> waveFiles = getFilesWithExtension(sdcardDataFolder, ".wav");
+
+        Spinner spinnerTflite = findViewById(R.id.spnrTfliteFiles);
+        spinnerTflite.setAdapter(getFileArrayAdapter(tfliteFiles));
+        spinnerTflite.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                File modelFile = (File) parent.getItemAtPosition(position);
+                if (modelFile.equals(selectedTfliteFile) && mWhisper != null)
+                    return;
+
+                // Warm up the new model in the background, running transcriptions finish on the old one
+                selectedTfliteFile = modelFile;
+                if (mWhisper != null) {
+                    Whisper whisper = mWhisper;
+                    new Thread(() -> loadModel(whisper, modelFile)).start();
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+                // Handle case when nothing is selected, if needed
+            }
+        });
+
+        Spinner spinnerWave = findViewById(R.id.spnrWaveFiles);
+        spinnerWave.setAdapter(getFileArrayAdapter(waveFiles));
+        spinnerWave.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                // Cast item to File and get the file name
+                selectedWaveFile = (File) parent.getItemAtPosition(position);
+
+                // Check if the selected file is the recording file
+                if (selectedWaveFile.getName().equals(WaveUtil.RECORDING_FILE)) {
+                    btnRecord.setVisibility(View.VISIBLE);
+                } else {
+                    btnRecord.setVisibility(View.GONE);
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+                // Handle case when nothing is selected, if needed
+            }
+        });
+
+        btnTranscribe.setEnabled(true);
+    }
+
     // Model initialization
     private void initModel(File modelFile) {
-        boolean isMultilingualModel = !(modelFile.getName().endsWith(ENGLISH_ONLY_MODEL_EXTENSION));
-        String vocabFileName = isMultilingualModel ? MULTILINGUAL_VOCAB_FILE : ENGLISH_ONLY_VOCAB_FILE;
-        File vocabFile = new File(sdcardDataFolder, vocabFileName);
-
         mWhisper = new Whisper(this);
-        mWhisper.loadModel(modelFile, vocabFile, isMultilingualModel);
         mWhisper.setListener(new Whisper.WhisperListener() {
             @Override
             public void onUpdateReceived(String message) {
@@ -268,12 +342,114 @@ public class MainActivity extends AppCompatActivity {
                 Log.d(TAG, "Result: " + result);
                 handler.post(() -> tvResult.append(result));
             }
+
+            @Override
+            public void onPartialResultReceived(String partial) {
+                Log.d(TAG, "Partial result: " + partial);
+            }
+
+            @Override
+            public void onChunkResultReceived(int index, long startMs, long endMs, String text) {
+                long timeTaken = System.currentTimeMillis() - startTime;
+                Log.d(TAG, "Chunk " + index + " [" + startMs + ", " + endMs + "] ms after " + timeTaken + "ms: " + text);
+                handler.post(() -> tvStatus.setText("Transcribed " + endMs / 1000 + "s of audio in " + timeTaken + "ms"));
+            }
         });
+        mWhisper.setSplitChannels(SPLIT_CHANNELS);
+        mWhisper.setSpeechPacking(SPEECH_PACKING);
+        try {
+            if (TRANSCRIPT_CACHE)
+                mWhisper.setCache(new TranscriptCache(new File(getCacheDir(), TRANSCRIPT_CACHE_FOLDER), TRANSCRIPT_CACHE_SIZE));
+            if (FEATURE_STORE)
+                mWhisper.setFeatureStore(new MelFeatureStore(new File(getCacheDir(), FEATURE_STORE_FOLDER),
+                        FEATURE_STORE_FP16, FEATURE_STORE_SIZE));
+        } catch (IOException e) {
+            Log.e(TAG, "Transcript cache is not available", e);
+        }
+        loadModel(mWhisper, modelFile);
+
+        if (modelRouting) {
+            Whisper whisper = mWhisper;
+            new Thread(() -> initModelRouter(whisper)).start();
+        }
+        if (cascadeDecoding) {
+            Whisper whisper = mWhisper;
+            new Thread(() -> {
+                whisper.setCascadeModel(CASCADE_MODEL, createEngineFactory(whisper, new File(sdcardDataFolder, CASCADE_MODEL)));
+                handler.post(() -> {
+                    if (mWhisper != whisper)
+                        whisper.setCascadeModel(null, null);  // closed in the meantime
+                });
+            }).start();
+        }
+        if (speculativeDecoding) {
+            Whisper whisper = mWhisper;
+            new Thread(() -> {
+                whisper.setDraftModel(createEngineFactory(whisper, new File(sdcardDataFolder, DRAFT_MODEL)));
+                handler.post(() -> {
+                    if (mWhisper != whisper)
+                        whisper.setDraftModel(null);  // closed in the meantime
+                });
+            }).start();
+        }
+    }
+
+    // Loads the routed models next to the selected one, requests go to them once they are ready
+    private void initModelRouter(Whisper whisper) {
+        ModelRouter router = new ModelRouter();
+        for (int i = 0; i < ROUTED_MODELS.length; i++) {
+            File modelFile = new File(sdcardDataFolder, ROUTED_MODELS[i]);
+            router.addModel(modelFile.getName(), createEngineFactory(whisper, modelFile), ROUTED_MODEL_CHUNK_MS[i]);
+        }
+        handler.post(() -> {
+            if (mWhisper != whisper) {
+                router.shutdown();  // closed in the meantime
+                return;
+            }
+            whisper.setModelRouter(router, LIVE_LATENCY_TARGET_MS, FILE_LATENCY_TARGET_MS);
+            mModelRouter = router;
+        });
+    }
+
+    // Engines of a model file, or of the bundled asset of that name when there is no file
+    private EngineFactory createEngineFactory(Whisper whisper, File modelFile) {
+        boolean isMultilingualModel = !(modelFile.getName().endsWith(ENGLISH_ONLY_MODEL_EXTENSION));
+        File vocabFile = new File(sdcardDataFolder, isMultilingualModel ? MULTILINGUAL_VOCAB_FILE : ENGLISH_ONLY_VOCAB_FILE);
+        return modelFile.exists()
+                ? whisper.createEngineFactory(modelFile.getAbsolutePath(), vocabFile.getAbsolutePath(), isMultilingualModel)
+                : whisper.createAssetEngineFactory(modelFile.getName(), vocabFile, isMultilingualModel);
+    }
+
+    private void loadModel(Whisper whisper, File modelFile) {
+        boolean isMultilingualModel = !(modelFile.getName().endsWith(ENGLISH_ONLY_MODEL_EXTENSION));
+        String vocabFileName = isMultilingualModel ? MULTILINGUAL_VOCAB_FILE : ENGLISH_ONLY_VOCAB_FILE;
+        File vocabFile = new File(sdcardDataFolder, vocabFileName);
+
+        if (modelFile.exists()) {
+            whisper.loadModel(modelFile, vocabFile, isMultilingualModel);
+        } else {
+            // Bundled model, map it in place from the APK
+            whisper.loadModelAsset(modelFile.getName(), vocabFile, isMultilingualModel);
+        }
     }
 
     private void deinitModel() {
+        if (mModelRouter != null) {
+            Log.d(TAG, "Model router:\n" + mModelRouter);
+            mWhisper.setModelRouter(null, 0, 0);
+            mModelRouter.shutdown();
+            mModelRouter = null;
+        }
         if (mWhisper != null) {
-            mWhisper.unloadModel();
+            // The cache is closed only once no transcription can use it anymore
+            mWhisper.shutdown();
+            TranscriptCache cache = mWhisper.getCache();
+            mWhisper.setCache(null);
+            mWhisper.setFeatureStore(null);
+            if (cache != null) {
+                Log.d(TAG, "Transcript cache hits: " + cache.getHitCount() + ", misses: " + cache.getMissCount());
+                cache.close();
+            }
             mWhisper = null;
         }
     }
@@ -325,6 +501,20 @@ public class MainActivity extends AppCompatActivity {
         checkRecordPermission();
 
         File waveFile= new File(sdcardDataFolder, WaveUtil.RECORDING_FILE);
+        if (replayTesting) {
+            if (mWhisper == null)
+                initModel(selectedTfliteFile);
+            mWhisper.getLiveLatencyStats().reset();
+            if (liveSession) {
+                mWhisper.startLiveSession(LIVE_WINDOW_SECONDS, LIVE_HOP_SECONDS);
+                mRecorder.setRealtimeBufferMs((int) (LIVE_HOP_SECONDS * 1000));
+            } else {
+                mRecorder.setRealtimeBufferMs(Recorder.DEFAULT_REALTIME_BUFFER_MS);
+            }
+            mRecorder.setAudioSource(new FileReplaySource(selectedWaveFile, REPLAY_SPEED));
+            // The replayed file may be the recording itself, keep the copy out of its way
+            waveFile = new File(getCacheDir(), WaveUtil.RECORDING_FILE);
+        }
         mRecorder.setFilePath(waveFile.getAbsolutePath());
         mRecorder.start();
     }
@@ -344,43 +534,6 @@ public class MainActivity extends AppCompatActivity {
         mWhisper.stop();
     }
 
-    // Copy assets with specified extensions to destination folder
-    private static void copyAssetsToSdcard(Context context, File destFolder, String[] extensions) {
-        AssetManager assetManager = context.getAssets();
-
-        try {
-            // List all files in the assets folder once
-            String[] assetFiles = assetManager.list("");
-            if (assetFiles == null) return;
-
-            for (String assetFileName : assetFiles) {
-                // Check if file matches any of the provided extensions
-                for (String extension : extensions) {
-                    if (assetFileName.endsWith("." + extension)) {
-                        File outFile = new File(destFolder, assetFileName);
-
-                        // Skip if file already exists
-                        if (outFile.exists()) break;
-
-                        // Copy the file from assets to the destination folder
-                        try (InputStream inputStream = assetManager.open(assetFileName);
-                             OutputStream outputStream = new FileOutputStream(outFile)) {
-
-                            byte[] buffer = new byte[1024];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                        }
-                        break; // No need to check further extensions
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     public ArrayList<File> getFilesWithExtension(File directory, String extension) {
         ArrayList<File> filteredFiles = new ArrayList<>();
 
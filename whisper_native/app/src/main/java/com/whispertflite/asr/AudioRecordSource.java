@@ -0,0 +1,90 @@
+package com.whispertflite.asr;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import java.io.IOException;
+
+// Microphone input, capture times come from AudioRecord.getTimestamp() when available
+public class AudioRecordSource implements AudioSource {
+    private static final String TAG = "AudioRecordSource";
+
+    private final Context mContext;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private AudioRecord mAudioRecord;
+    private int mBufferSize;
+    private long mFramesRead;
+    private long mCaptureTimeNanos;
+
+    public AudioRecordSource(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (ActivityCompat.checkSelfPermission(mContext, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "AudioRecord permission is not granted");
+            throw new IOException("Permission not granted for recording");
+        }
+
+        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
+        int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
+        int audioSource = MediaRecorder.AudioSource.MIC;
+
+        mBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, channelConfig, audioFormat);
+        mAudioRecord = new AudioRecord(audioSource, SAMPLE_RATE, channelConfig, audioFormat, mBufferSize);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+            throw new IOException("AudioRecord initialization failed");
+        }
+
+        mFramesRead = 0;
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        int bytesRead = mAudioRecord.read(buffer, offset, length);
+        if (bytesRead > 0) {
+            int frames = bytesRead / (BYTES_PER_SAMPLE * CHANNELS);
+            mCaptureTimeNanos = captureTimeOf(mFramesRead, frames);
+            mFramesRead += frames;
+        }
+        return bytesRead;
+    }
+
+    // Extrapolate from the latest frame timestamp, or assume the data was just captured
+    private long captureTimeOf(long framePosition, int frames) {
+        if (mAudioRecord.getTimestamp(mTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS)
+            return mTimestamp.nanoTime + (framePosition - mTimestamp.framePosition) * 1_000_000_000L / SAMPLE_RATE;
+        return System.nanoTime() - frames * 1_000_000_000L / SAMPLE_RATE;
+    }
+
+    @Override
+    public long getCaptureTimeNanos() {
+        return mCaptureTimeNanos;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.engine.ChunkListener;
+import com.whispertflite.engine.StageTimings;
+import com.whispertflite.engine.TranscriptionResult;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.zip.Deflater;
+
+// Transcribes with a small model first and re-runs only the chunks that look wrong on a larger
+// one. Most chunks of clean speech come out the same from both, so the file costs about the
+// small model plus the large one on the few chunks it is needed for.
+//
+// Each 30 seconds chunk of the small model is scored with cheap checks on its text: a high
+// compression ratio or repeated word n-grams (the decoder looping), no text over speech the
+// energy detector found, and a text token rate far outside normal speech (hallucinated or
+// dropped words). A flagged chunk is replaced by the large model result.
+public class CascadeTranscriber {
+    private static final String TAG = "CascadeTranscriber";
+
+    private static final int SAMPLE_RATE = WhisperUtil.WHISPER_SAMPLE_RATE;
+    private static final int CHUNK_SAMPLES = SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    private static final double MAX_COMPRESSION_RATIO = 2.4;    // same as the whisper decoding fallback
+    private static final int NGRAM_WORDS = 3;
+    private static final int MIN_NGRAMS = 4;                    // fewer are too short to judge
+    private static final double MAX_REPEATED_NGRAMS = 0.3;      // share of word n-grams already seen in the chunk
+    private static final double MIN_SPEECH_SECONDS = 1.0;       // less speech is not expected to give text
+    private static final double MIN_TOKENS_PER_SECOND = 0.5;    // text tokens per second of speech
+    private static final double MAX_TOKENS_PER_SECOND = 8.0;
+
+    // Why a chunk was escalated
+    public enum Flag {
+        COMPRESSION_RATIO,
+        REPEATED_NGRAMS,
+        EMPTY_ON_SPEECH,
+        TOKEN_RATE
+    }
+
+    private final WhisperEngine mSmallEngine;
+    private final WhisperEngine mLargeEngine;
+    private final SpeechPacker mSpeechDetector = new SpeechPacker();
+    private final Map<Flag, Integer> mFlagCounts = new EnumMap<>(Flag.class);
+    private int mChunks = 0;
+    private int mEscalated = 0;
+
+    public CascadeTranscriber(WhisperEngine smallEngine, WhisperEngine largeEngine) {
+        mSmallEngine = smallEngine;
+        mLargeEngine = largeEngine;
+    }
+
+    // All chunks as one result, the timings add up both models
+    public TranscriptionResult transcribe(float[] samples, long deadlineNanos, BooleanSupplier isStopped) {
+        List<TranscriptionResult> chunks = new ArrayList<>();
+        StageTimings timings = new StageTimings();
+        transcribe(samples, deadlineNanos, isStopped, (index, startMs, endMs, chunk) -> {
+            chunks.add(chunk);
+            timings.add(chunk.getTimings());
+            return true;
+        });
+        if (chunks.isEmpty())
+            return TranscriptionResult.empty(toMs(samples.length));
+        return TranscriptionResult.concat(chunks, toMs(samples.length), timings);
+    }
+
+    // Each chunk goes to the listener once final, after escalation if it was flagged.
+    // deadlineNanos applies to every chunk, 0 for none; isStopped is polled between chunks.
+    // False if stopped, by the listener or otherwise, before the last chunk.
+    public boolean transcribe(float[] samples, long deadlineNanos, BooleanSupplier isStopped, ChunkListener listener) {
+        List<int[]> speech = mSpeechDetector.detectSpeech(samples);
+        int index = 0;
+        for (int start = 0; start < samples.length; start += CHUNK_SAMPLES, index++) {
+            if (isStopped.getAsBoolean() || (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0))
+                return false;
+
+            int end = Math.min(samples.length, start + CHUNK_SAMPLES);
+            float[] chunkSamples = Arrays.copyOfRange(samples, start, end);
+            TranscriptionResult chunk = transcribeChunk(mSmallEngine, chunkSamples, deadlineNanos);
+
+            double speechSeconds = speechSamples(speech, start, end) / (double) SAMPLE_RATE;
+            Set<Flag> flags = score(chunk, speechSeconds);
+            synchronized (this) {
+                mChunks++;
+                for (Flag flag : flags)
+                    mFlagCounts.merge(flag, 1, Integer::sum);
+            }
+
+            if (!flags.isEmpty() && !isStopped.getAsBoolean()) {
+                Log.d(TAG, "Chunk " + index + " escalated: " + flags);
+                TranscriptionResult large = transcribeChunk(mLargeEngine, chunkSamples, deadlineNanos);
+                // A large model cut off by the deadline has less than the small one
+                if (large.getChunkCount() > 0) {
+                    large.getTimings().add(chunk.getTimings());
+                    chunk = large;
+                    synchronized (this) {
+                        mEscalated++;
+                    }
+                }
+            }
+
+            if (!listener.onChunk(index, toMs(start), toMs(end), chunk))
+                return false;
+        }
+        Log.d(TAG, toString());
+        return true;
+    }
+
+    private static TranscriptionResult transcribeChunk(WhisperEngine engine, float[] samples, long deadlineNanos) {
+        synchronized (engine) {
+            engine.setDeadline(deadlineNanos);
+            return engine.transcribeBuffer(samples);
+        }
+    }
+
+    // The checks a chunk failed, empty if it looks fine. speechSeconds is how much of the chunk
+    // the energy detector took for speech.
+    public static Set<Flag> score(TranscriptionResult chunk, double speechSeconds) {
+        Set<Flag> flags = EnumSet.noneOf(Flag.class);
+        String text = chunk.getText().trim();
+        if (text.isEmpty()) {
+            if (speechSeconds >= MIN_SPEECH_SECONDS)
+                flags.add(Flag.EMPTY_ON_SPEECH);
+            return flags;
+        }
+
+        if (compressionRatio(text) > MAX_COMPRESSION_RATIO)
+            flags.add(Flag.COMPRESSION_RATIO);
+        if (repeatedNgrams(text) > MAX_REPEATED_NGRAMS)
+            flags.add(Flag.REPEATED_NGRAMS);
+        if (speechSeconds >= MIN_SPEECH_SECONDS) {
+            double tokensPerSecond = chunk.getTextTokenCount() / speechSeconds;
+            if (tokensPerSecond < MIN_TOKENS_PER_SECOND || tokensPerSecond > MAX_TOKENS_PER_SECOND)
+                flags.add(Flag.TOKEN_RATE);
+        } else if (speechSeconds == 0) {
+            // Text on silence is made up
+            flags.add(Flag.TOKEN_RATE);
+        }
+        return flags;
+    }
+
+    // UTF-8 length over deflated length, looping text compresses well
+    static double compressionRatio(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[bytes.length + 64];
+            int compressed = 0;
+            while (!deflater.finished())
+                compressed += deflater.deflate(buffer);
+            return (double) bytes.length / Math.max(1, compressed);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Share of the word n-grams that already occurred earlier in the text
+    static double repeatedNgrams(String text) {
+        String[] words = text.toLowerCase(Locale.ROOT).split("\\s+");
+        int ngrams = words.length - NGRAM_WORDS + 1;
+        if (ngrams < MIN_NGRAMS)
+            return 0;
+        Map<String, Integer> seen = new HashMap<>();
+        int repeated = 0;
+        for (int i = 0; i < ngrams; i++) {
+            String ngram = String.join(" ", Arrays.asList(words).subList(i, i + NGRAM_WORDS));
+            if (seen.merge(ngram, 1, Integer::sum) > 1)
+                repeated++;
+        }
+        return (double) repeated / ngrams;
+    }
+
+    private static long speechSamples(List<int[]> speech, int start, int end) {
+        long samples = 0;
+        for (int[] segment : speech)
+            samples += Math.max(0, Math.min(end, segment[1]) - Math.max(start, segment[0]));
+        return samples;
+    }
+
+    private static long toMs(long sampleIndex) {
+        return sampleIndex * 1000L / SAMPLE_RATE;
+    }
+
+    public synchronized int getChunkCount() {
+        return mChunks;
+    }
+
+    public synchronized int getEscalatedCount() {
+        return mEscalated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Chunks %d, escalated %d, flags %s", mChunks, mEscalated, mFlagCounts);
+    }
+}
@@ -0,0 +1,84 @@
+package com.whispertflite.asr;
+
+import com.whispertflite.utils.WaveReader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Replays a recording as if it came from the microphone, paced at real time or N times faster.
+// WAV files of any rate and channel count are read through WaveReader and come out as 16 kHz
+// mono; raw *_16000_mono_float.pcm dumps are read as they are. A read error ends the replay
+// like the end of the file.
+public class FileReplaySource extends PacedAudioSource {
+    private final File mFile;
+    private WaveReader mWave;    // WAV files
+    private InputStream mInput;  // raw float dumps
+    private float[] mFloats = new float[0];
+    private byte[] mRaw = new byte[0];
+
+    public FileReplaySource(File file, float speed) {
+        super(speed);
+        mFile = file;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (mFile.getName().endsWith(".wav"))
+            mWave = new WaveReader(mFile.getAbsolutePath());
+        else
+            mInput = new BufferedInputStream(new FileInputStream(mFile));
+        begin();
+    }
+
+    @Override
+    protected int fill(short[] samples, int count) {
+        if (mFloats.length < count)
+            mFloats = new float[count];
+
+        int produced;
+        try {
+            produced = (mWave != null) ? mWave.read(mFloats, 0, count) : readRaw(count);
+        } catch (IOException e) {
+            return -1;
+        }
+        for (int i = 0; i < produced; i++)
+            samples[i] = toPcm16(mFloats[i]);
+        return (produced > 0) ? produced : -1;
+    }
+
+    // Little endian float32 samples into mFloats, a partial last sample is dropped
+    private int readRaw(int count) throws IOException {
+        if (mRaw.length < count * Float.BYTES)
+            mRaw = new byte[count * Float.BYTES];
+        int total = 0;
+        while (total < count * Float.BYTES) {
+            int n = mInput.read(mRaw, total, count * Float.BYTES - total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        ByteBuffer in = ByteBuffer.wrap(mRaw, 0, total).order(ByteOrder.LITTLE_ENDIAN);
+        int produced = total / Float.BYTES;
+        for (int i = 0; i < produced; i++)
+            mFloats[i] = in.getFloat();
+        return produced;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (mWave != null)
+                mWave.close();
+            if (mInput != null)
+                mInput.close();
+        } catch (IOException ignored) {
+        }
+        mWave = null;
+        mInput = null;
+    }
+}
@@ -0,0 +1,303 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.cache.MelFeatureStore;
+import com.whispertflite.cache.TranscriptCache;
+import com.whispertflite.engine.ChunkListener;
+import com.whispertflite.engine.EnginePool;
+import com.whispertflite.engine.SpeculativeDecoder;
+import com.whispertflite.engine.StageTimings;
+import com.whispertflite.engine.TranscriptionResult;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+// One file request of Whisper on the engine picked for it. The strategy is fixed before anything
+// runs, as the transcript cache key depends on it: the tasks of a translation request, channels
+// transcribed separately, speculative decoding with a draft model, cascade decoding with a larger
+// model, packed speech windows, or plain 30 seconds chunks. Chunk texts reach the listener as
+// soon as they are decoded where the strategy goes chunk by chunk.
+class FileTranscriber {
+    private static final String TAG = "FileTranscriber";
+
+    enum Strategy {
+        TASKS, CHANNELS, SPECULATIVE, CASCADE, PACKED, CHUNKS
+    }
+
+    // What the request produced. It is not finished if it stopped or failed before the last
+    // chunk, such text must not be cached.
+    static final class Output {
+        String text;
+        int[] tokens = new int[0];
+        String translation;  // TRANSCRIBE_AND_TRANSLATE only
+        int[] translationTokens = new int[0];
+        boolean finished = false;
+    }
+
+    private final WhisperEngine mEngine;
+    private final String mWavFilePath;
+    private final long mDeadline;
+    private final BooleanSupplier mIsStopped;
+    private final ChunkListener mListener;
+    private final List<WhisperEngine> mRunning = new CopyOnWriteArrayList<>();  // engines cancel() reaches
+    private WhisperEngine.Task[] mTasks;
+    private boolean mSplitChannels = false;
+    private EnginePool mChannelPool;
+    private MelFeatureStore mChannelFeatureStore;
+    private WhisperEngine mDraftEngine;
+    private WhisperEngine mCascadeEngine;
+    private SpeechPacker mPacker;
+    private Strategy mStrategy;
+    private float[] mSamples;
+    private float[][] mChannels;
+    private volatile boolean mCancelled = false;
+
+    // deadlineNanos applies to the whole request, 0 for none; isStopped is polled between chunks
+    // and the listener gets each chunk of the strategies that go chunk by chunk
+    FileTranscriber(WhisperEngine engine, String wavFilePath, long deadlineNanos, BooleanSupplier isStopped,
+                    ChunkListener listener) {
+        mEngine = engine;
+        mWavFilePath = wavFilePath;
+        mDeadline = deadlineNanos;
+        mIsStopped = isStopped;
+        mListener = listener;
+        mRunning.add(engine);
+    }
+
+    // Translation, or transcript and translation from one encoder pass, instead of a transcript
+    void setTasks(WhisperEngine.Task... tasks) {
+        mTasks = tasks;
+    }
+
+    // Transcribe the channels of multi-channel files separately, on extra engines from the pool
+    // when the engine kind allows it, null to share the request engine
+    void setSplitChannels(boolean splitChannels, EnginePool pool, MelFeatureStore store) {
+        mSplitChannels = splitChannels;
+        mChannelPool = pool;
+        mChannelFeatureStore = store;
+    }
+
+    void setDraftEngine(WhisperEngine draftEngine) {
+        mDraftEngine = draftEngine;
+    }
+
+    void setCascadeEngine(WhisperEngine cascadeEngine) {
+        mCascadeEngine = cascadeEngine;
+    }
+
+    void setSpeechPacker(SpeechPacker packer) {
+        mPacker = packer;
+    }
+
+    // Picked on first use from what was set, in the order of Strategy
+    Strategy getStrategy() {
+        if (mStrategy == null) {
+            if (mTasks != null)
+                mStrategy = Strategy.TASKS;
+            else if (mSplitChannels && WaveUtil.getChannelCount(mWavFilePath) > 1)
+                mStrategy = Strategy.CHANNELS;
+            else if (mDraftEngine != null && SpeculativeDecoder.isSupported(mEngine, mDraftEngine)) {
+                mStrategy = Strategy.SPECULATIVE;
+                if (mCascadeEngine != null)
+                    Log.w(TAG, "Draft and cascade models are both set, the cascade model is not used");
+            }
+            else if (mCascadeEngine != null)
+                mStrategy = Strategy.CASCADE;
+            else if (mPacker != null)
+                mStrategy = Strategy.PACKED;
+            else
+                mStrategy = Strategy.CHUNKS;
+        }
+        return mStrategy;
+    }
+
+    // The file as 16 kHz mono, read once for the cache key and the strategy
+    float[] getSamples() {
+        if (mSamples == null)
+            mSamples = WaveUtil.getSamples(mWavFilePath);
+        return mSamples;
+    }
+
+    // Over the audio the strategy reads, so split channels are not downmixed only for the key
+    TranscriptCache.Key getCacheKey(String modelId, String options) {
+        if (getStrategy() == Strategy.CHANNELS)
+            return TranscriptCache.keyOf(getChannelSamples(), modelId, options);
+        return TranscriptCache.keyOf(getSamples(), modelId, options);
+    }
+
+    private float[][] getChannelSamples() {
+        if (mChannels == null)
+            mChannels = WaveUtil.getChannelSamples(mWavFilePath);
+        return mChannels;
+    }
+
+    // Null if the model cannot run the tasks, it only transcribes
+    Output run() {
+        switch (getStrategy()) {
+            case TASKS:
+                return transcribeTasks();
+            case CHANNELS:
+                return transcribeChannels();
+            case SPECULATIVE:
+                return transcribeSpeculative();
+            case CASCADE:
+                return transcribeCascade();
+            case PACKED:
+                return transcribePacked();
+            default:
+                return transcribeChunks();
+        }
+    }
+
+    // Abort the running inference on every engine of the request instead of letting it finish the chunk
+    void cancel() {
+        mCancelled = true;
+        for (WhisperEngine engine : mRunning)
+            engine.cancel();
+    }
+
+    private Output transcribeTasks() {
+        if (!mEngine.supportsTasks()) {
+            Log.d(TAG, "Translation needs a model with encode and decode signatures, see generate_model.py");
+            return null;
+        }
+        TranscriptionResult[] results;
+        synchronized (mEngine) {
+            mEngine.setDeadline(mDeadline);
+            results = mEngine.transcribeTasks(getSamples(), mTasks);
+        }
+        if (results == null)
+            return null;
+        Output output = new Output();
+        output.text = results[0].getText();
+        output.tokens = results[0].getTokens();
+        output.finished = true;
+        if (results.length > 1) {
+            output.translation = results[1].getText();
+            output.translationTokens = results[1].getTokens();
+        }
+        return output;
+    }
+
+    // One job per channel, the request engine takes the first channel and extra engines of the
+    // same model from the pool take the others when several instances can run at the same time
+    private Output transcribeChannels() {
+        float[][] channels = getChannelSamples();
+        List<WhisperEngine> engines = new ArrayList<>();
+        engines.add(mEngine);
+
+        if (mChannelPool != null && mEngine.supportsConcurrentInstances()) {
+            for (int i = 1; i < channels.length; i++) {
+                WhisperEngine extra = mChannelPool.take(channels.length);
+                if (extra == null)
+                    break;
+                extra.setFeatureStore(mChannelFeatureStore);
+                engines.add(extra);
+                mRunning.add(extra);
+            }
+        }
+        Log.d(TAG, "Transcribing " + channels.length + " channels on " + engines.size() + " engines");
+
+        try {
+            MultiChannelTranscriber.Result result =
+                    MultiChannelTranscriber.transcribe(channels, engines, mPacker, mDeadline, mIsStopped);
+            Output output = new Output();
+            output.text = MultiChannelTranscriber.format(result.segments);
+            output.finished = result.complete;
+            return output;
+        } finally {
+            // An engine cancel() reached may carry the cancel over to its next request, it is closed
+            for (int i = 1; i < engines.size(); i++) {
+                mRunning.remove(engines.get(i));
+                mChannelPool.give(engines.get(i), !mCancelled);
+            }
+        }
+    }
+
+    // Same tokens as greedy decoding on the engine alone, so the cache key stays the same
+    private Output transcribeSpeculative() {
+        float[] samples = getSamples();
+        SpeculativeDecoder decoder = new SpeculativeDecoder(mEngine, mDraftEngine);
+        Chunks chunks = new Chunks();
+        boolean finished;
+        mRunning.add(mDraftEngine);
+        synchronized (mEngine) {
+            synchronized (mDraftEngine) {
+                finished = decoder.transcribe(samples, WhisperEngine.Task.TRANSCRIBE, mDeadline, mIsStopped, chunks);
+            }
+        }
+        Log.d(TAG, "Speculative decoding: " + decoder);
+        return chunks.toOutput(audioMs(samples), chunks.mTimings, finished);
+    }
+
+    private Output transcribeCascade() {
+        float[] samples = getSamples();
+        CascadeTranscriber cascade = new CascadeTranscriber(mEngine, mCascadeEngine);
+        Chunks chunks = new Chunks();
+        mRunning.add(mCascadeEngine);
+        boolean finished = cascade.transcribe(samples, mDeadline, mIsStopped, chunks);
+        Log.d(TAG, "Cascade: " + cascade);
+        return chunks.toOutput(audioMs(samples), chunks.mTimings, finished);
+    }
+
+    private Output transcribePacked() {
+        MultiChannelTranscriber.Result result = MultiChannelTranscriber.transcribe(
+                new float[][]{getSamples()}, Collections.singletonList(mEngine), mPacker, mDeadline, mIsStopped);
+        Output output = new Output();
+        output.text = MultiChannelTranscriber.format(result.segments, false);
+        output.finished = result.complete;
+        return output;
+    }
+
+    // Audio decoded for the cache key is not read again
+    private Output transcribeChunks() {
+        Chunks chunks = new Chunks();
+        boolean finished;
+        StageTimings timings;
+        synchronized (mEngine) {
+            mEngine.setDeadline(mDeadline);
+            if (mSamples != null)
+                finished = mEngine.transcribeSamples(mSamples, chunks);
+            else
+                finished = mEngine.transcribeFile(mWavFilePath, chunks);
+            // Another request may run on the engine as soon as it is released
+            timings = mEngine.getLastTimings();
+        }
+        return chunks.toOutput(chunks.mAudioMs, timings, finished);
+    }
+
+    private static long audioMs(float[] samples) {
+        return samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+    }
+
+    // Collects the chunks of a request and passes each on to the listener
+    private class Chunks implements ChunkListener {
+        private final List<TranscriptionResult> mChunks = new ArrayList<>();
+        private final StageTimings mTimings = new StageTimings();
+        private long mAudioMs = 0;
+
+        @Override
+        public boolean onChunk(int index, long startMs, long endMs, TranscriptionResult chunk) {
+            mChunks.add(chunk);
+            mTimings.add(chunk.getTimings());
+            mAudioMs = endMs;
+            return mListener.onChunk(index, startMs, endMs, chunk);
+        }
+
+        Output toOutput(long audioMs, StageTimings timings, boolean finished) {
+            TranscriptionResult transcription = TranscriptionResult.concat(mChunks, audioMs, timings);
+            Output output = new Output();
+            output.text = transcription.getText();
+            output.tokens = transcription.getTokens();
+            output.finished = finished;
+            return output;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.engine.EngineFactory;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Picks one of several loaded models per request, smallest first in the order they were added.
+// A request goes to the most accurate model expected to finish within its latency target, or
+// to the one expected to finish first when none can.
+//
+// Whisper pads audio to 30 seconds chunks, so a model costs about the same per chunk whatever
+// the audio length. Each model keeps a moving average of its seconds per chunk, measured from
+// when its engine was free for the request to its end, and the expected work of the requests
+// it is running or queued for. The expected latency of a request is that backlog plus its own
+// chunks. As load builds up requests move down to smaller models, and back up once they drain.
+public class ModelRouter {
+    private static final String TAG = "ModelRouter";
+    private static final double CHUNK_EWMA_WEIGHT = 0.2;
+    private static final long CHUNK_MS = WhisperUtil.WHISPER_CHUNK_SIZE * 1000L;
+
+    private final List<Route> mRoutes = new ArrayList<>();
+    private boolean mShutdown = false;
+
+    // One model with its engine and measured cost
+    public static class Route {
+        private final String mName;
+        private final WhisperEngine mEngine;
+        private double mChunkSeconds;    // moving average of one chunk inference
+        private double mBacklogSeconds;  // expected work of the leases not closed yet
+        private long mFreeNanos = System.nanoTime(); // when the last lease closed, the engine was free from then
+        private int mActive = 0;         // leases not closed yet
+        private long mRouted = 0;        // leases over the lifetime of the router
+        private boolean mClosed = false; // shut down, the engine is closed with the last lease
+        private boolean mEngineClosed = false;
+
+        private Route(String name, WhisperEngine engine, double chunkSeconds) {
+            mName = name;
+            mEngine = engine;
+            mChunkSeconds = chunkSeconds;
+        }
+
+        // Once shut down and no lease is open anymore
+        private void closeIfIdle() {
+            synchronized (this) {
+                if (!mClosed || mActive > 0 || mEngineClosed)
+                    return;
+                mEngineClosed = true;
+            }
+            // Wait for a request still holding the engine lock to leave it
+            synchronized (mEngine) {
+                mEngine.deinitialize();
+            }
+            Log.d(TAG, "Engine is closed: " + mName);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public WhisperEngine getEngine() {
+            return mEngine;
+        }
+
+        // Seconds of inference per second of audio over full chunks
+        public synchronized double getRealTimeFactor() {
+            return mChunkSeconds * 1000.0 / CHUNK_MS;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "%s: %.0f ms per chunk, rtf %.3f, backlog %.0f ms, active %d, routed %d in total",
+                    mName, mChunkSeconds * 1000, getRealTimeFactor(), mBacklogSeconds * 1000, mActive, mRouted);
+        }
+    }
+
+    // A request routed to a model, close it when the request is done to record what it took
+    public class Lease implements AutoCloseable {
+        private final Route mRoute;
+        private final int mChunks;
+        private final double mWorkSeconds;
+        private final long mStartNanos = System.nanoTime();
+        private boolean mClosed = false;
+
+        private Lease(Route route, int chunks, double workSeconds) {
+            mRoute = route;
+            mChunks = chunks;
+            mWorkSeconds = workSeconds;
+        }
+
+        public WhisperEngine getEngine() {
+            return mRoute.mEngine;
+        }
+
+        public String getName() {
+            return mRoute.mName;
+        }
+
+        // Recorded as the cost of the request, only if it ran to the end
+        @Override
+        public void close() {
+            close(true);
+        }
+
+        // Cancelled or failed requests only give back their backlog
+        public void close(boolean completed) {
+            Route route = mRoute;
+            synchronized (route) {
+                if (mClosed)
+                    return;
+                mClosed = true;
+                route.mActive--;
+                long now = System.nanoTime();
+                route.mBacklogSeconds = Math.max(0, route.mBacklogSeconds - mWorkSeconds);
+                if (completed) {
+                    // Requests on one engine run one after the other, time spent waiting for
+                    // the previous one is not part of this one
+                    long busyFrom = (route.mFreeNanos - mStartNanos > 0) ? route.mFreeNanos : mStartNanos;
+                    double seconds = (now - busyFrom) / 1e9;
+                    route.mChunkSeconds += CHUNK_EWMA_WEIGHT * (seconds / mChunks - route.mChunkSeconds);
+                }
+                route.mFreeNanos = now;
+            }
+            route.closeIfIdle();
+        }
+    }
+
+    // Add the next larger model, estimatedChunkMs is one 30 seconds chunk inference until measured.
+    // False if the factory cannot create an engine.
+    public boolean addModel(String name, EngineFactory factory, long estimatedChunkMs) {
+        WhisperEngine engine = factory.create();
+        if (engine == null) {
+            Log.d(TAG, "Model is not available: " + name);
+            return false;
+        }
+        addModel(name, engine, estimatedChunkMs);
+        return true;
+    }
+
+    // Same with an initialized engine, deinitialized by shutdown() or right away once shut down
+    public void addModel(String name, WhisperEngine engine, long estimatedChunkMs) {
+        synchronized (this) {
+            if (!mShutdown) {
+                mRoutes.add(new Route(name, engine, estimatedChunkMs / 1000.0));
+                Log.d(TAG, "Model is added: " + name);
+                return;
+            }
+        }
+        engine.deinitialize();
+    }
+
+    public synchronized List<Route> getRoutes() {
+        return Collections.unmodifiableList(new ArrayList<>(mRoutes));
+    }
+
+    // Route a request of audioMs audio, 0 for latencyTargetMs always takes the largest model.
+    // Null if no model was added or the router is shut down.
+    public synchronized Lease acquire(long audioMs, long latencyTargetMs) {
+        if (mShutdown || mRoutes.isEmpty())
+            return null;
+        int chunks = (int) Math.max(1, (audioMs + CHUNK_MS - 1) / CHUNK_MS);
+        double targetSeconds = latencyTargetMs / 1000.0;
+
+        Route best = null;
+        Route fastest = null;
+        double fastestSeconds = Double.MAX_VALUE;
+        for (Route route : mRoutes) {
+            double expectedSeconds;
+            synchronized (route) {
+                expectedSeconds = route.mBacklogSeconds + chunks * route.mChunkSeconds;
+            }
+            if (latencyTargetMs == 0 || expectedSeconds <= targetSeconds)
+                best = route;
+            if (expectedSeconds < fastestSeconds) {
+                fastest = route;
+                fastestSeconds = expectedSeconds;
+            }
+        }
+        if (best == null) {
+            Log.d(TAG, String.format(Locale.US, "No model meets %d ms for %d ms of audio, taking %s at %.0f ms",
+                    latencyTargetMs, audioMs, fastest.mName, fastestSeconds * 1000));
+            best = fastest;
+        }
+
+        double workSeconds;
+        synchronized (best) {
+            workSeconds = chunks * best.mChunkSeconds;
+            best.mBacklogSeconds += workSeconds;
+            best.mActive++;
+            best.mRouted++;
+        }
+        return new Lease(best, chunks, workSeconds);
+    }
+
+    // No more leases are handed out, each engine is deinitialized once its last lease is closed
+    public void shutdown() {
+        List<Route> routes;
+        synchronized (this) {
+            mShutdown = true;
+            routes = new ArrayList<>(mRoutes);
+            mRoutes.clear();
+        }
+        for (Route route : routes) {
+            synchronized (route) {
+                route.mClosed = true;
+            }
+            route.closeIfIdle();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Route route : mRoutes)
+            text.append(route).append('\n');
+        return text.toString();
+    }
+}
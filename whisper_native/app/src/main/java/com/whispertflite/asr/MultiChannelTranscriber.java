@@ -0,0 +1,133 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.engine.TranscriptionResult;
+import com.whispertflite.engine.WhisperEngine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+// Transcribes every channel of a multi-channel recording (e.g. one speaker per channel in a call)
+// as an independent job. With one engine per channel the jobs run in parallel and a stereo call
+// takes about the wall time of one channel; with fewer engines the channels share them in turn.
+// Each channel is cut into fixed 30 seconds chunks, or packed by a SpeechPacker, and the segments
+// of the window results are mapped back to the source and merged by their start time.
+public class MultiChannelTranscriber {
+    private static final String TAG = "MultiChannelTranscriber";
+
+    public static class Segment {
+        public final int channel;
+        public final long startMs;
+        public final long endMs;
+        public final String text;
+
+        public Segment(int channel, long startMs, long endMs, String text) {
+            this.channel = channel;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.text = text;
+        }
+    }
+
+    // Segments of all channels, complete if every window of every channel was transcribed
+    public static class Result {
+        public final List<Segment> segments;
+        public final boolean complete;
+
+        Result(List<Segment> segments, boolean complete) {
+            this.segments = segments;
+            this.complete = complete;
+        }
+    }
+
+    // packer is null for fixed chunks; deadlineNanos applies to every window, 0 for none;
+    // isStopped is polled between windows
+    public static Result transcribe(float[][] channels, List<WhisperEngine> engines, SpeechPacker packer,
+                                    long deadlineNanos, BooleanSupplier isStopped) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(channels.length, engines.size()));
+        try {
+            List<Future<List<Segment>>> jobs = new ArrayList<>();
+            for (int c = 0; c < channels.length; c++) {
+                int channel = c;
+                WhisperEngine engine = engines.get(c % engines.size());
+                jobs.add(executor.submit(() -> transcribeChannel(channel, channels[channel], engine, packer, deadlineNanos, isStopped)));
+            }
+
+            List<Segment> segments = new ArrayList<>();
+            boolean complete = true;
+            for (Future<List<Segment>> job : jobs) {
+                List<Segment> channelSegments = job.get();
+                if (channelSegments != null)
+                    segments.addAll(channelSegments);
+                else
+                    complete = false;
+            }
+
+            // Merge by start time, channel order breaks ties
+            Collections.sort(segments, (a, b) -> (a.startMs != b.startMs)
+                    ? Long.compare(a.startMs, b.startMs) : Integer.compare(a.channel, b.channel));
+            return new Result(segments, complete);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(new ArrayList<>(), false);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Channel transcription failed", e.getCause());
+            return new Result(new ArrayList<>(), false);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Null if stopped before the last window
+    private static List<Segment> transcribeChannel(int channel, float[] samples, WhisperEngine engine, SpeechPacker packer,
+                                                   long deadlineNanos, BooleanSupplier isStopped) {
+        List<SpeechPacker.Window> windows = (packer != null) ? packer.pack(samples) : SpeechPacker.chunk(samples);
+        List<Segment> segments = new ArrayList<>();
+        for (SpeechPacker.Window window : windows) {
+            if (isStopped.getAsBoolean() || (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0)) {
+                Log.d(TAG, "Channel " + channel + " stopped, segments: " + segments.size());
+                return null;
+            }
+
+            TranscriptionResult result;
+            synchronized (engine) {
+                engine.setDeadline(deadlineNanos);
+                result = engine.transcribeBuffer(window.samples);
+            }
+            // Segment times are relative to the window, the pieces put them back on the channel timeline
+            for (TranscriptionResult.Segment segment : result.getSegments()) {
+                String text = segment.text.trim();
+                if (!text.isEmpty())
+                    segments.add(new Segment(channel, window.toSourceMs(segment.startMs), window.toSourceMs(segment.endMs), text));
+            }
+        }
+        Log.d(TAG, "Channel " + channel + " done, segments: " + segments.size());
+        return segments;
+    }
+
+    // One line per segment, "[mm:ss] Channel n: text"
+    public static String format(List<Segment> segments) {
+        return format(segments, true);
+    }
+
+    // One line per segment, "[mm:ss] text" with the channel label left out for single channel audio
+    public static String format(List<Segment> segments, boolean labelChannels) {
+        StringBuilder text = new StringBuilder();
+        for (Segment segment : segments) {
+            long seconds = segment.startMs / 1000;
+            text.append(String.format(Locale.US, "[%02d:%02d] ", seconds / 60, seconds % 60));
+            if (labelChannels)
+                text.append("Channel ").append(segment.channel + 1).append(": ");
+            text.append(segment.text).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package com.whispertflite.asr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+// Base for sources that produce audio faster than real time, read() is held back until the
+// returned samples would have been captured at the given speed (1 = real time, 0 = unpaced).
+public abstract class PacedAudioSource implements AudioSource {
+    private static final int BUFFER_MS = 40;
+
+    private final float mSpeed;
+    private short[] mSamples = new short[0];
+    private long mStartNanos;
+    private long mSamplesOut;
+    private long mCaptureTimeNanos;
+
+    protected PacedAudioSource(float speed) {
+        mSpeed = speed;
+    }
+
+    // Fill up to count samples, returns the number produced or -1 at the end
+    protected abstract int fill(short[] samples, int count);
+
+    protected void begin() {
+        mSamplesOut = 0;
+        mStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        int count = length / BYTES_PER_SAMPLE;
+        if (mSamples.length < count)
+            mSamples = new short[count];
+
+        int produced = fill(mSamples, count);
+        if (produced <= 0)
+            return -1;
+
+        mCaptureTimeNanos = timeOf(mSamplesOut);
+        mSamplesOut += produced;
+        if (mSpeed > 0) {
+            // Wait until the last sample would have been captured
+            long wait;
+            while ((wait = timeOf(mSamplesOut) - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+        }
+
+        ByteBuffer out = ByteBuffer.wrap(buffer, offset, produced * BYTES_PER_SAMPLE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < produced; i++)
+            out.putShort(mSamples[i]);
+        return produced * BYTES_PER_SAMPLE;
+    }
+
+    private long timeOf(long sampleIndex) {
+        if (mSpeed <= 0)
+            return System.nanoTime();
+        return mStartNanos + (long) (sampleIndex * 1_000_000_000.0 / (SAMPLE_RATE * mSpeed));
+    }
+
+    @Override
+    public long getCaptureTimeNanos() {
+        return mCaptureTimeNanos;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return SAMPLE_RATE * BUFFER_MS / 1000 * BYTES_PER_SAMPLE;
+    }
+
+    protected static short toPcm16(float sample) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32768.0f)));
+    }
+}
@@ -0,0 +1,196 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Packs the speech of a recording into as few 30 seconds windows as possible. Frame energies
+// find the speech segments, segments are placed in time order into windows with a short silence
+// between them, and each window keeps the offsets of its pieces in the source so text can be put
+// back on the original timeline. Recordings with long pauses need far fewer inference passes
+// than with fixed 30 seconds chunks. Segment times are only as fine as the timestamps the model
+// emits: without them a window's text spans all of its pieces, pauses between them included.
+public class SpeechPacker {
+    private static final String TAG = "SpeechPacker";
+
+    private static final int SAMPLE_RATE = WhisperUtil.WHISPER_SAMPLE_RATE;
+    private static final int WINDOW_SAMPLES = SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    private static final int FRAME_SAMPLES = 512;                    // 32 ms
+    private static final double SILENCE_DB = -35.0;                  // frames above are always speech
+    private static final double MIN_THRESHOLD_DB = -60.0;
+    private static final double NOISE_MARGIN_DB = 10.0;             // speech stands out of the noise floor by this
+    private static final int MERGE_GAP_SAMPLES = SAMPLE_RATE / 2;    // shorter pauses stay inside a segment
+    private static final int MIN_SPEECH_SAMPLES = SAMPLE_RATE / 10;  // shorter bursts are clicks, not words
+    private static final int PAD_SAMPLES = SAMPLE_RATE / 5;          // context kept around each segment
+    private static final int SEPARATOR_SAMPLES = SAMPLE_RATE / 4;    // silence between packed segments
+    private static final int SPLIT_SEARCH_SAMPLES = SAMPLE_RATE * 5; // long segments are cut at the quietest frame this far back
+
+    // A run of source samples copied into a window
+    public static class Piece {
+        public final int windowOffset;
+        public final int sourceOffset;
+        public final int length;
+
+        Piece(int windowOffset, int sourceOffset, int length) {
+            this.windowOffset = windowOffset;
+            this.sourceOffset = sourceOffset;
+            this.length = length;
+        }
+    }
+
+    public static class Window {
+        public final float[] samples;
+        public final List<Piece> pieces;
+
+        Window(float[] samples, List<Piece> pieces) {
+            this.samples = samples;
+            this.pieces = Collections.unmodifiableList(pieces);
+        }
+
+        // Source sample of a window sample, separators map to the end of the piece before them
+        public int toSourceSample(int windowSample) {
+            Piece previous = pieces.get(0);
+            for (Piece piece : pieces) {
+                if (piece.windowOffset > windowSample)
+                    break;
+                previous = piece;
+            }
+            int offset = Math.min(Math.max(0, windowSample - previous.windowOffset), previous.length);
+            return previous.sourceOffset + offset;
+        }
+
+        // Source time of a time in the window, e.g. a segment boundary of the window's transcription
+        public long toSourceMs(long windowMs) {
+            long windowSample = Math.min(samples.length, Math.max(0, windowMs * SAMPLE_RATE / 1000));
+            return toMs(toSourceSample((int) windowSample));
+        }
+    }
+
+    // Fixed 30 seconds chunks, as without packing, each window being a single piece
+    public static List<Window> chunk(float[] samples) {
+        List<Window> windows = new ArrayList<>();
+        for (int offset = 0; offset < samples.length; offset += WINDOW_SAMPLES) {
+            int end = Math.min(samples.length, offset + WINDOW_SAMPLES);
+            List<Piece> pieces = new ArrayList<>();
+            pieces.add(new Piece(0, offset, end - offset));
+            windows.add(new Window(Arrays.copyOfRange(samples, offset, end), pieces));
+        }
+        return windows;
+    }
+
+    // Speech segments packed in time order, no windows at all if nothing is above the threshold
+    public List<Window> pack(float[] samples) {
+        List<int[]> segments = detectSpeech(samples);
+
+        List<Window> windows = new ArrayList<>();
+        List<Piece> pieces = new ArrayList<>();
+        int used = 0;
+        long speechSamples = 0;
+        for (int[] segment : segments) {
+            int length = segment[1] - segment[0];
+            int offset = (used == 0) ? 0 : used + SEPARATOR_SAMPLES;
+            if (offset + length > WINDOW_SAMPLES) {
+                windows.add(buildWindow(samples, pieces, used));
+                pieces = new ArrayList<>();
+                offset = 0;
+            }
+            pieces.add(new Piece(offset, segment[0], length));
+            used = offset + length;
+            speechSamples += length;
+        }
+        if (!pieces.isEmpty())
+            windows.add(buildWindow(samples, pieces, used));
+
+        int fixedWindows = (samples.length + WINDOW_SAMPLES - 1) / WINDOW_SAMPLES;
+        Log.d(TAG, "Packed " + segments.size() + " segments, " + toMs(speechSamples) + " ms of "
+                + toMs(samples.length) + " ms, into " + windows.size() + " windows instead of " + fixedWindows);
+        return windows;
+    }
+
+    private static Window buildWindow(float[] samples, List<Piece> pieces, int length) {
+        float[] window = new float[length];
+        for (Piece piece : pieces)
+            System.arraycopy(samples, piece.sourceOffset, window, piece.windowOffset, piece.length);
+        return new Window(window, pieces);
+    }
+
+    // Speech as [start, end) sample ranges, padded, merged across short pauses and cut to fit a window
+    List<int[]> detectSpeech(float[] samples) {
+        int frames = (samples.length + FRAME_SAMPLES - 1) / FRAME_SAMPLES;
+        double[] frameDb = new double[frames];
+        for (int f = 0; f < frames; f++) {
+            int start = f * FRAME_SAMPLES;
+            int end = Math.min(samples.length, start + FRAME_SAMPLES);
+            double energy = 0;
+            for (int i = start; i < end; i++)
+                energy += samples[i] * samples[i];
+            frameDb[f] = 10 * Math.log10(energy / (end - start) + 1e-10);
+        }
+        if (frames == 0)
+            return new ArrayList<>();
+
+        // Quiet recordings get a threshold relative to their noise floor, the 10th percentile frame
+        double[] sorted = frameDb.clone();
+        Arrays.sort(sorted);
+        double noiseFloor = sorted[frames / 10];
+        double threshold = Math.min(SILENCE_DB, Math.max(noiseFloor + NOISE_MARGIN_DB, MIN_THRESHOLD_DB));
+
+        // Runs of speech frames, joined when the pause between them is short
+        List<int[]> runs = new ArrayList<>();
+        for (int f = 0; f < frames; f++) {
+            if (frameDb[f] <= threshold)
+                continue;
+            int start = f * FRAME_SAMPLES;
+            int end = Math.min(samples.length, (f + 1) * FRAME_SAMPLES);
+            int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && start - last[1] < MERGE_GAP_SAMPLES)
+                last[1] = end;
+            else
+                runs.add(new int[]{start, end});
+        }
+
+        // Drop clicks, pad the rest and join runs the padding made overlap
+        List<int[]> segments = new ArrayList<>();
+        for (int[] run : runs) {
+            if (run[1] - run[0] < MIN_SPEECH_SAMPLES)
+                continue;
+            int start = Math.max(0, run[0] - PAD_SAMPLES);
+            int end = Math.min(samples.length, run[1] + PAD_SAMPLES);
+            int[] last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && start <= last[1])
+                last[1] = end;
+            else
+                segments.add(new int[]{start, end});
+        }
+
+        // A segment longer than a window is cut at the quietest frame near the window end
+        List<int[]> fitted = new ArrayList<>();
+        for (int[] segment : segments) {
+            int start = segment[0];
+            while (segment[1] - start > WINDOW_SAMPLES) {
+                int limit = start + WINDOW_SAMPLES;
+                int cut = limit;
+                double quietest = Double.MAX_VALUE;
+                for (int f = (limit - SPLIT_SEARCH_SAMPLES) / FRAME_SAMPLES; (f + 1) * FRAME_SAMPLES <= limit; f++) {
+                    if (frameDb[f] < quietest) {
+                        quietest = frameDb[f];
+                        cut = (f + 1) * FRAME_SAMPLES;
+                    }
+                }
+                fitted.add(new int[]{start, cut});
+                start = cut;
+            }
+            fitted.add(new int[]{start, segment[1]});
+        }
+        return fitted;
+    }
+
+    private static long toMs(long sampleIndex) {
+        return sampleIndex * 1000L / SAMPLE_RATE;
+    }
+}
@@ -0,0 +1,374 @@
+package com.whispertflite.asr;
+
+import android.util.Log;
+
+import com.whispertflite.engine.EngineFactory;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.utils.CpuBudget;
+import com.whispertflite.utils.LatencyStats;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serves many live streams from a fixed pool of engines, one worker thread per engine. Every
+// stream is a LiveSession; a worker takes a stream with queued audio, appends all of it and runs
+// the update, so a stream that fell behind catches up with a single inference.
+//
+// Scheduling is start time fair queuing: each stream accumulates the inference time it used and
+// the ready stream with the least goes next, new streams start level with the others. Streams
+// lagging past their latency target go first, earliest deadline first.
+//
+// Admission control: a stream costs about one inference per hop, so its load is the average
+// inference time divided by its hop. New streams are rejected when the total load would pass
+// MAX_UTILIZATION of the pool.
+public class StreamScheduler {
+    private static final String TAG = "StreamScheduler";
+    private static final double MAX_UTILIZATION = 0.8;
+    private static final double INFERENCE_EWMA_WEIGHT = 0.1;
+
+    private final Lock mLock = new ReentrantLock();
+    private final Condition mHasWork = mLock.newCondition();
+    private final Condition mStreamClosed = mLock.newCondition();
+    private final List<WhisperEngine> mEngines = new ArrayList<>();
+    private final List<Thread> mWorkers = new ArrayList<>();
+    private final List<Stream> mStreams = new ArrayList<>();
+    private final float mWindowSeconds;
+    private double mInferenceSeconds;          // moving average of one window inference, under mLock
+    private double mVirtualTime = 0;           // service of the least served active stream
+    private boolean mShutdown = false;
+
+    public class Stream {
+        private final String mId;
+        private final float mHopSeconds;
+        private final long mLatencyTargetNanos;
+        private final LiveSession mSession;
+        private final LatencyStats mLatency = new LatencyStats(256);
+        private final ArrayDeque<Chunk> mQueue = new ArrayDeque<>();
+        private int mQueuedSamples = 0;
+        private volatile double mService; // inference seconds used, the fair queuing tag
+        private boolean mBusy = false;
+        private boolean mClosed = false;
+        private WhisperEngine mEngine;    // engine of the worker serving the stream
+
+        private Stream(String id, float hopSeconds, long latencyTargetMs, LiveSession.Listener listener) {
+            mId = id;
+            mHopSeconds = hopSeconds;
+            mLatencyTargetNanos = latencyTargetMs * 1_000_000L;
+            mService = mVirtualTime;
+            mSession = new LiveSession(mWindowSeconds, hopSeconds, this::transcribe, listener);
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        // captureTimeNanos is the System.nanoTime() of the first sample, 0 to use the arrival time
+        public void write(float[] samples, long captureTimeNanos) {
+            long now = System.nanoTime();
+            long captureStart = (captureTimeNanos != 0) ? captureTimeNanos
+                    : now - samples.length * 1_000_000_000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+            mLock.lock();
+            try {
+                if (mClosed)
+                    return;
+                mQueue.add(new Chunk(samples, captureStart, now));
+                mQueuedSamples += samples.length;
+                mHasWork.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // No more audio, the rest of the queue is transcribed and committed before the stream goes
+        public void close() {
+            mLock.lock();
+            try {
+                mClosed = true;
+                mHasWork.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // Wait until the stream is closed and its last text delivered, false on timeout
+        public boolean awaitClosed(long timeoutMs) throws InterruptedException {
+            long remaining = timeoutMs * 1_000_000L;
+            mLock.lock();
+            try {
+                while (mStreams.contains(this)) {
+                    if (remaining <= 0)
+                        return false;
+                    remaining = mStreamClosed.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // Buffers waiting for a worker
+        public int getQueueDepth() {
+            mLock.lock();
+            try {
+                return mQueue.size();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // Audio waiting for a worker, in milliseconds
+        public long getQueuedMs() {
+            mLock.lock();
+            try {
+                return mQueuedSamples * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // How far the text is behind the audio: age of the oldest captured sample still queued
+        public long getLagMs() {
+            mLock.lock();
+            try {
+                return mQueue.isEmpty() ? 0 : (System.nanoTime() - mQueue.peek().captureStartNanos) / 1_000_000L;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // Capture to text latency of the updates
+        public LatencyStats getLatencyStats() {
+            return mLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: queue %d (%d ms), lag %d ms, latency %s",
+                    mId, getQueueDepth(), getQueuedMs(), getLagMs(), mLatency);
+        }
+
+        private double getLoad() {
+            return mInferenceSeconds / mHopSeconds;
+        }
+
+        private boolean isReady() {
+            return !mBusy && (!mQueue.isEmpty() || mClosed);
+        }
+
+        private boolean isOverdue(long now) {
+            return mLatencyTargetNanos > 0 && !mQueue.isEmpty() && now - mQueue.peek().arrivalNanos > mLatencyTargetNanos;
+        }
+
+        private String transcribe(float[] samples) {
+            WhisperEngine engine = mEngine;
+            long start = System.nanoTime();
+            String text;
+            synchronized (engine) {
+                text = engine.transcribeBuffer(samples).getText();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            // Every worker updates the shared estimate, admission reads it under the same lock
+            mLock.lock();
+            try {
+                mService += seconds;
+                mInferenceSeconds += INFERENCE_EWMA_WEIGHT * (seconds - mInferenceSeconds);
+            } finally {
+                mLock.unlock();
+            }
+            return text;
+        }
+    }
+
+    private static class Chunk {
+        final float[] samples;
+        final long captureStartNanos;
+        final long arrivalNanos;
+
+        Chunk(float[] samples, long captureStartNanos, long arrivalNanos) {
+            this.samples = samples;
+            this.captureStartNanos = captureStartNanos;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    // Creates poolSize engines from the factory, windowSeconds is the rolling window of every
+    // stream and estimatedInferenceMs the cost of one window inference until it is measured. The
+    // engines split the inference cores between them, see CpuBudget.buildPooled().
+    public StreamScheduler(EngineFactory factory, int poolSize, float windowSeconds, long estimatedInferenceMs) {
+        mWindowSeconds = windowSeconds;
+        mInferenceSeconds = estimatedInferenceMs / 1000.0;
+        for (int i = 0; i < poolSize; i++) {
+            WhisperEngine engine = CpuBudget.buildPooled(poolSize, factory::create);
+            if (engine == null)
+                break;
+            mEngines.add(engine);
+            Thread worker = new Thread(() -> workLoop(engine), "StreamWorker-" + i);
+            mWorkers.add(worker);
+            worker.start();
+        }
+        Log.d(TAG, "Scheduler is ready with " + mEngines.size() + " engines");
+    }
+
+    public int getPoolSize() {
+        return mEngines.size();
+    }
+
+    // Engines worth of inference the admitted streams need, compared against getCapacity()
+    public double getLoad() {
+        mLock.lock();
+        try {
+            double load = 0;
+            for (Stream stream : mStreams)
+                load += stream.getLoad();
+            return load;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public double getCapacity() {
+        // Engines beyond the cores only queue for them
+        return Math.min(mEngines.size(), CpuBudget.get().getCores()) * MAX_UTILIZATION;
+    }
+
+    public List<Stream> getStreams() {
+        mLock.lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(mStreams));
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Returns the new stream, or null if the pool cannot keep up with one more. latencyTargetMs
+    // gives the stream priority once its audio waits longer, 0 for none.
+    public Stream openStream(String id, float hopSeconds, long latencyTargetMs, LiveSession.Listener listener) {
+        mLock.lock();
+        try {
+            if (mShutdown || mEngines.isEmpty())
+                return null;
+            double load = 0;
+            for (Stream stream : mStreams)
+                load += stream.getLoad();
+            double streamLoad = mInferenceSeconds / hopSeconds;
+            if (load + streamLoad > getCapacity()) {
+                Log.d(TAG, String.format(Locale.US, "Rejecting stream %s, load %.2f + %.2f over capacity %.2f",
+                        id, load, streamLoad, getCapacity()));
+                return null;
+            }
+            Stream stream = new Stream(id, hopSeconds, latencyTargetMs, listener);
+            mStreams.add(stream);
+            return stream;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Stop the workers once their current update is done and deinitialize the engines
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            mHasWork.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        for (Thread worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (WhisperEngine engine : mEngines)
+            engine.deinitialize();
+    }
+
+    private void workLoop(WhisperEngine engine) {
+        while (true) {
+            Stream stream = null;
+            List<Chunk> chunks = new ArrayList<>();
+            boolean finish;
+            mLock.lock();
+            try {
+                while (!mShutdown && (stream = nextStream()) == null)
+                    mHasWork.awaitUninterruptibly();
+                if (mShutdown)
+                    return;
+                stream.mBusy = true;
+                stream.mEngine = engine;
+                chunks.addAll(stream.mQueue);
+                stream.mQueue.clear();
+                stream.mQueuedSamples = 0;
+                finish = stream.mClosed;
+            } finally {
+                mLock.unlock();
+            }
+
+            long captureEnd = 0;
+            try {
+                for (Chunk chunk : chunks) {
+                    stream.mSession.append(chunk.samples);
+                    captureEnd = chunk.captureStartNanos + chunk.samples.length * 1_000_000_000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+                }
+                if (finish) {
+                    stream.mSession.finish();
+                } else if (stream.mSession.isUpdateDue()) {
+                    stream.mSession.update();
+                    stream.mLatency.record(System.nanoTime() - captureEnd);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Stream " + stream.mId + " update failed", e);
+            }
+
+            mLock.lock();
+            try {
+                stream.mBusy = false;
+                if (finish) {
+                    mStreams.remove(stream);
+                    mStreamClosed.signalAll();
+                    Log.d(TAG, "Stream closed, " + stream);
+                }
+                mVirtualTime = Double.MAX_VALUE;
+                for (Stream active : mStreams)
+                    mVirtualTime = Math.min(mVirtualTime, active.mService);
+                if (mStreams.isEmpty())
+                    mVirtualTime = 0;
+                mHasWork.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // Overdue streams by earliest deadline, then the least served one
+    private Stream nextStream() {
+        long now = System.nanoTime();
+        Stream best = null;
+        boolean bestOverdue = false;
+        for (Stream stream : mStreams) {
+            if (!stream.isReady())
+                continue;
+            boolean overdue = stream.isOverdue(now);
+            if (best == null || (overdue && !bestOverdue)) {
+                best = stream;
+                bestOverdue = overdue;
+            } else if (overdue == bestOverdue) {
+                boolean better = overdue
+                        ? stream.mQueue.peek().arrivalNanos + stream.mLatencyTargetNanos
+                            < best.mQueue.peek().arrivalNanos + best.mLatencyTargetNanos
+                        : stream.mService < best.mService;
+                if (better)
+                    best = stream;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,44 @@
+package com.whispertflite.asr;
+
+// Generated audio for tests without any recording: tone bursts separated by silence, paced like
+// a microphone. A duration of 0 keeps generating until the recorder is stopped.
+public class SyntheticSource extends PacedAudioSource {
+    private final float mFrequencyHz;
+    private final long mBurstSamples;
+    private final long mPeriodSamples;
+    private final long mTotalSamples;
+    private long mPosition;
+
+    public SyntheticSource(float frequencyHz, float burstSeconds, float gapSeconds, float durationSeconds, float speed) {
+        super(speed);
+        mFrequencyHz = frequencyHz;
+        mBurstSamples = (long) (burstSeconds * SAMPLE_RATE);
+        mPeriodSamples = Math.max(1, mBurstSamples + (long) (gapSeconds * SAMPLE_RATE));
+        mTotalSamples = (long) (durationSeconds * SAMPLE_RATE);
+    }
+
+    @Override
+    public void start() {
+        mPosition = 0;
+        begin();
+    }
+
+    @Override
+    protected int fill(short[] samples, int count) {
+        if (mTotalSamples > 0)
+            count = (int) Math.min(count, mTotalSamples - mPosition);
+        if (count <= 0)
+            return -1;
+
+        for (int i = 0; i < count; i++, mPosition++) {
+            boolean inBurst = (mPosition % mPeriodSamples) < mBurstSamples;
+            float sample = inBurst ? 0.5f * (float) Math.sin(2 * Math.PI * mFrequencyHz * mPosition / SAMPLE_RATE) : 0f;
+            samples[i] = toPcm16(sample);
+        }
+        return count;
+    }
+
+    @Override
+    public void stop() {
+    }
+}
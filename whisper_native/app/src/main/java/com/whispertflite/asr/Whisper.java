@@ -1,212 +1,810 @@
-package com.whispertflite.asr;
-
-import android.content.Context;
-import android.util.Log;
-
-import com.whispertflite.engine.WhisperEngine;
-import com.whispertflite.engine.WhisperEngineJava;
-import com.whispertflite.engine.WhisperEngineNative;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-public class Whisper {
-
-    public interface WhisperListener {
-        void onUpdateReceived(String message);
-        void onResultReceived(String result);
-    }
-
-    private static final String TAG = "Whisper";
-    public static final String MSG_PROCESSING = "Processing...";
-    public static final String MSG_PROCESSING_DONE = "Processing done...!";
-    public static final String MSG_FILE_NOT_FOUND = "Input file doesn't exist..!";
-
-    public static final Action ACTION_TRANSCRIBE = Action.TRANSCRIBE;
-    public static final Action ACTION_TRANSLATE = Action.TRANSLATE;
-
-    private enum Action {
-        TRANSLATE, TRANSCRIBE
-    }
-
-    private final AtomicBoolean mInProgress = new AtomicBoolean(false);
-    private final Queue<float[]> audioBufferQueue = new LinkedList<>();
-
-    private final WhisperEngine mWhisperEngine;
-    private Action mAction;
-    private String mWavFilePath;
-    private WhisperListener mUpdateListener;
-
-    private final Lock taskLock = new ReentrantLock();
-    private final Condition hasTask = taskLock.newCondition();
-    private volatile boolean taskAvailable = false;
-
-    public Whisper(Context context) {
-//        this.mWhisperEngine = new WhisperEngineJava(context);
-        this.mWhisperEngine = new WhisperEngineNative(context);
-
-        // Start thread for file transcription for file transcription
-        Thread threadTranscbFile = new Thread(this::transcribeFileLoop);
-        threadTranscbFile.start();
-
-        // Start thread for buffer transcription for live mic feed transcription
-        Thread threadTranscbBuffer = new Thread(this::transcribeBufferLoop);
-        threadTranscbBuffer.start();
-    }
-
-    public void setListener(WhisperListener listener) {
-        this.mUpdateListener = listener;
-    }
-
-    public void loadModel(File modelPath, File vocabPath, boolean isMultilingual) {
-        loadModel(modelPath.getAbsolutePath(), vocabPath.getAbsolutePath(), isMultilingual);
-    }
-
-    public void loadModel(String modelPath, String vocabPath, boolean isMultilingual) {
-        try {
-            mWhisperEngine.initialize(modelPath, vocabPath, isMultilingual);
-        } catch (IOException e) {
-            Log.e(TAG, "Error initializing model...", e);
-            sendUpdate("Model initialization failed");
-        }
-    }
-
-    public void unloadModel() {
-        mWhisperEngine.deinitialize();
-    }
-
-    public void setAction(Action action) {
-        this.mAction = action;
-    }
-
-    public void setFilePath(String wavFile) {
-        this.mWavFilePath = wavFile;
-    }
-
-    public void start() {
-        if (!mInProgress.compareAndSet(false, true)) {
-            Log.d(TAG, "Execution is already in progress...");
-            return;
-        }
-        taskLock.lock();
-        try {
-            taskAvailable = true;
-            hasTask.signal();
-        } finally {
-            taskLock.unlock();
-        }
-    }
-
-    public void stop() {
-        mInProgress.set(false);
-    }
-
-    public boolean isInProgress() {
-        return mInProgress.get();
-    }
-
-    private void transcribeFileLoop() {
-        while (!Thread.currentThread().isInterrupted()) {
-            taskLock.lock();
-            try {
-                while (!taskAvailable) {
-                    hasTask.await();
-                }
-                transcribeFile();
-                taskAvailable = false;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } finally {
-                taskLock.unlock();
-            }
-        }
-    }
-
-    private void transcribeFile() {
-        try {
-            if (mWhisperEngine.isInitialized() && mWavFilePath != null) {
-                File waveFile = new File(mWavFilePath);
-                if (waveFile.exists()) {
-                    long startTime = System.currentTimeMillis();
-                    sendUpdate(MSG_PROCESSING);
-
-                    String result = null;
-                    synchronized (mWhisperEngine) {
-                        if (mAction == Action.TRANSCRIBE) {
-                            result = mWhisperEngine.transcribeFile(mWavFilePath);
-                        } else {
-//                            result = mWhisperEngine.getTranslation(mWavFilePath);
-                            Log.d(TAG, "TRANSLATE feature is not implemented");
-                        }
-                    }
-                    sendResult(result);
-
-                    long timeTaken = System.currentTimeMillis() - startTime;
-                    Log.d(TAG, "Time Taken for transcription: " + timeTaken + "ms");
-                    sendUpdate(MSG_PROCESSING_DONE);
-                } else {
-                    sendUpdate(MSG_FILE_NOT_FOUND);
-                }
-            } else {
-                sendUpdate("Engine not initialized or file path not set");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error during transcription", e);
-            sendUpdate("Transcription failed: " + e.getMessage());
-        } finally {
-            mInProgress.set(false);
-        }
-    }
-
-    private void sendUpdate(String message) {
-        if (mUpdateListener != null) {
-            mUpdateListener.onUpdateReceived(message);
-        }
-    }
-
-    private void sendResult(String message) {
-        if (mUpdateListener != null) {
-            mUpdateListener.onResultReceived(message);
-        }
-    }
-
-    /////////////////////// Live MIC feed transcription calls /////////////////////////////////
-    private void transcribeBufferLoop() {
-        while (!Thread.currentThread().isInterrupted()) {
-            float[] samples = readBuffer();
-            if (samples != null) {
-                synchronized (mWhisperEngine) {
-                    String result = mWhisperEngine.transcribeBuffer(samples);
-                    sendResult(result);
-                }
-            }
-        }
-    }
-
-    public void writeBuffer(float[] samples) {
-        synchronized (audioBufferQueue) {
-            audioBufferQueue.add(samples);
-            audioBufferQueue.notify();
-        }
-    }
-
-    private float[] readBuffer() {
-        synchronized (audioBufferQueue) {
-            while (audioBufferQueue.isEmpty()) {
-                try {
-                    audioBufferQueue.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return null;
-                }
-            }
-            return audioBufferQueue.poll();
-        }
-    }
-}
+package com.whispertflite.asr;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import com.whispertflite.cache.MelFeatureStore;
+import com.whispertflite.cache.TranscriptCache;
+import com.whispertflite.engine.EngineFactory;
+import com.whispertflite.engine.EngineHandle;
+import com.whispertflite.engine.EnginePool;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.engine.WhisperEngineJava;
+import com.whispertflite.engine.WhisperEngineNative;
+import com.whispertflite.utils.AssetUtil;
+import com.whispertflite.utils.CpuBudget;
+import com.whispertflite.utils.LatencyStats;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Whisper {
+
+    public interface WhisperListener {
+        void onUpdateReceived(String message);
+        void onResultReceived(String result);
+
+        // Tentative text of a live session, replaced by the next one, empty when the session ends
+        default void onPartialResultReceived(String partial) {
+        }
+
+        // Text of one 30 seconds chunk of a file as soon as it is decoded, the whole result still
+        // follows with onResultReceived()
+        default void onChunkResultReceived(int index, long startMs, long endMs, String text) {
+        }
+
+        // English translation of a TRANSCRIBE_AND_TRANSLATE request, right after its transcript
+        // came with onResultReceived()
+        default void onTranslationReceived(String translation) {
+        }
+    }
+
+    private static final String TAG = "Whisper";
+    public static final String MSG_PROCESSING = "Processing...";
+    public static final String MSG_PROCESSING_DONE = "Processing done...!";
+    public static final String MSG_FILE_NOT_FOUND = "Input file doesn't exist..!";
+    public static final String MSG_MODEL_LOADED = "Model loaded...!";
+    public static final String MSG_TASKS_NOT_SUPPORTED = "Model can only transcribe...!";
+
+    public static final Action ACTION_TRANSCRIBE = Action.TRANSCRIBE;
+    public static final Action ACTION_TRANSLATE = Action.TRANSLATE;
+    // Transcript and translation from a single encoder pass per chunk
+    public static final Action ACTION_TRANSCRIBE_AND_TRANSLATE = Action.TRANSCRIBE_AND_TRANSLATE;
+
+    private enum Action {
+        TRANSLATE, TRANSCRIBE, TRANSCRIBE_AND_TRANSLATE
+    }
+
+    private final AtomicBoolean mInProgress = new AtomicBoolean(false);
+    private final Queue<LiveBuffer> audioBufferQueue = new LinkedList<>();
+
+    // Current engine, replaced atomically once a new model is fully initialized
+    private final AtomicReference<EngineHandle> mEngineHandle = new AtomicReference<>();
+    private final ExecutorService mModelLoader = Executors.newSingleThreadExecutor();
+    private final Context mContext;
+    private Action mAction;
+    private String mWavFilePath;
+    private WhisperListener mUpdateListener;
+    private volatile FileTranscriber mFileRequest;  // file request running on an engine
+    private volatile EngineFactory mEngineFactory;  // more engines for the current model
+    private final AtomicReference<EnginePool> mChannelPool = new AtomicReference<>();  // idle channel engines of it
+    private volatile boolean mSplitChannels = false;
+    private volatile SpeechPacker mSpeechPacker;
+    private volatile long mFileTimeoutMs = 0;
+    private volatile long mLiveLatencyBudgetMs = 0;
+    private volatile TranscriptCache mCache;
+    private volatile MelFeatureStore mFeatureStore;
+    private volatile String mLanguage = "en";
+    private volatile ModelRouter mRouter;
+    private volatile long mRouterLiveTargetMs = 0;
+    private volatile long mRouterFileTargetMs = 0;
+    private volatile WhisperEngine mCascadeEngine;  // larger model for the file chunks the first one gets wrong
+    private String mCascadeName;                    // its name in cache keys, under this lock with the engine
+    private volatile WhisperEngine mDraftEngine;    // smaller model drafting tokens for speculative decoding
+    private final LatencyStats mLiveLatency = new LatencyStats(1024);
+    private volatile LiveSession mLiveSession;
+
+    private final Lock taskLock = new ReentrantLock();
+    private final Condition hasTask = taskLock.newCondition();
+    private volatile boolean taskAvailable = false;
+
+    private final Thread mFileThread;
+    private final Thread mBufferThread;
+
+    public Whisper(Context context) {
+        this.mContext = context;
+
+        // Start thread for file transcription for file transcription
+        mFileThread = new Thread(this::transcribeFileLoop);
+        mFileThread.start();
+
+        // Start thread for buffer transcription for live mic feed transcription
+        mBufferThread = new Thread(this::transcribeBufferLoop);
+        mBufferThread.start();
+    }
+
+    public void setListener(WhisperListener listener) {
+        this.mUpdateListener = listener;
+    }
+
+    public void loadModel(File modelPath, File vocabPath, boolean isMultilingual) {
+        loadModel(modelPath.getAbsolutePath(), vocabPath.getAbsolutePath(), isMultilingual);
+    }
+
+    // Loading a model while another one is active swaps it in once it is initialized,
+    // requests already running finish on the previous engine which is closed afterwards
+    public void loadModel(String modelPath, String vocabPath, boolean isMultilingual) {
+        WhisperEngine engine = createEngine();
+        try {
+            if (engine.initialize(modelPath, vocabPath, isMultilingual)) {
+                File modelFile = new File(modelPath);
+                String modelId = modelPath + "#" + modelFile.length() + "#" + modelFile.lastModified()
+                        + ":" + new File(vocabPath).getName();
+                setEngineFactory(() -> createEngine(modelPath, vocabPath, isMultilingual));
+                installEngine(new EngineHandle(engine, modelId));
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error initializing model...", e);
+        }
+        engine.deinitialize();
+        sendUpdate("Model initialization failed");
+    }
+
+    // Load a model mapped straight from an uncompressed APK asset, without copying it out first
+    public void loadModel(AssetFileDescriptor modelFd, File vocabPath, boolean isMultilingual) {
+        loadModel(modelFd, null, vocabPath, isMultilingual, null);
+    }
+
+    // Same as above by asset name, engines for channels and streams then map the asset again
+    public void loadModelAsset(String assetName, File vocabPath, boolean isMultilingual) {
+        try (AssetFileDescriptor modelFd = mContext.getAssets().openFd(assetName)) {
+            loadModel(modelFd, assetName, vocabPath, isMultilingual, () -> createAssetEngine(assetName, vocabPath, isMultilingual));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open model asset: " + assetName, e);
+            sendUpdate("Model initialization failed");
+        }
+    }
+
+    // Assets only change with the APK, its update time and the asset name identify the model;
+    // a bare descriptor is told apart by its region in the APK
+    private void loadModel(AssetFileDescriptor modelFd, String assetName, File vocabPath, boolean isMultilingual,
+                           EngineFactory factory) {
+        WhisperEngine engine = createEngine();
+        try {
+            if (engine.initialize(modelFd.getFileDescriptor(), modelFd.getStartOffset(),
+                    modelFd.getLength(), vocabPath.getAbsolutePath(), isMultilingual)) {
+                String asset = (assetName != null) ? assetName : modelFd.getStartOffset() + "+" + modelFd.getLength();
+                String modelId = "asset:" + asset + "@" + AssetUtil.getApkUpdateTime(mContext)
+                        + ":" + vocabPath.getName();
+                setEngineFactory(factory); // null when only the descriptor is known, channels share the one engine
+                installEngine(new EngineHandle(engine, modelId));
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error initializing model...", e);
+        }
+        engine.deinitialize();
+        sendUpdate("Model initialization failed");
+    }
+
+    // Warm up a replacement model in the background, new requests switch to it when it is ready
+    public void loadModelAsync(String modelPath, String vocabPath, boolean isMultilingual) {
+        mModelLoader.execute(() -> loadModel(modelPath, vocabPath, isMultilingual));
+    }
+
+    public void unloadModel() {
+        setEngineFactory(null);
+        EngineHandle previous = mEngineHandle.getAndSet(null);
+        if (previous != null)
+            previous.retire();
+    }
+
+    // Stops the worker threads and the model loader, waiting for requests still running to return,
+    // and closes every engine of this instance. It cannot be used afterwards.
+    public void shutdown() {
+        stop();
+        mModelLoader.shutdownNow();
+        mFileThread.interrupt();
+        mBufferThread.interrupt();
+        try {
+            mFileThread.join();
+            mBufferThread.join();
+            // A model being initialized is not interrupted, it is installed and unloaded below
+            mModelLoader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        setCascadeModel(null, null);
+        setDraftModel(null);
+        unloadModel();
+    }
+
+    // Channel engines of the previous model are closed, the ones in use as their request ends
+    private void setEngineFactory(EngineFactory factory) {
+        mEngineFactory = factory;
+        EnginePool previous = mChannelPool.getAndSet((factory != null) ? new EnginePool(factory) : null);
+        if (previous != null)
+            previous.close();
+    }
+
+    public boolean isModelLoaded() {
+        return mEngineHandle.get() != null;
+    }
+
+    private WhisperEngine createEngine() {
+//        return new WhisperEngineJava(mContext);
+        return new WhisperEngineNative(mContext);
+    }
+
+    // Extra engine for split channel requests, null if it cannot be initialized
+    private WhisperEngine createEngine(String modelPath, String vocabPath, boolean isMultilingual) {
+        WhisperEngine engine = createEngine();
+        try {
+            if (engine.initialize(modelPath, vocabPath, isMultilingual))
+                return engine;
+        } catch (IOException e) {
+            Log.e(TAG, "Error initializing channel engine...", e);
+        }
+        engine.deinitialize();
+        return null;
+    }
+
+    private WhisperEngine createAssetEngine(String assetName, File vocabPath, boolean isMultilingual) {
+        try (AssetFileDescriptor modelFd = mContext.getAssets().openFd(assetName)) {
+            WhisperEngine engine = createEngine();
+            if (engine.initialize(modelFd.getFileDescriptor(), modelFd.getStartOffset(), modelFd.getLength(),
+                    vocabPath.getAbsolutePath(), isMultilingual))
+                return engine;
+            engine.deinitialize();
+        } catch (IOException e) {
+            Log.e(TAG, "Error initializing engine from asset " + assetName, e);
+        }
+        return null;
+    }
+
+    // Creates more engines of the current model, null if no model is loaded or it was loaded
+    // from a bare descriptor
+    public EngineFactory getEngineFactory() {
+        return mEngineFactory;
+    }
+
+    // Engines of any model with the settings of this instance, e.g. for a ModelRouter
+    public EngineFactory createEngineFactory(String modelPath, String vocabPath, boolean isMultilingual) {
+        return () -> configure(createEngine(modelPath, vocabPath, isMultilingual));
+    }
+
+    public EngineFactory createAssetEngineFactory(String assetName, File vocabPath, boolean isMultilingual) {
+        return () -> configure(createAssetEngine(assetName, vocabPath, isMultilingual));
+    }
+
+    private WhisperEngine configure(WhisperEngine engine) {
+        if (engine != null) {
+            engine.setFeatureStore(mFeatureStore);
+            engine.setLanguage(mLanguage);
+        }
+        return engine;
+    }
+
+    // Send each request to a model of the router picked for its latency target instead of the
+    // loaded one: liveTargetMs for live buffers and session windows, fileTargetMs for files, 0 for
+    // the largest model. The caller shuts the router down, null goes back to the loaded model.
+    public void setModelRouter(ModelRouter router, long liveTargetMs, long fileTargetMs) {
+        this.mRouterLiveTargetMs = liveTargetMs;
+        this.mRouterFileTargetMs = fileTargetMs;
+        this.mRouter = router;
+    }
+
+    // Transcribe files with the loaded or routed model first and re-run the chunks that look wrong
+    // on a larger model from the factory, see CascadeTranscriber. name tells the model apart in
+    // cached transcripts, e.g. its file name. Null turns it off and closes the larger model. False
+    // if the factory cannot create an engine.
+    public boolean setCascadeModel(String name, EngineFactory factory) {
+        WhisperEngine engine = (factory != null) ? factory.create() : null;
+        WhisperEngine previous;
+        synchronized (this) {
+            previous = mCascadeEngine;
+            mCascadeEngine = engine;
+            mCascadeName = (engine != null) ? name : null;
+        }
+        if (previous != null) {
+            synchronized (previous) {
+                previous.deinitialize();
+            }
+        }
+        if (factory != null && engine == null) {
+            Log.d(TAG, "Cascade model is not available");
+            return false;
+        }
+        return true;
+    }
+
+    // Decode files speculatively: the model from the factory, e.g. whisper-tiny, drafts tokens and
+    // the loaded or routed model checks several of them per decoder step, see SpeculativeDecoder.
+    // The text is the same as without it. Null turns it off and closes the draft model. False if
+    // the factory cannot create an engine.
+    public boolean setDraftModel(EngineFactory factory) {
+        WhisperEngine engine = (factory != null) ? factory.create() : null;
+        WhisperEngine previous;
+        synchronized (this) {
+            previous = mDraftEngine;
+            mDraftEngine = engine;
+        }
+        if (previous != null) {
+            synchronized (previous) {
+                previous.deinitialize();
+            }
+        }
+        if (factory != null && engine == null) {
+            Log.d(TAG, "Draft model is not available");
+            return false;
+        }
+        return true;
+    }
+
+    // Lease on the model picked for this much audio, null when not routing
+    private ModelRouter.Lease acquireRoute(long audioMs, long latencyTargetMs) {
+        ModelRouter router = mRouter;
+        return (router != null) ? router.acquire(audioMs, latencyTargetMs) : null;
+    }
+
+    private void installEngine(EngineHandle handle) {
+        configure(handle.getEngine());
+        EngineHandle previous = mEngineHandle.getAndSet(handle);
+        if (previous != null)
+            previous.retire();
+
+        Log.d(TAG, "Engine is ready..." + handle.getName());
+        sendUpdate(MSG_MODEL_LOADED);
+    }
+
+    // Returns the current engine with a reference held, or null if no model is loaded
+    private EngineHandle acquireEngine() {
+        while (true) {
+            EngineHandle handle = mEngineHandle.get();
+            if (handle == null || handle.acquire())
+                return handle;
+        }
+    }
+
+    public void setAction(Action action) {
+        this.mAction = action;
+    }
+
+    public void setFilePath(String wavFile) {
+        this.mWavFilePath = wavFile;
+    }
+
+    // Transcribe each channel of multi-channel files separately, in parallel where the engine
+    // allows it, instead of downmixing them. Results are merged by time, one line per segment.
+    public void setSplitChannels(boolean splitChannels) {
+        this.mSplitChannels = splitChannels;
+    }
+
+    // Pack the speech of file requests into as few 30 seconds windows as possible instead of
+    // fixed chunks, skipping pauses. Results carry the source time of each window.
+    public void setSpeechPacking(boolean speechPacking) {
+        this.mSpeechPacker = speechPacking ? new SpeechPacker() : null;
+    }
+
+    // File requests running longer than this are cancelled, 0 (default) for no limit
+    public void setTimeout(long timeoutMs) {
+        this.mFileTimeoutMs = timeoutMs;
+    }
+
+    // Live buffers not transcribed within this time after writeBuffer() are dropped or cancelled,
+    // so the live feed does not fall behind. 0 (default) for no limit.
+    public void setLiveLatencyBudget(long budgetMs) {
+        this.mLiveLatencyBudgetMs = budgetMs;
+    }
+
+    // Repeated file requests with identical audio, model and action are answered from the cache
+    public void setCache(TranscriptCache cache) {
+        this.mCache = cache;
+    }
+
+    public TranscriptCache getCache() {
+        return mCache;
+    }
+
+    // Log-mel features shared by all models, so switching models on the same audio skips the mel stage
+    public void setFeatureStore(MelFeatureStore store) {
+        this.mFeatureStore = store;
+        for (WhisperEngine engine : getEngines())
+            engine.setFeatureStore(store);
+    }
+
+    // Spoken language, e.g. "en" (default) or "fr", for models exported with encode and decode
+    // signatures. Models with the language built in ignore it.
+    public void setLanguage(String language) {
+        if (!WhisperUtil.isLanguage(language)) {
+            Log.d(TAG, "Unknown language: " + language);
+            return;
+        }
+        this.mLanguage = language;
+        for (WhisperEngine engine : getEngines())
+            engine.setLanguage(language);
+    }
+
+    // Every engine taking the settings of this instance: the loaded model, the routed ones and
+    // the cascade and draft models
+    private List<WhisperEngine> getEngines() {
+        List<WhisperEngine> engines = new ArrayList<>();
+        EngineHandle handle = mEngineHandle.get();
+        if (handle != null)
+            engines.add(handle.getEngine());
+        ModelRouter router = mRouter;
+        if (router != null) {
+            for (ModelRouter.Route route : router.getRoutes())
+                engines.add(route.getEngine());
+        }
+        synchronized (this) {
+            if (mCascadeEngine != null)
+                engines.add(mCascadeEngine);
+        }
+        if (mDraftEngine != null)
+            engines.add(mDraftEngine);
+        return engines;
+    }
+
+    // Live buffers written from now on go through a rolling window of windowSeconds transcribed
+    // every hopSeconds, committed text comes as results and the tentative rest as partial results
+    public void startLiveSession(float windowSeconds, float hopSeconds) {
+        mLiveSession = new LiveSession(windowSeconds, hopSeconds, this::transcribeLive, new LiveSession.Listener() {
+            @Override
+            public void onCommitted(String text) {
+                sendResult(text);
+            }
+
+            @Override
+            public void onPartial(String text) {
+                if (mUpdateListener != null)
+                    mUpdateListener.onPartialResultReceived(text);
+            }
+        });
+    }
+
+    // Commit what is left once the buffers written so far are processed, then go back to
+    // transcribing each buffer on its own
+    public void endLiveSession() {
+        synchronized (audioBufferQueue) {
+            audioBufferQueue.add(LiveBuffer.END_OF_SESSION);
+            audioBufferQueue.notify();
+        }
+    }
+
+    // Scheduler serving many live streams on poolSize engines of the current model, apart from
+    // the engine of this instance. Null if getEngineFactory() is, or the engine kind cannot run
+    // several instances at once. The caller shuts it down.
+    public StreamScheduler createStreamScheduler(int poolSize, float windowSeconds, long estimatedInferenceMs) {
+        EngineFactory factory = mEngineFactory;
+        EngineHandle handle = mEngineHandle.get();
+        if (factory == null || handle == null || !handle.getEngine().supportsConcurrentInstances()) {
+            Log.d(TAG, "Stream scheduler is not available for the current engine");
+            return null;
+        }
+        return new StreamScheduler(factory, poolSize, windowSeconds, estimatedInferenceMs);
+    }
+
+    // Live feed latency percentiles, for buffers written with a capture time
+    public LatencyStats getLiveLatencyStats() {
+        return mLiveLatency;
+    }
+
+    public void start() {
+        if (!mInProgress.compareAndSet(false, true)) {
+            Log.d(TAG, "Execution is already in progress...");
+            return;
+        }
+        taskLock.lock();
+        try {
+            taskAvailable = true;
+            hasTask.signal();
+        } finally {
+            taskLock.unlock();
+        }
+    }
+
+    public void stop() {
+        mInProgress.set(false);
+
+        FileTranscriber request = mFileRequest;
+        if (request != null)
+            request.cancel();
+    }
+
+    public boolean isInProgress() {
+        return mInProgress.get();
+    }
+
+    private void transcribeFileLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            taskLock.lock();
+            try {
+                while (!taskAvailable) {
+                    hasTask.await();
+                }
+                transcribeFile();
+                taskAvailable = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                taskLock.unlock();
+            }
+        }
+    }
+
+    private void transcribeFile() {
+        EngineHandle handle = acquireEngine();
+        ModelRouter.Lease lease = null;
+        boolean measured = false;  // ran on the model to the end, a cost the router can learn from
+        try {
+            if (mWavFilePath != null)
+                lease = acquireRoute(WaveUtil.getDurationMs(mWavFilePath), mRouterFileTargetMs);
+            if ((handle != null || lease != null) && mWavFilePath != null) {
+                // A routed model takes the place of the loaded one for this request
+                WhisperEngine engine = (lease != null) ? lease.getEngine() : handle.getEngine();
+                String modelName = (lease != null) ? lease.getName() : handle.getName();
+                if (lease != null)
+                    Log.d(TAG, "Request is routed to " + modelName);
+                File waveFile = new File(mWavFilePath);
+                if (waveFile.exists()) {
+                    long startTime = System.currentTimeMillis();
+                    sendUpdate(MSG_PROCESSING);
+
+                    String result = null;
+                    String translation = null;  // TRANSCRIBE_AND_TRANSLATE only
+                    long deadline = (mFileTimeoutMs > 0) ? System.nanoTime() + mFileTimeoutMs * 1_000_000L : 0;
+                    boolean splitChannels = mSplitChannels;
+                    SpeechPacker packer = mSpeechPacker;
+                    String cascadeName;
+                    FileTranscriber request = createFileRequest(engine, deadline, splitChannels,
+                            (lease != null) ? null : mChannelPool.get(), packer);
+                    synchronized (this) {
+                        cascadeName = mCascadeName;
+                        request.setCascadeEngine(mCascadeEngine);
+                    }
+                    TranscriptCache cache = mCache;
+                    TranscriptCache.Key cacheKey = null;
+                    TranscriptCache.Key translationKey = null;
+                    if (cache != null) {
+                        // Consult the cache before queueing on the engine lock. Each output has an
+                        // entry of its own, so a dual request also answers single ones later.
+                        String language = engine.supportsTasks() ? ":" + mLanguage : "";
+                        String options = (mAction == Action.TRANSCRIBE)
+                                ? mAction.name() + language + (splitChannels ? ":channels" : "") + ((packer != null) ? ":packed" : "")
+                                        + ((request.getStrategy() == FileTranscriber.Strategy.CASCADE) ? ":cascade:" + cascadeName : "")
+                                : ((mAction == Action.TRANSLATE) ? Action.TRANSLATE : Action.TRANSCRIBE).name() + language;
+                        cacheKey = request.getCacheKey(modelName, options);
+                        if (mAction == Action.TRANSCRIBE_AND_TRANSLATE)
+                            translationKey = request.getCacheKey(modelName, Action.TRANSLATE.name() + language);
+                        TranscriptCache.Entry cached = cache.get(cacheKey);
+                        TranscriptCache.Entry cachedTranslation = (cached != null && translationKey != null) ? cache.get(translationKey) : null;
+                        if (cached != null && (translationKey == null || cachedTranslation != null)) {
+                            Log.d(TAG, "Transcript cache hit, hits: " + cache.getHitCount() + ", misses: " + cache.getMissCount());
+                            result = cached.text;
+                            translation = (cachedTranslation != null) ? cachedTranslation.text : null;
+                        }
+                    }
+
+                    if (result == null) {
+                        FileTranscriber.Output output;
+                        mFileRequest = request;
+                        try {
+                            output = request.run();
+                        } finally {
+                            mFileRequest = null;
+                        }
+                        if (output == null)
+                            sendUpdate(MSG_TASKS_NOT_SUPPORTED);
+                        else {
+                            result = output.text;
+                            translation = output.translation;
+                        }
+
+                        // Partial text of a stopped, timed out or failed request must not be cached
+                        boolean complete = output != null && output.finished && mInProgress.get()
+                                && (deadline == 0 || System.nanoTime() - deadline < 0);
+                        measured = complete;
+                        if (cache != null && result != null && complete) {
+                            cache.put(cacheKey, result, output.tokens);
+                            if (translation != null)
+                                cache.put(translationKey, translation, output.translationTokens);
+                        }
+                    }
+                    sendResult(result);
+                    if (translation != null)
+                        sendTranslation(translation);
+
+                    long timeTaken = System.currentTimeMillis() - startTime;
+                    Log.d(TAG, "Time Taken for transcription: " + timeTaken + "ms");
+                    Log.d(TAG, "CPU budget: " + CpuBudget.get());
+                    sendUpdate(MSG_PROCESSING_DONE);
+                } else {
+                    sendUpdate(MSG_FILE_NOT_FOUND);
+                }
+            } else {
+                sendUpdate("Engine not initialized or file path not set");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error during transcription", e);
+            sendUpdate("Transcription failed: " + e.getMessage());
+        } finally {
+            if (lease != null)
+                lease.close(measured);
+            if (handle != null)
+                handle.release();
+            mInProgress.set(false);
+        }
+    }
+
+    // The current action and file on the engine, with chunks going to the listener as they are
+    // decoded. Split channels, speculative and cascade decoding, and packing apply to transcripts.
+    private FileTranscriber createFileRequest(WhisperEngine engine, long deadline, boolean splitChannels,
+                                              EnginePool channelPool, SpeechPacker packer) {
+        FileTranscriber request = new FileTranscriber(engine, mWavFilePath, deadline, () -> !mInProgress.get(),
+                (index, startMs, endMs, chunk) -> {
+                    sendChunkResult(index, startMs, endMs, chunk.getText());
+                    return mInProgress.get();
+                });
+        if (mAction == Action.TRANSLATE) {
+            request.setTasks(WhisperEngine.Task.TRANSLATE);
+        } else if (mAction == Action.TRANSCRIBE_AND_TRANSLATE) {
+            request.setTasks(WhisperEngine.Task.TRANSCRIBE, WhisperEngine.Task.TRANSLATE);
+        } else {
+            request.setSplitChannels(splitChannels, channelPool, mFeatureStore);
+            request.setDraftEngine(mDraftEngine);
+            request.setSpeechPacker(packer);
+        }
+        return request;
+    }
+
+    private void sendUpdate(String message) {
+        if (mUpdateListener != null) {
+            mUpdateListener.onUpdateReceived(message);
+        }
+    }
+
+    private void sendResult(String message) {
+        if (mUpdateListener != null) {
+            mUpdateListener.onResultReceived(message);
+        }
+    }
+
+    private void sendTranslation(String translation) {
+        if (mUpdateListener != null) {
+            mUpdateListener.onTranslationReceived(translation);
+        }
+    }
+
+    private void sendChunkResult(int index, long startMs, long endMs, String text) {
+        if (mUpdateListener != null) {
+            mUpdateListener.onChunkResultReceived(index, startMs, endMs, text);
+        }
+    }
+
+    /////////////////////// Live MIC feed transcription calls /////////////////////////////////
+    private void transcribeBufferLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            LiveBuffer buffer = readBuffer();
+            LiveSession session = mLiveSession;
+            if (buffer == LiveBuffer.END_OF_SESSION) {
+                if (session != null)
+                    session.finish();
+                mLiveSession = null;
+            } else if (buffer != null && session != null) {
+                session.append(buffer.samples);
+                // Catch up on queued audio first, one inference then covers all of it
+                if (session.isUpdateDue() && !hasQueuedBuffers()) {
+                    session.update();
+                    if (buffer.captureEndNanos != 0)
+                        mLiveLatency.record(System.nanoTime() - buffer.captureEndNanos);
+                }
+            } else if (buffer != null) {
+                ModelRouter.Lease lease = acquireRoute(buffer.samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE, mRouterLiveTargetMs);
+                EngineHandle handle = (lease == null) ? acquireEngine() : null;
+                if (lease == null && handle == null)
+                    continue;
+                boolean measured = false;
+                try {
+                    WhisperEngine engine = (lease != null) ? lease.getEngine() : handle.getEngine();
+                    synchronized (engine) {
+                        // Skip buffers that went stale while waiting for the engine
+                        if (buffer.isExpired()) {
+                            Log.d(TAG, "Dropping stale live buffer...");
+                            continue;
+                        }
+                        engine.setDeadline(buffer.deadlineNanos);
+                        String result = engine.transcribeBuffer(buffer.samples).getText();
+                        measured = !buffer.isExpired();
+                        sendResult(result);
+
+                        // Audio to text latency, from the capture of the last sample of the buffer
+                        if (buffer.captureEndNanos != 0)
+                            mLiveLatency.record(System.nanoTime() - buffer.captureEndNanos);
+                    }
+                } finally {
+                    if (lease != null)
+                        lease.close(measured);
+                    if (handle != null)
+                        handle.release();
+                }
+            }
+        }
+    }
+
+    // Window inference for the live session, null while no model is loaded
+    private String transcribeLive(float[] samples) {
+        ModelRouter.Lease lease = acquireRoute(samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE, mRouterLiveTargetMs);
+        EngineHandle handle = (lease == null) ? acquireEngine() : null;
+        if (lease == null && handle == null)
+            return null;
+        try {
+            WhisperEngine engine = (lease != null) ? lease.getEngine() : handle.getEngine();
+            synchronized (engine) {
+                return engine.transcribeBuffer(samples).getText();
+            }
+        } finally {
+            if (lease != null)
+                lease.close();
+            if (handle != null)
+                handle.release();
+        }
+    }
+
+    private boolean hasQueuedBuffers() {
+        synchronized (audioBufferQueue) {
+            return !audioBufferQueue.isEmpty();
+        }
+    }
+
+    public void writeBuffer(float[] samples) {
+        writeBuffer(samples, 0);
+    }
+
+    // captureTimeNanos is the System.nanoTime() at which the first sample was captured,
+    // 0 if unknown, it feeds getLiveLatencyStats()
+    public void writeBuffer(float[] samples, long captureTimeNanos) {
+        // Session audio is never dropped, falling behind only makes the next window longer
+        long budgetMs = (mLiveSession != null) ? 0 : mLiveLatencyBudgetMs;
+        long deadlineNanos = (budgetMs > 0) ? System.nanoTime() + budgetMs * 1_000_000L : 0;
+        long captureEndNanos = (captureTimeNanos != 0)
+                ? captureTimeNanos + samples.length * 1_000_000_000L / WhisperUtil.WHISPER_SAMPLE_RATE : 0;
+        synchronized (audioBufferQueue) {
+            audioBufferQueue.add(new LiveBuffer(samples, deadlineNanos, captureEndNanos));
+            audioBufferQueue.notify();
+        }
+    }
+
+    private LiveBuffer readBuffer() {
+        synchronized (audioBufferQueue) {
+            while (true) {
+                while (audioBufferQueue.isEmpty()) {
+                    try {
+                        audioBufferQueue.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                LiveBuffer buffer = audioBufferQueue.poll();
+                if (!buffer.isExpired())
+                    return buffer;
+                Log.d(TAG, "Dropping stale live buffer...");
+            }
+        }
+    }
+
+    private static class LiveBuffer {
+        static final LiveBuffer END_OF_SESSION = new LiveBuffer(new float[0], 0, 0);
+
+        final float[] samples;
+        final long deadlineNanos;
+        final long captureEndNanos;
+
+        LiveBuffer(float[] samples, long deadlineNanos, long captureEndNanos) {
+            this.samples = samples;
+            this.deadlineNanos = deadlineNanos;
+            this.captureEndNanos = captureEndNanos;
+        }
+
+        boolean isExpired() {
+            return deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0;
+        }
+    }
+}
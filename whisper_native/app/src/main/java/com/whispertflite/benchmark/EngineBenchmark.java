@@ -0,0 +1,370 @@
+package com.whispertflite.benchmark;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.whispertflite.engine.EngineFactory;
+import com.whispertflite.engine.StageTimings;
+import com.whispertflite.engine.TranscriptionResult;
+import com.whispertflite.engine.WhisperEngine;
+import com.whispertflite.server.Json;
+import com.whispertflite.utils.LatencyStats;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// A/B benchmark of WhisperEngine implementations on the same corpus. Engines run one after the
+// other, each is created, warmed up on the whole corpus and then timed over the repetitions, so
+// the memory peaks belong to a single engine. Every transcription reports its stage timings
+// (mel, invoke, decode) per chunk; outputs are compared against the first engine.
+public class EngineBenchmark {
+    private static final String TAG = "EngineBenchmark";
+    private static final long MEMORY_SAMPLE_MS = 5;
+
+    private final int mWarmup;
+    private final int mRepetitions;
+    private final Map<String, EngineFactory> mEngines = new LinkedHashMap<>();
+
+    // An input file cut into the 30 second chunks the model takes, so every engine gets the same
+    // requests whatever it does with longer buffers
+    private static class Input {
+        final String name;
+        final List<float[]> chunks = new ArrayList<>();
+
+        Input(String name, float[] samples) {
+            this.name = name;
+            int chunkSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+            for (int offset = 0; offset < samples.length; offset += chunkSize)
+                chunks.add(Arrays.copyOfRange(samples, offset, Math.min(samples.length, offset + chunkSize)));
+        }
+    }
+
+    // warmup runs over the corpus are not timed, repetitions are
+    public EngineBenchmark(int warmup, int repetitions) {
+        mWarmup = Math.max(0, warmup);
+        mRepetitions = Math.max(1, repetitions);
+    }
+
+    // The factory returns an initialized engine, or null if it cannot be loaded
+    public void addEngine(String name, EngineFactory factory) {
+        mEngines.put(name, factory);
+    }
+
+    // Runs every engine over the corpus and returns the report
+    public Json run(List<File> corpus) {
+        List<Input> inputs = new ArrayList<>();
+        List<Object> corpusReport = Json.array();
+        double audioSeconds = 0;
+        for (File file : corpus) {
+            float[] samples = WaveUtil.getSamples(file.getAbsolutePath());
+            if (samples.length == 0) {
+                Log.e(TAG, "Skipping unreadable input: " + file);
+                continue;
+            }
+            inputs.add(new Input(file.getName(), samples));
+            audioSeconds += samples.length / (double) WhisperUtil.WHISPER_SAMPLE_RATE;
+            corpusReport.add(new Json().put("file", file.getName())
+                    .put("durationMs", samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE));
+        }
+
+        List<Object> engineReports = Json.array();
+        Map<String, List<String>> outputs = new LinkedHashMap<>();
+        for (Map.Entry<String, EngineFactory> entry : mEngines.entrySet()) {
+            List<String> texts = new ArrayList<>();
+            engineReports.add(runEngine(entry.getKey(), entry.getValue(), inputs, audioSeconds, texts));
+            if (!texts.isEmpty())
+                outputs.put(entry.getKey(), texts);
+        }
+
+        return new Json()
+                .put("warmup", mWarmup)
+                .put("repetitions", mRepetitions)
+                .put("corpus", corpusReport)
+                .put("engines", engineReports)
+                .put("agreement", agreement(inputs, outputs));
+    }
+
+    // Corpus files: the WAV files of a directory, or a text file listing one path per line
+    public static List<File> listCorpus(File source) {
+        List<File> files = new ArrayList<>();
+        if (source.isDirectory()) {
+            File[] entries = source.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".wav"));
+            if (entries != null) {
+                for (File entry : entries)
+                    files.add(entry);
+            }
+            files.sort(null);
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(source))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#"))
+                        files.add(new File(line));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read corpus list: " + source, e);
+            }
+        }
+        return files;
+    }
+
+    public static void writeReport(Json report, File output) throws IOException {
+        try (FileWriter writer = new FileWriter(output)) {
+            writer.write(report.toString());
+            writer.write("\n");
+        }
+    }
+
+    private Json runEngine(String name, EngineFactory factory, List<Input> inputs, double audioSeconds, List<String> texts) {
+        Json report = new Json().put("engine", name);
+        MemorySampler memory = new MemorySampler();
+        memory.start();
+
+        long loadStart = System.nanoTime();
+        WhisperEngine engine = factory.create();
+        long loadNanos = System.nanoTime() - loadStart;
+        if (engine == null) {
+            memory.stop();
+            Log.e(TAG, "Engine " + name + " failed to load");
+            return report.put("error", "load failed");
+        }
+        report.put("loadMs", loadNanos / 1_000_000L);
+
+        try {
+            int chunkCount = 0;
+            for (Input input : inputs)
+                chunkCount += input.chunks.size();
+            for (int i = 0; i < mWarmup; i++) {
+                for (Input input : inputs) {
+                    for (float[] chunk : input.chunks)
+                        engine.transcribeBuffer(chunk).getText();
+                }
+            }
+
+            int window = mRepetitions * chunkCount;
+            LatencyStats mel = new LatencyStats(window);
+            LatencyStats invoke = new LatencyStats(window);
+            LatencyStats decode = new LatencyStats(window);
+            LatencyStats perChunk = new LatencyStats(window);
+            long wallNanos = 0;
+            List<Object> fileReports = Json.array();
+            for (Input input : inputs) {
+                String first = null;
+                boolean stable = true;
+                long fileNanos = 0;
+                StageTimings fileTimings = new StageTimings();
+                for (int i = 0; i < mRepetitions; i++) {
+                    StringBuilder output = new StringBuilder();
+                    for (float[] chunk : input.chunks) {
+                        // Text is decoded on demand, it counts towards the chunk like it would for a caller
+                        long start = System.nanoTime();
+                        TranscriptionResult result = engine.transcribeBuffer(chunk);
+                        output.append(result.getText());
+                        long elapsed = System.nanoTime() - start;
+                        StageTimings timings = result.getTimings();
+
+                        fileNanos += elapsed;
+                        fileTimings.add(timings);
+                        mel.record(timings.getMelNanos());
+                        invoke.record(timings.getInvokeNanos());
+                        decode.record(timings.getDecodeNanos());
+                        perChunk.record(elapsed);
+                    }
+                    String text = output.toString();
+                    if (first == null)
+                        first = text;
+                    else if (!first.equals(text))
+                        stable = false;
+                }
+                wallNanos += fileNanos;
+                texts.add(first);
+                fileReports.add(new Json()
+                        .put("file", input.name)
+                        .put("meanMs", fileNanos / mRepetitions / 1e6)
+                        .put("melMs", fileTimings.getMelNanos() / mRepetitions / 1e6)
+                        .put("invokeMs", fileTimings.getInvokeNanos() / mRepetitions / 1e6)
+                        .put("decodeMs", fileTimings.getDecodeNanos() / mRepetitions / 1e6)
+                        .put("stable", stable)
+                        .put("text", first));
+            }
+
+            report.put("stagesPerChunk", new Json()
+                            .put("mel", stats(mel))
+                            .put("invoke", stats(invoke))
+                            .put("decode", stats(decode))
+                            .put("total", stats(perChunk)))
+                    .put("realTimeFactor", (audioSeconds > 0) ? wallNanos / 1e9 / mRepetitions / audioSeconds : 0)
+                    .put("files", fileReports);
+            Log.d(TAG, String.format(Locale.US, "%s: load %d ms, per chunk mel %s | invoke %s | decode %s",
+                    name, loadNanos / 1_000_000L, mel, invoke, decode));
+        } finally {
+            engine.deinitialize();
+            memory.stop();
+            report.put("memory", memory.toJson());
+        }
+        return report;
+    }
+
+    private static Json stats(LatencyStats stats) {
+        return new Json()
+                .put("p50Ms", stats.percentileNanos(50) / 1e6)
+                .put("p90Ms", stats.percentileNanos(90) / 1e6)
+                .put("maxMs", stats.percentileNanos(100) / 1e6);
+    }
+
+    // Every engine's output compared against the first engine's, per input
+    private static List<Object> agreement(List<Input> inputs, Map<String, List<String>> outputs) {
+        List<Object> report = Json.array();
+        if (outputs.size() < 2)
+            return report;
+        List<String> names = new ArrayList<>(outputs.keySet());
+        List<String> reference = outputs.get(names.get(0));
+        for (int e = 1; e < names.size(); e++) {
+            List<String> other = outputs.get(names.get(e));
+            int errors = 0, words = 0, exact = 0;
+            List<Object> files = Json.array();
+            for (int i = 0; i < inputs.size(); i++) {
+                List<String> expected = words(reference.get(i));
+                List<String> actual = words(other.get(i));
+                int distance = editDistance(expected, actual);
+                errors += distance;
+                words += expected.size();
+                if (distance == 0)
+                    exact++;
+                files.add(new Json().put("file", inputs.get(i).name)
+                        .put("exact", distance == 0)
+                        .put("wordErrorRate", rate(distance, expected.size())));
+            }
+            report.add(new Json()
+                    .put("reference", names.get(0))
+                    .put("engine", names.get(e))
+                    .put("exactFiles", exact)
+                    .put("wordErrorRate", rate(errors, words))
+                    .put("files", files));
+        }
+        return report;
+    }
+
+    private static double rate(int errors, int words) {
+        return (words == 0) ? (errors == 0 ? 0 : 1) : errors / (double) words;
+    }
+
+    // Words ignoring case and punctuation
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.trim().split("\\s+")) {
+            String normalized = word.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]", "");
+            if (!normalized.isEmpty())
+                words.add(normalized);
+        }
+        return words;
+    }
+
+    // Word level Levenshtein distance
+    private static int editDistance(List<String> a, List<String> b) {
+        int[] previous = new int[b.size() + 1];
+        int[] current = new int[b.size() + 1];
+        for (int j = 0; j <= b.size(); j++)
+            previous[j] = j;
+        for (int i = 1; i <= a.size(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.size(); j++) {
+                int substitution = previous[j - 1] + (a.get(i - 1).equals(b.get(j - 1)) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.size()];
+    }
+
+    // Peak Java heap and native heap while an engine runs, sampled on a thread of its own, and the
+    // resident set high-water mark of the process when the kernel lets it be reset at the start
+    private static class MemorySampler implements Runnable {
+        private final Thread mThread = new Thread(this, "MemorySampler");
+        private volatile boolean mRunning = true;
+        private volatile long mPeakJavaHeap = 0;
+        private volatile long mPeakNativeHeap = 0;
+        private boolean mRssReset = false;
+
+        void start() {
+            mRssReset = resetPeakRss();
+            sample();
+            mThread.start();
+        }
+
+        void stop() {
+            mRunning = false;
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                sample();
+                try {
+                    Thread.sleep(MEMORY_SAMPLE_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            Runtime runtime = Runtime.getRuntime();
+            mPeakJavaHeap = Math.max(mPeakJavaHeap, runtime.totalMemory() - runtime.freeMemory());
+            mPeakNativeHeap = Math.max(mPeakNativeHeap, Debug.getNativeHeapAllocatedSize());
+        }
+
+        Json toJson() {
+            long peakRss = readStatusKb("VmHWM") * 1024;
+            return new Json()
+                    .put("peakJavaHeapBytes", mPeakJavaHeap)
+                    .put("peakNativeHeapBytes", mPeakNativeHeap)
+                    // Without the reset the mark also covers whatever ran earlier in the process
+                    .put("peakRssBytes", peakRss)
+                    .put("peakRssIsPerEngine", mRssReset);
+        }
+
+        private static boolean resetPeakRss() {
+            try (FileWriter writer = new FileWriter("/proc/self/clear_refs")) {
+                writer.write("5");
+                return true;
+            } catch (IOException e) {
+                Log.d(TAG, "Peak RSS cannot be reset: " + e.getMessage());
+                return false;
+            }
+        }
+
+        private static long readStatusKb(String field) {
+            try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(field + ":"))
+                        return Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+                }
+            } catch (IOException | NumberFormatException e) {
+                Log.d(TAG, "Failed to read " + field + ": " + e.getMessage());
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.whispertflite.cache;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Persistent transcript cache keyed by a hash of the decoded PCM, the model identity and the
+// decoding options. Values live in one file per entry, the index is a memory mapped open
+// addressing table so lookups and LRU bookkeeping never parse anything at startup. Removed
+// entries leave tombstones on the probe sequences, the table is rebuilt without them when it is
+// opened and once they take a quarter of it.
+public class TranscriptCache {
+    private static final String TAG = "TranscriptCache";
+    private static final String INDEX_FILE = "index.bin";
+    private static final String VALUE_EXTENSION = ".entry";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final int DEFAULT_SLOTS = 4096;
+
+    // Index layout: header followed by fixed size slots
+    private static final int MAGIC = 0x57544331; // "WTC1"
+    private static final int HEADER_SIZE = 32;   // magic, slot count, clock, total bytes, entry count, tombstones
+    private static final int SLOT_SIZE = 32;     // key hi, key lo, last use, value size, state
+    private static final int OFF_SLOTS = 4;
+    private static final int OFF_CLOCK = 8;
+    private static final int OFF_TOTAL_BYTES = 16;
+    private static final int OFF_ENTRIES = 24;
+    private static final int OFF_DELETED = 28;
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_USED = 1;
+    private static final int SLOT_DELETED = 2;
+
+    public static final class Key {
+        final long hi;
+        final long lo;
+
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", hi, lo);
+        }
+    }
+
+    public static final class Entry {
+        public final String text;
+        public final int[] tokens;
+
+        public Entry(String text, int[] tokens) {
+            this.text = text;
+            this.tokens = tokens;
+        }
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private final int mSlots;
+    private final RandomAccessFile mIndexFile;
+    private final MappedByteBuffer mIndex;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public TranscriptCache(File dir, long maxBytes) throws IOException {
+        this(dir, maxBytes, DEFAULT_SLOTS);
+    }
+
+    public TranscriptCache(File dir, long maxBytes, int slots) throws IOException {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mSlots = slots;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create cache folder " + dir);
+
+        long indexSize = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        mIndexFile = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+        boolean fresh = mIndexFile.length() != indexSize;
+        mIndexFile.setLength(indexSize);
+        mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+
+        if (fresh || mIndex.getInt(0) != MAGIC || mIndex.getInt(OFF_SLOTS) != slots) {
+            Log.d(TAG, "Creating new cache index in " + dir);
+            clear();
+        } else {
+            compact();
+        }
+
+        // Values of puts a previous process did not get to commit
+        File[] orphans = dir.listFiles((d, name) -> name.endsWith(TMP_EXTENSION));
+        if (orphans != null) {
+            for (File orphan : orphans)
+                orphan.delete();
+        }
+    }
+
+    // 128 bit key over the raw sample bits plus model identity and decoding options
+    public static Key keyOf(float[] samples, String modelId, String options) {
+        return keyOf(new float[][]{samples}, modelId, options);
+    }
+
+    // Same over the channels of a recording one after the other
+    public static Key keyOf(float[][] channels, String modelId, String options) {
+        long h1 = 0x9E3779B97F4A7C15L;
+        long h2 = 0xC2B2AE3D27D4EB4FL;
+        long length = 0;
+        for (float[] samples : channels) {
+            for (float sample : samples) {
+                long bits = Float.floatToRawIntBits(sample) & 0xFFFFFFFFL;
+                h1 = (h1 ^ bits) * 0x100000001B3L;
+                h2 = Long.rotateLeft(h2 ^ bits, 31) * 0x87C37B91114253D5L;
+            }
+            length += samples.length;
+        }
+        h1 ^= length;
+        h2 ^= length;
+        for (byte b : (modelId + '\0' + options).getBytes(StandardCharsets.UTF_8)) {
+            h1 = (h1 ^ (b & 0xFF)) * 0x100000001B3L;
+            h2 = Long.rotateLeft(h2 ^ (b & 0xFF), 31) * 0x87C37B91114253D5L;
+        }
+        return new Key(mix(h1), mix(h2 ^ h1));
+    }
+
+    // Returns the cached entry or null, a hit refreshes the entry's LRU position
+    public synchronized Entry get(Key key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        Entry entry;
+        try {
+            entry = readValue(valueFile(key));
+        } catch (IOException e) {
+            Log.e(TAG, "Dropping unreadable cache entry " + key, e);
+            removeSlot(slot);
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mIndex.putLong(slotOffset(slot) + 16, nextClock());
+        mHits.incrementAndGet();
+        return entry;
+    }
+
+    // Concurrent puts of the same key each write their own temporary file, the last rename wins
+    public void put(Key key, String text, int[] tokens) {
+        File valueFile = valueFile(key);
+        File tmpFile;
+        try {
+            tmpFile = File.createTempFile(key.toString(), TMP_EXTENSION, mDir);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write cache entry " + key, e);
+            return;
+        }
+        long size;
+        try {
+            writeValue(tmpFile, text, tokens);
+            size = tmpFile.length();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write cache entry " + key, e);
+            tmpFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmpFile.renameTo(valueFile)) {
+                Log.e(TAG, "Failed to commit cache entry " + key);
+                tmpFile.delete();
+                return;
+            }
+
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                addTotalBytes(-mIndex.getInt(slotOffset(slot) + 24));
+            } else {
+                slot = freeSlot(key);
+                mIndex.putInt(OFF_ENTRIES, mIndex.getInt(OFF_ENTRIES) + 1);
+            }
+            int offset = slotOffset(slot);
+            mIndex.putLong(offset, key.hi);
+            mIndex.putLong(offset + 8, key.lo);
+            mIndex.putLong(offset + 16, nextClock());
+            mIndex.putInt(offset + 24, (int) size);
+            mIndex.putInt(offset + 28, SLOT_USED);
+            addTotalBytes(size);
+
+            // Evict least recently used entries, keeping the table at most 3/4 full
+            while (mIndex.getInt(OFF_ENTRIES) > 1 &&
+                    (mIndex.getLong(OFF_TOTAL_BYTES) > mMaxBytes || mIndex.getInt(OFF_ENTRIES) > mSlots * 3 / 4)) {
+                evictOldest();
+            }
+            if (mIndex.getInt(OFF_DELETED) > mSlots / 4)
+                compact();
+        }
+    }
+
+    public synchronized void clear() {
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(VALUE_EXTENSION) || name.endsWith(TMP_EXTENSION));
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        for (int i = 0; i < HEADER_SIZE + mSlots * SLOT_SIZE; i += 4)
+            mIndex.putInt(i, 0);
+        mIndex.putInt(0, MAGIC);
+        mIndex.putInt(OFF_SLOTS, mSlots);
+    }
+
+    public synchronized void close() {
+        mIndex.force();
+        try {
+            mIndexFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close cache index", e);
+        }
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return mIndex.getInt(OFF_ENTRIES);
+    }
+
+    public synchronized long getSizeBytes() {
+        return mIndex.getLong(OFF_TOTAL_BYTES);
+    }
+
+    private int findSlot(Key key) {
+        int slot = homeSlot(key);
+        for (int i = 0; i < mSlots; i++) {
+            int offset = slotOffset(slot);
+            int state = mIndex.getInt(offset + 28);
+            if (state == SLOT_EMPTY)
+                return -1;
+            if (state == SLOT_USED && mIndex.getLong(offset) == key.hi && mIndex.getLong(offset + 8) == key.lo)
+                return slot;
+            slot = (slot + 1) % mSlots;
+        }
+        return -1;
+    }
+
+    // First empty or deleted slot on the key's probe sequence, the table is never full. A reused
+    // tombstone is no longer counted.
+    private int freeSlot(Key key) {
+        int slot = homeSlot(key);
+        while (mIndex.getInt(slotOffset(slot) + 28) == SLOT_USED)
+            slot = (slot + 1) % mSlots;
+        if (mIndex.getInt(slotOffset(slot) + 28) == SLOT_DELETED)
+            mIndex.putInt(OFF_DELETED, mIndex.getInt(OFF_DELETED) - 1);
+        return slot;
+    }
+
+    // Rebuild the table without tombstones, so misses stop at an empty slot again
+    private void compact() {
+        int entries = mIndex.getInt(OFF_ENTRIES);
+        long[] used = new long[entries * 4];
+        int count = 0;
+        for (int slot = 0; slot < mSlots && count < entries; slot++) {
+            int offset = slotOffset(slot);
+            if (mIndex.getInt(offset + 28) != SLOT_USED)
+                continue;
+            used[count * 4] = mIndex.getLong(offset);
+            used[count * 4 + 1] = mIndex.getLong(offset + 8);
+            used[count * 4 + 2] = mIndex.getLong(offset + 16);
+            used[count * 4 + 3] = mIndex.getInt(offset + 24);
+            count++;
+        }
+        for (int i = HEADER_SIZE; i < HEADER_SIZE + mSlots * SLOT_SIZE; i += 4)
+            mIndex.putInt(i, 0);
+        mIndex.putInt(OFF_DELETED, 0);
+        for (int i = 0; i < count; i++) {
+            Key key = new Key(used[i * 4], used[i * 4 + 1]);
+            int offset = slotOffset(freeSlot(key));
+            mIndex.putLong(offset, key.hi);
+            mIndex.putLong(offset + 8, key.lo);
+            mIndex.putLong(offset + 16, used[i * 4 + 2]);
+            mIndex.putInt(offset + 24, (int) used[i * 4 + 3]);
+            mIndex.putInt(offset + 28, SLOT_USED);
+        }
+    }
+
+    private void evictOldest() {
+        int oldest = -1;
+        long oldestUse = Long.MAX_VALUE;
+        for (int slot = 0; slot < mSlots; slot++) {
+            int offset = slotOffset(slot);
+            if (mIndex.getInt(offset + 28) == SLOT_USED && mIndex.getLong(offset + 16) < oldestUse) {
+                oldestUse = mIndex.getLong(offset + 16);
+                oldest = slot;
+            }
+        }
+        if (oldest >= 0) {
+            int offset = slotOffset(oldest);
+            Key key = new Key(mIndex.getLong(offset), mIndex.getLong(offset + 8));
+            valueFile(key).delete();
+            removeSlot(oldest);
+            Log.d(TAG, "Evicted cache entry " + key);
+        }
+    }
+
+    private void removeSlot(int slot) {
+        int offset = slotOffset(slot);
+        addTotalBytes(-mIndex.getInt(offset + 24));
+        mIndex.putInt(offset + 28, SLOT_DELETED);
+        mIndex.putInt(OFF_ENTRIES, mIndex.getInt(OFF_ENTRIES) - 1);
+        mIndex.putInt(OFF_DELETED, mIndex.getInt(OFF_DELETED) + 1);
+    }
+
+    private void addTotalBytes(long delta) {
+        mIndex.putLong(OFF_TOTAL_BYTES, mIndex.getLong(OFF_TOTAL_BYTES) + delta);
+    }
+
+    private long nextClock() {
+        long clock = mIndex.getLong(OFF_CLOCK) + 1;
+        mIndex.putLong(OFF_CLOCK, clock);
+        return clock;
+    }
+
+    private int homeSlot(Key key) {
+        return (int) Long.remainderUnsigned(key.lo, mSlots);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private File valueFile(Key key) {
+        return new File(mDir, key + VALUE_EXTENSION);
+    }
+
+    // Value layout: UTF-8 text, then token ids
+    private static void writeValue(File file, String text, int[] tokens) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(textBytes.length);
+            out.write(textBytes);
+            out.writeInt(tokens.length);
+            for (int token : tokens)
+                out.writeInt(token);
+        }
+    }
+
+    private static Entry readValue(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] textBytes = new byte[in.readInt()];
+            in.readFully(textBytes);
+            int[] tokens = new int[in.readInt()];
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = in.readInt();
+            return new Entry(new String(textBytes, StandardCharsets.UTF_8), tokens);
+        }
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93F30B63C0BL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
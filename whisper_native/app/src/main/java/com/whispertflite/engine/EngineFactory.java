@@ -0,0 +1,7 @@
+package com.whispertflite.engine;
+
+// Creates engines for the currently loaded model, for callers that run several at once
+public interface EngineFactory {
+    // Returns a new initialized engine, or null if none can be created
+    WhisperEngine create();
+}
@@ -0,0 +1,79 @@
+package com.whispertflite.engine;
+
+import android.util.Log;
+
+import com.whispertflite.utils.CpuBudget;
+
+import java.util.ArrayDeque;
+
+// Idle engines of one model kept between requests, so split channel requests do not initialize
+// and close an engine per extra channel every time. Engines are created on demand and stay open
+// until close(); one given back after close() is deinitialized right away.
+public class EnginePool {
+    private static final String TAG = "EnginePool";
+
+    private final EngineFactory mFactory;
+    private final ArrayDeque<WhisperEngine> mIdle = new ArrayDeque<>();
+    private int mCreated = 0;
+    private boolean mClosed = false;
+
+    public EnginePool(EngineFactory factory) {
+        mFactory = factory;
+    }
+
+    // An idle engine, or a new one built to run beside instances - 1 others, see
+    // CpuBudget.buildPooled(). Null if the pool is closed or the factory cannot create one.
+    public WhisperEngine take(int instances) {
+        synchronized (this) {
+            if (mClosed)
+                return null;
+            if (!mIdle.isEmpty())
+                return mIdle.pop();
+        }
+        WhisperEngine engine = CpuBudget.buildPooled(instances, mFactory::create);
+        if (engine == null)
+            return null;
+        synchronized (this) {
+            if (!mClosed) {
+                mCreated++;
+                return engine;
+            }
+        }
+        engine.deinitialize();
+        return null;
+    }
+
+    // Back to the idle engines when reusable, closed otherwise, e.g. after a cancel that may
+    // still be pending for its next request
+    public void give(WhisperEngine engine, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !mClosed) {
+                mIdle.push(engine);
+                return;
+            }
+        }
+        close(engine);
+    }
+
+    // Closes the idle engines, the ones taken are closed as they are given back
+    public void close() {
+        ArrayDeque<WhisperEngine> idle;
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            idle = new ArrayDeque<>(mIdle);
+            mIdle.clear();
+        }
+        for (WhisperEngine engine : idle)
+            close(engine);
+        Log.d(TAG, "Engine pool is closed, engines created: " + mCreated);
+    }
+
+    // Wait for a request still holding the engine lock to leave it
+    private static void close(WhisperEngine engine) {
+        synchronized (engine) {
+            engine.deinitialize();
+        }
+    }
+}
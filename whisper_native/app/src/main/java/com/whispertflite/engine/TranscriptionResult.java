@@ -0,0 +1,152 @@
+package com.whispertflite.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Output of a transcription: every token id the model produced, chunk after chunk, with the
+// text and the timestamped segments decoded from them on first use
+public final class TranscriptionResult {
+    public static final long CHUNK_MS = 30_000;
+    private static final long TIMESTAMP_MS = 20;
+
+    // Text between two timestamp tokens, or the whole chunk for models that emit none
+    public static final class Segment {
+        public final long startMs;
+        public final long endMs;
+        public final String text;
+
+        public Segment(long startMs, long endMs, String text) {
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.text = text;
+        }
+    }
+
+    private final int[] mTokens;
+    private final int[] mChunkStarts;  // index of the first token of each chunk in mTokens
+    private final long mAudioMs;
+    private final Detokenizer mDetokenizer;
+    private final StageTimings mTimings;
+    private String mText;
+    private List<Segment> mSegments;
+
+    // One chunk of at most 30 seconds, tokens up to the end token
+    public TranscriptionResult(int[] tokens, long audioMs, Detokenizer detokenizer, StageTimings timings) {
+        this(tokens, new int[]{0}, audioMs, detokenizer, timings);
+    }
+
+    private TranscriptionResult(int[] tokens, int[] chunkStarts, long audioMs, Detokenizer detokenizer, StageTimings timings) {
+        mTokens = tokens;
+        mChunkStarts = chunkStarts;
+        mAudioMs = audioMs;
+        mDetokenizer = detokenizer;
+        mTimings = (timings != null) ? timings : new StageTimings();
+    }
+
+    // Nothing transcribed, e.g. no model is loaded or the request was cancelled before the first chunk
+    public static TranscriptionResult empty(long audioMs) {
+        return new TranscriptionResult(new int[0], new int[0], audioMs, null, null);
+    }
+
+    // Consecutive 30 seconds chunks of one audio as a single result
+    public static TranscriptionResult concat(List<TranscriptionResult> chunks, long audioMs, StageTimings timings) {
+        int length = 0;
+        Detokenizer detokenizer = null;
+        for (TranscriptionResult chunk : chunks) {
+            length += chunk.mTokens.length;
+            if (detokenizer == null)
+                detokenizer = chunk.mDetokenizer;
+        }
+
+        int[] tokens = new int[length];
+        int[] chunkStarts = new int[chunks.size()];
+        int position = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int[] chunkTokens = chunks.get(i).mTokens;
+            chunkStarts[i] = position;
+            System.arraycopy(chunkTokens, 0, tokens, position, chunkTokens.length);
+            position += chunkTokens.length;
+        }
+        return new TranscriptionResult(tokens, chunkStarts, audioMs, detokenizer, timings);
+    }
+
+    // Special and timestamp tokens included; the array is not copied, do not modify it
+    public int[] getTokens() {
+        return mTokens;
+    }
+
+    // Tokens that decode to text, special and timestamp tokens left out
+    public int getTextTokenCount() {
+        if (mDetokenizer == null)
+            return 0;
+        int tokenEOT = mDetokenizer.getTokenEOT();
+        int count = 0;
+        for (int token : mTokens) {
+            if (token < tokenEOT)
+                count++;
+        }
+        return count;
+    }
+
+    public int getChunkCount() {
+        return mChunkStarts.length;
+    }
+
+    public long getAudioMs() {
+        return mAudioMs;
+    }
+
+    public StageTimings getTimings() {
+        return mTimings;
+    }
+
+    public synchronized String getText() {
+        if (mText == null)
+            mText = (mDetokenizer != null) ? mDetokenizer.decode(mTokens, 0, mTokens.length) : "";
+        return mText;
+    }
+
+    // Times are from the start of the audio, chunk i starts at i * 30 seconds
+    public synchronized List<Segment> getSegments() {
+        if (mSegments == null)
+            mSegments = (mDetokenizer != null) ? Collections.unmodifiableList(parseSegments()) : Collections.emptyList();
+        return mSegments;
+    }
+
+    private List<Segment> parseSegments() {
+        List<Segment> segments = new ArrayList<>();
+        int tokenEOT = mDetokenizer.getTokenEOT();
+        int tokenBEG = mDetokenizer.getTokenBEG();
+        for (int chunk = 0; chunk < mChunkStarts.length; chunk++) {
+            long chunkStartMs = chunk * CHUNK_MS;
+            long chunkEndMs = Math.max(chunkStartMs, Math.min(chunkStartMs + CHUNK_MS, mAudioMs));
+            int end = (chunk + 1 < mChunkStarts.length) ? mChunkStarts[chunk + 1] : mTokens.length;
+
+            // Text runs from the timestamp before it, or the end of the previous segment, to the next one
+            long lastMs = chunkStartMs;
+            int textStart = -1;
+            for (int i = mChunkStarts[chunk]; i < end; i++) {
+                int token = mTokens[i];
+                if (token >= tokenBEG) {
+                    long timeMs = chunkStartMs + (token - tokenBEG) * TIMESTAMP_MS;
+                    if (textStart >= 0) {
+                        segments.add(new Segment(lastMs, timeMs, mDetokenizer.decode(mTokens, textStart, i)));
+                        textStart = -1;
+                    }
+                    lastMs = timeMs;
+                } else if (token < tokenEOT && textStart < 0) {
+                    textStart = i;
+                }
+            }
+            if (textStart >= 0)
+                segments.add(new Segment(lastMs, Math.max(lastMs, chunkEndMs), mDetokenizer.decode(mTokens, textStart, end)));
+        }
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+}
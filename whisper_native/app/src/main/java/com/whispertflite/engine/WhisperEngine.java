@@ -1,11 +1,74 @@
-package com.whispertflite.engine;
-
-import java.io.IOException;
-
-public interface WhisperEngine {
-    boolean isInitialized();
-    boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException;
-    void deinitialize();
-    String transcribeFile(String wavePath);
-    String transcribeBuffer(float[] samples);
-}
+package com.whispertflite.engine;
+
+import com.whispertflite.cache.MelFeatureStore;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface WhisperEngine {
+    // What the decoder makes of the speech, picked at run time by models that support tasks
+    enum Task {
+        TRANSCRIBE, TRANSLATE
+    }
+
+    boolean isInitialized();
+    boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException;
+    // Map the model in place from an open file, e.g. an uncompressed APK asset
+    boolean initialize(FileDescriptor modelFd, long modelOffset, long modelLength, String vocabPath, boolean multilingual) throws IOException;
+    void deinitialize();
+    TranscriptionResult transcribeFile(String wavePath);
+    // Transcribe chunk by chunk, handing each text to the listener as soon as it is decoded instead
+    // of collecting the whole transcript. False if stopped by the listener, cancelled or timed out.
+    boolean transcribeFile(String wavePath, ChunkListener listener);
+    // Same for audio already read from a file as 16 kHz mono, e.g. to key a cache on it, so the
+    // file is not decoded twice. Features go through the feature store like those of a file.
+    boolean transcribeSamples(float[] samples, ChunkListener listener);
+    TranscriptionResult transcribeBuffer(float[] samples);
+    // Transcribe length float32 samples in native order starting at sample offset of a direct
+    // buffer, read in place where the engine can
+    TranscriptionResult transcribeDirect(ByteBuffer pcm, int offset, int length);
+    // Engine owned direct buffer of at least the given samples for transcribeDirect, filled by the
+    // caller instead of a float[]. A larger request replaces it, float[] requests may overwrite it.
+    ByteBuffer getInputBuffer(int samples);
+    // Transcribe one chunk of precomputed 80x3000 log-mel features, float32 in native order
+    TranscriptionResult transcribeMel(ByteBuffer melFeatures);
+    // File transcriptions read and fill this store instead of always recomputing features, null to disable
+    void setFeatureStore(MelFeatureStore store);
+    // True if the model has separate encode and decode signatures, see generate_model.py, so task
+    // and language are picked per request and one encoder pass can be decoded for several tasks.
+    // Other models transcribe in the language and task they were exported with.
+    boolean supportsTasks();
+    // Spoken language of later requests on models that support tasks, e.g. "en" (default) or "fr".
+    // False if the code is unknown.
+    boolean setLanguage(String language);
+    // Runs the encoder once per 30 seconds chunk and the decoder once per task on its output, one
+    // result per task in the same order. Null if the model does not support tasks.
+    TranscriptionResult[] transcribeTasks(float[] samples, Task... tasks);
+    // True if the model also has a decode_step signature, see generate_model.py, so the caller can
+    // drive greedy decoding itself, e.g. to check the tokens of a draft model (SpeculativeDecoder)
+    boolean supportsStepDecoding();
+    // Decoder prompt of the current language for the task: start, language, task and no timestamps
+    int[] getPrompt(Task task);
+    // Run the encoder on up to one 30 seconds chunk of samples from offset, for the decodeStep()
+    // calls that follow. Starts a new request as far as cancel() goes. False if cancelled or the
+    // model has no step signature.
+    boolean encodeChunk(float[] samples, int offset);
+    // One decoder invocation over the first length tokens on the last encoded chunk, next[i] is the
+    // greedy token after tokens[0..i]. Null if cancelled.
+    int[] decodeStep(int[] tokens, int length);
+    // Token table of the loaded model, for results put together outside the engine
+    Detokenizer getDetokenizer();
+    // True if several initialized instances can transcribe at the same time
+    boolean supportsConcurrentInstances();
+    // Stage timings of the last completed transcription, read from the thread that ran it
+    StageTimings getLastTimings();
+
+    // Abort the running transcription, or the next one when called between requests, it returns
+    // early with the chunks done so far
+    void cancel();
+    // Cancel the next transcription once System.nanoTime() passes deadlineNanos, 0 for none.
+    // The deadline applies to a single request and is cleared when it completes; encodeChunk()
+    // and every decodeStep() are requests of their own.
+    void setDeadline(long deadlineNanos);
+}
@@ -1,237 +1,670 @@
-package com.whispertflite.engine;
-
-import android.content.Context;
-import android.util.Log;
-
-//import com.google.android.gms.tflite.client.TfLiteInitializationOptions;
-//import com.google.android.gms.tflite.gpu.support.TfLiteGpu;
-//import com.google.android.gms.tflite.java.TfLite;
-import com.whispertflite.utils.WaveUtil;
-import com.whispertflite.utils.WhisperUtil;
-
-import org.tensorflow.lite.DataType;
-import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.Tensor;
-//import org.tensorflow.lite.gpu.CompatibilityList;
-//import org.tensorflow.lite.gpu.GpuDelegate;
-//import org.tensorflow.lite.nnapi.NnApiDelegate;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
-
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
-
-public class WhisperEngineJava implements WhisperEngine {
-    private final String TAG = "WhisperEngineJava";
-    private final WhisperUtil mWhisperUtil = new WhisperUtil();
-
-    private final Context mContext;
-    private boolean mIsInitialized = false;
-    private Interpreter mInterpreter = null;
-//    private GpuDelegate gpuDelegate;
-
-    public WhisperEngineJava(Context context) {
-        mContext = context;
-    }
-
-    @Override
-    public boolean isInitialized() {
-        return mIsInitialized;
-    }
-
-    @Override
-    public boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException {
-        // Load model
-        loadModel(modelPath);
-        Log.d(TAG, "Model is loaded..." + modelPath);
-
-        // Load filters and vocab
-        boolean ret = mWhisperUtil.loadFiltersAndVocab(multilingual, vocabPath);
-        if (ret) {
-            mIsInitialized = true;
-            Log.d(TAG, "Filters and Vocab are loaded..." + vocabPath);
-        } else {
-            mIsInitialized = false;
-            Log.d(TAG, "Failed to load Filters and Vocab...");
-        }
-
-        return mIsInitialized;
-    }
-
-    // Unload the model by closing the interpreter
-    @Override
-    public void deinitialize() {
-        if (mInterpreter != null) {
-            mInterpreter.close();
-            mInterpreter = null; // Optional: Set to null to avoid accidental reuse
-        }
-    }
-
-    @Override
-    public String transcribeFile(String wavePath) {
-        // Calculate Mel spectrogram
-        Log.d(TAG, "Calculating Mel spectrogram...");
-        float[] melSpectrogram = getMelSpectrogram(wavePath);
-        Log.d(TAG, "Mel spectrogram is calculated...!");
-
-        // Perform inference
-        String result = runInference(melSpectrogram);
-        Log.d(TAG, "Inference is executed...!");
-
-        return result;
-    }
-
-    @Override
-    public String transcribeBuffer(float[] samples) {
-        return null;
-    }
-
-    // Load TFLite model
-    private void loadModel(String modelPath) throws IOException {
-        FileInputStream fileInputStream = new FileInputStream(modelPath);
-        FileChannel fileChannel = fileInputStream.getChannel();
-        long startOffset = 0;
-        long declaredLength = fileChannel.size();
-        ByteBuffer tfliteModel = fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
-
-        // Set the number of threads for inference
-        Interpreter.Options options = new Interpreter.Options();
-        options.setNumThreads(Runtime.getRuntime().availableProcessors());
-//        options.setUseXNNPACK(true);
-
-//        boolean isNNAPI = true;
-//        if (isNNAPI) {
-//            // Initialize interpreter with NNAPI delegate for Android Pie or above
-//            NnApiDelegate nnapiDelegate = new NnApiDelegate();
-//            options.addDelegate(nnapiDelegate);
-////                    options.setUseNNAPI(false);
-//                    options.setAllowFp16PrecisionForFp32(true);
-//                    options.setAllowBufferHandleOutput(true);
-//            options.setUseNNAPI(true);
-//        }
-
-        // Check if GPU delegate is available asynchronously
-//        TfLiteGpu.isGpuDelegateAvailable(mContext).addOnCompleteListener(task -> {
-//            if (task.isSuccessful() && task.getResult()) {
-//                // GPU is available; initialize the interpreter with GPU delegate
-////                    GpuDelegate gpuDelegate = new GpuDelegate();
-////                    Interpreter.Options options = new Interpreter.Options().addDelegate(gpuDelegate);
-////                    tflite = new Interpreter(loadModelFile(), options);
-//                TfLite.initialize(mContext, TfLiteInitializationOptions.builder().setEnableGpuDelegateSupport(true).build());
-//                Log.d(TAG, "GPU is available; initialize the interpreter with GPU delegate........................");
-//            } else {
-//                // GPU is not available; fallback to CPU
-////                    tflite = new Interpreter(loadModelFile());
-////                    System.out.println("Initialized with CPU.");
-//                Log.d(TAG, "GPU is not available; fallback to CPU........................");
-//            }
-//        });
-        
-//        boolean isGPU = true;
-//        if (isGPU) {
-//            gpuDelegate = new GpuDelegate();
-//            options.setPrecisionLossAllowed(true); // It seems that the default is true
-//            options.setInferencePreference(GpuDelegate.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
-//             .setPrecisionLossAllowed(true) // Allow FP16 precision for faster performance
-//                    .setInferencePreference(GpuDelegate.Options.INFERENCE_PREFERENCE_FAST_SINGLE_ANSWER);
-//            options.addDelegate(gpuDelegate);
-//        }
-
-        mInterpreter = new Interpreter(tfliteModel, options);
-    }
-
-    private float[] getMelSpectrogram(String wavePath) {
-        // Get samples in PCM_FLOAT format
-        float[] samples = WaveUtil.getSamples(wavePath);
-
-        int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
-        float[] inputSamples = new float[fixedInputSize];
-        int copyLength = Math.min(samples.length, fixedInputSize);
-        System.arraycopy(samples, 0, inputSamples, 0, copyLength);
-
-        int cores = Runtime.getRuntime().availableProcessors();
-        return mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, cores);
-    }
-
-    private String runInference(float[] inputData) {
-        // Create input tensor
-        Tensor inputTensor = mInterpreter.getInputTensor(0);
-        TensorBuffer inputBuffer = TensorBuffer.createFixedSize(inputTensor.shape(), inputTensor.dataType());
-//        printTensorDump("Input Tensor Dump ===>", inputTensor);
-
-        // Create output tensor
-        Tensor outputTensor = mInterpreter.getOutputTensor(0);
-        TensorBuffer outputBuffer = TensorBuffer.createFixedSize(outputTensor.shape(), DataType.FLOAT32);
-//        printTensorDump("Output Tensor Dump ===>", outputTensor);
-
-        // Load input data
-        int inputSize = inputTensor.shape()[0] * inputTensor.shape()[1] * inputTensor.shape()[2] * Float.BYTES;
-        ByteBuffer inputBuf = ByteBuffer.allocateDirect(inputSize);
-        inputBuf.order(ByteOrder.nativeOrder());
-        for (float input : inputData) {
-            inputBuf.putFloat(input);
-        }
-
-        // To test mel data as a input directly
-//        try {
-//            byte[] bytes = Files.readAllBytes(Paths.get("/data/user/0/com.example.tfliteaudio/files/mel_spectrogram.bin"));
-//            inputBuf = ByteBuffer.wrap(bytes);
-//        } catch (IOException e) {
-//            throw new RuntimeException(e);
-//        }
-
-        inputBuffer.loadBuffer(inputBuf);
-
-//        Log.d(TAG, "Before inference...");
-        // Run inference
-        mInterpreter.run(inputBuffer.getBuffer(), outputBuffer.getBuffer());
-//        Log.d(TAG, "After inference...");
-
-        // Retrieve the results
-        int outputLen = outputBuffer.getIntArray().length;
-        Log.d(TAG, "output_len: " + outputLen);
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < outputLen; i++) {
-            int token = outputBuffer.getBuffer().getInt();
-            if (token == mWhisperUtil.getTokenEOT())
-                break;
-
-            // Get word for token and Skip additional token
-            if (token < mWhisperUtil.getTokenEOT()) {
-                String word = mWhisperUtil.getWordFromToken(token);
-                //Log.d(TAG, "Adding token: " + token + ", word: " + word);
-                result.append(word);
-            } else {
-                if (token == mWhisperUtil.getTokenTranscribe())
-                    Log.d(TAG, "It is Transcription...");
-
-                if (token == mWhisperUtil.getTokenTranslate())
-                    Log.d(TAG, "It is Translation...");
-
-                String word = mWhisperUtil.getWordFromToken(token);
-                Log.d(TAG, "Skipping token: " + token + ", word: " + word);
-            }
-        }
-
-        return result.toString();
-    }
-
-    private void printTensorDump(String message, Tensor tensor) {
-        Log.d(TAG,"Output Tensor Dump ===>");
-        Log.d(TAG, "  shape.length: " + tensor.shape().length);
-        for (int i = 0; i < tensor.shape().length; i++)
-            Log.d(TAG, "    shape[" + i + "]: " + tensor.shape()[i]);
-        Log.d(TAG, "  dataType: " + tensor.dataType());
-        Log.d(TAG, "  name: " + tensor.name());
-        Log.d(TAG, "  numBytes: " + tensor.numBytes());
-        Log.d(TAG, "  index: " + tensor.index());
-        Log.d(TAG, "  numDimensions: " + tensor.numDimensions());
-        Log.d(TAG, "  numElements: " + tensor.numElements());
-        Log.d(TAG, "  shapeSignature.length: " + tensor.shapeSignature().length);
-        Log.d(TAG, "  quantizationParams.getScale: " + tensor.quantizationParams().getScale());
-        Log.d(TAG, "  quantizationParams.getZeroPoint: " + tensor.quantizationParams().getZeroPoint());
-        Log.d(TAG, "==================================================================");
-    }
-}
+package com.whispertflite.engine;
+
+import android.content.Context;
+import android.util.Log;
+
+//import com.google.android.gms.tflite.client.TfLiteInitializationOptions;
+//import com.google.android.gms.tflite.gpu.support.TfLiteGpu;
+//import com.google.android.gms.tflite.java.TfLite;
+import com.whispertflite.cache.MelFeatureStore;
+import com.whispertflite.cache.TranscriptCache;
+import com.whispertflite.utils.CpuBudget;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+//import org.tensorflow.lite.gpu.CompatibilityList;
+//import org.tensorflow.lite.gpu.GpuDelegate;
+//import org.tensorflow.lite.nnapi.NnApiDelegate;
+import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class WhisperEngineJava implements WhisperEngine {
+    private final String TAG = "WhisperEngineJava";
+    private final WhisperUtil mWhisperUtil = new WhisperUtil();
+
+    // Signatures and tensor names of models exported by generate_model.py
+    private static final String SIGNATURE_ENCODE = "encode";
+    private static final String SIGNATURE_DECODE = "decode";
+    private static final String SIGNATURE_DECODE_STEP = "decode_step";
+    private static final String INPUT_FEATURES = "input_features";
+    private static final String ENCODER_HIDDEN_STATES = "encoder_hidden_states";
+    private static final String DECODER_INPUT_IDS = "decoder_input_ids";
+    private static final String SEQUENCES = "sequences";
+    private static final String NEXT_TOKENS = "next_tokens";
+    private static final Task[] TRANSCRIBE_ONLY = {Task.TRANSCRIBE};
+
+    // Results of every task for one chunk
+    private interface TaskChunkListener {
+        boolean onChunk(int index, long startMs, long endMs, TranscriptionResult[] chunks);
+    }
+
+    // Fires cancel() on requests that run past their deadline, shared by all engines
+    private static final ScheduledExecutorService sDeadlineTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "WhisperDeadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Context mContext;
+    private boolean mIsInitialized = false;
+    private Interpreter mInterpreter = null;
+    private int mThreads = 1;  // interpreter threads, fixed when it is created
+    // Requests are numbered, cancel() marks the running one or the next one while idle. A cancel
+    // that arrives before a request starts is kept, one for a finished request or a stale
+    // deadline timer is void.
+    private final Object mRequestLock = new Object();
+    private volatile long mRequest = 0;
+    private volatile long mCancelledRequest = -1;
+    private volatile long mDeadlineNanos = 0;
+    private volatile MelFeatureStore mFeatureStore;
+    private volatile StageTimings mLastTimings = new StageTimings();
+    private ByteBuffer mInputBuffer;
+    private boolean mSupportsTasks = false;
+    private boolean mSupportsSteps = false;
+    private volatile String mLanguage = "en";
+    private ByteBuffer mEncoderOutput;  // decoded once per task or step, models that support tasks only
+//    private GpuDelegate gpuDelegate;
+
+    public WhisperEngineJava(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mIsInitialized;
+    }
+
+    @Override
+    public boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException {
+        // Load model
+        loadModel(modelPath);
+        Log.d(TAG, "Model is loaded..." + modelPath);
+
+        return loadFiltersAndVocab(vocabPath, multilingual);
+    }
+
+    @Override
+    public boolean initialize(FileDescriptor modelFd, long modelOffset, long modelLength, String vocabPath, boolean multilingual) throws IOException {
+        // Load model, mapped straight from the descriptor without copying
+        loadModel(modelFd, modelOffset, modelLength);
+        Log.d(TAG, "Model is loaded from fd, offset: " + modelOffset + ", length: " + modelLength);
+
+        return loadFiltersAndVocab(vocabPath, multilingual);
+    }
+
+    private boolean loadFiltersAndVocab(String vocabPath, boolean multilingual) throws IOException {
+        // Load filters and vocab
+        boolean ret = mWhisperUtil.loadFiltersAndVocab(multilingual, vocabPath);
+        if (ret) {
+            mIsInitialized = true;
+            Log.d(TAG, "Filters and Vocab are loaded..." + vocabPath);
+        } else {
+            mIsInitialized = false;
+            Log.d(TAG, "Failed to load Filters and Vocab...");
+        }
+
+        return mIsInitialized;
+    }
+
+    // Unload the model by closing the interpreter
+    @Override
+    public void deinitialize() {
+        if (mInterpreter != null) {
+            mInterpreter.close();
+            mInterpreter = null; // Optional: Set to null to avoid accidental reuse
+        }
+        mInputBuffer = null;
+        mEncoderOutput = null;
+    }
+
+    @Override
+    public TranscriptionResult transcribeFile(String wavePath) {
+        // Get samples in PCM_FLOAT format
+        float[] samples = WaveUtil.getSamples(wavePath);
+        return transcribeSamples(samples, mFeatureStore);
+    }
+
+    @Override
+    public boolean transcribeFile(String wavePath, ChunkListener listener) {
+        float[] samples = WaveUtil.getSamples(wavePath);
+        return transcribeSamples(samples, mFeatureStore, listener);
+    }
+
+    @Override
+    public boolean transcribeSamples(float[] samples, ChunkListener listener) {
+        return transcribeSamples(samples, mFeatureStore, listener);
+    }
+
+    @Override
+    public TranscriptionResult transcribeBuffer(float[] samples) {
+        return transcribeSamples(samples, (MelFeatureStore) null);
+    }
+
+    // The mel stage needs a float[] anyway, so the samples are copied out once here
+    @Override
+    public TranscriptionResult transcribeDirect(ByteBuffer pcm, int offset, int length) {
+        float[] samples = new float[length];
+        ByteBuffer source = pcm.duplicate().order(ByteOrder.nativeOrder());
+        source.position(offset * Float.BYTES);
+        source.asFloatBuffer().get(samples);
+        return transcribeSamples(samples, (MelFeatureStore) null);
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int samples) {
+        if (mInputBuffer == null || mInputBuffer.capacity() < samples * Float.BYTES)
+            mInputBuffer = ByteBuffer.allocateDirect(samples * Float.BYTES).order(ByteOrder.nativeOrder());
+        return mInputBuffer;
+    }
+
+    @Override
+    public TranscriptionResult transcribeMel(ByteBuffer melFeatures) {
+        ScheduledFuture<?> deadlineTimer = beginRequest();
+        StageTimings timings = new StageTimings();
+        try {
+            int[] tokens = runInference(melFeatures, TRANSCRIBE_ONLY, timings)[0];
+            return new TranscriptionResult(tokens, TranscriptionResult.CHUNK_MS, mWhisperUtil, timings);
+        } catch (IllegalStateException e) {
+            if (!isCancelled())
+                throw e;
+            return TranscriptionResult.empty(TranscriptionResult.CHUNK_MS);
+        } finally {
+            endRequest(deadlineTimer);
+            mLastTimings = timings;
+        }
+    }
+
+    @Override
+    public void setFeatureStore(MelFeatureStore store) {
+        mFeatureStore = store;
+    }
+
+    @Override
+    public boolean supportsTasks() {
+        return mSupportsTasks;
+    }
+
+    @Override
+    public boolean setLanguage(String language) {
+        if (!WhisperUtil.isLanguage(language))
+            return false;
+        mLanguage = language;
+        return true;
+    }
+
+    @Override
+    public TranscriptionResult[] transcribeTasks(float[] samples, Task... tasks) {
+        if (!mSupportsTasks) {
+            Log.d(TAG, "Model has no encode and decode signatures, tasks are not supported");
+            return null;
+        }
+        List<List<TranscriptionResult>> chunks = new ArrayList<>();
+        for (int i = 0; i < tasks.length; i++)
+            chunks.add(new ArrayList<>());
+        transcribeSamples(samples, mFeatureStore, tasks, (index, startMs, endMs, taskChunks) -> {
+            for (int i = 0; i < tasks.length; i++)
+                chunks.get(i).add(taskChunks[i]);
+            return true;
+        });
+
+        long audioMs = samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+        TranscriptionResult[] results = new TranscriptionResult[tasks.length];
+        for (int i = 0; i < tasks.length; i++)
+            results[i] = TranscriptionResult.concat(chunks.get(i), audioMs, mLastTimings);
+        return results;
+    }
+
+    @Override
+    public boolean supportsStepDecoding() {
+        return mSupportsSteps;
+    }
+
+    @Override
+    public int[] getPrompt(Task task) {
+        int tokenTask = (task == Task.TRANSLATE) ? mWhisperUtil.getTokenTranslate() : mWhisperUtil.getTokenTranscribe();
+        return new int[]{mWhisperUtil.getTokenSOT(), mWhisperUtil.getTokenLanguage(mLanguage), tokenTask, mWhisperUtil.getTokenNOT()};
+    }
+
+    @Override
+    public boolean encodeChunk(float[] samples, int offset) {
+        if (!mSupportsSteps) {
+            Log.d(TAG, "Model has no decode_step signature, step decoding is not supported");
+            return false;
+        }
+        ScheduledFuture<?> deadlineTimer = beginRequest();
+        StageTimings timings = new StageTimings();
+        try {
+            long melStart = System.nanoTime();
+            float[] melSpectrogram = getMelSpectrogram(samples, offset);
+            if (melSpectrogram == null)
+                return false;
+            timings.addMel(System.nanoTime() - melStart);
+            long invokeStart = System.nanoTime();
+            CpuBudget.Grant grant = acquireInterpreterThreads();
+            try {
+                encode(MelFeatureStore.toInputBuffer(melSpectrogram));
+            } finally {
+                grant.close();
+            }
+            timings.addInference(System.nanoTime() - invokeStart, 0);
+            return true;
+        } catch (IllegalStateException e) {
+            if (!isCancelled())
+                throw e;
+            return false;
+        } finally {
+            endRequest(deadlineTimer);
+            mLastTimings = timings;
+        }
+    }
+
+    // The prefix length changes every call, runSignature() resizes the decoder input to it. Each
+    // step is a request of its own, with the deadline set before it.
+    @Override
+    public int[] decodeStep(int[] tokens, int length) {
+        int[][] input = {Arrays.copyOf(tokens, length)};
+        int[][] next = new int[1][length];
+        ScheduledFuture<?> deadlineTimer = beginRequest();
+        try {
+            if (isCancelled())
+                return null;
+            mEncoderOutput.rewind();
+            Map<String, Object> inputs = new HashMap<>();
+            inputs.put(ENCODER_HIDDEN_STATES, mEncoderOutput);
+            inputs.put(DECODER_INPUT_IDS, input);
+            Map<String, Object> outputs = new HashMap<>();
+            outputs.put(NEXT_TOKENS, next);
+            CpuBudget.Grant grant = acquireInterpreterThreads();
+            try {
+                mInterpreter.runSignature(inputs, outputs, SIGNATURE_DECODE_STEP);
+            } finally {
+                grant.close();
+            }
+            return next[0];
+        } catch (IllegalStateException e) {
+            if (!isCancelled())
+                throw e;
+            return null;
+        } finally {
+            endRequest(deadlineTimer);
+        }
+    }
+
+    @Override
+    public Detokenizer getDetokenizer() {
+        return mWhisperUtil;
+    }
+
+    @Override
+    public boolean supportsConcurrentInstances() {
+        return true;
+    }
+
+    @Override
+    public StageTimings getLastTimings() {
+        return mLastTimings;
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (mRequestLock) {
+            cancel(mRequest);
+        }
+    }
+
+    // Only while request is the running or next one, mRequestLock held
+    private void cancel(long request) {
+        if (request != mRequest)
+            return;
+        mCancelledRequest = request;
+        Interpreter interpreter = mInterpreter;
+        if (interpreter != null)
+            interpreter.setCancelled(true);
+    }
+
+    @Override
+    public void setDeadline(long deadlineNanos) {
+        mDeadlineNanos = deadlineNanos;
+    }
+
+    private boolean isCancelled() {
+        long deadline = mDeadlineNanos;
+        return mCancelledRequest == mRequest || (deadline != 0 && System.nanoTime() - deadline >= 0);
+    }
+
+    // Let the interpreter run unless this request was cancelled already, and arm the deadline
+    // timer, if any, for this request only
+    private ScheduledFuture<?> beginRequest() {
+        long request;
+        synchronized (mRequestLock) {
+            request = mRequest;
+            mInterpreter.setCancelled(mCancelledRequest == request);
+        }
+        long deadline = mDeadlineNanos;
+        if (deadline == 0)
+            return null;
+        return sDeadlineTimer.schedule(() -> {
+            synchronized (mRequestLock) {
+                cancel(request);
+            }
+        }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    // Later cancels go to the next request
+    private void endRequest(ScheduledFuture<?> deadlineTimer) {
+        if (deadlineTimer != null)
+            deadlineTimer.cancel(false);
+        mDeadlineNanos = 0;
+        synchronized (mRequestLock) {
+            mRequest++;
+        }
+    }
+
+    // Returns the chunks done so far
+    private TranscriptionResult transcribeSamples(float[] samples, MelFeatureStore store) {
+        List<TranscriptionResult> chunks = new ArrayList<>();
+        transcribeSamples(samples, store, (index, startMs, endMs, chunk) -> chunks.add(chunk));
+        long audioMs = samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+        return TranscriptionResult.concat(chunks, audioMs, mLastTimings);
+    }
+
+    private boolean transcribeSamples(float[] samples, MelFeatureStore store, ChunkListener listener) {
+        return transcribeSamples(samples, store, TRANSCRIBE_ONLY,
+                (index, startMs, endMs, chunks) -> listener.onChunk(index, startMs, endMs, chunks[0]));
+    }
+
+    // Transcribe in 30 seconds chunks, cancellation is checked in the mel stage, inside
+    // the interpreter and between chunks. True if every chunk reached the listener.
+    private boolean transcribeSamples(float[] samples, MelFeatureStore store, Task[] tasks, TaskChunkListener listener) {
+        ScheduledFuture<?> deadlineTimer = beginRequest();
+        TranscriptCache.Key audioKey = (store != null) ? MelFeatureStore.keyOf(samples) : null;
+
+        int chunkSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        int totalChunks = Math.max(1, (samples.length + chunkSize - 1) / chunkSize);
+        int chunksDone = 0;
+        StageTimings timings = new StageTimings();
+        try {
+            for (int chunkIndex = 0; chunkIndex < totalChunks && !isCancelled(); chunkIndex++) {
+                long melStart = System.nanoTime();
+                ByteBuffer melFeatures = (store != null) ? store.get(audioKey, chunkIndex) : null;
+                if (melFeatures == null) {
+                    // Calculate Mel spectrogram
+                    Log.d(TAG, "Calculating Mel spectrogram...");
+                    float[] melSpectrogram = getMelSpectrogram(samples, chunkIndex * chunkSize);
+                    if (melSpectrogram == null)
+                        break;
+                    Log.d(TAG, "Mel spectrogram is calculated...!");
+
+                    if (store != null)
+                        store.put(audioKey, chunkIndex, melSpectrogram);
+                    melFeatures = MelFeatureStore.toInputBuffer(melSpectrogram);
+                } else {
+                    Log.d(TAG, "Mel spectrogram is loaded from the feature store...!");
+                }
+                StageTimings chunkTimings = new StageTimings();
+                chunkTimings.addMel(System.nanoTime() - melStart);
+
+                // Perform inference
+                int[][] tokens = runInference(melFeatures, tasks, chunkTimings);
+                timings.add(chunkTimings);
+                Log.d(TAG, "Inference is executed...!");
+
+                long startMs = (long) chunkIndex * WhisperUtil.WHISPER_CHUNK_SIZE * 1000;
+                long endMs = Math.min(startMs + WhisperUtil.WHISPER_CHUNK_SIZE * 1000L,
+                        samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE);
+                TranscriptionResult[] chunks = new TranscriptionResult[tasks.length];
+                for (int i = 0; i < tasks.length; i++)
+                    chunks[i] = new TranscriptionResult(tokens[i], endMs - startMs, mWhisperUtil, chunkTimings);
+                chunksDone++;
+                if (!listener.onChunk(chunkIndex, startMs, endMs, chunks))
+                    break;
+            }
+        } catch (IllegalStateException e) {
+            // Interpreter aborted by setCancelled()
+            if (!isCancelled())
+                throw e;
+        } finally {
+            if (isCancelled())
+                Log.d(TAG, "Transcription is cancelled...!");
+            endRequest(deadlineTimer);
+            mLastTimings = timings;
+        }
+        return chunksDone == totalChunks;
+    }
+
+    // Load TFLite model
+    private void loadModel(String modelPath) throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(modelPath)) {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            createInterpreter(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()));
+        }
+    }
+
+    // Load TFLite model from a region of an open file, e.g. AssetFileDescriptor of a noCompress asset.
+    // The caller owns the descriptor, the mapping stays valid after it is closed.
+    private void loadModel(FileDescriptor modelFd, long startOffset, long declaredLength) throws IOException {
+        FileChannel fileChannel = new FileInputStream(modelFd).getChannel();
+        createInterpreter(fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength));
+    }
+
+    private void createInterpreter(ByteBuffer tfliteModel) {
+
+        // Set the number of threads for inference, the inference share of the CPU budget at this
+        // time, divided among the engines of a pool
+        mThreads = CpuBudget.get().getInterpreterThreads();
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(mThreads);
+        options.setCancellable(true);
+//        options.setUseXNNPACK(true);
+
+//        boolean isNNAPI = true;
+//        if (isNNAPI) {
+//            // Initialize interpreter with NNAPI delegate for Android Pie or above
+//            NnApiDelegate nnapiDelegate = new NnApiDelegate();
+//            options.addDelegate(nnapiDelegate);
+////                    options.setUseNNAPI(false);
+//                    options.setAllowFp16PrecisionForFp32(true);
+//                    options.setAllowBufferHandleOutput(true);
+//            options.setUseNNAPI(true);
+//        }
+
+        // Check if GPU delegate is available asynchronously
+//        TfLiteGpu.isGpuDelegateAvailable(mContext).addOnCompleteListener(task -> {
+//            if (task.isSuccessful() && task.getResult()) {
+//                // GPU is available; initialize the interpreter with GPU delegate
+////                    GpuDelegate gpuDelegate = new GpuDelegate();
+////                    Interpreter.Options options = new Interpreter.Options().addDelegate(gpuDelegate);
+////                    tflite = new Interpreter(loadModelFile(), options);
+//                TfLite.initialize(mContext, TfLiteInitializationOptions.builder().setEnableGpuDelegateSupport(true).build());
+//                Log.d(TAG, "GPU is available; initialize the interpreter with GPU delegate........................");
+//            } else {
+//                // GPU is not available; fallback to CPU
+////                    tflite = new Interpreter(loadModelFile());
+////                    System.out.println("Initialized with CPU.");
+//                Log.d(TAG, "GPU is not available; fallback to CPU........................");
+//            }
+//        });
+        
+//        boolean isGPU = true;
+//        if (isGPU) {
+//            gpuDelegate = new GpuDelegate();
+//            options.setPrecisionLossAllowed(true); // It seems that the default is true
+//            options.setInferencePreference(GpuDelegate.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
+//             .setPrecisionLossAllowed(true) // Allow FP16 precision for faster performance
+//                    .setInferencePreference(GpuDelegate.Options.INFERENCE_PREFERENCE_FAST_SINGLE_ANSWER);
+//            options.addDelegate(gpuDelegate);
+//        }
+
+        mInterpreter = new Interpreter(tfliteModel, options);
+        List<String> signatures = Arrays.asList(mInterpreter.getSignatureKeys());
+        mSupportsTasks = signatures.contains(SIGNATURE_ENCODE) && signatures.contains(SIGNATURE_DECODE);
+        mSupportsSteps = mSupportsTasks && signatures.contains(SIGNATURE_DECODE_STEP);
+        Log.d(TAG, "Model signatures: " + signatures + ", tasks supported: " + mSupportsTasks
+                + ", step decoding supported: " + mSupportsSteps);
+    }
+
+    // Returns null if cancelled while computing
+    private float[] getMelSpectrogram(float[] samples, int offset) {
+        int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        float[] inputSamples = new float[fixedInputSize];
+        int copyLength = Math.max(0, Math.min(samples.length - offset, fixedInputSize));
+        System.arraycopy(samples, offset, inputSamples, 0, copyLength);
+
+        // As many mel workers as the mel share has free, at least one
+        CpuBudget.Grant grant = CpuBudget.get().acquire(CpuBudget.Stage.MEL, 1,
+                Runtime.getRuntime().availableProcessors(), this::isCancelled);
+        if (grant == null)
+            return null;
+        try {
+            return mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, grant.getThreads(), this::isCancelled);
+        } finally {
+            grant.close();
+        }
+    }
+
+    // The interpreter runs the thread count it was created with, the budget counts all of them
+    // even once the inference share has become smaller, see CpuBudget. Throws like a cancelled
+    // interpreter if the request is cancelled while waiting for them.
+    private CpuBudget.Grant acquireInterpreterThreads() {
+        CpuBudget.Grant grant = CpuBudget.get().acquire(CpuBudget.Stage.INFERENCE, mThreads, mThreads, this::isCancelled);
+        if (grant == null)
+            throw new IllegalStateException("Cancelled while waiting for interpreter threads");
+        return grant;
+    }
+
+    // Tokens of each task for one chunk; models without tasks only transcribe
+    private int[][] runInference(ByteBuffer inputBuf, Task[] tasks, StageTimings timings) {
+        CpuBudget.Grant grant = acquireInterpreterThreads();
+        try {
+            if (mSupportsTasks)
+                return runTasks(inputBuf, tasks, timings);
+            return new int[][]{runInference(inputBuf, timings)};
+        } finally {
+            grant.close();
+        }
+    }
+
+    // Input is the float32 log-mel chunk in native order, fed to the input tensor as is
+    // Returns every token up to the end token, decoding the text is left to the result
+    private int[] runInference(ByteBuffer inputBuf, StageTimings timings) {
+//        printTensorDump("Input Tensor Dump ===>", mInterpreter.getInputTensor(0));
+
+        // Create output tensor
+        Tensor outputTensor = mInterpreter.getOutputTensor(0);
+        TensorBuffer outputBuffer = TensorBuffer.createFixedSize(outputTensor.shape(), DataType.FLOAT32);
+//        printTensorDump("Output Tensor Dump ===>", outputTensor);
+
+//        Log.d(TAG, "Before inference...");
+        // Run inference
+        long invokeStart = System.nanoTime();
+        inputBuf.rewind();
+        mInterpreter.run(inputBuf, outputBuffer.getBuffer());
+        long decodeStart = System.nanoTime();
+//        Log.d(TAG, "After inference...");
+
+        // Retrieve the results
+        int[] tokens = readTokens(outputBuffer);
+        timings.addInference(decodeStart - invokeStart, System.nanoTime() - decodeStart);
+        return tokens;
+    }
+
+    // The encoder runs once, its output stays in mEncoderOutput and is the decoder input of every
+    // task, the prompt of each one picks language and task
+    private int[][] runTasks(ByteBuffer inputBuf, Task[] tasks, StageTimings timings) {
+        long invokeStart = System.nanoTime();
+        encode(inputBuf);
+        long invokeNanos = System.nanoTime() - invokeStart;
+        long decodeNanos = 0;
+
+        int[][] tokens = new int[tasks.length][];
+        for (int i = 0; i < tasks.length; i++) {
+            int[][] prompt = {getPrompt(tasks[i])};
+            Tensor sequences = mInterpreter.getOutputTensorFromSignature(SEQUENCES, SIGNATURE_DECODE);
+            TensorBuffer outputBuffer = TensorBuffer.createFixedSize(sequences.shape(), DataType.INT32);
+
+            long decoderStart = System.nanoTime();
+            mEncoderOutput.rewind();
+            Map<String, Object> decodeInputs = new HashMap<>();
+            decodeInputs.put(ENCODER_HIDDEN_STATES, mEncoderOutput);
+            decodeInputs.put(DECODER_INPUT_IDS, prompt);
+            Map<String, Object> decodeOutputs = new HashMap<>();
+            decodeOutputs.put(SEQUENCES, outputBuffer.getBuffer());
+            mInterpreter.runSignature(decodeInputs, decodeOutputs, SIGNATURE_DECODE);
+            long readStart = System.nanoTime();
+            invokeNanos += readStart - decoderStart;
+
+            tokens[i] = readTokens(outputBuffer);
+            decodeNanos += System.nanoTime() - readStart;
+        }
+
+        timings.addInference(invokeNanos, decodeNanos);
+        return tokens;
+    }
+
+    // Encoder pass on a log-mel chunk into mEncoderOutput
+    private void encode(ByteBuffer inputBuf) {
+        if (mEncoderOutput == null) {
+            Tensor hiddenStates = mInterpreter.getOutputTensorFromSignature(ENCODER_HIDDEN_STATES, SIGNATURE_ENCODE);
+            mEncoderOutput = ByteBuffer.allocateDirect(hiddenStates.numBytes()).order(ByteOrder.nativeOrder());
+        }
+        inputBuf.rewind();
+        mEncoderOutput.rewind();
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put(INPUT_FEATURES, inputBuf);
+        Map<String, Object> outputs = new HashMap<>();
+        outputs.put(ENCODER_HIDDEN_STATES, mEncoderOutput);
+        mInterpreter.runSignature(inputs, outputs, SIGNATURE_ENCODE);
+    }
+
+    // Every token of the output sequence up to the end token
+    private int[] readTokens(TensorBuffer outputBuffer) {
+        int outputLen = outputBuffer.getFlatSize();
+        Log.d(TAG, "output_len: " + outputLen);
+        ByteBuffer output = outputBuffer.getBuffer();
+        output.rewind();
+        int[] tokens = new int[outputLen];
+        int count = 0;
+        while (count < outputLen) {
+            int token = output.getInt();
+            if (token == mWhisperUtil.getTokenEOT())
+                break;
+            tokens[count++] = token;
+        }
+        return Arrays.copyOf(tokens, count);
+    }
+
+    private void printTensorDump(String message, Tensor tensor) {
+        Log.d(TAG,"Output Tensor Dump ===>");
+        Log.d(TAG, "  shape.length: " + tensor.shape().length);
+        for (int i = 0; i < tensor.shape().length; i++)
+            Log.d(TAG, "    shape[" + i + "]: " + tensor.shape()[i]);
+        Log.d(TAG, "  dataType: " + tensor.dataType());
+        Log.d(TAG, "  name: " + tensor.name());
+        Log.d(TAG, "  numBytes: " + tensor.numBytes());
+        Log.d(TAG, "  index: " + tensor.index());
+        Log.d(TAG, "  numDimensions: " + tensor.numDimensions());
+        Log.d(TAG, "  numElements: " + tensor.numElements());
+        Log.d(TAG, "  shapeSignature.length: " + tensor.shapeSignature().length);
+        Log.d(TAG, "  quantizationParams.getScale: " + tensor.quantizationParams().getScale());
+        Log.d(TAG, "  quantizationParams.getZeroPoint: " + tensor.quantizationParams().getZeroPoint());
+        Log.d(TAG, "==================================================================");
+    }
+}
@@ -1,18 +1,103 @@
 package com.whispertflite.engine;
 
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import com.whispertflite.cache.MelFeatureStore;
+import com.whispertflite.cache.TranscriptCache;
+import com.whispertflite.utils.WaveUtil;
+import com.whispertflite.utils.WhisperUtil;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class WhisperEngineNative implements WhisperEngine {
     private final String TAG = "WhisperEngineNative";
-    private final long nativePtr; // Native pointer to the TFLiteEngine instance
+
+    // Token tables of the english and multilingual models, the same for every engine
+    private static final NativeVocab[] sVocabs = new NativeVocab[2];
+
+    // Called from the native side with each chunk of a request
+    private interface NativeChunkListener {
+        boolean onChunk(int index, long startMs, long endMs, int[] tokens, long melNanos, long invokeNanos, long decodeNanos);
+    }
+
+    // Same for requests with several tasks, the tokens of each task in the order of the request
+    private interface NativeTasksListener {
+        boolean onChunk(int index, long startMs, long endMs, int[][] tokens, long melNanos, long invokeNanos, long decodeNanos);
+    }
+
+    // Copy of the native token table, so results decode their text even after the engine is gone
+    private static final class NativeVocab implements Detokenizer {
+        private final byte[] mText;    // UTF-8 token texts, each followed by a 0 byte
+        private final int[] mOffsets;  // start of each token in mText, then the end of mText
+        private final int mTokenEOT;
+        private final int mTokenBEG;
+
+        NativeVocab(byte[] text, int[] index) {
+            mText = text;
+            mOffsets = Arrays.copyOf(index, index.length - 2);
+            mTokenEOT = index[index.length - 2];
+            mTokenBEG = index[index.length - 1];
+        }
+
+        @Override
+        public int getTokenEOT() {
+            return mTokenEOT;
+        }
+
+        @Override
+        public int getTokenBEG() {
+            return mTokenBEG;
+        }
+
+        // Bytes are joined before decoding, a character may be split over two tokens
+        @Override
+        public String decode(int[] tokens, int from, int to) {
+            int length = 0;
+            for (int i = from; i < to; i++) {
+                if (isText(tokens[i]))
+                    length += mOffsets[tokens[i] + 1] - mOffsets[tokens[i]] - 1;
+            }
+            byte[] bytes = new byte[length];
+            int position = 0;
+            for (int i = from; i < to; i++) {
+                if (!isText(tokens[i]))
+                    continue;
+                int tokenLength = mOffsets[tokens[i] + 1] - mOffsets[tokens[i]] - 1;
+                System.arraycopy(mText, mOffsets[tokens[i]], bytes, position, tokenLength);
+                position += tokenLength;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean isText(int token) {
+            return token >= 0 && token < mTokenEOT && token + 1 < mOffsets.length;
+        }
+    }
+    private final ReentrantReadWriteLock mPtrLock = new ReentrantReadWriteLock();
+    private long mNativePtr;  // TFLiteEngine instance, changed under the write lock, 0 once freed
 
     private final Context mContext;
-    private boolean mIsInitialized = false;
+    private volatile boolean mIsInitialized = false;
+    private volatile long mDeadlineNanos = 0;
+    private volatile MelFeatureStore mFeatureStore;
+    private volatile StageTimings mLastTimings = new StageTimings();
+    private volatile NativeVocab mVocab;
+    private ByteBuffer mInputBuffer;  // samples the native engine reads in place, up to one chunk is kept
+    private ByteBuffer mMelBuffer;    // features of one chunk, written and read in place
 
     public WhisperEngineNative(Context context) {
         mContext = context;
-        nativePtr = createTFLiteEngine();
+        mNativePtr = createTFLiteEngine();
     }
 
     @Override
@@ -22,34 +107,436 @@ public class WhisperEngineNative implements WhisperEngine {
 
     @Override
     public boolean initialize(String modelPath, String vocabPath, boolean multilingual) {
-        int ret = loadModel(modelPath, multilingual);
-        Log.d(TAG, "Model is loaded..." + modelPath);
+        mPtrLock.writeLock().lock();
+        try {
+            if (mNativePtr == 0)
+                mNativePtr = createTFLiteEngine();
+            int ret = loadModel(mNativePtr, modelPath, multilingual);
+            Log.d(TAG, "Model is loaded..." + modelPath + ", result: " + ret);
+            return setInitialized(ret == 0, multilingual);
+        } finally {
+            mPtrLock.writeLock().unlock();
+        }
+    }
 
-        mIsInitialized = true;
-        return true;
+    @Override
+    public boolean initialize(FileDescriptor modelFd, long modelOffset, long modelLength, String vocabPath, boolean multilingual) throws IOException {
+        mPtrLock.writeLock().lock();
+        try {
+            if (mNativePtr == 0)
+                mNativePtr = createTFLiteEngine();
+            // The descriptor number goes to the native side through a duplicate of its own
+            int ret;
+            try (ParcelFileDescriptor fd = ParcelFileDescriptor.dup(modelFd)) {
+                ret = loadModelFd(mNativePtr, fd.getFd(), modelOffset, modelLength, multilingual);
+            }
+            Log.d(TAG, "Model is loaded from fd, offset: " + modelOffset + ", length: " + modelLength + ", result: " + ret);
+            return setInitialized(ret == 0, multilingual);
+        } finally {
+            mPtrLock.writeLock().unlock();
+        }
+    }
+
+    // Write lock held
+    private boolean setInitialized(boolean loaded, boolean multilingual) {
+        mVocab = loaded ? loadVocab(mNativePtr, multilingual) : null;
+        mIsInitialized = loaded && mVocab != null;
+        return mIsInitialized;
     }
 
+    // A running request is cancelled and finishes before the native engine is freed. Calls after
+    // this one find no engine and do nothing; initialize() creates a new one.
     @Override
     public void deinitialize() {
-        freeModel();
+        cancel();
+        mPtrLock.writeLock().lock();
+        try {
+            mIsInitialized = false;
+            if (mNativePtr != 0) {
+                freeModel(mNativePtr);
+                mNativePtr = 0;
+            }
+            synchronized (this) {
+                mInputBuffer = null;
+                mMelBuffer = null;
+            }
+        } finally {
+            mPtrLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public TranscriptionResult transcribeBuffer(float[] samples) {
+        return transcribeDirect(directSamples(samples, 0, samples.length), 0, samples.length);
     }
 
+    // Direct buffers go to the engine as they are, heap buffers are copied out first
     @Override
-    public String transcribeBuffer(float[] samples) {
-        return transcribeBuffer(nativePtr, samples);
+    public TranscriptionResult transcribeDirect(ByteBuffer pcm, int offset, int length) {
+        if (!pcm.isDirect()) {
+            float[] samples = new float[length];
+            ByteBuffer source = pcm.duplicate().order(ByteOrder.nativeOrder());
+            source.position(offset * Float.BYTES);
+            source.asFloatBuffer().get(samples);
+            return transcribeBuffer(samples);
+        }
+        takeDeadline();
+        long nativePtr = enter();
+        try {
+            if (nativePtr == 0)
+                return TranscriptionResult.empty(length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE);
+            List<TranscriptionResult> chunks = new ArrayList<>();
+            transcribeDirectChunks(nativePtr, pcm, offset, length, chunkListener((index, startMs, endMs, chunk) -> chunks.add(chunk)));
+            return collect(nativePtr, chunks, length);
+        } finally {
+            exit();
+        }
     }
 
+    // The native engine reads audio written here without any copy. The buffer belongs to this
+    // object, so it stays valid whatever happens to the native engine.
     @Override
-    public String transcribeFile(String waveFile) {
-        return transcribeFile(nativePtr, waveFile);
+    public synchronized ByteBuffer getInputBuffer(int samples) {
+        if (mInputBuffer == null || mInputBuffer.capacity() < samples * Float.BYTES)
+            mInputBuffer = ByteBuffer.allocateDirect(samples * Float.BYTES).order(ByteOrder.nativeOrder());
+        return mInputBuffer;
+    }
+
+    @Override
+    public TranscriptionResult transcribeFile(String waveFile) {
+        List<TranscriptionResult> chunks = new ArrayList<>();
+        long[] audioMs = new long[1];
+        transcribeFile(waveFile, (index, startMs, endMs, chunk) -> {
+            audioMs[0] = endMs;
+            return chunks.add(chunk);
+        });
+        return TranscriptionResult.concat(chunks, audioMs[0], mLastTimings);
+    }
+
+    // The native engine calls the listener back after each chunk, so the transcript is never
+    // held on the native side
+    @Override
+    public boolean transcribeFile(String waveFile, ChunkListener listener) {
+        MelFeatureStore store = mFeatureStore;
+        long deadline = takeDeadline();
+        long nativePtr = enter();
+        try {
+            if (nativePtr == 0)
+                return false;
+            if (store == null && WaveUtil.isWhisperFormat(waveFile)) {
+                boolean complete = transcribeFileChunks(nativePtr, waveFile, chunkListener(listener));
+                mLastTimings = fetchTimings(nativePtr);
+                return complete;
+            }
+            // Other sample rates and channel layouts are converted while reading on the Java side
+            return transcribeSamples(nativePtr, WaveUtil.getSamples(waveFile), store, deadline, listener);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean transcribeSamples(float[] samples, ChunkListener listener) {
+        MelFeatureStore store = mFeatureStore;
+        long deadline = takeDeadline();
+        long nativePtr = enter();
+        try {
+            if (nativePtr == 0)
+                return false;
+            if (store == null) {
+                boolean complete = transcribeDirectChunks(nativePtr, directSamples(samples, 0, samples.length), 0,
+                        samples.length, chunkListener(listener));
+                mLastTimings = fetchTimings(nativePtr);
+                return complete;
+            }
+            return transcribeSamples(nativePtr, samples, store, deadline, listener);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public TranscriptionResult transcribeMel(ByteBuffer melFeatures) {
+        takeDeadline();
+        long nativePtr = enter();
+        try {
+            int[] tokens = (nativePtr != 0) ? transcribeMel(nativePtr, melFeatures) : null;
+            if (tokens == null)
+                return TranscriptionResult.empty(TranscriptionResult.CHUNK_MS);
+            mLastTimings = fetchTimings(nativePtr);
+            return new TranscriptionResult(tokens, TranscriptionResult.CHUNK_MS, mVocab, mLastTimings);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void setFeatureStore(MelFeatureStore store) {
+        mFeatureStore = store;
+    }
+
+    @Override
+    public boolean supportsTasks() {
+        long nativePtr = enter();
+        try {
+            return nativePtr != 0 && supportsTasks(nativePtr);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean setLanguage(String language) {
+        long nativePtr = enter();
+        try {
+            return nativePtr != 0 && setLanguage(nativePtr, language);
+        } finally {
+            exit();
+        }
+    }
+
+    // Task ordinals are the native task ids, the encoder output never leaves the native side
+    @Override
+    public TranscriptionResult[] transcribeTasks(float[] samples, Task... tasks) {
+        if (!supportsTasks()) {
+            Log.d(TAG, "Model has no encode and decode signatures, tasks are not supported");
+            return null;
+        }
+        if (tasks.length == 0)
+            return new TranscriptionResult[0];
+        int[] taskIds = new int[tasks.length];
+        List<List<TranscriptionResult>> chunks = new ArrayList<>();
+        for (int i = 0; i < tasks.length; i++) {
+            taskIds[i] = tasks[i].ordinal();
+            chunks.add(new ArrayList<>());
+        }
+
+        takeDeadline();
+        NativeVocab vocab = mVocab;
+        long nativePtr = enter();
+        try {
+            if (nativePtr == 0)
+                return null;
+            transcribeTasksChunks(nativePtr, samples, taskIds, (index, startMs, endMs, tokens, melNanos, invokeNanos, decodeNanos) -> {
+                StageTimings timings = new StageTimings(melNanos, invokeNanos, decodeNanos, 1);
+                for (int i = 0; i < tokens.length; i++)
+                    chunks.get(i).add(new TranscriptionResult(tokens[i], endMs - startMs, vocab, timings));
+                return true;
+            });
+            mLastTimings = fetchTimings(nativePtr);
+        } finally {
+            exit();
+        }
+
+        long audioMs = samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+        TranscriptionResult[] results = new TranscriptionResult[tasks.length];
+        for (int i = 0; i < tasks.length; i++)
+            results[i] = TranscriptionResult.concat(chunks.get(i), audioMs, mLastTimings);
+        return results;
+    }
+
+    @Override
+    public boolean supportsStepDecoding() {
+        long nativePtr = enter();
+        try {
+            return nativePtr != 0 && supportsStepDecoding(nativePtr);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public int[] getPrompt(Task task) {
+        long nativePtr = enter();
+        try {
+            return (nativePtr != 0) ? getPrompt(nativePtr, task.ordinal()) : null;
+        } finally {
+            exit();
+        }
+    }
+
+    // The encoder output stays on the native side for the steps
+    @Override
+    public boolean encodeChunk(float[] samples, int offset) {
+        if (!supportsStepDecoding()) {
+            Log.d(TAG, "Model has no decode_step signature, step decoding is not supported");
+            return false;
+        }
+        takeDeadline();
+        long nativePtr = enter();
+        try {
+            if (nativePtr == 0)
+                return false;
+            boolean encoded = encodeChunk(nativePtr, samples, offset);
+            mLastTimings = fetchTimings(nativePtr);
+            return encoded;
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public int[] decodeStep(int[] tokens, int length) {
+        takeDeadline();
+        long nativePtr = enter();
+        try {
+            return (nativePtr != 0) ? decodeStep(nativePtr, tokens, length) : null;
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public Detokenizer getDetokenizer() {
+        return mVocab;
+    }
+
+    // Each instance has its own interpreter, only the mapped model and the vocab are shared
+    @Override
+    public boolean supportsConcurrentInstances() {
+        return true;
+    }
+
+    @Override
+    public StageTimings getLastTimings() {
+        return mLastTimings;
+    }
+
+    @Override
+    public void cancel() {
+        long nativePtr = enter();
+        try {
+            if (nativePtr != 0)
+                cancel(nativePtr);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public void setDeadline(long deadlineNanos) {
+        mDeadlineNanos = deadlineNanos;
+        long nativePtr = enter();
+        try {
+            if (nativePtr != 0)
+                setDeadline(nativePtr, deadlineNanos);
+        } finally {
+            exit();
+        }
+    }
+
+    // Every native call holds the read lock, so deinitialize() cannot free the engine under it.
+    // Returns the engine, 0 if it was freed; each enter() is paired with exit().
+    private long enter() {
+        mPtrLock.readLock().lock();
+        return mNativePtr;
+    }
+
+    private void exit() {
+        mPtrLock.readLock().unlock();
+    }
+
+    // Chunk loop on the Java side so features come from the store when present, each native
+    // call is a request of its own and gets the deadline again, a cancel makes the next one fail.
+    // Features are computed into a direct buffer that is stored and transcribed as it is.
+    private boolean transcribeSamples(long nativePtr, float[] samples, MelFeatureStore store, long deadline, ChunkListener listener) {
+        TranscriptCache.Key audioKey = (store != null) ? MelFeatureStore.keyOf(samples) : null;
+
+        int chunkSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        int totalChunks = Math.max(1, (samples.length + chunkSize - 1) / chunkSize);
+        int chunksDone = 0;
+        StageTimings timings = new StageTimings();
+        for (int chunkIndex = 0; chunkIndex < totalChunks; chunkIndex++) {
+            if (deadline != 0 && System.nanoTime() - deadline >= 0)
+                break;
+
+            long melStart = System.nanoTime();
+            StageTimings chunkTimings = new StageTimings();
+            ByteBuffer melFeatures = (store != null) ? store.get(audioKey, chunkIndex) : null;
+            if (melFeatures == null) {
+                int count = Math.max(0, Math.min(samples.length - chunkIndex * chunkSize, chunkSize));
+                melFeatures = getMelBuffer();
+                setDeadline(nativePtr, deadline);
+                if (!computeMel(nativePtr, directSamples(samples, chunkIndex * chunkSize, count), 0, count, melFeatures))
+                    break;
+                if (store != null)
+                    store.put(audioKey, chunkIndex, melFeatures);
+            }
+            chunkTimings.addMel(System.nanoTime() - melStart);
+
+            setDeadline(nativePtr, deadline);
+            int[] tokens = transcribeMel(nativePtr, melFeatures);
+            chunkTimings.add(fetchTimings(nativePtr));
+            timings.add(chunkTimings);
+            if (tokens == null)
+                break;
+
+            long startMs = (long) chunkIndex * WhisperUtil.WHISPER_CHUNK_SIZE * 1000;
+            long endMs = Math.min(startMs + WhisperUtil.WHISPER_CHUNK_SIZE * 1000L,
+                    samples.length * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE);
+            chunksDone++;
+            if (!listener.onChunk(chunkIndex, startMs, endMs, new TranscriptionResult(tokens, endMs - startMs, mVocab, chunkTimings)))
+                break;
+        }
+        mLastTimings = timings;
+        return chunksDone == totalChunks;
+    }
+
+    // Samples copied once into a direct buffer the native engine reads in place. Up to one chunk
+    // it is the input buffer, kept for the next request; longer audio gets a buffer of its own.
+    private ByteBuffer directSamples(float[] samples, int offset, int length) {
+        ByteBuffer pcm = (length <= WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE)
+                ? getInputBuffer(length) : ByteBuffer.allocateDirect(length * Float.BYTES).order(ByteOrder.nativeOrder());
+        pcm.clear();
+        pcm.asFloatBuffer().put(samples, offset, length);
+        return pcm;
+    }
+
+    private synchronized ByteBuffer getMelBuffer() {
+        if (mMelBuffer == null)
+            mMelBuffer = ByteBuffer.allocateDirect(MelFeatureStore.CHUNK_VALUES * Float.BYTES).order(ByteOrder.nativeOrder());
+        return mMelBuffer;
+    }
+
+    // The deadline covers a single request, the native side clears its own copy when done
+    private long takeDeadline() {
+        long deadline = mDeadlineNanos;
+        mDeadlineNanos = 0;
+        return deadline;
+    }
+
+    // Turns the token ids of each native chunk into a result for the listener
+    private NativeChunkListener chunkListener(ChunkListener listener) {
+        NativeVocab vocab = mVocab;
+        return (index, startMs, endMs, tokens, melNanos, invokeNanos, decodeNanos) ->
+                listener.onChunk(index, startMs, endMs, new TranscriptionResult(tokens, endMs - startMs, vocab,
+                        new StageTimings(melNanos, invokeNanos, decodeNanos, 1)));
+    }
+
+    private TranscriptionResult collect(long nativePtr, List<TranscriptionResult> chunks, int samples) {
+        mLastTimings = fetchTimings(nativePtr);
+        long audioMs = samples * 1000L / WhisperUtil.WHISPER_SAMPLE_RATE;
+        return TranscriptionResult.concat(chunks, audioMs, mLastTimings);
     }
 
-    private int loadModel(String modelPath, boolean isMultilingual) {
-        return loadModel(nativePtr, modelPath, isMultilingual);
+    // The table is copied from the first engine of each kind, null if no model is loaded
+    private NativeVocab loadVocab(long nativePtr, boolean multilingual) {
+        int kind = multilingual ? 1 : 0;
+        synchronized (sVocabs) {
+            if (sVocabs[kind] == null) {
+                byte[] text = getVocabText(nativePtr);
+                int[] index = getVocabIndex(nativePtr);
+                if (text == null || index == null)
+                    return null;
+                sVocabs[kind] = new NativeVocab(text, index);
+            }
+            return sVocabs[kind];
+        }
     }
 
-    private void freeModel() {
-        freeModel(nativePtr);
+    private StageTimings fetchTimings(long nativePtr) {
+        long[] timings = getLastTimings(nativePtr);
+        return new StageTimings(timings[0], timings[1], timings[2], (int) timings[3]);
     }
 
     static {
@@ -59,7 +546,22 @@ public class WhisperEngineNative implements WhisperEngine {
     // Native methods
     private native long createTFLiteEngine();
     private native int loadModel(long nativePtr, String modelPath, boolean isMultilingual);
+    private native int loadModelFd(long nativePtr, int modelFd, long offset, long length, boolean isMultilingual);
     private native void freeModel(long nativePtr);
-    private native String transcribeBuffer(long nativePtr, float[] samples);
-    private native String transcribeFile(long nativePtr, String waveFile);
+    private native boolean transcribeDirectChunks(long nativePtr, ByteBuffer pcm, int offset, int length, NativeChunkListener listener);
+    private native boolean transcribeFileChunks(long nativePtr, String waveFile, NativeChunkListener listener);
+    private native boolean transcribeTasksChunks(long nativePtr, float[] samples, int[] tasks, NativeTasksListener listener);
+    private native boolean supportsTasks(long nativePtr);
+    private native boolean setLanguage(long nativePtr, String language);
+    private native boolean supportsStepDecoding(long nativePtr);
+    private native int[] getPrompt(long nativePtr, int task);
+    private native boolean encodeChunk(long nativePtr, float[] samples, int offset);
+    private native int[] decodeStep(long nativePtr, int[] tokens, int length);
+    private native int[] transcribeMel(long nativePtr, ByteBuffer melFeatures);
+    private native boolean computeMel(long nativePtr, ByteBuffer pcm, int offset, int length, ByteBuffer melFeatures);
+    private native void cancel(long nativePtr);
+    private native void setDeadline(long nativePtr, long deadlineNanos);
+    private native long[] getLastTimings(long nativePtr);
+    private native byte[] getVocabText(long nativePtr);
+    private native int[] getVocabIndex(long nativePtr);
 }
@@ -0,0 +1,137 @@
+package com.whispertflite.utils;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+public class AssetUtil {
+    private static final String TAG = "AssetUtil";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // List asset names ending with the given extension, e.g. ".tflite"
+    public static ArrayList<String> listAssets(Context context, String extension) {
+        ArrayList<String> names = new ArrayList<>();
+        try {
+            String[] assetFiles = context.getAssets().list("");
+            if (assetFiles == null) return names;
+
+            for (String assetFileName : assetFiles) {
+                if (assetFileName.endsWith(extension))
+                    names.add(assetFileName);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to list assets", e);
+        }
+        return names;
+    }
+
+    // Copy assets with specified extensions to destination folder, must not be called on the UI thread.
+    // Copies are stamped with the time the APK was installed or updated, files already present
+    // with the same size and stamp are left untouched without reading them.
+    public static void copyAssets(Context context, File destFolder, String[] extensions) {
+        AssetManager assetManager = context.getAssets();
+        long apkTime = getApkUpdateTime(context);
+
+        try {
+            // List all files in the assets folder once
+            String[] assetFiles = assetManager.list("");
+            if (assetFiles == null) return;
+
+            for (String assetFileName : assetFiles) {
+                // Check if file matches any of the provided extensions
+                for (String extension : extensions) {
+                    if (assetFileName.endsWith("." + extension)) {
+                        File outFile = new File(destFolder, assetFileName);
+                        try {
+                            copyAsset(assetManager, assetFileName, outFile, apkTime);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Failed to copy asset " + assetFileName, e);
+                        }
+                        break; // No need to check further extensions
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to list assets", e);
+        }
+    }
+
+    private static void copyAsset(AssetManager assetManager, String assetFileName, File outFile, long apkTime) throws IOException {
+        AssetFileDescriptor afd;
+        try {
+            afd = assetManager.openFd(assetFileName);
+        } catch (FileNotFoundException e) {
+            // Compressed asset, no descriptor available, fall back to stream copy
+            if (isStamped(outFile, apkTime)) return;
+
+            try (InputStream inputStream = assetManager.open(assetFileName);
+                 OutputStream outputStream = new FileOutputStream(outFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
+            }
+            stamp(outFile, apkTime);
+            return;
+        }
+
+        try {
+            long length = afd.getLength();
+            if (outFile.length() == length && isStamped(outFile, apkTime)) {
+                Log.d(TAG, "Skipping unchanged asset " + assetFileName);
+                return;
+            }
+
+            // Let the kernel move the bytes from the APK region to the destination file
+            try (FileInputStream inputStream = afd.createInputStream();
+                 FileOutputStream outputStream = new FileOutputStream(outFile)) {
+                FileChannel in = inputStream.getChannel();
+                FileChannel out = outputStream.getChannel();
+                long start = afd.getStartOffset();
+                long copied = 0;
+                while (copied < length) {
+                    long n = in.transferTo(start + copied, length - copied, out);
+                    if (n <= 0) throw new IOException("transferTo stalled at " + copied + " of " + length);
+                    copied += n;
+                }
+            }
+            stamp(outFile, apkTime);
+            Log.d(TAG, "Copied asset " + assetFileName + " (" + length + " bytes)");
+        } finally {
+            afd.close();
+        }
+    }
+
+    // Time the APK was installed or updated, assets only change with it. 0 if unknown.
+    public static long getApkUpdateTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Own package not found", e);
+            return 0;
+        }
+    }
+
+    // Modification times are compared in seconds, the precision every file system keeps
+    private static boolean isStamped(File file, long apkTime) {
+        return apkTime != 0 && file.exists() && file.lastModified() / 1000 == apkTime / 1000;
+    }
+
+    private static void stamp(File file, long apkTime) {
+        if (apkTime != 0 && !file.setLastModified(apkTime))
+            Log.d(TAG, "Failed to stamp " + file);
+    }
+}
@@ -0,0 +1,236 @@
+package com.whispertflite.utils;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+// Cores of the process shared by every mel stage and interpreter, so pipelined stages, several
+// engines and several Whisper instances do not run more threads than there are cores. The cores
+// are partitioned between the two stages; a job takes threads from the share of its stage and
+// waits while that share is in use, and gives them back when done. While nobody waits in the
+// other stage, a job may also take the free cores of its share. The native engine draws from
+// the same budget.
+//
+// Interpreters run the thread count they were built with: the inference share at that time, or
+// for engines of a pool built with buildPooled(), the share divided by the pool size so that the
+// pool runs side by side. One built before its share shrank needs more threads than the share: it
+// waits until its stage is idle and borrows the rest from free cores of the other stage. Every
+// thread a job runs is counted.
+//
+// Each stage keeps its demand over a short window: thread time run plus thread time spent waiting
+// for cores. Per core of its share, the stage with clearly more demand is the bottleneck and gets
+// one core from the other, down to one core each.
+public final class CpuBudget {
+    private static final String TAG = "CpuBudget";
+    private static final long REBALANCE_NANOS = 2_000_000_000L;
+    private static final double REBALANCE_RATIO = 1.5;  // demand per core of one stage over the other to move a core
+    private static final double MIN_LOAD = 0.5;         // share of the window the busier stage must be loaded
+    private static final long WAIT_POLL_NANOS = 20_000_000L;  // how often a waiting job checks whether it was cancelled
+
+    private static final CpuBudget sInstance = new CpuBudget(Runtime.getRuntime().availableProcessors());
+    private static final ThreadLocal<Integer> sPoolSize = ThreadLocal.withInitial(() -> 1);  // see buildPooled()
+
+    public enum Stage {
+        MEL, INFERENCE
+    }
+
+    // Threads of one job, close it when the job is done
+    public final class Grant implements AutoCloseable {
+        private final Stage mStage;
+        private final int mThreads;
+        private final long mStartNanos = System.nanoTime();
+        private boolean mClosed = false;
+
+        private Grant(Stage stage, int threads) {
+            mStage = stage;
+            mThreads = threads;
+        }
+
+        public int getThreads() {
+            return mThreads;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final int mCores;
+    private final int[] mShare = new int[2];
+    private final int[] mInUse = new int[2];
+    private final int[] mJobs = new int[2];
+    private final int[] mWaiting = new int[2];
+    private final long[] mDemandNanos = new long[2];  // thread nanoseconds run and waited in this window
+    private long mWindowStart = System.nanoTime();
+    private int mRebalances = 0;
+
+    // A single core is shared by both stages, they take turns anyway
+    private CpuBudget(int cores) {
+        mCores = Math.max(1, cores);
+        mShare[Stage.MEL.ordinal()] = Math.max(1, mCores / 4);
+        mShare[Stage.INFERENCE.ordinal()] = Math.max(1, mCores - mShare[Stage.MEL.ordinal()]);
+    }
+
+    public static CpuBudget get() {
+        return sInstance;
+    }
+
+    // Interpreters built by build on this thread, e.g. the engines of a pool that run side by side,
+    // get the inference share divided by instances. Nested pools take the larger count.
+    public static <T> T buildPooled(int instances, Supplier<T> build) {
+        int previous = sPoolSize.get();
+        sPoolSize.set(Math.max(previous, instances));
+        try {
+            return build.get();
+        } finally {
+            sPoolSize.set(previous);
+        }
+    }
+
+    // Threads for an interpreter built now on this thread, see buildPooled()
+    public synchronized int getInterpreterThreads() {
+        return Math.max(1, mShare[Stage.INFERENCE.ordinal()] / Math.max(1, sPoolSize.get()));
+    }
+
+    // Waits until at least minThreads cores are free for the stage, then takes up to maxThreads of
+    // them. Interpreters with a fixed thread count ask for exactly that many and get them. Null if
+    // isCancelled turns true, e.g. past a deadline, or the thread is interrupted while waiting.
+    public Grant acquire(Stage stage, int minThreads, int maxThreads, BooleanSupplier isCancelled) {
+        while (true) {
+            Grant grant = tryAcquire(stage, minThreads, maxThreads, WAIT_POLL_NANOS);
+            if (grant != null || isCancelled.getAsBoolean() || Thread.currentThread().isInterrupted())
+                return grant;
+        }
+    }
+
+    // Same, waiting at most timeoutNanos, null if the cores did not become free in time
+    private synchronized Grant tryAcquire(Stage stage, int minThreads, int maxThreads, long timeoutNanos) {
+        int s = stage.ordinal();
+        int needed = Math.max(1, Math.min(minThreads, mCores));
+        long waitStart = System.nanoTime();
+        mWaiting[s]++;
+        try {
+            while (!canStart(s, needed)) {
+                long remaining = timeoutNanos - (System.nanoTime() - waitStart);
+                if (remaining <= 0)
+                    return null;
+                wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            mWaiting[s]--;
+            mDemandNanos[s] += (System.nanoTime() - waitStart) * Math.max(1, minThreads);
+        }
+
+        int threads = Math.max(needed, Math.min(maxThreads, getFree(s)));
+        mInUse[s] += threads;
+        mJobs[s]++;
+        return new Grant(stage, threads);
+    }
+
+    // Cores of the share not in use and not lent to the other stage, or every free core while
+    // nobody waits in the other stage
+    private int getFree(int s) {
+        int other = 1 - s;
+        if (mWaiting[other] == 0)
+            return mCores - mInUse[s] - mInUse[other];
+        return mShare[s] - mInUse[s] - Math.max(0, mInUse[other] - mShare[other]);
+    }
+
+    private boolean canStart(int s, int needed) {
+        if (getFree(s) >= needed)
+            return true;
+        // More than the share, only alone in the stage and with the rest free on the other side
+        return needed > mShare[s] && mInUse[s] == 0 && mCores - mInUse[0] - mInUse[1] >= needed;
+    }
+
+    private synchronized void release(Grant grant) {
+        if (grant.mClosed)
+            return;
+        grant.mClosed = true;
+        int s = grant.mStage.ordinal();
+        long now = System.nanoTime();
+        mInUse[s] -= grant.mThreads;
+        mJobs[s]--;
+        mDemandNanos[s] += (now - grant.mStartNanos) * grant.mThreads;
+        rebalance(now);
+        notifyAll();
+    }
+
+    // Moves one core to the stage that needed its share the most over the last window
+    private void rebalance(long now) {
+        long window = now - mWindowStart;
+        if (window < REBALANCE_NANOS)
+            return;
+        int mel = Stage.MEL.ordinal();
+        int inference = Stage.INFERENCE.ordinal();
+        double melLoad = mDemandNanos[mel] / ((double) window * mShare[mel]);
+        double inferenceLoad = mDemandNanos[inference] / ((double) window * mShare[inference]);
+        if (Math.max(melLoad, inferenceLoad) >= MIN_LOAD) {
+            if (melLoad > inferenceLoad * REBALANCE_RATIO && mShare[inference] > 1)
+                moveCore(inference, mel);
+            else if (inferenceLoad > melLoad * REBALANCE_RATIO && mShare[mel] > 1)
+                moveCore(mel, inference);
+        }
+        mDemandNanos[mel] = 0;
+        mDemandNanos[inference] = 0;
+        mWindowStart = now;
+    }
+
+    // Threads already running keep going, the smaller share fills up again as they finish
+    private void moveCore(int from, int to) {
+        mShare[from]--;
+        mShare[to]++;
+        mRebalances++;
+        Log.d(TAG, "Rebalanced: " + this);
+    }
+
+    public int getCores() {
+        return mCores;
+    }
+
+    public synchronized int getShare(Stage stage) {
+        return mShare[stage.ordinal()];
+    }
+
+    public synchronized int getThreadsInUse(Stage stage) {
+        return mInUse[stage.ordinal()];
+    }
+
+    public synchronized int getJobs(Stage stage) {
+        return mJobs[stage.ordinal()];
+    }
+
+    public synchronized int getWaiting(Stage stage) {
+        return mWaiting[stage.ordinal()];
+    }
+
+    public synchronized int getRebalances() {
+        return mRebalances;
+    }
+
+    // Called from the native engine, which holds on to the grant until its stage is done. Null
+    // after timeoutNanos, the engine then checks whether it was cancelled and tries again.
+    private static Grant acquireNative(int stage, int minThreads, int maxThreads, long timeoutNanos) {
+        return sInstance.tryAcquire(Stage.values()[stage], minThreads, maxThreads, timeoutNanos);
+    }
+
+    // Called from the native engine to size an interpreter as it is built
+    private static int interpreterThreadsNative() {
+        return sInstance.getInterpreterThreads();
+    }
+
+    @Override
+    public synchronized String toString() {
+        int mel = Stage.MEL.ordinal();
+        int inference = Stage.INFERENCE.ordinal();
+        return String.format(Locale.US, "cores %d, mel %d/%d (jobs %d, waiting %d), inference %d/%d (jobs %d, waiting %d), rebalances %d",
+                mCores, mInUse[mel], mShare[mel], mJobs[mel], mWaiting[mel],
+                mInUse[inference], mShare[inference], mJobs[inference], mWaiting[inference], mRebalances);
+    }
+}
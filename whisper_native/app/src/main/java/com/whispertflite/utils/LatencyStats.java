@@ -0,0 +1,47 @@
+package com.whispertflite.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// Latency percentiles over the most recent samples
+public class LatencyStats {
+    private final long[] mSamples;
+    private int mCount = 0;
+    private int mNext = 0;
+
+    public LatencyStats(int window) {
+        mSamples = new long[window];
+    }
+
+    public synchronized void record(long latencyNanos) {
+        mSamples[mNext] = latencyNanos;
+        mNext = (mNext + 1) % mSamples.length;
+        mCount = Math.min(mCount + 1, mSamples.length);
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    // Nearest rank percentile, p in [0, 100], 0 when nothing was recorded
+    public synchronized long percentileNanos(double p) {
+        if (mCount == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(p / 100.0 * mCount);
+        return sorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n: %d, p50: %.1f ms, p90: %.1f ms, p99: %.1f ms, max: %.1f ms",
+                getCount(), percentileNanos(50) / 1e6, percentileNanos(90) / 1e6,
+                percentileNanos(99) / 1e6, percentileNanos(100) / 1e6);
+    }
+}
@@ -1,137 +1,98 @@
-package com.whispertflite.utils;
-
-import android.util.Log;
-
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
-
-public class WaveUtil {
-    public static final String TAG = "WaveUtil";
-    public static final String RECORDING_FILE = "MicInput.wav";
-
-    public static void createWaveFile(String filePath, byte[] samples, int sampleRate, int numChannels, int bytesPerSample) {
-        try {
-            int dataSize = samples.length; // actual data size in bytes
-            int audioFormat = (bytesPerSample == 2) ? 1 : (bytesPerSample == 4) ? 3 : 0; // PCM_16 = 1, PCM_FLOAT = 3
-
-            FileOutputStream fileOutputStream = new FileOutputStream(filePath);
-            fileOutputStream.write("RIFF".getBytes(StandardCharsets.UTF_8)); // Write the "RIFF" chunk descriptor
-            fileOutputStream.write(intToByteArray(36 + dataSize), 0, 4); // Total file size - 8 bytes
-            fileOutputStream.write("WAVE".getBytes(StandardCharsets.UTF_8)); // Write the "WAVE" format
-            fileOutputStream.write("fmt ".getBytes(StandardCharsets.UTF_8)); // Write the "fmt " sub-chunk
-            fileOutputStream.write(intToByteArray(16), 0, 4); // Sub-chunk size (16 for PCM)
-            fileOutputStream.write(shortToByteArray((short) audioFormat), 0, 2); // Audio format (1 for PCM)
-            fileOutputStream.write(shortToByteArray((short) numChannels), 0, 2); // Number of channels
-            fileOutputStream.write(intToByteArray(sampleRate), 0, 4); // Sample rate
-            fileOutputStream.write(intToByteArray(sampleRate * numChannels * bytesPerSample), 0, 4); // Byte rate
-            fileOutputStream.write(shortToByteArray((short) (numChannels * bytesPerSample)), 0, 2); // Block align
-            fileOutputStream.write(shortToByteArray((short) (bytesPerSample * 8)), 0, 2); // Bits per sample
-            fileOutputStream.write("data".getBytes(StandardCharsets.UTF_8)); // Write the "data" sub-chunk
-            fileOutputStream.write(intToByteArray(dataSize), 0, 4); // Data size
-
-            // Write audio samples
-            fileOutputStream.write(samples);
-
-            // Close the file output stream
-            fileOutputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "Error...", e);
-        }
-    }
-
-    public static float[] getSamples(String filePath) {
-        try {
-            FileInputStream fileInputStream = new FileInputStream(filePath);
-
-            // Read the WAV file header
-            byte[] header = new byte[44];
-            fileInputStream.read(header);
-
-            // Check if it's a valid WAV file (contains "RIFF" and "WAVE" markers)
-            String headerStr = new String(header, 0, 4);
-            if (!headerStr.equals("RIFF")) {
-                System.err.println("Not a valid WAV file");
-                return new float[0];
-            }
-
-            // Get the audio format details from the header
-            int sampleRate = byteArrayToNumber(header, 24, 4);
-            int bitsPerSample = byteArrayToNumber(header, 34, 2);
-            if (bitsPerSample != 16 && bitsPerSample != 32) {
-                System.err.println("Unsupported bits per sample: " + bitsPerSample);
-                return new float[0];
-            }
-
-            // Get the size of the data section (all PCM data)
-            int dataLength = fileInputStream.available(); // byteArrayToInt(header, 40, 4);
-
-            // Calculate the number of samples
-            int bytesPerSample = bitsPerSample / 8;
-            int numSamples = dataLength / bytesPerSample;
-
-            // Read the audio data
-            byte[] audioData = new byte[dataLength];
-            fileInputStream.read(audioData);
-            ByteBuffer byteBuffer = ByteBuffer.wrap(audioData);
-            byteBuffer.order(ByteOrder.nativeOrder());
-
-            // Convert audio data to PCM_FLOAT format
-            float[] samples = new float[numSamples];
-            if (bitsPerSample == 16) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = (float) (byteBuffer.getShort() / 32768.0);
-                }
-            } else if (bitsPerSample == 32) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = byteBuffer.getFloat();
-                }
-            }
-
-            return samples;
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "Error...", e);
-        }
-        return new float[0];
-    }
-
-    // Convert a portion of a byte array into an integer or a short
-    private static int byteArrayToNumber(byte[] bytes, int offset, int length) {
-        int value = 0; // Start with an initial value of 0
-
-        // Loop through the specified portion of the byte array
-        for (int i = 0; i < length; i++) {
-            // Extract a byte, ensure it's positive, and shift it to its position in the integer
-            value |= (bytes[offset + i] & 0xFF) << (8 * i);
-        }
-
-        return value; // Return the resulting integer value
-    }
-
-    private static byte[] intToByteArray(int value) {
-        byte[] byteArray = new byte[4]; // Create a 4-byte array
-
-        // Convert and store the bytes in little-endian order
-        byteArray[0] = (byte) (value & 0xFF);         // Least significant byte (LSB)
-        byteArray[1] = (byte) ((value >> 8) & 0xFF);  // Second least significant byte
-        byteArray[2] = (byte) ((value >> 16) & 0xFF); // Second most significant byte
-        byteArray[3] = (byte) ((value >> 24) & 0xFF); // Most significant byte (MSB)
-
-        return byteArray;
-    }
-
-    private static byte[] shortToByteArray(int value) {
-        byte[] byteArray = new byte[2]; // Create a 2-byte array
-
-        // Convert and store the bytes in little-endian order
-        byteArray[0] = (byte) (value & 0xFF);        // Least significant byte (LSB)
-        byteArray[1] = (byte) ((value >> 8) & 0xFF); // Most significant byte (MSB)
-
-        return byteArray;
-    }
-}
+package com.whispertflite.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class WaveUtil {
+    public static final String TAG = "WaveUtil";
+    public static final String RECORDING_FILE = "MicInput.wav";
+
+    public static void createWaveFile(String filePath, byte[] samples, int sampleRate, int numChannels, int bytesPerSample) {
+        try (WaveWriter writer = new WaveWriter(filePath, sampleRate, numChannels, bytesPerSample, Long.MAX_VALUE)) {
+            writer.write(samples, 0, samples.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "Error...", e);
+        }
+    }
+
+    // Decode a WAV file to 16 kHz mono float samples, other rates and channel counts are
+    // downmixed and resampled while streaming through the file
+    public static float[] getSamples(String filePath) {
+        try (WaveReader reader = new WaveReader(filePath)) {
+            if (reader.getSampleRate() != WhisperUtil.WHISPER_SAMPLE_RATE || reader.getChannels() != 1)
+                Log.d(TAG, "Converting " + reader.getSampleRate() + " Hz, " + reader.getChannels() + " channels to 16 kHz mono");
+
+            long estimate = reader.estimateOutputLength();
+            float[] samples = new float[(int) Math.max(WhisperUtil.WHISPER_SAMPLE_RATE, estimate + 64)];
+            int count = 0;
+            int n;
+            while ((n = reader.read(samples, count, samples.length - count)) > 0) {
+                count += n;
+                if (count == samples.length)
+                    samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            return (count == samples.length) ? samples : Arrays.copyOf(samples, count);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "Error...", e);
+        }
+        return new float[0];
+    }
+
+    // Decode a WAV file to 16 kHz float samples per channel, deinterleaved in a single pass
+    public static float[][] getChannelSamples(String filePath) {
+        try (WaveReader reader = new WaveReader(filePath, true)) {
+            int channels = reader.getChannels();
+            long estimate = reader.estimateOutputLength();
+            int capacity = (int) Math.max(WhisperUtil.WHISPER_SAMPLE_RATE, estimate + 64);
+            float[][] samples = new float[channels][capacity];
+            int count = 0;
+            int n;
+            while ((n = reader.read(samples, count, capacity - count)) > 0) {
+                count += n;
+                if (count == capacity) {
+                    capacity *= 2;
+                    for (int c = 0; c < channels; c++)
+                        samples[c] = Arrays.copyOf(samples[c], capacity);
+                }
+            }
+            for (int c = 0; c < channels; c++)
+                samples[c] = Arrays.copyOf(samples[c], count);
+            return samples;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "Error...", e);
+        }
+        return new float[0][];
+    }
+
+    // Channel count from the header, 0 if the file cannot be read
+    public static int getChannelCount(String filePath) {
+        try (WaveReader reader = new WaveReader(filePath)) {
+            return reader.getChannels();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Duration from the header, 0 if the file cannot be read or gives no size
+    public static long getDurationMs(String filePath) {
+        try (WaveReader reader = new WaveReader(filePath)) {
+            return Math.max(0, reader.estimateOutputLength()) * 1000 / WhisperUtil.WHISPER_SAMPLE_RATE;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // True if the file is already 16 kHz mono, the format the native WAV reader expects
+    public static boolean isWhisperFormat(String filePath) {
+        try (WaveReader reader = new WaveReader(filePath)) {
+            return reader.getSampleRate() == WhisperUtil.WHISPER_SAMPLE_RATE && reader.getChannels() == 1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.whispertflite.utils;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Streams PCM to a WAV file as it arrives. The 44 byte header is reserved up front and its size
+// fields are patched on every checkpoint and on close, so memory use does not depend on the
+// duration and a file cut short by a crash is still valid up to the last checkpoint.
+public class WaveWriter implements Closeable {
+    private static final String TAG = "WaveWriter";
+    public static final int HEADER_SIZE = 44;
+    private static final long MAX_DATA_SIZE = 0xFFFFFFFFL - 36; // RIFF sizes are 32 bit
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader;
+    private final long mCheckpointBytes;
+    private long mDataSize = 0;
+    private long mUnsyncedBytes = 0;
+
+    // Header is checkpointed once per second of audio
+    public WaveWriter(String filePath, int sampleRate, int numChannels, int bytesPerSample) throws IOException {
+        this(filePath, sampleRate, numChannels, bytesPerSample, (long) sampleRate * numChannels * bytesPerSample);
+    }
+
+    public WaveWriter(String filePath, int sampleRate, int numChannels, int bytesPerSample, long checkpointBytes) throws IOException {
+        mFile = new RandomAccessFile(filePath, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mHeader = createHeader(sampleRate, numChannels, bytesPerSample, 0);
+        mCheckpointBytes = checkpointBytes;
+        writeHeader();
+    }
+
+    public long getDataSize() {
+        return mDataSize;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    public void write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (mDataSize + length > MAX_DATA_SIZE)
+            throw new IOException("WAV data size limit reached");
+
+        mChannel.position(HEADER_SIZE + mDataSize);
+        while (data.hasRemaining())
+            mChannel.write(data);
+        mDataSize += length;
+
+        mUnsyncedBytes += length;
+        if (mUnsyncedBytes >= mCheckpointBytes)
+            checkpoint();
+    }
+
+    // Patch the header with the current size and push everything to storage
+    public void checkpoint() throws IOException {
+        writeHeader();
+        mChannel.force(false);
+        mUnsyncedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            mFile.close();
+        }
+        Log.d(TAG, "Wave file is closed, data size: " + mDataSize);
+    }
+
+    private void writeHeader() throws IOException {
+        mHeader.putInt(4, (int) (36 + mDataSize)); // Total file size - 8 bytes
+        mHeader.putInt(40, (int) mDataSize);       // Data size
+        mHeader.rewind();
+        mChannel.position(0);
+        while (mHeader.hasRemaining())
+            mChannel.write(mHeader);
+    }
+
+    public static ByteBuffer createHeader(int sampleRate, int numChannels, int bytesPerSample, int dataSize) {
+        int audioFormat = (bytesPerSample == 2) ? 1 : (bytesPerSample == 4) ? 3 : 0; // PCM_16 = 1, PCM_FLOAT = 3
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.UTF_8)); // Write the "RIFF" chunk descriptor
+        header.putInt(36 + dataSize);                       // Total file size - 8 bytes
+        header.put("WAVE".getBytes(StandardCharsets.UTF_8)); // Write the "WAVE" format
+        header.put("fmt ".getBytes(StandardCharsets.UTF_8)); // Write the "fmt " sub-chunk
+        header.putInt(16);                                   // Sub-chunk size (16 for PCM)
+        header.putShort((short) audioFormat);                // Audio format (1 for PCM)
+        header.putShort((short) numChannels);                // Number of channels
+        header.putInt(sampleRate);                           // Sample rate
+        header.putInt(sampleRate * numChannels * bytesPerSample); // Byte rate
+        header.putShort((short) (numChannels * bytesPerSample));  // Block align
+        header.putShort((short) (bytesPerSample * 8));            // Bits per sample
+        header.put("data".getBytes(StandardCharsets.UTF_8)); // Write the "data" sub-chunk
+        header.putInt(dataSize);                             // Data size
+        header.rewind();
+        return header;
+    }
+}